@@ -1,11 +1,20 @@
 package simpledb;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.NoSuchElementException;
 
 /**
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
  * min). Note that we only support aggregates over a single column, grouped by a
  * single column.
+ * <p>
+ * Groups are aggregated in memory while they fit in the operator's
+ * {@link MemoryManager.MemoryGrant}. Once they don't, the groups already in
+ * memory keep being aggregated there and the tuples of any other group are
+ * written to NUM_PARTITIONS {@link SpillFile}s by the hash of their group.
+ * Each partition is aggregated on its own afterwards, being split again if
+ * it still has too many groups.
  */
 public class Aggregate extends Operator {
 
@@ -49,6 +58,38 @@ public class Aggregate extends Operator {
      */
     private Aggregator aggregator;
 
+    /** The name of the error column of approximate aggregates */
+    public static final String ERROR_FIELD = "error";
+
+    /** The fraction of the input's table that the child samples, for sampled aggregates */
+    private double samplingFraction = 1.0;
+
+    /** Number of partitions the spilled tuples are split into */
+    static final int NUM_PARTITIONS = 16;
+    /** Partitions this many levels deep are aggregated in memory whatever their size */
+    static final int MAX_SPILL_LEVEL = 3;
+
+    /** A spilled partition of the input, split by the hash of the group at the given level */
+    private static class Partition {
+        final SpillFile file;
+        final int level;
+
+        Partition(SpillFile file, int level) {
+            this.file = file;
+            this.level = level;
+        }
+    }
+
+    private transient MemoryManager.MemoryGrant grant;
+    /** The result of the aggregation of the tuples that stayed in memory */
+    private transient DbIterator firstIter;
+    /** The partitions written while reading the child */
+    private transient ArrayList<Partition> firstPartitions = new ArrayList<Partition>();
+    /** The partitions not aggregated yet */
+    private transient ArrayDeque<Partition> pending = new ArrayDeque<Partition>();
+    /** Every spill file created, deleted on close */
+    private transient ArrayList<SpillFile> spills = new ArrayList<SpillFile>();
+
     /**
      * Constructor.
      * <p>
@@ -71,27 +112,40 @@ public class Aggregate extends Operator {
         this.child_td = child.getTupleDesc();
 
         Type aField = child.getTupleDesc().getFieldType(afield);
+        if (aop == Aggregator.Op.COUNT_DISTINCT || aop.isApproximate())
+            aField = Type.INT_TYPE;  // 字符串字段的不同值个数也是整数
 
         if(gfield != -1){
             // 需要优化
             Type gField = child.getTupleDesc().getFieldType(gfield);
             this.td = new TupleDesc(new Type[]{gField,aField}, new String[]{child_td.getFieldName(gfield), child_td.getFieldName(afield)});
-            if(aField == Type.INT_TYPE){
-                aggregator = new IntegerAggregator(groupField, gField, afield, aop);
-            }else{
-                aggregator = new StringAggregator(groupField, gField, afield, aop);
-            }
         }else{
             this.td = new TupleDesc(new Type[]{aField});
-            if(aField == Type.INT_TYPE){
-                aggregator = new IntegerAggregator(groupField, null, afield, aop);
-            }else{
-                aggregator = new StringAggregator(groupField, null, afield, aop);
-            }
         }
+        if (aop.isApproximate()) {
+            // 近似聚合在结果后面多一列误差
+            this.td = TupleDesc.merge(this.td, new TupleDesc(new Type[]{Type.INT_TYPE}, new String[]{ERROR_FIELD}));
+        }
+        aggregator = newAggregator();
 
     }
 
+    private Aggregator newAggregator() {
+        Type aField = child_td.getFieldType(aggField);
+        Type gField = groupField != -1 ? child_td.getFieldType(groupField) : null;
+        if (aop == Aggregator.Op.APPROX_COUNT_DISTINCT) {
+            return new HyperLogLogAggregator(groupField, gField, aggField, HyperLogLog.DEFAULT_PRECISION);
+        }
+        if (aop.isSampled()) {
+            return new SampledAggregator(groupField, gField, aggField, aop, samplingFraction);
+        }
+        if(aField == Type.INT_TYPE){
+            return new IntegerAggregator(groupField, gField, aggField, aop);
+        }else{
+            return new StringAggregator(groupField, gField, aggField, aop);
+        }
+    }
+
     /**
      * @return If this aggregate is accompanied by a groupby, return the groupby
      * field index in the <b>INPUT</b> tuples. If not, return
@@ -140,6 +194,18 @@ public class Aggregate extends Operator {
         return aop;
     }
 
+    /**
+     * Set the probability with which the child's tuples were sampled from
+     * the table; sampled aggregates scale their estimates by it.
+     */
+    public void setSamplingFraction(double fraction) {
+        this.samplingFraction = fraction;
+    }
+
+    public double getSamplingFraction() {
+        return samplingFraction;
+    }
+
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
         return aop.toString();
     }
@@ -149,14 +215,78 @@ public class Aggregate extends Operator {
         // some code goes here
         child.open();
         super.open();
-        while (child.hasNext()){
-            aggregator.mergeTupleIntoGroup(child.next());
-        }
-        aggregateIter = aggregator.iterator();
-        aggregateIter.open();
+        releaseMemory();
+        int groups = getEstimatedCardinality();
+        grant = Database.getMemoryManager().request(groups > 0
+                ? groups * groupBytes() : MemoryManager.DEFAULT_GRANT, MemoryManager.MIN_GRANT);
+        // 每次open重新聚合，避免重复open时把同一批元组累加两次
+        aggregator = newAggregator();
+        firstPartitions.addAll(aggregate(aggregator, child, 0));
+        pending.addAll(firstPartitions);
+        firstIter = aggregator.iterator();
+        firstIter.open();
+        aggregateIter = firstIter;
     }
 
+    /** @return the approximate memory one group of the aggregation takes */
+    private long groupBytes() {
+        long sketch = aop == Aggregator.Op.APPROX_COUNT_DISTINCT
+                ? HyperLogLog.sizeOf(HyperLogLog.DEFAULT_PRECISION) : 0;
+        return MemoryManager.estimateTupleBytes(td) + 48 + sketch;
+    }
+
+    /**
+     * Merge the tuples of input into agg. The tuples of groups that are not
+     * in agg yet once agg is full are written to partitions instead.
+     *
+     * @return the non-empty partitions written
+     */
+    private ArrayList<Partition> aggregate(Aggregator agg, DbIterator input, int level)
+            throws DbException, TransactionAbortedException {
+        SpillFile[] parts = null;
+        int maxGroups = grant.tuples(groupBytes());
+        while (input.hasNext()) {
+            Tuple t = input.next();
+            if (parts == null) {
+                if (groupField == -1 || level >= MAX_SPILL_LEVEL
+                        || agg.numGroups() < maxGroups || agg.hasGroup(t)) {
+                    agg.mergeTupleIntoGroup(t);
+                    continue;
+                }
+                parts = new SpillFile[NUM_PARTITIONS];
+            }
+            if (agg.hasGroup(t)) {
+                agg.mergeTupleIntoGroup(t);
+            } else {
+                int p = SpillFile.partition(t.getField(groupField), level, NUM_PARTITIONS);
+                if (parts[p] == null) {
+                    parts[p] = new SpillFile(child_td);
+                    spills.add(parts[p]);
+                }
+                parts[p].add(t);
+            }
+        }
+        ArrayList<Partition> written = new ArrayList<Partition>();
+        if (parts != null) {
+            for (SpillFile f : parts) {
+                if (f != null)
+                    written.add(new Partition(f, level));
+            }
+        }
+        return written;
+    }
 
+    private void releaseMemory() {
+        firstPartitions.clear();
+        pending.clear();
+        for (SpillFile f : spills)
+            f.delete();
+        spills.clear();
+        if (grant != null) {
+            grant.release();
+            grant = null;
+        }
+    }
 
     /**
      * Returns the next tuple. If there is a group by field, then the first
@@ -167,22 +297,38 @@ public class Aggregate extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        while(aggregateIter.hasNext()){
-            return aggregateIter.next();
+        while (!aggregateIter.hasNext()) {
+            if (pending.isEmpty())
+                return null;
+            // 内存中的分组输出完后，逐个聚合溢出的分区
+            Partition p = pending.poll();
+            Aggregator agg = newAggregator();
+            DbIterator in = p.file.iterator();
+            in.open();
+            ArrayList<Partition> sub = aggregate(agg, in, p.level + 1);
+            in.close();
+            for (Partition s : sub)
+                pending.addFirst(s);
+            aggregateIter = agg.iterator();
+            aggregateIter.open();
         }
-        return null;
+        return aggregateIter.next();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-        aggregateIter.rewind();
+        firstIter.rewind();
+        aggregateIter = firstIter;
+        pending.clear();
+        pending.addAll(firstPartitions);
     }
 
     /**
      * Returns the TupleDesc of this Aggregate. If there is no group by field,
      * this will have one field - the aggregate column. If there is a group by
      * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * the aggregate value column. Approximate aggregates have one more
+     * column, ERROR_FIELD, after the aggregate value.
      * <p>
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -198,8 +344,11 @@ public class Aggregate extends Operator {
         // some code goes here
         child.close();
         super.close();
-        aggregateIter.close();
+        if (aggregateIter != null)
+            aggregateIter.close();
         aggregateIter = null;
+        firstIter = null;
+        releaseMemory();
     }
 
     @Override
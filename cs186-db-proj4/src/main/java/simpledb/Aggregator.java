@@ -14,7 +14,24 @@ public interface Aggregator extends Serializable {
     static final int NO_GROUPING = -1;
 
     public enum Op implements Serializable {
-        MIN, MAX, SUM, AVG, COUNT;
+        MIN, MAX, SUM, AVG, COUNT, COUNT_DISTINCT,
+        APPROX_COUNT_DISTINCT, APPROX_COUNT, APPROX_SUM, APPROX_AVG;
+
+        /**
+         * @return true if the aggregate is an estimate; its result is then
+         *         followed by the half width of a 95% confidence interval
+         */
+        public boolean isApproximate() {
+            return this == APPROX_COUNT_DISTINCT || isSampled();
+        }
+
+        /**
+         * @return true if the aggregate is estimated from a sample of the
+         *         table, see {@link SampledAggregator}
+         */
+        public boolean isSampled() {
+            return this == APPROX_COUNT || this == APPROX_SUM || this == APPROX_AVG;
+        }
 
         /**
          * Interface to access operations by a string containing an integer
@@ -48,6 +65,16 @@ public interface Aggregator extends Serializable {
         		return "avg";
         	if (this==COUNT)
         		return "count";
+        	if (this==COUNT_DISTINCT)
+        		return "count_distinct";
+        	if (this==APPROX_COUNT_DISTINCT)
+        		return "approx_count_distinct";
+        	if (this==APPROX_COUNT)
+        		return "approx_count";
+        	if (this==APPROX_SUM)
+        		return "approx_sum";
+        	if (this==APPROX_AVG)
+        		return "approx_avg";
         	throw new IllegalStateException("impossible to reach here");
         }
     }
@@ -61,6 +88,17 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * @return the number of groups aggregated so far
+     */
+    public int numGroups();
+
+    /**
+     * @return true if the group tup belongs to has already been created by
+     *         {@link #mergeTupleIntoGroup}
+     */
+    public boolean hasGroup(Tuple tup);
+
     /**
      * Create a DbIterator over group aggregate results.
      * @see TupleIterator for a possible helper
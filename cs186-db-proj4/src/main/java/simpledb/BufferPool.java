@@ -3,6 +3,7 @@ package simpledb;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -28,6 +29,9 @@ public class BufferPool {
 
     private final LockManager lockManager;
 
+    /** The tuples each running transaction has changed, counted in the table statistics when it commits */
+    private final ConcurrentHashMap<TransactionId, TableStats.Changes> changes = new ConcurrentHashMap<>();
+
     private final int SLEEP_TIME_INTERVAL = 500;
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -125,7 +129,9 @@ public class BufferPool {
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction. The tuples a committed transaction inserted and
+     * deleted are then counted in the statistics of their tables; those of
+     * an aborted one are not.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
@@ -134,8 +140,11 @@ public class BufferPool {
         // some code goes here
         // not necessary for proj1
         lockManager.releaseTransactionLocks(tid);
+        TableStats.Changes changed = changes.remove(tid);
         if (commit){
             flushPages(tid);
+            if (changed != null)
+                changed.apply();
         }else{
             revertTransactionAction(tid);
         }
@@ -171,6 +180,7 @@ public class BufferPool {
         // not necessary for proj1
         DbFile dbFile = Database.getCatalog().getDbFile(tableId);
         ArrayList<Page> pages = dbFile.insertTuple(tid, t);
+        changesOf(tid).add(tableId, t, true);
     }
 
     /**
@@ -194,6 +204,18 @@ public class BufferPool {
         DbFile dbFile = Database.getCatalog().getDbFile(pageId.getTableId());
         Page page = dbFile.deleteTuple(tid, t);
         page.markDirty(true, tid);
+        changesOf(tid).add(pageId.getTableId(), t, false);
+    }
+
+    private TableStats.Changes changesOf(TransactionId tid) {
+        TableStats.Changes c = changes.get(tid);
+        if (c == null) {
+            TableStats.Changes fresh = new TableStats.Changes();
+            c = changes.putIfAbsent(tid, fresh);
+            if (c == null)
+                c = fresh;
+        }
+        return c;
     }
 
     /**
@@ -242,7 +264,7 @@ public class BufferPool {
         Iterator<Page> iterator = pageCache.iterator();
         while (iterator.hasNext()){
             Page page = iterator.next();
-            if (page.isDirty().equals(tid)){
+            if (page.isDirty() != null && page.isDirty().equals(tid)){
                 flushPage(page.getId());
             }
         }
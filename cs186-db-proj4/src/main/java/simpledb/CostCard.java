@@ -2,7 +2,7 @@ package simpledb;
 
 import java.util.Vector;
 
-/** Class returned by {@link JoinOptimizer#computeCostAndCardOfSubplan} specifying the
+/** Class returned by {@link JoinOptimizer#computeCostAndCardOfJoin} specifying the
     cost and cardinality of the optimal plan represented by plan.
 */
 public class CostCard {
@@ -10,6 +10,10 @@ public class CostCard {
     public double cost;
     /** The cardinality of the optimal subplan */
     public int card;
-    /** The optimal subplan */
+    /** The optimal subplan: the joins of its join tree in postorder */
     public Vector<LogicalJoinNode> plan;
+    /** True if the last join of plan is a merge join producing the query's ORDER BY order */
+    public boolean ordered;
+    /** The estimated heap size of one output tuple of the subplan, see {@link MemoryManager#estimateTupleBytes} */
+    public long tupleBytes;
 }
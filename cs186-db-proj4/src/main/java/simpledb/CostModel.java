@@ -0,0 +1,315 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * The coefficients the optimizer prices plans with: the I/O cost of reading
+ * and spilling pages, and the CPU cost of the work each operator does per
+ * tuple, all in units of one evaluation of a join predicate.
+ * <p>
+ * {@link #DEFAULT} holds the constants the cost model was written with.
+ * {@link #calibrate} measures the coefficients on this machine by running
+ * the operators themselves on in-memory inputs, and {@link #save} keeps
+ * them in a file next to the catalog, see {@link #fileFor}, which
+ * {@link #loadOrCalibrate} reads at startup.
+ *
+ * 代价模型：每种算子的I/O和CPU系数，可以在本机上测出来并保存
+ */
+public class CostModel {
+
+    /** The cost model used until one is loaded or calibrated */
+    public static final CostModel DEFAULT = new CostModel(TableStats.IOCOSTPERPAGE,
+            2.0 * TableStats.IOCOSTPERPAGE, 0, 2, 1, 1, 1);
+
+    private static volatile CostModel current = DEFAULT;
+
+    /** Reading a page of a table */
+    public final double pageRead;
+    /** Writing a page of tuples to a {@link SpillFile} and reading it back */
+    public final double spillPage;
+    /** Producing a tuple from a scan */
+    public final double scanTuple;
+    /** Inserting a tuple into the hash table of a {@link HashEquiJoin} */
+    public final double hashBuild;
+    /** Looking a tuple up in the hash table of a {@link HashEquiJoin} */
+    public final double hashProbe;
+    /** One comparison while sorting; sorting n tuples takes n log2 n of them */
+    public final double sortCompare;
+    /** Passing a tuple through the merge of a {@link SortMergeJoin} */
+    public final double mergeTuple;
+    /** One evaluation of a join predicate, as in a nested loop join; the unit */
+    public final double compare = 1;
+
+    public CostModel(double pageRead, double spillPage, double scanTuple,
+            double hashBuild, double hashProbe, double sortCompare,
+            double mergeTuple) {
+        this.pageRead = pageRead;
+        this.spillPage = spillPage;
+        this.scanTuple = scanTuple;
+        this.hashBuild = hashBuild;
+        this.hashProbe = hashProbe;
+        this.sortCompare = sortCompare;
+        this.mergeTuple = mergeTuple;
+    }
+
+    /**
+     * @return the cost model the optimizer uses
+     */
+    public static CostModel current() {
+        return current;
+    }
+
+    public static void setCurrent(CostModel model) {
+        current = model;
+    }
+
+    /**
+     * @return the cost of reading a page, as the whole number
+     *         {@link TableStats} takes
+     */
+    public int ioCostPerPage() {
+        return (int) Math.max(1, Math.round(pageRead));
+    }
+
+    /**
+     * @return the file the cost model for a catalog is kept in, next to the
+     *         catalog file
+     */
+    public static File fileFor(String catalogFile) {
+        return new File(catalogFile + ".costs");
+    }
+
+    /**
+     * Use the cost model saved in file, or calibrate one and save it there
+     * if there is none. If calibrating fails the current model is kept.
+     */
+    public static void loadOrCalibrate(File file) {
+        if (file.exists()) {
+            try {
+                setCurrent(load(file));
+                System.out.println("Loaded cost model from " + file + ".");
+                return;
+            } catch (IOException e) {
+                System.out.println("Could not read " + file + ": " + e.getMessage());
+            }
+        }
+        System.out.println("Calibrating the cost model.");
+        CostModel model;
+        try {
+            model = calibrate();
+        } catch (DbException | TransactionAbortedException | IOException e) {
+            System.out.println("Could not calibrate the cost model: " + e.getMessage());
+            return;
+        }
+        setCurrent(model);
+        System.out.println(model);
+        try {
+            model.save(file);
+        } catch (IOException e) {
+            System.out.println("Could not write " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write the coefficients to file, as a properties file that can also be
+     * edited by hand.
+     */
+    public void save(File file) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("pageRead", Double.toString(pageRead));
+        p.setProperty("spillPage", Double.toString(spillPage));
+        p.setProperty("scanTuple", Double.toString(scanTuple));
+        p.setProperty("hashBuild", Double.toString(hashBuild));
+        p.setProperty("hashProbe", Double.toString(hashProbe));
+        p.setProperty("sortCompare", Double.toString(sortCompare));
+        p.setProperty("mergeTuple", Double.toString(mergeTuple));
+        try (OutputStream out = new FileOutputStream(file)) {
+            p.store(out, "SimpleDB cost model, in units of one join predicate evaluation");
+        }
+    }
+
+    /**
+     * Read the coefficients written by {@link #save}; a coefficient missing
+     * from the file keeps its default.
+     */
+    public static CostModel load(File file) throws IOException {
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            p.load(in);
+        }
+        try {
+            return new CostModel(get(p, "pageRead", DEFAULT.pageRead),
+                    get(p, "spillPage", DEFAULT.spillPage),
+                    get(p, "scanTuple", DEFAULT.scanTuple),
+                    get(p, "hashBuild", DEFAULT.hashBuild),
+                    get(p, "hashProbe", DEFAULT.hashProbe),
+                    get(p, "sortCompare", DEFAULT.sortCompare),
+                    get(p, "mergeTuple", DEFAULT.mergeTuple));
+        } catch (NumberFormatException e) {
+            throw new IOException("bad coefficient: " + e.getMessage());
+        }
+    }
+
+    private static double get(Properties p, String key, double dflt) {
+        String v = p.getProperty(key);
+        return v == null ? dflt : Double.parseDouble(v.trim());
+    }
+
+    // ===================== Calibration =================================
+
+    /** Tuples in each input of the benchmarks; a hash table of them fits in the default memory grant */
+    static final int BENCH_TUPLES = 20000;
+
+    /** Tuples in each input of the nested loop join benchmark */
+    static final int BENCH_LOOP_TUPLES = 400;
+
+    /** Pages read by the page read benchmark */
+    static final int BENCH_PAGES = 256;
+
+    /** Each benchmark is run this many times after as many warm-up runs, keeping the fastest */
+    static final int BENCH_RUNS = 5;
+
+    private interface Benchmark {
+        void run() throws DbException, TransactionAbortedException, IOException;
+    }
+
+    /**
+     * Measure the coefficients on this machine. Each operator runs on inputs
+     * of two-int tuples held in memory, whose values never match, so that
+     * no time goes to producing output; the time it takes to produce its
+     * inputs is taken off. Page reads are timed on a temporary file, so
+     * they mostly come from the file system cache, as repeated reads of a
+     * table do.
+     */
+    public static CostModel calibrate() throws DbException,
+            TransactionAbortedException, IOException {
+        final TupleDesc td = Utility.getTupleDesc(2);
+        Random random = new Random(0);
+        final ArrayList<Tuple> left = tuples(td, 0, BENCH_TUPLES, random);
+        final ArrayList<Tuple> right = tuples(td, BENCH_TUPLES, BENCH_TUPLES, random);
+        final ArrayList<Tuple> one = tuples(td, 2 * BENCH_TUPLES, 1, random);
+        final JoinPredicate equals = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        final int n = BENCH_TUPLES;
+
+        double scan = time(() -> drain(new TupleIterator(td, left))) / n;
+        double compare = time(() -> drain(new Join(equals,
+                new TupleIterator(td, left.subList(0, BENCH_LOOP_TUPLES)),
+                new TupleIterator(td, right.subList(0, BENCH_LOOP_TUPLES)))))
+                / ((double) BENCH_LOOP_TUPLES * BENCH_LOOP_TUPLES);
+        double build = time(() -> drain(new HashEquiJoin(equals,
+                new TupleIterator(td, left), new TupleIterator(td, one)))) / n - scan;
+        // 探测一张满的hash表，减去建表的时间
+        double probe = time(() -> drain(new HashEquiJoin(equals,
+                new TupleIterator(td, left), new TupleIterator(td, right)))) / n
+                - build - 2 * scan;
+        double sort = (time(() -> drain(new OrderBy(0, true, new TupleIterator(td, left)))) / n
+                - scan) / (Math.log(n) / Math.log(2));
+        // 输入已经有序，排序只扫一遍，剩下的基本是归并
+        double merge = time(() -> drain(new SortMergeJoin(equals,
+                new TupleIterator(td, sorted(left)), new TupleIterator(td, sorted(right)))))
+                / (2.0 * n) - scan;
+        double spill = time(() -> {
+            SpillFile f = new SpillFile(td);
+            try {
+                for (Tuple t : left)
+                    f.add(t);
+                drain(f.iterator());
+            } finally {
+                f.delete();
+            }
+        }) / ((double) n * td.getSize() / BufferPool.PAGE_SIZE);
+        double page = time(() -> readPages(random)) / BENCH_PAGES;
+
+        // 都换算成一次连接谓词计算的倍数
+        double unit = Math.max(compare, 1e-3);
+        return new CostModel(page / unit, spill / unit, Math.max(scan, 0) / unit,
+                positive(build / unit), positive(probe / unit), positive(sort / unit),
+                positive(merge / unit));
+    }
+
+    /** Measured coefficients below this are noise around a cost that is not zero */
+    private static double positive(double coefficient) {
+        return Math.max(coefficient, 0.1);
+    }
+
+    /** @return the nanoseconds of the fastest of BENCH_RUNS runs of b, after as many to warm up */
+    private static double time(Benchmark b) throws DbException,
+            TransactionAbortedException, IOException {
+        for (int i = 0; i < BENCH_RUNS; i++)
+            b.run();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < BENCH_RUNS; i++) {
+            System.gc();    // 不把上一轮留下的垃圾算进这一轮
+            long start = System.nanoTime();
+            b.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static ArrayList<Tuple> tuples(TupleDesc td, int from, int count, Random random) {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>(count);
+        for (int i = 0; i < count; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(from + i));
+            t.setField(1, new IntField(random.nextInt()));
+            tuples.add(t);
+        }
+        Collections.shuffle(tuples, random);
+        return tuples;
+    }
+
+    private static ArrayList<Tuple> sorted(ArrayList<Tuple> tuples) {
+        ArrayList<Tuple> s = new ArrayList<Tuple>(tuples);
+        Collections.sort(s, (a, b) -> Integer.compare(((IntField) a.getField(0)).getValue(),
+                ((IntField) b.getField(0)).getValue()));
+        return s;
+    }
+
+    private static int drain(DbIterator it) throws DbException, TransactionAbortedException {
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    /** Read BENCH_PAGES pages of a temporary file in random order, as HeapFile.readPage does */
+    private static void readPages(Random random) throws IOException {
+        File f = File.createTempFile("simpledb-calibrate", ".dat");
+        f.deleteOnExit();
+        byte[] page = new byte[BufferPool.PAGE_SIZE];
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            for (int i = 0; i < BENCH_PAGES; i++) {
+                random.nextBytes(page);
+                raf.write(page);
+            }
+            for (int i = 0; i < BENCH_PAGES; i++) {
+                raf.seek((long) random.nextInt(BENCH_PAGES) * BufferPool.PAGE_SIZE);
+                raf.readFully(page);
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cost model: page read %.4g, page spilled %.4g, scan %.4g,"
+                + " hash build %.4g, hash probe %.4g, sort compare %.4g, merge %.4g per tuple",
+                pageRead, spillPage, scanTuple, hashBuild, hashProbe, sortCompare, mergeTuple);
+    }
+}
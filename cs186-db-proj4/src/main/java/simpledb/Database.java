@@ -15,6 +15,7 @@ public class Database {
 	private static Database _instance = new Database();
     private final Catalog _catalog;
     private BufferPool _bufferpool;
+    private final MemoryManager _memorymanager;
 
     private final static String LOGFILENAME = "log";
     private LogFile _logfile;
@@ -22,6 +23,7 @@ public class Database {
     private Database() {
     	_catalog = new Catalog();
     	_bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+    	_memorymanager = new MemoryManager();
     	try {
             _logfile = new LogFile(new File(LOGFILENAME));
         } catch(IOException e) {
@@ -47,6 +49,11 @@ public class Database {
         return _instance._catalog;
     }
 
+    /** Return the query memory manager of the static Database instance*/
+    public static MemoryManager getMemoryManager() {
+        return _instance._memorymanager;
+    }
+
     /** Method used for testing -- create a new instance of the
         buffer pool and return it
     */
@@ -0,0 +1,249 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+
+/**
+ * Distinct is an operator that implements SELECT DISTINCT: it returns each
+ * different tuple of its child once.
+ * <p>
+ * It streams: a tuple is returned as soon as it is read if it has not been
+ * seen before. The tuples seen are kept in a hash set while they fit in the
+ * operator's {@link MemoryManager.MemoryGrant}. Once they don't, the set is
+ * no longer extended and the tuples not in it are written to NUM_PARTITIONS
+ * {@link SpillFile}s by their hash; each partition is then deduplicated on
+ * its own after the child is exhausted, being split again if needed.
+ * <p>
+ * If the child is known to be sorted on one of its fields, equal tuples are
+ * next to each other in the same run of equal values of that field. Only the
+ * tuples of the current run are then kept, and the order of the child is
+ * preserved.
+ *
+ * 去重：哈希集合放不下时按哈希值分区写到磁盘；输入已排序时只需记住当前这一段
+ */
+public class Distinct extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of partitions the spilled tuples are split into */
+    static final int NUM_PARTITIONS = 16;
+    /** Partitions this many levels deep are deduplicated in memory whatever their size */
+    static final int MAX_SPILL_LEVEL = 3;
+
+    private DbIterator child;
+    private final int sortedField;
+
+    /** The fields of a tuple, compared by value */
+    private static final class Key {
+        private final Field[] fields;
+        private final int hash;
+
+        Key(Tuple t, int numFields) {
+            fields = new Field[numFields];
+            for (int i = 0; i < numFields; i++)
+                fields[i] = t.getField(i);
+            hash = Arrays.hashCode(fields);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).hash == hash
+                    && Arrays.equals(((Key) o).fields, fields);
+        }
+    }
+
+    /** A spilled partition of the input, split by the hash of the tuples at the given level */
+    private static class Partition {
+        final SpillFile file;
+        final int level;
+
+        Partition(SpillFile file, int level) {
+            this.file = file;
+            this.level = level;
+        }
+    }
+
+    private transient MemoryManager.MemoryGrant grant;
+    private transient HashSet<Key> seen = new HashSet<Key>();
+    /** The tuples being read: the child or a partition */
+    private transient DbIterator input;
+    private transient int level;
+    /** The partitions being written from input, null until input overflows */
+    private transient SpillFile[] parts;
+    private transient ArrayDeque<Partition> pending = new ArrayDeque<Partition>();
+    /** Every spill file created, deleted on close */
+    private transient ArrayList<SpillFile> spills = new ArrayList<SpillFile>();
+    /** The value of sortedField in the current run */
+    private transient Field run;
+
+    /**
+     * @param child
+     *            the tuples to deduplicate
+     */
+    public Distinct(DbIterator child) {
+        this(child, -1);
+    }
+
+    /**
+     * @param child
+     *            the tuples to deduplicate
+     * @param sortedField
+     *            a field the child is sorted on, in either direction, or -1
+     */
+    public Distinct(DbIterator child, int sortedField) {
+        this.child = child;
+        this.sortedField = sortedField;
+    }
+
+    /**
+     * @return the field the child is sorted on, or -1 if it is not known to
+     *         be sorted
+     */
+    public int getSortedField() {
+        return sortedField;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        releaseMemory();
+        if (sortedField < 0)
+            grant = Database.getMemoryManager().request(getEstimatedCardinality(), getTupleDesc());
+        start();
+        super.open();
+    }
+
+    private void start() {
+        seen.clear();
+        input = child;
+        level = 0;
+        parts = null;
+        run = null;
+    }
+
+    private void releaseMemory() {
+        if (input != null && input != child)
+            input.close();
+        input = null;
+        seen.clear();
+        pending.clear();
+        for (SpillFile f : spills)
+            f.delete();
+        spills.clear();
+        if (grant != null) {
+            grant.release();
+            grant = null;
+        }
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        releaseMemory();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (input != null && input != child)
+            input.close();
+        pending.clear();
+        for (SpillFile f : spills)
+            f.delete();
+        spills.clear();
+        child.rewind();
+        start();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the next tuple of the child
+     * that has not been returned yet.
+     *
+     * @return The next tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        int numFields = getTupleDesc().numFields();
+        while (input != null) {
+            while (input.hasNext()) {
+                Tuple t = input.next();
+                if (sortedField >= 0) {
+                    // 排序字段的值变了，之前的元组不会再出现
+                    Field f = t.getField(sortedField);
+                    if (run == null || !run.equals(f)) {
+                        seen.clear();
+                        run = f;
+                    }
+                    if (seen.add(new Key(t, numFields)))
+                        return t;
+                    continue;
+                }
+                Key k = new Key(t, numFields);
+                if (seen.contains(k))
+                    continue;
+                if (parts == null) {
+                    int maxTuples = grant.tuples(MemoryManager.estimateTupleBytes(getTupleDesc()) + 32);
+                    if (level >= MAX_SPILL_LEVEL || seen.size() < maxTuples) {
+                        seen.add(k);
+                        return t;
+                    }
+                    parts = new SpillFile[NUM_PARTITIONS];
+                }
+                int p = SpillFile.partition(k.hashCode(), level, NUM_PARTITIONS);
+                if (parts[p] == null) {
+                    parts[p] = new SpillFile(getTupleDesc());
+                    spills.add(parts[p]);
+                }
+                parts[p].add(t);
+            }
+            nextPartition();
+        }
+        return null;
+    }
+
+    /**
+     * input is exhausted: queue the partitions it was split into and start
+     * reading the next partition, if any.
+     */
+    private void nextPartition() throws DbException, TransactionAbortedException {
+        if (input != child)
+            input.close();
+        if (parts != null) {
+            for (SpillFile f : parts) {
+                if (f != null)
+                    pending.addFirst(new Partition(f, level));
+            }
+            parts = null;
+        }
+        seen.clear();
+        Partition p = pending.poll();
+        if (p == null) {
+            input = null;
+            return;
+        }
+        // 分区之间没有相同的元组，每个分区单独去重
+        input = p.file.iterator();
+        input.open();
+        level = p.level + 1;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+}
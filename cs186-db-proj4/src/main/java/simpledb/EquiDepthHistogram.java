@@ -0,0 +1,558 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The distribution of the values of a field of any type, built from a
+ * sample of them: the most common values with their counts, and an
+ * equi-depth histogram of the other values.
+ * <p>
+ * The values that are frequent in the sample are kept apart with their own
+ * counts, so skewed fields get exact estimates for their frequent values,
+ * and these do not flatten the histogram of the rest. The histogram puts
+ * the same number of the remaining values into each bucket, so its buckets
+ * are narrow where the values are dense. Inside a bucket the values are
+ * taken to be spread evenly. Strings are placed in a bucket by the
+ * characters that follow the prefix its two bounds share, so strings with a
+ * long common prefix are still told apart.
+ * <p>
+ * Counts are scaled to the size of the table, and inserted and deleted
+ * values can be added and removed one by one after the histogram is built.
+ * A histogram read by other threads is not changed: values are added to and
+ * removed from a {@link #copy} of it, which then replaces it.
+ *
+ * 等深直方图加高频值列表
+ */
+public class EquiDepthHistogram {
+
+    /** A value is common if it is this much more frequent than the average */
+    static final double MCV_FACTOR = 1.25;
+
+    /** Characters of a string after the common prefix used to place it */
+    private static final int STRING_CHARS = 6;
+
+    private final Type type;
+
+    /** The most common values and the number of tuples holding each */
+    private Field[] mcvs;
+
+    private double[] mcvCounts;
+
+    private HashMap<Field, Integer> mcvIndex;
+
+    /** Bucket i holds the values from bounds[i] to bounds[i + 1] */
+    private Field[] bounds;
+
+    private double[] counts;
+
+    /** The number of distinct values outside the most common ones */
+    private double otherDistinct;
+
+    private double total;
+
+    private EquiDepthHistogram(Type type) {
+        this.type = type;
+    }
+
+    /**
+     * Build the histogram of a field from a sample of its values.
+     *
+     * @param type
+     *            the type of the field
+     * @param sample
+     *            a uniform random sample of the values of the field
+     * @param total
+     *            the number of tuples of the table
+     * @param distinct
+     *            the estimated number of distinct values of the field, or 0
+     *            if only the sample is known
+     * @param buckets
+     *            the most buckets of the histogram
+     * @param maxMcvs
+     *            the most common values to keep
+     */
+    public static EquiDepthHistogram build(Type type, List<Field> sample, double total,
+            double distinct, int buckets, int maxMcvs) {
+        EquiDepthHistogram h = new EquiDepthHistogram(type);
+        ArrayList<Field> sorted = new ArrayList<Field>(sample);
+        Collections.sort(sorted, ORDER);
+        int n = sorted.size();
+        double scale = n == 0 ? 0 : total / n;
+
+        // 样本中每个不同值出现的次数
+        ArrayList<Field> values = new ArrayList<Field>();
+        ArrayList<Integer> runs = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++) {
+            if (i > 0 && ORDER.compare(sorted.get(i - 1), sorted.get(i)) == 0) {
+                runs.set(runs.size() - 1, runs.get(runs.size() - 1) + 1);
+            } else {
+                values.add(sorted.get(i));
+                runs.add(1);
+            }
+        }
+
+        // 不同值不多时全部当作高频值，否则只取比平均频率高得多的
+        ArrayList<Integer> common = new ArrayList<Integer>();
+        double avg = values.isEmpty() ? 0 : (double) n / values.size();
+        for (int i = 0; i < values.size(); i++) {
+            if (values.size() <= maxMcvs || (runs.get(i) >= 2 && runs.get(i) > MCV_FACTOR * avg))
+                common.add(i);
+        }
+        final ArrayList<Integer> r = runs;
+        Collections.sort(common, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(r.get(b), r.get(a));
+            }
+        });
+        if (common.size() > maxMcvs)
+            common = new ArrayList<Integer>(common.subList(0, maxMcvs));
+        Collections.sort(common);
+
+        h.mcvs = new Field[common.size()];
+        h.mcvCounts = new double[common.size()];
+        boolean[] isCommon = new boolean[values.size()];
+        for (int k = 0; k < common.size(); k++) {
+            int i = common.get(k);
+            isCommon[i] = true;
+            h.mcvs[k] = values.get(i);
+            h.mcvCounts[k] = runs.get(i) * scale;
+        }
+        h.indexMcvs();
+
+        ArrayList<Field> rest = new ArrayList<Field>();
+        int restDistinct = 0;
+        for (int i = 0; i < values.size(); i++) {
+            if (isCommon[i])
+                continue;
+            restDistinct++;
+            for (int c = 0; c < runs.get(i); c++)
+                rest.add(values.get(i));
+        }
+        int m = rest.size();
+        int b = Math.min(buckets, m);
+        h.bounds = new Field[b == 0 ? 0 : b + 1];
+        h.counts = new double[b];
+        for (int j = 0; j < b; j++) {
+            h.bounds[j] = rest.get((int) ((long) j * (m - 1) / b));
+            h.counts[j] = ((long) (j + 1) * m / b - (long) j * m / b) * scale;
+        }
+        if (b > 0)
+            h.bounds[b] = rest.get(m - 1);
+        h.otherDistinct = Math.max(restDistinct, distinct - common.size());
+        h.total = total;
+        return h;
+    }
+
+    /**
+     * @return a histogram with the same counts as this one, whose counts and
+     *         bounds can be changed without changing this one
+     */
+    EquiDepthHistogram copy() {
+        EquiDepthHistogram h = new EquiDepthHistogram(type);
+        // 高频值本身不会变，只复制计数
+        h.mcvs = mcvs;
+        h.mcvIndex = mcvIndex;
+        h.mcvCounts = mcvCounts.clone();
+        h.bounds = bounds.clone();
+        h.counts = counts.clone();
+        h.otherDistinct = otherDistinct;
+        h.total = total;
+        return h;
+    }
+
+    private void indexMcvs() {
+        mcvIndex = new HashMap<Field, Integer>();
+        for (int k = 0; k < mcvs.length; k++)
+            mcvIndex.put(mcvs[k], k);
+    }
+
+    /** Orders fields of the same type by their values */
+    static final Comparator<Field> ORDER = new Comparator<Field>() {
+        public int compare(Field a, Field b) {
+            if (a.getType() == Type.INT_TYPE)
+                return Integer.compare(((IntField) a).getValue(), ((IntField) b).getValue());
+            return ((StringField) a).getValue().compareTo(((StringField) b).getValue());
+        }
+    };
+
+    /**
+     * @return the share of the values from lo to hi that are less than v,
+     *         taking them to be spread evenly
+     */
+    private static double fractionBelow(Field lo, Field hi, Field v) {
+        if (ORDER.compare(v, lo) <= 0)
+            return 0.0;
+        if (ORDER.compare(v, hi) > 0)
+            return 1.0;
+        double l, h, x;
+        if (v.getType() == Type.INT_TYPE) {
+            l = ((IntField) lo).getValue();
+            h = ((IntField) hi).getValue() + 1.0;
+            x = ((IntField) v).getValue();
+        } else {
+            // 去掉两个边界的公共前缀，用后面几个字符定位
+            String ls = ((StringField) lo).getValue(), hs = ((StringField) hi).getValue();
+            int p = 0;
+            while (p < ls.length() && p < hs.length() && ls.charAt(p) == hs.charAt(p))
+                p++;
+            l = scalar(ls, p);
+            h = scalar(hs, p);
+            x = scalar(((StringField) v).getValue(), p);
+        }
+        return h > l ? Math.max(0.0, Math.min(1.0, (x - l) / (h - l))) : 0.5;
+    }
+
+    /**
+     * @return the characters of s from the index from on as a fraction in
+     *         [0, 1), with each character as a base 256 digit
+     */
+    private static double scalar(String s, int from) {
+        double v = 0.0, unit = 1.0;
+        for (int k = 0; k < STRING_CHARS; k++) {
+            unit /= 256;
+            int c = from + k < s.length() ? Math.min(255, s.charAt(from + k)) : 0;
+            v += c * unit;
+        }
+        return v;
+    }
+
+    /**
+     * @return the estimated number of tuples whose value is less than v
+     */
+    private double countBelow(Field v) {
+        double c = 0.0;
+        for (int k = 0; k < mcvs.length && ORDER.compare(mcvs[k], v) < 0; k++)
+            c += mcvCounts[k];
+        for (int j = 0; j < counts.length; j++)
+            c += counts[j] * fractionBelow(bounds[j], bounds[j + 1], v);
+        return c;
+    }
+
+    /**
+     * @return the estimated number of tuples whose value is v
+     */
+    private double countEqual(Field v) {
+        Integer k = mcvIndex.get(v);
+        if (k != null)
+            return mcvCounts[k];
+        if (counts.length == 0 || ORDER.compare(v, bounds[0]) < 0
+                || ORDER.compare(v, bounds[counts.length]) > 0)
+            return 0.0;
+        return restCount() / Math.max(1.0, otherDistinct);
+    }
+
+    private double restCount() {
+        double c = 0.0;
+        for (double count : counts)
+            c += count;
+        return c;
+    }
+
+    /**
+     * Estimate the selectivity of a predicate on the field.
+     *
+     * @param op
+     *            the operator
+     * @param v
+     *            the value the field is compared with
+     * @return the estimated share of the tuples that satisfy the predicate
+     */
+    public double estimateSelectivity(Predicate.Op op, Field v) {
+        if (total <= 0)
+            return op == Predicate.Op.NOT_EQUALS ? 1.0 : 0.0;
+        double sel;
+        switch (op) {
+        case EQUALS:
+            sel = countEqual(v) / total;
+            break;
+        case NOT_EQUALS:
+            sel = 1.0 - countEqual(v) / total;
+            break;
+        case LESS_THAN:
+            sel = countBelow(v) / total;
+            break;
+        case LESS_THAN_OR_EQ:
+            sel = (countBelow(v) + countEqual(v)) / total;
+            break;
+        case GREATER_THAN:
+            sel = 1.0 - (countBelow(v) + countEqual(v)) / total;
+            break;
+        case GREATER_THAN_OR_EQ:
+            sel = 1.0 - countBelow(v) / total;
+            break;
+        case LIKE:
+            sel = likeSelectivity(v);
+            break;
+        default:
+            throw new IllegalArgumentException("unknown operator " + op);
+        }
+        return Math.max(0.0, Math.min(1.0, sel));
+    }
+
+    /**
+     * The common values are matched one by one; for the others, the share
+     * of the histogram's bounds that match stands for the share of the
+     * values that do.
+     */
+    private double likeSelectivity(Field v) {
+        double c = 0.0;
+        for (int k = 0; k < mcvs.length; k++) {
+            if (mcvs[k].compare(Predicate.Op.LIKE, v))
+                c += mcvCounts[k];
+        }
+        if (bounds.length > 0) {
+            int matching = 0;
+            for (Field bound : bounds) {
+                if (bound.compare(Predicate.Op.LIKE, v))
+                    matching++;
+            }
+            double share = Math.max((double) matching / bounds.length,
+                    1.0 / Math.max(1.0, otherDistinct));
+            c += restCount() * share;
+        }
+        return c / total;
+    }
+
+    /**
+     * @return the expected selectivity of <tt>field = v</tt> for a value v
+     *         drawn from the field itself
+     */
+    public double avgSelectivity() {
+        if (total <= 0)
+            return 0.0;
+        double sel = 0.0;
+        for (double c : mcvCounts)
+            sel += (c / total) * (c / total);
+        double rest = restCount() / total;
+        if (otherDistinct > 0)
+            sel += rest * rest / otherDistinct;
+        return sel;
+    }
+
+    /**
+     * Estimate the selectivity of the equi-join of two fields of the same
+     * type, as a fraction of the cross product of their tables.
+     * <p>
+     * Each common value of either field joins the tuples of the other field
+     * holding it. The values left on both sides only join where the ranges
+     * of the two fields overlap, and there each value is taken to find its
+     * match among the more numerous distinct values of the two sides.
+     *
+     * 等值连接选择率：高频值逐个匹配，其余值按重叠范围和不同值个数估计
+     */
+    public static double joinSelectivity(EquiDepthHistogram a, EquiDepthHistogram b) {
+        if (a.total <= 0 || b.total <= 0)
+            return 0.0;
+        double sel = 0.0;
+        double restA = a.restCount() / a.total, restB = b.restCount() / b.total;
+        double distinctA = a.otherDistinct, distinctB = b.otherDistinct;
+        for (int k = 0; k < a.mcvs.length; k++) {
+            double fb = b.countEqual(a.mcvs[k]) / b.total;
+            sel += a.mcvCounts[k] / a.total * fb;
+            if (fb > 0 && !b.mcvIndex.containsKey(a.mcvs[k])) {
+                // b中这个值已经算过，不再参与后面的估计
+                restB -= fb;
+                distinctB--;
+            }
+        }
+        for (int k = 0; k < b.mcvs.length; k++) {
+            if (a.mcvIndex.containsKey(b.mcvs[k]))
+                continue;
+            double fa = a.countEqual(b.mcvs[k]) / a.total;
+            sel += fa * b.mcvCounts[k] / b.total;
+            if (fa > 0) {
+                restA -= fa;
+                distinctA--;
+            }
+        }
+        double overlapA = a.restShareWithin(b.lowest(), b.highest());
+        double overlapB = b.restShareWithin(a.lowest(), a.highest());
+        double d = Math.max(1.0, Math.max(distinctA * overlapA, distinctB * overlapB));
+        sel += Math.max(0.0, restA) * overlapA * Math.max(0.0, restB) * overlapB / d;
+        return Math.max(0.0, Math.min(1.0, sel));
+    }
+
+    /** @return the smallest value counted, or null if there is none */
+    private Field lowest() {
+        Field low = counts.length > 0 ? bounds[0] : null;
+        if (mcvs.length > 0 && (low == null || ORDER.compare(mcvs[0], low) < 0))
+            low = mcvs[0];
+        return low;
+    }
+
+    /** @return the largest value counted, or null if there is none */
+    private Field highest() {
+        Field high = counts.length > 0 ? bounds[counts.length] : null;
+        Field last = mcvs.length > 0 ? mcvs[mcvs.length - 1] : null;
+        if (last != null && (high == null || ORDER.compare(last, high) > 0))
+            high = last;
+        return high;
+    }
+
+    /**
+     * @return the share of the values outside the common ones that lie
+     *         from lo to hi
+     */
+    private double restShareWithin(Field lo, Field hi) {
+        double rest = restCount();
+        if (rest <= 0 || lo == null)
+            return 0.0;
+        double below = 0.0, upTo = 0.0;
+        for (int j = 0; j < counts.length; j++) {
+            below += counts[j] * fractionBelow(bounds[j], bounds[j + 1], lo);
+            upTo += counts[j] * fractionBelow(bounds[j], bounds[j + 1], hi);
+        }
+        // hi自己的那份也在范围内
+        if (ORDER.compare(hi, bounds[0]) >= 0 && ORDER.compare(hi, bounds[counts.length]) <= 0)
+            upTo += rest / Math.max(1.0, otherDistinct);
+        return Math.max(0.0, Math.min(1.0, (upTo - below) / rest));
+    }
+
+    /**
+     * Count an inserted value, in its common value or in the bucket it falls
+     * into; a value beyond the bounds widens the first or last bucket.
+     */
+    public void addValue(Field v) {
+        total++;
+        Integer k = mcvIndex.get(v);
+        if (k != null) {
+            mcvCounts[k]++;
+            return;
+        }
+        if (counts.length == 0) {
+            bounds = new Field[] { v, v };
+            counts = new double[] { 1 };
+            otherDistinct = Math.max(otherDistinct, 1);
+            return;
+        }
+        int last = counts.length;
+        if (ORDER.compare(v, bounds[0]) < 0)
+            bounds[0] = v;
+        if (ORDER.compare(v, bounds[last]) > 0)
+            bounds[last] = v;
+        counts[bucketOf(v)]++;
+    }
+
+    /**
+     * Uncount a deleted value; values the histogram does not hold are
+     * ignored.
+     */
+    public void removeValue(Field v) {
+        Integer k = mcvIndex.get(v);
+        if (k != null) {
+            if (mcvCounts[k] >= 1) {
+                mcvCounts[k]--;
+                total--;
+            }
+            return;
+        }
+        if (counts.length == 0 || ORDER.compare(v, bounds[0]) < 0
+                || ORDER.compare(v, bounds[counts.length]) > 0)
+            return;
+        int j = bucketOf(v);
+        if (counts[j] >= 1) {
+            counts[j]--;
+            total--;
+        }
+    }
+
+    /** @return the first bucket whose upper bound is not below v */
+    private int bucketOf(Field v) {
+        int j = 0;
+        while (j < counts.length - 1 && ORDER.compare(v, bounds[j + 1]) > 0)
+            j++;
+        return j;
+    }
+
+    /**
+     * @return the number of most common values kept
+     */
+    public int numCommonValues() {
+        return mcvs.length;
+    }
+
+    /**
+     * @return the number of buckets of the histogram of the other values
+     */
+    public int numBuckets() {
+        return counts.length;
+    }
+
+    /**
+     * Write this histogram to out, to be read back by {@link #read}.
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeByte(type == Type.INT_TYPE ? 0 : 1);
+        out.writeDouble(total);
+        out.writeDouble(otherDistinct);
+        out.writeInt(mcvs.length);
+        for (int k = 0; k < mcvs.length; k++) {
+            writeField(mcvs[k], out);
+            out.writeDouble(mcvCounts[k]);
+        }
+        out.writeInt(counts.length);
+        for (int j = 0; j < counts.length; j++)
+            out.writeDouble(counts[j]);
+        for (Field bound : bounds)
+            writeField(bound, out);
+    }
+
+    /**
+     * Read a histogram written by {@link #write}.
+     */
+    public static EquiDepthHistogram read(DataInputStream in) throws IOException {
+        EquiDepthHistogram h = new EquiDepthHistogram(in.readByte() == 0 ? Type.INT_TYPE : Type.STRING_TYPE);
+        h.total = in.readDouble();
+        h.otherDistinct = in.readDouble();
+        int n = in.readInt();
+        h.mcvs = new Field[n];
+        h.mcvCounts = new double[n];
+        for (int k = 0; k < n; k++) {
+            h.mcvs[k] = h.readField(in);
+            h.mcvCounts[k] = in.readDouble();
+        }
+        h.indexMcvs();
+        int b = in.readInt();
+        h.counts = new double[b];
+        for (int j = 0; j < b; j++)
+            h.counts[j] = in.readDouble();
+        h.bounds = new Field[b == 0 ? 0 : b + 1];
+        for (int j = 0; j < h.bounds.length; j++)
+            h.bounds[j] = h.readField(in);
+        return h;
+    }
+
+    private static void writeField(Field f, DataOutputStream out) throws IOException {
+        if (f.getType() == Type.INT_TYPE)
+            out.writeInt(((IntField) f).getValue());
+        else
+            out.writeUTF(((StringField) f).getValue());
+    }
+
+    private Field readField(DataInputStream in) throws IOException {
+        if (type == Type.INT_TYPE)
+            return new IntField(in.readInt());
+        return new StringField(in.readUTF(), Type.STRING_LEN);
+    }
+
+    /**
+     * @return A string describing this histogram, for debugging purposes
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder("mcv{");
+        for (int k = 0; k < mcvs.length; k++)
+            sb.append(k == 0 ? "" : ", ").append(mcvs[k]).append('=').append(Math.round(mcvCounts[k]));
+        sb.append("} buckets[");
+        for (int j = 0; j < counts.length; j++)
+            sb.append(j == 0 ? "" : ", ").append(bounds[j]).append("..").append(bounds[j + 1])
+                    .append('=').append(Math.round(counts[j]));
+        return sb.append(']').toString();
+    }
+}
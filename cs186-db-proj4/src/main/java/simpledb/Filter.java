@@ -1,6 +1,5 @@
 package simpledb;
 
-import java.util.ArrayList;
 import java.util.NoSuchElementException;
 
 /**
@@ -10,13 +9,12 @@ public class Filter extends Operator {
 
     private static final long serialVersionUID = 1L;
 
-    private final Predicate predicate;
+    private final PredicateExpression expression;
 
     private DbIterator child;
 
     private TupleDesc td;
 
-    private TupleIterator filterTupleIterator;
     /**
      * Constructor accepts a predicate to apply and a child operator to read
      * tuples to filter from.
@@ -28,14 +26,37 @@ public class Filter extends Operator {
      */
     public Filter(Predicate p, DbIterator child) {
         // some code goes here
-        this.predicate = p;
+        this(PredicateExpression.leaf(p), child);
+    }
+
+    /**
+     * Constructor accepts a compound predicate expression, so that all the
+     * conditions on one table are checked by a single operator.
+     * 
+     * @param e
+     *            The expression to filter tuples with
+     * @param child
+     *            The child operator
+     */
+    public Filter(PredicateExpression e, DbIterator child) {
+        this.expression = e;
         this.child = child;
         this.td = child.getTupleDesc();
     }
 
+    /**
+     * @return the predicate of this filter, or null if the filter is a
+     *         compound expression; see {@link #getExpression}
+     */
     public Predicate getPredicate() {
         // some code goes here
-        return this.predicate;
+        if (expression instanceof PredicateExpression.Leaf)
+            return ((PredicateExpression.Leaf) expression).predicate;
+        return null;
+    }
+
+    public PredicateExpression getExpression() {
+        return this.expression;
     }
 
     public TupleDesc getTupleDesc() {
@@ -48,36 +69,17 @@ public class Filter extends Operator {
         // some code goes here
         child.open();
         super.open();
-        filterTupleIterator = filter();
-        filterTupleIterator.open();
-    }
-
-    private TupleIterator filter(){
-        ArrayList<Tuple> list = new ArrayList<>();
-        try {
-            while(child.hasNext()){
-                Tuple tuple = child.next();
-                if(predicate.filter(tuple)){
-                    list.add(tuple);
-                }
-            }
-        } catch (DbException | TransactionAbortedException e) {
-            e.printStackTrace();
-        }
-        return new TupleIterator(this.td, list);
     }
 
     public void close() {
         // some code goes here
         child.close();
         super.close();
-        filterTupleIterator.close();
-        filterTupleIterator = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-        filterTupleIterator.rewind();
+        child.rewind();
     }
 
     /**
@@ -92,8 +94,14 @@ public class Filter extends Operator {
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
-        if(filterTupleIterator.hasNext()) return filterTupleIterator.next();
-            else   return null;
+        // 流式过滤，不再在open时把结果全部物化
+        while (child.hasNext()) {
+            Tuple tuple = child.next();
+            if (expression.eval(tuple)) {
+                return tuple;
+            }
+        }
+        return null;
     }
 
     @Override
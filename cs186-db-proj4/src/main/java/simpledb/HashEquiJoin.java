@@ -3,17 +3,43 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements an equality join by building a hash
+ * table on the join field of its left input and probing it with each tuple
+ * of the right input.
+ * <p>
+ * The hash table is kept within the operator's
+ * {@link MemoryManager.MemoryGrant}, sized from the estimated cardinality of
+ * the left input. When the whole left input fits, the join keys are also
+ * published as a {@link RuntimeFilter} that is pushed down into the scan of
+ * the right input, so right tuples that cannot match are dropped at the
+ * scan. When it does not fit, both inputs are split by the hash of their
+ * join key into partitions written to {@link SpillFile}s (a grace hash
+ * join) and the partitions are joined pairwise; a partition that is still
+ * too large is loaded a grant-full at a time, re-reading its right
+ * partition for each part.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Bounds on the number of partitions of a grace hash join */
+    static final int MIN_PARTITIONS = 16, MAX_PARTITIONS = 128;
+
     private JoinPredicate pred;
     private DbIterator child1, child2;
     private TupleDesc comboTD;
+    private JoinedTuple.Factory joinedTuples;
+    private final RuntimeFilter runtimeFilter = new RuntimeFilter();
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
 
+    private transient MemoryManager.MemoryGrant grant;
+    /** The inputs of the current pass: child1 and child2, or a pair of partitions */
+    private transient DbIterator build, probe;
+    /** The partitions of the two inputs when the join spilled, else null */
+    private transient SpillFile[] buildParts, probeParts;
+    private transient int part;
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
@@ -30,6 +56,7 @@ public class HashEquiJoin extends Operator {
         this.child1 = child1;
         this.child2 = child2;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        joinedTuples = new JoinedTuple.Factory(comboTD);
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -51,21 +78,26 @@ public class HashEquiJoin extends Operator {
     }
     
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
-    public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
+    /**
+     * Load as many tuples of source into the hash table as the grant allows.
+     *
+     * @return true if any tuple was loaded
+     */
+    private boolean loadMap(DbIterator source) throws DbException, TransactionAbortedException {
         int cnt = 0;
+        int capacity = grant.tuples(MemoryManager.estimateTupleBytes(child1.getTupleDesc()));
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
+        listIt = null;
+        while (cnt < capacity && source.hasNext()) {
+            t1 = source.next();
             ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
             if (list == null) {
                 list = new ArrayList<Tuple>();
                 map.put(t1.getField(pred.getField1()), list);
             }
             list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            cnt++;
         }
         return cnt > 0;
 
@@ -75,8 +107,104 @@ public class HashEquiJoin extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
-        child2.open();
-        loadMap();
+        releaseMemory();
+        int card1 = child1 instanceof Operator ? ((Operator) child1).getEstimatedCardinality() : 0;
+        grant = Database.getMemoryManager().request(card1, child1.getTupleDesc());
+        // 先建hash表：如果左边全部装得下，在右边open之前把过滤器下推过去，
+        // 这样右边在open时就物化的算子看到的也是过滤后的数据
+        build = child1;
+        loadMap(child1);
+        if (!child1.hasNext()) {
+            runtimeFilter.build(map.keySet());
+            RuntimeFilter.pushDown(child2, pred.getField2(), runtimeFilter);
+            child2.open();
+            probe = child2;
+        } else {
+            runtimeFilter.clear();  // 左边装不下时右边要全部分区，不能过滤
+            child2.open();
+            partitionInputs(card1);
+            part = -1;
+            nextPartition();
+        }
+        super.open();
+    }
+
+    /**
+     * Write the hash table, the rest of child1 and all of child2 to
+     * partitions by the hash of their join key.
+     */
+    private void partitionInputs(int card1) throws DbException, TransactionAbortedException {
+        int capacity = grant.tuples(MemoryManager.estimateTupleBytes(child1.getTupleDesc()));
+        // 分区数按估计的左表大小取，使每个分区大概能装进内存
+        int n = Math.max(MIN_PARTITIONS, Math.min(MAX_PARTITIONS, 2 * (card1 / capacity + 1)));
+        buildParts = new SpillFile[n];
+        probeParts = new SpillFile[n];
+        for (ArrayList<Tuple> list : map.values()) {
+            for (Tuple t : list)
+                spill(buildParts, t, pred.getField1(), child1.getTupleDesc());
+        }
+        map.clear();
+        while (child1.hasNext())
+            spill(buildParts, child1.next(), pred.getField1(), child1.getTupleDesc());
+        while (child2.hasNext())
+            spill(probeParts, child2.next(), pred.getField2(), child2.getTupleDesc());
+    }
+
+    private static void spill(SpillFile[] parts, Tuple t, int field, TupleDesc td) throws DbException {
+        int p = SpillFile.partition(t.getField(field), 0, parts.length);
+        if (parts[p] == null)
+            parts[p] = new SpillFile(td);
+        parts[p].add(t);
+    }
+
+    /**
+     * Start joining the next pair of partitions that both have tuples.
+     *
+     * @return false if there are no more partitions
+     */
+    private boolean nextPartition() throws DbException, TransactionAbortedException {
+        closePartition();
+        while (++part < buildParts.length) {
+            if (buildParts[part] == null || probeParts[part] == null)
+                continue;   // 有一边为空的分区不会产生结果
+            build = buildParts[part].iterator();
+            build.open();
+            loadMap(build);
+            probe = probeParts[part].iterator();
+            probe.open();
+            return true;
+        }
+        return false;
+    }
+
+    private void closePartition() {
+        if (buildParts != null) {
+            if (build != null)
+                build.close();
+            if (probe != null)
+                probe.close();
+            build = probe = null;
+        }
+    }
+
+    private void releaseMemory() {
+        closePartition();
+        for (SpillFile[] parts : new SpillFile[][] { buildParts, probeParts }) {
+            if (parts == null)
+                continue;
+            for (SpillFile f : parts) {
+                if (f != null)
+                    f.delete();
+            }
+        }
+        buildParts = probeParts = null;
+        build = probe = null;
+        map.clear();
+        listIt = null;
+        if (grant != null) {
+            grant.release();
+            grant = null;
+        }
     }
 
     public void close() {
@@ -85,13 +213,18 @@ public class HashEquiJoin extends Operator {
         child1.close();
         this.t1=null;
         this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        releaseMemory();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        child1.rewind();
-        child2.rewind();
+        listIt = null;
+        if (buildParts == null) {
+            // 左边整个在hash表里，只需要重新扫描右边
+            child2.rewind();
+        } else {
+            part = -1;
+            nextPartition();
+        }
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -117,47 +250,37 @@ public class HashEquiJoin extends Operator {
     private Tuple processList() throws TransactionAbortedException, DbException {
         t1 = listIt.next();
 
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
+        // the combined tuple references t1 and t2 instead of copying their fields
+        return joinedTuples.join(t1, t2);
 
     }
 
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+        while (true) {
+            if (listIt != null && listIt.hasNext()) {
+                return processList();
+            }
 
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+            // loop around the probe input
+            if (probe != null && probe.hasNext()) {
+                t2 = probe.next();
+                // if match, create a combined tuple and fill it with the values
+                // from both tuples
+                ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
+                listIt = l == null ? null : l.iterator();
                 continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
+            }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+            // the probe input is done: load the rest of the build input, or
+            // move on to the next partition
+            if (build != null && build.hasNext()) {
+                loadMap(build);
+                probe.rewind();
+            } else if (buildParts == null || !nextPartition()) {
+                return null;
+            }
         }
-
-        return null;
     }
 
     @Override
@@ -0,0 +1,329 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The HashSemiJoin operator returns the tuples of its left input for which
+ * some tuple of its right input satisfies all of its join predicates (a
+ * semi join), or, as an anti join, those for which none does. Each left
+ * tuple is returned at most once and as it is, without fields of the right
+ * input; this is how IN, EXISTS and comparisons with a subquery are run,
+ * the subquery being the right input.
+ * <p>
+ * The right input is loaded into a hash table on the field of its first
+ * equality predicate, within the operator's
+ * {@link MemoryManager.MemoryGrant}, and the left input probes it. Only
+ * the right tuples that can make a difference are kept: one per key when
+ * the key is the only predicate, and, when one comparison such as
+ * <tt>a &gt; b</tt> is left besides the key, the right tuple of each key
+ * that satisfies it most easily. When the whole right input fits, a semi
+ * join also pushes its keys down into the left input as a
+ * {@link RuntimeFilter}. When it does not fit, both inputs are split into
+ * partitions by the hash of their key, written to {@link SpillFile}s, and
+ * joined pairwise. Without an equality predicate the right input is kept
+ * in memory whole.
+ */
+public class HashSemiJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate[] preds;
+    private DbIterator child1, child2;
+    private final boolean anti;
+    /** The predicate hashed on, or -1 if none is an equality */
+    private final int key;
+    /** The only predicate besides key if it is a range comparison, or -1 */
+    private final int extreme;
+    private double selectivity = 1.0;
+    private final RuntimeFilter runtimeFilter = new RuntimeFilter();
+
+    private transient MemoryManager.MemoryGrant grant;
+    private final HashMap<Field, ArrayList<Tuple>> map = new HashMap<Field, ArrayList<Tuple>>();
+    private transient int loaded;
+    /** The left input of the current pass: child1 or a partition of it */
+    private transient DbIterator probe;
+    /** The partitions of the two inputs when the join spilled, else null */
+    private transient SpillFile[] buildParts, probeParts;
+    private transient int part;
+
+    /**
+     * Constructor.
+     *
+     * @param preds
+     *            the predicates a pair of left and right tuples must all
+     *            satisfy; none means that any right tuple matches
+     * @param child1
+     *            the input whose tuples are returned
+     * @param child2
+     *            the input that is looked up
+     * @param anti
+     *            true to return the left tuples that have no match instead
+     *            of those that do
+     */
+    public HashSemiJoin(JoinPredicate[] preds, DbIterator child1, DbIterator child2, boolean anti) {
+        this.preds = preds;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.anti = anti;
+        int k = -1;
+        for (int i = 0; i < preds.length && k < 0; i++) {
+            if (preds[i].getOperator() == Predicate.Op.EQUALS)
+                k = i;
+        }
+        key = k;
+        int e = -1;
+        if (preds.length == (k < 0 ? 1 : 2)) {
+            e = k == 0 ? 1 : 0;
+            if (!RangeJoin.isRangeOp(preds[e].getOperator()))
+                e = -1;
+        }
+        extreme = e;
+    }
+
+    public JoinPredicate[] getJoinPredicates() {
+        return preds;
+    }
+
+    /** @return true if this is an anti join */
+    public boolean isAnti() {
+        return anti;
+    }
+
+    /**
+     * @return the estimated fraction of the left tuples this join returns,
+     *         see {@link JoinOptimizer#estimateSemiJoinSelectivity}
+     */
+    public double getSelectivity() {
+        return selectivity;
+    }
+
+    public void setSelectivity(double selectivity) {
+        this.selectivity = selectivity;
+    }
+
+    /**
+     * @return the predicates as text, with the names of the fields of both
+     *         inputs
+     */
+    public String predicateText() {
+        if (preds.length == 0)
+            return "exists";
+        StringBuilder sb = new StringBuilder();
+        for (JoinPredicate p : preds) {
+            if (sb.length() > 0)
+                sb.append(" and ");
+            sb.append(child1.getTupleDesc().getFieldName(p.getField1()))
+                    .append(p.getOperator())
+                    .append(child2.getTupleDesc().getFieldName(p.getField2()));
+        }
+        return sb.toString();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child1.getTupleDesc();
+    }
+
+    /** Add a right tuple to the hash table, keeping only those that can matter */
+    private void add(Tuple t2) {
+        Field k = key < 0 ? null : t2.getField(preds[key].getField2());
+        ArrayList<Tuple> list = map.get(k);
+        if (list == null) {
+            list = new ArrayList<Tuple>(1);
+            map.put(k, list);
+        } else if (preds.length == (key < 0 ? 0 : 1)) {
+            return;     // 只有连接键时每个键留一个元组就够了
+        } else if (extreme >= 0) {
+            // 只剩一个范围比较时只留最容易满足它的那个元组，比如a > b留最小的b
+            int f2 = preds[extreme].getField2();
+            Predicate.Op op = preds[extreme].getOperator();
+            Predicate.Op better = op == Predicate.Op.GREATER_THAN
+                    || op == Predicate.Op.GREATER_THAN_OR_EQ ? Predicate.Op.LESS_THAN
+                    : Predicate.Op.GREATER_THAN;
+            if (t2.getField(f2).compare(better, list.get(0).getField(f2)))
+                list.set(0, t2);
+            return;
+        }
+        list.add(t2);
+        loaded++;
+    }
+
+    /**
+     * Load the tuples of source into the hash table until the grant is
+     * used up; without a key, load all of them.
+     */
+    private void loadMap(DbIterator source) throws DbException, TransactionAbortedException {
+        int capacity = key < 0 ? Integer.MAX_VALUE
+                : grant.tuples(MemoryManager.estimateTupleBytes(child2.getTupleDesc()));
+        while (loaded < capacity && source.hasNext())
+            add(source.next());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child2.open();
+        releaseMemory();
+        int card2 = child2 instanceof Operator ? ((Operator) child2).getEstimatedCardinality() : 0;
+        grant = Database.getMemoryManager().request(card2, child2.getTupleDesc());
+        // 先读右边建表；装得下时半连接把键的过滤器下推到左边，再打开左边
+        loadMap(child2);
+        if (!child2.hasNext()) {
+            if (!anti && key >= 0) {
+                runtimeFilter.build(map.keySet());
+                RuntimeFilter.pushDown(child1, preds[key].getField1(), runtimeFilter);
+            } else {
+                runtimeFilter.clear();
+            }
+            child1.open();
+            probe = child1;
+        } else {
+            runtimeFilter.clear();
+            child1.open();
+            partitionInputs(card2);
+            part = -1;
+            nextPartition();
+        }
+        super.open();
+    }
+
+    /**
+     * Write the hash table, the rest of child2 and all of child1 to
+     * partitions by the hash of their key.
+     */
+    private void partitionInputs(int card2) throws DbException, TransactionAbortedException {
+        int capacity = grant.tuples(MemoryManager.estimateTupleBytes(child2.getTupleDesc()));
+        int n = Math.max(HashEquiJoin.MIN_PARTITIONS,
+                Math.min(HashEquiJoin.MAX_PARTITIONS, 2 * (card2 / capacity + 1)));
+        buildParts = new SpillFile[n];
+        probeParts = new SpillFile[n];
+        for (ArrayList<Tuple> list : map.values()) {
+            for (Tuple t : list)
+                spill(buildParts, t, preds[key].getField2(), child2.getTupleDesc());
+        }
+        map.clear();
+        loaded = 0;
+        while (child2.hasNext())
+            spill(buildParts, child2.next(), preds[key].getField2(), child2.getTupleDesc());
+        while (child1.hasNext())
+            spill(probeParts, child1.next(), preds[key].getField1(), child1.getTupleDesc());
+    }
+
+    private static void spill(SpillFile[] parts, Tuple t, int field, TupleDesc td) throws DbException {
+        int p = SpillFile.partition(t.getField(field), 0, parts.length);
+        if (parts[p] == null)
+            parts[p] = new SpillFile(td);
+        parts[p].add(t);
+    }
+
+    /**
+     * Start probing the next partition of child1 with the tuples of the
+     * same partition of child2, which is loaded whole.
+     *
+     * @return false if there are no more partitions
+     */
+    private boolean nextPartition() throws DbException, TransactionAbortedException {
+        closePartition();
+        while (++part < probeParts.length) {
+            // 右边为空的分区：半连接没有结果，反连接原样返回左边
+            if (probeParts[part] == null || (buildParts[part] == null && !anti))
+                continue;
+            map.clear();
+            loaded = 0;
+            if (buildParts[part] != null) {
+                DbIterator build = buildParts[part].iterator();
+                build.open();
+                while (build.hasNext())
+                    add(build.next());
+                build.close();
+            }
+            probe = probeParts[part].iterator();
+            probe.open();
+            return true;
+        }
+        return false;
+    }
+
+    private void closePartition() {
+        if (buildParts != null && probe != null) {
+            probe.close();
+            probe = null;
+        }
+    }
+
+    private void releaseMemory() {
+        closePartition();
+        for (SpillFile[] parts : new SpillFile[][] { buildParts, probeParts }) {
+            if (parts == null)
+                continue;
+            for (SpillFile f : parts) {
+                if (f != null)
+                    f.delete();
+            }
+        }
+        buildParts = probeParts = null;
+        probe = null;
+        map.clear();
+        loaded = 0;
+        if (grant != null) {
+            grant.release();
+            grant = null;
+        }
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        child2.close();
+        releaseMemory();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (buildParts == null) {
+            // 右边整个在hash表里，只需要重新扫描左边
+            child1.rewind();
+        } else {
+            part = -1;
+            nextPartition();
+        }
+    }
+
+    /** @return true if some right tuple in the hash table matches t1 */
+    private boolean matches(Tuple t1) {
+        ArrayList<Tuple> list = map.get(key < 0 ? null : t1.getField(preds[key].getField1()));
+        if (list == null)
+            return false;
+        for (Tuple t2 : list) {
+            boolean all = true;
+            for (int i = 0; i < preds.length && all; i++)
+                all = i == key || preds[i].filter(t1, t2);
+            if (all)
+                return true;
+        }
+        return false;
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        // 右边为空时半连接不用读左边
+        if (!anti && buildParts == null && map.isEmpty())
+            return null;
+        while (true) {
+            while (probe != null && probe.hasNext()) {
+                Tuple t1 = probe.next();
+                if (matches(t1) != anti)
+                    return t1;
+            }
+            if (buildParts == null || !nextPartition())
+                return null;
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
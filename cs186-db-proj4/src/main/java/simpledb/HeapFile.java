@@ -4,8 +4,10 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -25,6 +27,9 @@ public class HeapFile implements DbFile {
     private final TupleDesc td;
 
     private int numPages;
+
+    /** The number of tuples committed transactions inserted into and deleted from this file since it was opened */
+    private final AtomicLong modifications = new AtomicLong();
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -112,6 +117,23 @@ public class HeapFile implements DbFile {
         }
     }
 
+    /**
+     * Returns the number of tuples inserted into and deleted from this file
+     * by committed transactions since it was opened, by which statistics
+     * about it can tell how much it has changed since they were computed.
+     */
+    public long getModificationCount() {
+        return modifications.get();
+    }
+
+    /**
+     * Count n tuples a committed transaction inserted into or deleted from
+     * this file.
+     */
+    void addModifications(int n) {
+        modifications.addAndGet(n);
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
@@ -190,7 +212,18 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(tid);
+        return new HeapFileIterator(tid, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of the given pages only, read
+     * through the BufferPool in the order given.
+     *
+     * @param pageNos
+     *            the numbers of the pages to read
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] pageNos) {
+        return new HeapFileIterator(tid, pageNos);
     }
 
     /**
@@ -210,8 +243,20 @@ public class HeapFile implements DbFile {
 
         private TransactionId tid;
 
-        public HeapFileIterator(TransactionId tid) {
+        /** The page numbers to read, or null for all pages */
+        private final int[] pageNos;
+
+        public HeapFileIterator(TransactionId tid, int[] pageNos) {
             this.tid = tid;
+            this.pageNos = pageNos;
+        }
+
+        private int pageCount() {
+            return pageNos == null ? numPages() : pageNos.length;
+        }
+
+        private HeapPageId pageAt(int pos) {
+            return new HeapPageId(getId(), pageNos == null ? pos : pageNos[pos]);
         }
 
         public Iterator<Tuple> getTuplesInPage(HeapPageId pid) throws TransactionAbortedException, DbException {
@@ -229,7 +274,11 @@ public class HeapFile implements DbFile {
         @Override
         public void open() throws DbException, TransactionAbortedException {
             pagePos = 0;
-            HeapPageId pid = new HeapPageId(getId(), pagePos);
+            if (pageNos != null && pageNos.length == 0) {
+                tuplesInPage = Collections.emptyIterator();
+                return;
+            }
+            HeapPageId pid = pageAt(pagePos);
             //加载第一页的tuples
             tuplesInPage = getTuplesInPage(pid);
         }
@@ -247,13 +296,15 @@ public class HeapFile implements DbFile {
             //如果遍历完当前页，测试是否还有页未遍历
             //注意要减一，这里与for循环的一般判断逻辑（迭代变量<长度）不同，是因为我们要在接下来代码中将pagePos加1才使用
             //如果不理解，可以自己举一个例子想象运行过程
-            if (pagePos < numPages() - 1) {
+            //新的一页有可能不含有tuple，要一直找到有tuple的页
+            while (pagePos < pageCount() - 1) {
                 pagePos++;
-                HeapPageId pid = new HeapPageId(getId(), pagePos);
+                HeapPageId pid = pageAt(pagePos);
                 tuplesInPage = getTuplesInPage(pid);
-                //这时不能直接return ture，有可能返回的新的迭代器是不含有tuple的
-                return tuplesInPage.hasNext();
-            } else return false;
+                if (tuplesInPage.hasNext())
+                    return true;
+            }
+            return false;
         }
 
         @Override
@@ -0,0 +1,160 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * A HyperLogLog sketch, which estimates the number of distinct values offered
+ * to it in a fixed amount of memory.
+ * <p>
+ * Each value is hashed to 64 bits; the first p bits choose one of 2^p
+ * registers, which keeps the largest number of leading zeros (plus one) seen
+ * in the remaining bits. The estimate is the bias-corrected harmonic mean of
+ * 2^register over all registers, with linear counting when many registers
+ * are still empty. The relative standard error is 1.04 / sqrt(2^p).
+ * <p>
+ * Sketches with the same precision can be merged, so partial sketches built
+ * over parts of the data combine into the sketch of the whole.
+ *
+ * 基数估计草图：用固定大小的寄存器数组估计不同值的个数，可以合并
+ */
+public class HyperLogLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The default precision: 16384 registers, 0.8% standard error */
+    public static final int DEFAULT_PRECISION = 14;
+
+    private final int p;
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param precision
+     *            the number of hash bits that choose a register, between 4
+     *            and 18
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18)
+            throw new IllegalArgumentException("precision must be between 4 and 18");
+        this.p = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * @return the memory taken by a sketch of the given precision, in bytes
+     */
+    public static long sizeOf(int precision) {
+        return (1L << precision) + 32;
+    }
+
+    /**
+     * @return a 64-bit hash of f; equal fields have equal hashes
+     */
+    public static long hash(Field f) {
+        long h;
+        if (f instanceof IntField) {
+            h = ((IntField) f).getValue();
+        } else {
+            // 字符串用64位FNV-1a，避免String.hashCode只有32位
+            h = 0xcbf29ce484222325L;
+            String s = ((StringField) f).getValue();
+            for (int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+        }
+        // murmur3的64位finalizer
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public void offer(Field f) {
+        offerHash(hash(f));
+    }
+
+    /**
+     * Offer a value by its 64-bit hash.
+     */
+    public void offerHash(long h) {
+        int idx = (int) (h >>> (64 - p));
+        // 剩下的64-p位中第一个1的位置；全为0时取最大值
+        long rest = (h << p) | (1L << (p - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > registers[idx])
+            registers[idx] = rank;
+    }
+
+    /**
+     * Add the values of other to this sketch.
+     *
+     * @throws IllegalArgumentException
+     *             if the sketches have different precisions
+     */
+    public void merge(HyperLogLog other) {
+        if (other.p != p)
+            throw new IllegalArgumentException("cannot merge sketches of different precision");
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i])
+                registers[i] = other.registers[i];
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values offered
+     */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0)
+                zeros++;
+        }
+        double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+        double e = alpha * m * (double) m / sum;
+        if (e <= 2.5 * m && zeros > 0) {
+            // 小基数时用线性计数
+            e = m * Math.log((double) m / zeros);
+        }
+        return Math.round(e);
+    }
+
+    /**
+     * @return the relative standard error of the estimate
+     */
+    public double relativeError() {
+        return 1.04 / Math.sqrt(registers.length);
+    }
+
+    /**
+     * Write this sketch to out, to be read back by {@link #read}.
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeByte(p);
+        out.write(registers);
+    }
+
+    /**
+     * Read a sketch written by {@link #write}.
+     */
+    public static HyperLogLog read(DataInputStream in) throws IOException {
+        HyperLogLog h = new HyperLogLog(in.readByte());
+        in.readFully(h.registers);
+        return h;
+    }
+
+    public int getPrecision() {
+        return p;
+    }
+}
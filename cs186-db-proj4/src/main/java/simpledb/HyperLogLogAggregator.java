@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Computes APPROX_COUNT_DISTINCT over a field of any type with one
+ * {@link HyperLogLog} sketch per group.
+ * <p>
+ * Each result tuple holds the estimate followed by the half width of its 95%
+ * confidence interval.
+ */
+public class HyperLogLogAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** 分类域索引 */
+    private final int gbfield;
+    /** 聚合域索引 */
+    private final int afield;
+    private final int precision;
+    private final TupleDesc td;
+
+    /** 每个分组一个草图 */
+    private final HashMap<Field, HyperLogLog> groupMap = new HashMap<>();
+
+    /**
+     * @param gbfield
+     *            the 0-based index of the group-by field in the tuple, or
+     *            NO_GROUPING if there is no grouping
+     * @param gbfieldtype
+     *            the type of the group by field, or null if there is no
+     *            grouping
+     * @param afield
+     *            the 0-based index of the aggregate field in the tuple
+     * @param precision
+     *            the precision of the sketches
+     */
+    public HyperLogLogAggregator(int gbfield, Type gbfieldtype, int afield, int precision) {
+        this.gbfield = gbfield;
+        this.afield = afield;
+        this.precision = precision;
+        if (gbfield == NO_GROUPING) {
+            groupMap.put(null, new HyperLogLog(precision));
+            td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE });
+        } else {
+            td = new TupleDesc(new Type[] { gbfieldtype, Type.INT_TYPE, Type.INT_TYPE });
+        }
+    }
+
+    public void mergeTupleIntoGroup(Tuple tup) {
+        Field gField = gbfield == NO_GROUPING ? null : tup.getField(gbfield);
+        HyperLogLog sketch = groupMap.get(gField);
+        if (sketch == null) {
+            sketch = new HyperLogLog(precision);
+            groupMap.put(gField, sketch);
+        }
+        sketch.offer(tup.getField(afield));
+    }
+
+    public int numGroups() {
+        return groupMap.size();
+    }
+
+    public boolean hasGroup(Tuple tup) {
+        return groupMap.containsKey(gbfield == NO_GROUPING ? null : tup.getField(gbfield));
+    }
+
+    /**
+     * @return a DbIterator whose tuples are (groupVal, estimate, error), or
+     *         (estimate, error) if there is no grouping
+     */
+    public DbIterator iterator() {
+        ArrayList<Tuple> tuples = new ArrayList<>();
+        for (Map.Entry<Field, HyperLogLog> e : groupMap.entrySet()) {
+            HyperLogLog sketch = e.getValue();
+            long estimate = sketch.estimate();
+            Tuple tuple = new Tuple(td);
+            int aggIndex = gbfield == NO_GROUPING ? 0 : 1;
+            if (gbfield != NO_GROUPING)
+                tuple.setField(0, e.getKey());
+            tuple.setField(aggIndex, new IntField((int) Math.min(Integer.MAX_VALUE, estimate)));
+            tuple.setField(aggIndex + 1, new IntField((int) Math.ceil(
+                    SampledAggregator.Z_95 * sketch.relativeError() * estimate)));
+            tuples.add(tuple);
+        }
+        return new TupleIterator(td, tuples);
+    }
+}
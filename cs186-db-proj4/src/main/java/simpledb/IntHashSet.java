@@ -0,0 +1,110 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A set of ints kept in an open-addressing hash table of primitive ints.
+ * <p>
+ * Used by COUNT(DISTINCT) over integer fields: unlike a HashSet of IntFields
+ * it needs no object per value, so a set of a million values takes about
+ * 8MB instead of several times that.
+ *
+ * 基本类型int的哈希集合：开放定址，线性探测，不为每个值创建对象
+ */
+public class IntHashSet implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Marks an empty slot; the value itself is tracked by hasEmptyValue */
+    private static final int EMPTY = 0;
+
+    private int[] slots;
+    private int size;
+    private boolean hasEmptyValue;
+
+    public IntHashSet() {
+        this(16);
+    }
+
+    /**
+     * @param expected
+     *            the number of values the set is expected to hold
+     */
+    public IntHashSet(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(8, expected) * 2 - 1) << 1;
+        slots = new int[capacity];
+    }
+
+    private static int mix(int v) {
+        int h = v * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Add v to the set.
+     *
+     * @return true if v was not in the set yet
+     */
+    public boolean add(int v) {
+        if (v == EMPTY) {
+            if (hasEmptyValue)
+                return false;
+            hasEmptyValue = true;
+            size++;
+            return true;
+        }
+        int mask = slots.length - 1;
+        for (int i = mix(v) & mask;; i = (i + 1) & mask) {
+            if (slots[i] == v)
+                return false;
+            if (slots[i] == EMPTY) {
+                slots[i] = v;
+                size++;
+                // 装载因子超过1/2时扩容
+                if (2 * size > slots.length)
+                    grow();
+                return true;
+            }
+        }
+    }
+
+    public boolean contains(int v) {
+        if (v == EMPTY)
+            return hasEmptyValue;
+        int mask = slots.length - 1;
+        for (int i = mix(v) & mask;; i = (i + 1) & mask) {
+            if (slots[i] == v)
+                return true;
+            if (slots[i] == EMPTY)
+                return false;
+        }
+    }
+
+    /**
+     * @return the number of values in the set
+     */
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(slots, EMPTY);
+        size = 0;
+        hasEmptyValue = false;
+    }
+
+    private void grow() {
+        int[] old = slots;
+        slots = new int[old.length * 2];
+        int mask = slots.length - 1;
+        for (int v : old) {
+            if (v == EMPTY)
+                continue;
+            int i = mix(v) & mask;
+            while (slots[i] != EMPTY)
+                i = (i + 1) & mask;
+            slots[i] = v;
+        }
+    }
+}
@@ -3,20 +3,32 @@ package simpledb;
 import java.util.ArrayList;
 
 /** A class to represent a fixed-width histogram over a single integer-based field.
+ * <p>
+ * The histogram can also be built without knowing the range of the values
+ * beforehand, see {@link #IntHistogram(int)}: whenever a value falls outside
+ * the buckets, the width of the buckets doubles and neighbouring buckets are
+ * merged until it fits, so a single pass over the values is enough.
  */
 public class IntHistogram {
 
+    /** The smallest and largest value the histogram covers */
     private int min;
 
     private int max;
 
     private int buckets;
 
-    private int width;
+    /** The first bucket starts at lo; every bucket is width values wide */
+    private long lo;
+
+    private long width;
 
     private int[] histogram;
 
     private int ntups;
+
+    /** False until the first value of a histogram without a given range */
+    private boolean hasRange;
     /**
      * Create a new IntHistogram.
      * 
@@ -38,9 +50,25 @@ public class IntHistogram {
         this.buckets = buckets;
         this.min = min;
         this.max = max;
-        this.width = (int) Math.ceil((max-min+1.0)/buckets);
+        this.lo = min;
+        this.width = Math.max(1, (long) Math.ceil(((long) max - min + 1.0) / buckets));
+        this.histogram = new int[buckets];
+        this.ntups = 0;
+        this.hasRange = true;
+    }
+
+    /**
+     * Create a new IntHistogram whose range is that of the values added to
+     * it; the buckets widen as values outside them come in.
+     *
+     * @param buckets The number of buckets to split the input value into.
+     */
+    public IntHistogram(int buckets) {
+        this.buckets = buckets;
+        this.width = 1;
         this.histogram = new int[buckets];
         this.ntups = 0;
+        this.hasRange = false;
     }
 
     /**
@@ -49,20 +77,38 @@ public class IntHistogram {
      */
     public void addValue(int v) {
     	// some code goes here
-        int index = valueIndexOf(v);
-        if (index >100 || index < 0){
-            System.out.println(11);
+        if (!hasRange) {
+            lo = min = max = v;
+            hasRange = true;
+        }
+        while (v < lo || v >= lo + width * buckets)
+            grow(v < lo);
+        if (v < min || v > max) {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
         }
-        histogram[index]++;
+        histogram[valueIndexOf(v)]++;
         ntups++;
     }
 
-    private int valueIndexOf(int v){
-        if(v == max){
-            return buckets - 1;
-        }else{
-            return (v-min)/ width;
-        }
+    /**
+     * Double the width of the buckets, merging each pair of neighbouring
+     * buckets, and extend the covered range to the left or to the right.
+     */
+    private void grow(boolean left) {
+        // 向左扩展时原来的范围落在后半部分，lo要和原来的桶边界对齐
+        int offset = left ? buckets / 2 : 0;
+        int[] merged = new int[buckets];
+        for (int i = 0; i < buckets; i++)
+            merged[offset + i / 2] += histogram[i];
+        histogram = merged;
+        width *= 2;
+        // 只有一个桶时没法对齐，往左多盖原来一个桶宽
+        lo -= left && offset == 0 ? width / 2 : offset * width;
+    }
+
+    private int valueIndexOf(long v){
+        return (int) Math.max(0, Math.min(buckets - 1, (v - lo) / width));
     }
     /**
      * Estimate the selectivity of a particular predicate and operand on this table.
@@ -76,10 +122,13 @@ public class IntHistogram {
      */
     public double estimateSelectivity(Predicate.Op op, int v) {
     	// some code goes here
+        if (ntups == 0)
+            return op == Predicate.Op.NOT_EQUALS ? 1.0 : 0.0;
         int bucketIdx = valueIndexOf(v);        // 值所在的索引
-        // 当前柱的左右值
-        int left = bucketIdx*width+min;
-        int right = left+width-1;
+        // 当前柱的左右值，只算落在[min, max]内的部分
+        long left = Math.max(bucketIdx*width+lo, min);
+        long right = Math.min(bucketIdx*width+lo+width-1, max);
+        long w = Math.max(1, right-left+1);
 
         switch (op){
             case EQUALS:{
@@ -87,7 +136,7 @@ public class IntHistogram {
                     return  0.0;
                 }
                 int height = histogram[bucketIdx];
-                return (height*1.0 / width) / ntups;
+                return (height*1.0 / w) / ntups;
             }
             case LESS_THAN:{
                 if(v < min){
@@ -102,7 +151,7 @@ public class IntHistogram {
                     totalLeft += histogram[i];
                 }
                 double p1 = totalLeft*1.0/ntups;
-                double p2 = 1.0*height/ntups*((v-left)*1.0/width);
+                double p2 = 1.0*height/ntups*((v-left)*1.0/w);
                 return p1+p2;
             }
             case GREATER_THAN:{
@@ -118,7 +167,7 @@ public class IntHistogram {
                     totalRight += histogram[i];
                 }
                 double p1 = 1.0*totalRight/ntups;
-                double p2 = 1.0*height/ntups*((right-v)*1.0/width);
+                double p2 = 1.0*height/ntups*((right-v)*1.0/w);
                 return p1+p2;
             }
             case LESS_THAN_OR_EQ:{
@@ -150,7 +199,17 @@ public class IntHistogram {
     public double avgSelectivity()
     {
         // some code goes here
-        return 1.0;
+        // 值落在第i个桶的概率是h_i/n，与它相等的比例又是h_i/n/w_i
+        if (ntups == 0)
+            return 0.0;
+        double sel = 0.0;
+        for (int i = 0; i < buckets; i++) {
+            long left = Math.max(lo + i * width, min);
+            long right = Math.min(lo + (i + 1) * width - 1, max);
+            double p = (double) histogram[i] / ntups;
+            sel += p * p / Math.max(1, right - left + 1);
+        }
+        return sel;
     }
 
     /**
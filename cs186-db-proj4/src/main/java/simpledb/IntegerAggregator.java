@@ -50,6 +50,8 @@ public class IntegerAggregator implements Aggregator {
         int count;
         int min;
         int max;
+        /** The values seen, for COUNT_DISTINCT only */
+        IntHashSet distinct;
     }
     /**
      * Aggregate constructor
@@ -97,6 +99,17 @@ public class IntegerAggregator implements Aggregator {
             gField = tup.getField(gbfield);
         }
 
+        if (op == Op.COUNT_DISTINCT) {
+            AggregatorItem item = groupMap.get(gField);
+            if (item == null) {
+                item = new AggregatorItem();
+                groupMap.put(gField, item);
+            }
+            if (item.distinct == null)
+                item.distinct = new IntHashSet();
+            item.distinct.add(aField.getValue());
+            return;
+        }
         if(groupMap.containsKey(gField)){
             AggregatorItem item = groupMap.get(gField);
             item.count++;
@@ -113,6 +126,14 @@ public class IntegerAggregator implements Aggregator {
         }
     }
 
+    public int numGroups() {
+        return groupMap.size();
+    }
+
+    public boolean hasGroup(Tuple tup) {
+        return groupMap.containsKey(gbfield == -1 ? null : tup.getField(gbfield));
+    }
+
     /**
      * Create a DbIterator over group aggregate results.
      * 
@@ -131,21 +152,26 @@ public class IntegerAggregator implements Aggregator {
             Field key = next.getKey();
             AggregatorItem value = next.getValue();
             Tuple tuple = new Tuple(td);
+            // 没有分组时结果只有聚合值一列
+            int aggIndex = gbfield == -1 ? 0 : 1;
             switch (op){
                 case AVG:
-                    tuple.setField(1, new IntField(value.sum/value.count));
+                    tuple.setField(aggIndex, new IntField(value.count == 0 ? 0 : value.sum/value.count));
                     break;
                 case SUM:
-                    tuple.setField(1, new IntField(value.sum));
+                    tuple.setField(aggIndex, new IntField(value.sum));
                     break;
                 case MIN:
-                    tuple.setField(1, new IntField(value.min));
+                    tuple.setField(aggIndex, new IntField(value.min));
                     break;
                 case MAX:
-                    tuple.setField(1, new IntField(value.max));
+                    tuple.setField(aggIndex, new IntField(value.max));
                     break;
                 case COUNT:
-                    tuple.setField(1, new IntField(value.count));
+                    tuple.setField(aggIndex, new IntField(value.count));
+                    break;
+                case COUNT_DISTINCT:
+                    tuple.setField(aggIndex, new IntField(value.distinct == null ? 0 : value.distinct.size()));
                     break;
             }
             if(gbfield != -1){
@@ -0,0 +1,223 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * The join graph of a query: a vertex per table alias, and one more per
+ * subquery joined in, with an edge per join. Sets of vertices are bitmasks
+ * in a long, vertex i being bit i, so a graph has at most 64 vertices.
+ * <p>
+ * {@link #enumeratePairs} lists every pair of disjoint connected sets of
+ * vertices that some join connects (csg-cmp-pairs), following DPccp by
+ * Moerkotte and Neumann; these are exactly the joins a dynamic program over
+ * the graph has to consider, without the cross products.
+ *
+ * 连接图：每个表别名一个顶点，每个连接一条边
+ */
+class JoinGraph {
+
+    /** The most vertices a graph can have */
+    static final int MAX_VERTICES = Long.SIZE;
+
+    /** Receives the csg-cmp-pairs of a graph */
+    interface PairVisitor {
+        void pair(long s1, long s2) throws ParsingException;
+    }
+
+    private final Vector<LogicalJoinNode> joins;
+
+    /** The alias of each vertex; null for a subquery */
+    private final ArrayList<String> aliases = new ArrayList<String>();
+
+    private final HashMap<String, Integer> vertexOf = new HashMap<String, Integer>();
+
+    /** The vertices each vertex is joined with */
+    private long[] neighbors;
+
+    /** The two vertices of each join, as bitmasks */
+    private final long[] left, right;
+
+    /**
+     * @throws ParsingException
+     *             if the joins refer to more than MAX_VERTICES tables and
+     *             subqueries
+     */
+    JoinGraph(Vector<LogicalJoinNode> joins) throws ParsingException {
+        this.joins = joins;
+        left = new long[joins.size()];
+        right = new long[joins.size()];
+        int[] v1 = new int[joins.size()], v2 = new int[joins.size()];
+        for (int i = 0; i < joins.size(); i++) {
+            LogicalJoinNode j = joins.get(i);
+            v1[i] = vertex(j.t1Alias);
+            // 每个子查询自己是一个顶点，只和t1相连
+            v2[i] = j instanceof LogicalSubplanJoinNode ? vertex(null) : vertex(j.t2Alias);
+        }
+        if (aliases.size() > MAX_VERTICES)
+            throw new ParsingException("cannot order the joins of more than "
+                    + MAX_VERTICES + " tables and subqueries");
+        neighbors = new long[aliases.size()];
+        for (int i = 0; i < joins.size(); i++) {
+            left[i] = 1L << v1[i];
+            right[i] = 1L << v2[i];
+            neighbors[v1[i]] |= right[i];
+            neighbors[v2[i]] |= left[i];
+        }
+    }
+
+    private int vertex(String alias) {
+        Integer v = alias == null ? null : vertexOf.get(alias);
+        if (v == null) {
+            v = aliases.size();
+            aliases.add(alias);
+            if (alias != null)
+                vertexOf.put(alias, v);
+        }
+        return v;
+    }
+
+    /** @return the number of vertices */
+    int size() {
+        return aliases.size();
+    }
+
+    /** @return the set of all vertices */
+    long all() {
+        return size() == MAX_VERTICES ? -1L : (1L << size()) - 1;
+    }
+
+    /** @return the alias of the only vertex of s, or null for a subquery */
+    String alias(long s) {
+        return aliases.get(Long.numberOfTrailingZeros(s));
+    }
+
+    /** @return the set holding the vertex of alias, or 0 if it joins nothing */
+    long vertexSet(String alias) {
+        Integer v = vertexOf.get(alias);
+        return v == null ? 0 : 1L << v;
+    }
+
+    /** @return the vertices of the tables joined by the joins of order */
+    long vertexSet(List<LogicalJoinNode> order) {
+        long s = 0;
+        for (LogicalJoinNode j : order) {
+            int i = joins.indexOf(j);
+            if (i >= 0)
+                s |= left[i] | right[i];
+        }
+        return s;
+    }
+
+    /** @return the vertices outside s joined with a vertex of s */
+    long neighborhood(long s) {
+        long n = 0;
+        for (long rest = s; rest != 0; rest &= rest - 1)
+            n |= neighbors[Long.numberOfTrailingZeros(rest)];
+        return n & ~s;
+    }
+
+    /**
+     * @return the indices of the joins between a vertex of s1 and one of s2
+     */
+    List<Integer> connecting(long s1, long s2) {
+        ArrayList<Integer> found = new ArrayList<Integer>();
+        for (int i = 0; i < left.length; i++) {
+            if (((left[i] & s1) != 0 && (right[i] & s2) != 0)
+                    || ((left[i] & s2) != 0 && (right[i] & s1) != 0))
+                found.add(i);
+        }
+        return found;
+    }
+
+    /** @return true if the first vertex of join i is in s */
+    boolean leftIn(int i, long s) {
+        return (left[i] & s) != 0;
+    }
+
+    /** @return the sets of vertices of the connected parts of the graph */
+    List<Long> components() {
+        ArrayList<Long> parts = new ArrayList<Long>();
+        long seen = 0;
+        for (int v = 0; v < size(); v++) {
+            if ((seen & (1L << v)) != 0)
+                continue;
+            long part = 1L << v, grow;
+            while ((grow = neighborhood(part)) != 0)
+                part |= grow;
+            parts.add(part);
+            seen |= part;
+        }
+        return parts;
+    }
+
+    /**
+     * @return the vertices numbered up to v
+     */
+    private static long upTo(int v) {
+        return v == MAX_VERTICES - 1 ? -1L : (1L << (v + 1)) - 1;
+    }
+
+    /**
+     * Hand every csg-cmp-pair (s1, s2) to visitor once, with the smallest
+     * vertex of s1 ∪ s2 in s1. A pair comes only after all pairs making up
+     * s1 and all pairs making up s2, so a dynamic program can build the best
+     * plan of s1 ∪ s2 from the finished plans of s1 and s2.
+     */
+    void enumeratePairs(PairVisitor visitor) throws ParsingException {
+        for (int v = size() - 1; v >= 0; v--) {
+            long s = 1L << v;
+            emitCsg(s, visitor);
+            enumerateCsgRec(s, upTo(v), visitor);
+        }
+    }
+
+    /**
+     * Extend the connected set s by neighbours outside x, emitting every
+     * connected set reached. Subsets come in increasing numeric order, so a
+     * set always comes after its own connected subsets.
+     */
+    private void enumerateCsgRec(long s, long x, PairVisitor visitor) throws ParsingException {
+        long n = neighborhood(s) & ~x;
+        if (n == 0)
+            return;
+        for (long sub = n & -n; sub != 0; sub = nextSubset(sub, n))
+            emitCsg(s | sub, visitor);
+        for (long sub = n & -n; sub != 0; sub = nextSubset(sub, n))
+            enumerateCsgRec(s | sub, x | n, visitor);
+    }
+
+    /** Emit the pairs of the connected set s1 with each of its complements */
+    private void emitCsg(long s1, PairVisitor visitor) throws ParsingException {
+        long x = s1 | upTo(Long.numberOfTrailingZeros(s1));
+        long n = neighborhood(s1) & ~x;
+        // 从编号大的邻居开始，编号小于它的邻居留给它之后的补集
+        for (long rest = n; rest != 0; ) {
+            int v = MAX_VERTICES - 1 - Long.numberOfLeadingZeros(rest);
+            long s2 = 1L << v;
+            rest &= ~s2;
+            visitor.pair(s1, s2);
+            enumerateCmpRec(s1, s2, x | (upTo(v) & n), visitor);
+        }
+    }
+
+    private void enumerateCmpRec(long s1, long s2, long x, PairVisitor visitor) throws ParsingException {
+        long n = neighborhood(s2) & ~x;
+        if (n == 0)
+            return;
+        for (long sub = n & -n; sub != 0; sub = nextSubset(sub, n))
+            visitor.pair(s1, s2 | sub);
+        for (long sub = n & -n; sub != 0; sub = nextSubset(sub, n))
+            enumerateCmpRec(s1, s2 | sub, x | n, visitor);
+    }
+
+    /**
+     * @return the next non-empty subset of n after sub in increasing numeric
+     *         order, or 0 after n itself
+     */
+    private static long nextSubset(long sub, long n) {
+        return sub == n ? 0 : (sub - n) & n;
+    }
+}
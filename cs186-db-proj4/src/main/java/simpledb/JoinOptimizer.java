@@ -15,6 +15,67 @@ import javax.swing.tree.*;
 public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
+    /** The field the joins' output should be sorted on, see {@link LogicalPlan#getInterestingOrder} */
+    private String interestingOrder;
+    /** The join chosen by {@link #orderJoins} to run as a merge join that provides interestingOrder */
+    private LogicalJoinNode orderedJoin;
+
+    /** How {@link #orderJoins} found a join order */
+    public enum Strategy {
+        /** Exhaustive dynamic programming over the connected sets of tables (DPccp) */
+        DYNAMIC_PROGRAMMING("dynamic programming"),
+        /** Greedy operator ordering (GOO) only */
+        GREEDY("greedy operator ordering"),
+        /** Greedy operator ordering improved by simulated annealing */
+        GREEDY_ANNEALING("greedy operator ordering and simulated annealing");
+
+        final String description;
+
+        Strategy(String description) {
+            this.description = description;
+        }
+    }
+
+    /** The operators a join can be instantiated as, see {@link #instantiateJoin} */
+    public enum JoinAlgorithm {
+        /** {@link HashEquiJoin}, for equality joins */
+        HASH,
+        /** {@link SortMergeJoin}, for equality joins */
+        SORT_MERGE,
+        /** {@link RangeJoin}, for joins on <, <=, > and >= */
+        RANGE,
+        /** {@link Join}, a block nested loop join, for any predicate */
+        NESTED_LOOP
+    }
+
+    /** Default for {@link #setMaxDpJoins} */
+    static final int MAX_DP_JOINS = 15;
+
+    /** Default for {@link #setSearchMillis} */
+    static final long SEARCH_MILLIS = 200;
+
+    /** The temperature simulated annealing starts at, as a share of the cost of the greedy plan */
+    static final double INITIAL_TEMPERATURE = 0.1;
+
+    /** Simulated annealing stops at this temperature, as a share of the cost of the best plan */
+    static final double FROZEN_TEMPERATURE = 1e-4;
+
+    /** The temperature is multiplied by this after each round of as many moves as there are joins */
+    static final double COOLING = 0.9;
+
+    private static volatile int maxDpJoins = MAX_DP_JOINS;
+
+    private static volatile long searchMillis = SEARCH_MILLIS;
+
+    /** The strategy the last call of {@link #orderJoins} used */
+    private Strategy strategy;
+
+    /** The number of orders simulated annealing tried in the last call of {@link #orderJoins} */
+    private int searchMoves;
+
+    /** The estimated cost and cardinality of the plan the last call of {@link #orderJoins} returned */
+    private double estimatedCost;
+    private int estimatedCardinality;
 
     /**
      * Constructor
@@ -27,6 +88,56 @@ public class JoinOptimizer {
     public JoinOptimizer(LogicalPlan p, Vector<LogicalJoinNode> joins) {
         this.p = p;
         this.joins = joins;
+        this.interestingOrder = p.getInterestingOrder();
+    }
+
+    /**
+     * Set the most joins {@link #orderJoins} orders by dynamic programming;
+     * it searches the order of more joins greedily.
+     */
+    public static void setMaxDpJoins(int n) {
+        maxDpJoins = n;
+    }
+
+    /**
+     * Set how many milliseconds {@link #orderJoins} may spend improving a
+     * greedy join order by simulated annealing; with 0 it takes the greedy
+     * order as it is.
+     */
+    public static void setSearchMillis(long millis) {
+        searchMillis = millis;
+    }
+
+    /**
+     * @return how the last call of {@link #orderJoins} found its join order
+     */
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * @return the estimated cost of the joins in the order the last call of
+     *         {@link #orderJoins} returned
+     */
+    public double getEstimatedCost() {
+        return estimatedCost;
+    }
+
+    /**
+     * @return the estimated number of tuples the joins in the order the last
+     *         call of {@link #orderJoins} returned produce
+     */
+    public int getEstimatedCardinality() {
+        return estimatedCardinality;
+    }
+
+    /**
+     * @return true if lj is the last join of the order returned by
+     *         {@link #orderJoins} and should be run as a merge join, so that
+     *         its output already has the order the query's ORDER BY asks for
+     */
+    public boolean providesInterestingOrder(LogicalJoinNode lj) {
+        return lj != null && lj == orderedJoin;
     }
 
     /**
@@ -46,34 +157,106 @@ public class JoinOptimizer {
      */
     public static DbIterator instantiateJoin(LogicalJoinNode lj,
             DbIterator plan1, DbIterator plan2) throws ParsingException {
+        return instantiateJoin(lj, plan1, plan2, false);
+    }
+
+    /**
+     * Like {@link #instantiateJoin(LogicalJoinNode, DbIterator, DbIterator)},
+     * but if ordered is true an equality join is instantiated as a
+     * {@link SortMergeJoin}, whose output is sorted on the join field. An
+     * equality join is also a SortMergeJoin when one of its inputs already
+     * comes sorted on its join field. Otherwise the join runs as the
+     * algorithm {@link #orderJoins} picked for it, see
+     * {@link LogicalJoinNode#algorithm}; if none was picked, an equality join
+     * is a {@link HashEquiJoin} that builds its hash table on plan1, and
+     * joins on <, <=, > and >= are instantiated as a {@link RangeJoin}. A
+     * join with a subquery is a {@link HashSemiJoin}.
+     */
+    public static DbIterator instantiateJoin(LogicalJoinNode lj,
+            DbIterator plan1, DbIterator plan2, boolean ordered) throws ParsingException {
 
         int t1id = 0, t2id = 0;
         DbIterator j;
 
+        if (lj instanceof LogicalSubplanJoinNode)
+            return instantiateSemiJoin((LogicalSubplanJoinNode) lj, plan1, plan2);
+
         try {
             t1id = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
         } catch (NoSuchElementException e) {
             throw new ParsingException("Unknown field " + lj.f1QuantifiedName);
         }
 
-        if (lj instanceof LogicalSubplanJoinNode) {
-            t2id = 0;
-        } else {
-            try {
-                t2id = plan2.getTupleDesc().fieldNameToIndex(
-                        lj.f2QuantifiedName);
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field "
-                        + lj.f2QuantifiedName);
-            }
+        try {
+            t2id = plan2.getTupleDesc().fieldNameToIndex(
+                    lj.f2QuantifiedName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field "
+                    + lj.f2QuantifiedName);
         }
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        JoinAlgorithm algorithm;
+        if (lj.p == Predicate.Op.EQUALS && (ordered
+                || SortMergeJoin.isSortedOn(plan1, t1id)
+                || SortMergeJoin.isSortedOn(plan2, t2id))) {
+            algorithm = JoinAlgorithm.SORT_MERGE;
+        } else if (lj.algorithm != null) {
+            algorithm = lj.algorithm;
+        } else if (lj.p == Predicate.Op.EQUALS) {
+            algorithm = JoinAlgorithm.HASH;
+        } else if (RangeJoin.isRangeOp(lj.p)) {
+            algorithm = JoinAlgorithm.RANGE;
+        } else {
+            algorithm = JoinAlgorithm.NESTED_LOOP;
+        }
 
+        switch (algorithm) {
+        case SORT_MERGE:
+            j = new SortMergeJoin(p, plan1, plan2);
+            break;
+        case HASH:
+            j = new HashEquiJoin(p, plan1, plan2);
+            break;
+        case RANGE:
+            j = new RangeJoin(p, plan1, plan2);
+            break;
+        default:
+            j = new Join(p, plan1, plan2);
+        }
+
+        return j;
+
+    }
+
+    /**
+     * @return the {@link HashSemiJoin} of plan1 with the subplan plan2 for
+     *         lj: f1 p the first field of plan2, and each correlation with
+     *         the fields after it
+     */
+    private static DbIterator instantiateSemiJoin(LogicalSubplanJoinNode lj,
+            DbIterator plan1, DbIterator plan2) throws ParsingException {
+        ArrayList<JoinPredicate> preds = new ArrayList<JoinPredicate>();
+        int f2 = 0;
+        if (lj.p != null)
+            preds.add(new JoinPredicate(fieldIndex(plan1, lj.f1QuantifiedName), lj.p, f2++));
+        for (LogicalJoinNode c : lj.correlations)
+            preds.add(new JoinPredicate(fieldIndex(plan1, c.f1QuantifiedName), c.p, f2++));
+        if (f2 > plan2.getTupleDesc().numFields())
+            throw new ParsingException("Subquery returns fewer fields than it is compared with.");
+        HashSemiJoin j = new HashSemiJoin(preds.toArray(new JoinPredicate[preds.size()]),
+                plan1, plan2, lj.anti);
+        j.setSelectivity(lj.selectivity);
         return j;
+    }
 
+    private static int fieldIndex(DbIterator plan, String field) throws ParsingException {
+        try {
+            return plan.getTupleDesc().fieldNameToIndex(field);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field " + field);
+        }
     }
 
     /**
@@ -104,25 +287,322 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2,
+                scanTupleBytes(j.t1Alias), scanTupleBytes(j.t2Alias));
+    }
+
+    /**
+     * Like {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)},
+     * for inputs whose tuples take bytes1 and bytes2 bytes of heap, see
+     * {@link MemoryManager#estimateTupleBytes}. An input that is itself a
+     * join has tuples as wide as all its tables together.
+     */
+    double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, long bytes1, long bytes2) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
-            // You do not need to implement proper support for these for Project 3.
-            return card1 + cost1 + cost2;
+            return estimateSemiJoinCost((LogicalSubplanJoinNode) j, card1, cost1, bytes1);
         } else {
-            // some code goes here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic nested-loops
-            // join.
-            // 针对BlockNestedLoopJoin
-            TupleDesc desc = Database.getCatalog().getTupleDesc(p.getTableId(j.t1Alias));
-            int blockSize = Join.blockMemory / desc.getSize();
-            int fullNum = card1 / blockSize;
-            int left = (card1 - blockSize*blockSize) == 0 ? 0 : 1;
-            int blockCard = fullNum + left; //得到左表分成多少个缓冲区
-            return cost1 + blockCard * cost2 + (double) card1 * (double) card2;
+            return estimateJoinCost(j, card1, card2, cost1, cost2, bytes1, bytes2,
+                    cheapestAlgorithm(j, card1, card2, cost1, cost2, bytes1, bytes2));
         }
     }
 
+    /**
+     * @return the estimated heap size of a tuple of the plan reading the
+     *         table with the given alias, or 0 for a subquery
+     */
+    private long scanTupleBytes(String alias) {
+        return alias == null ? 0 : MemoryManager.estimateTupleBytes(p.scanTupleDesc(alias));
+    }
+
+    /**
+     * @return the algorithm of those that can run j whose cost, by
+     *         {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double, JoinAlgorithm)},
+     *         is lowest
+     */
+    public JoinAlgorithm cheapestAlgorithm(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2) {
+        return cheapestAlgorithm(j, card1, card2, cost1, cost2,
+                scanTupleBytes(j.t1Alias), scanTupleBytes(j.t2Alias));
+    }
+
+    /**
+     * {@link #cheapestAlgorithm(LogicalJoinNode, int, int, double, double)}
+     * for inputs of tuples of bytes1 and bytes2 bytes.
+     */
+    JoinAlgorithm cheapestAlgorithm(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, long bytes1, long bytes2) {
+        JoinAlgorithm best = null;
+        double bestCost = 0;
+        for (JoinAlgorithm algorithm : candidateAlgorithms(j.p)) {
+            double cost = estimateJoinCost(j, card1, card2, cost1, cost2, bytes1, bytes2, algorithm);
+            if (best == null || cost < bestCost) {
+                best = algorithm;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the algorithms considered for a join on op. A nested loop
+     *         join is not considered for equality joins: it only beats a
+     *         hash join on inputs of a handful of tuples.
+     */
+    static JoinAlgorithm[] candidateAlgorithms(Predicate.Op op) {
+        if (op == Predicate.Op.EQUALS)
+            return new JoinAlgorithm[] { JoinAlgorithm.HASH, JoinAlgorithm.SORT_MERGE };
+        if (RangeJoin.isRangeOp(op))
+            return new JoinAlgorithm[] { JoinAlgorithm.RANGE, JoinAlgorithm.NESTED_LOOP };
+        return new JoinAlgorithm[] { JoinAlgorithm.NESTED_LOOP };
+    }
+
+    /**
+     * Estimate the cost of running j as algorithm, with the coefficients of
+     * {@link CostModel#current}: cost1 and cost2 plus the I/O and CPU work
+     * of the join itself.
+     */
+    public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, JoinAlgorithm algorithm) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2,
+                scanTupleBytes(j.t1Alias), scanTupleBytes(j.t2Alias), algorithm);
+    }
+
+    /**
+     * {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double, JoinAlgorithm)}
+     * for inputs of tuples of bytes1 and bytes2 bytes.
+     */
+    double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, long bytes1, long bytes2, JoinAlgorithm algorithm) {
+        if (j instanceof LogicalSubplanJoinNode)
+            return estimateJoinCost(j, card1, card2, cost1, cost2, bytes1, bytes2);
+        switch (algorithm) {
+        case HASH:
+            return estimateHashJoinCost(card1, card2, cost1, cost2, bytes1);
+        case SORT_MERGE:
+            return estimateSortMergeJoinCost(card1, card2, cost1, cost2, bytes1, bytes2);
+        case RANGE:
+            return estimateRangeJoinCost(card1, card2, cost1, cost2, bytes2);
+        default:
+            return estimateNestedLoopJoinCost(card1, card2, cost1, cost2, bytes1, bytes2);
+        }
+    }
+
+    /**
+     * Estimate the cost of a block nested loop {@link Join}: one scan of each
+     * input and the join predicate for every pair of tuples. The join asks
+     * for enough memory to hold both inputs; the left input is read in blocks
+     * of half of what it is granted, and if the right input does not fit in
+     * the other half, it is written to a {@link SpillFile} and read back once
+     * per block.
+     */
+    static double estimateNestedLoopJoinCost(int card1, int card2,
+            double cost1, double cost2, long tupleBytes1, long tupleBytes2) {
+        // 和Join.open一样按两边的总大小申请内存，一半给左表的块，一半给右表
+        long half = Database.getMemoryManager().estimateGrant(
+                (double) card1 * tupleBytes1 + (double) card2 * tupleBytes2) / 2;
+        int blockSize = (int) Math.max(1, half / tupleBytes1);
+        int blockCard = (int) (((long) card1 + blockSize - 1) / blockSize); //得到左表分成多少个缓冲区
+        // 右表只计算一次；内存放不下时写到磁盘，每个块再读一遍
+        double rescan = 0;
+        if ((double) card2 * tupleBytes2 > half) {
+            rescan = estimateSpillCost(card2, tupleBytes2) / 2 * (Math.max(1, blockCard) + 1);
+        }
+        return cost1 + cost2 + rescan
+                + CostModel.current().compare * (double) card1 * (double) card2;
+    }
+
+    /**
+     * @return the CPU cost of sorting card tuples in memory
+     */
+    static double estimateSortCost(int card) {
+        return card <= 1 ? 0
+                : CostModel.current().sortCompare * card * (Math.log(card) / Math.log(2));
+    }
+
+    /**
+     * Estimate the cost of a {@link SortMergeJoin}: one scan of each input,
+     * sorting both of them, and one merge pass. An input that does not fit
+     * in the memory its sort would be granted is written to sorted runs and
+     * read back once.
+     */
+    static double estimateSortMergeJoinCost(int card1, int card2,
+            double cost1, double cost2, long tupleBytes1, long tupleBytes2) {
+        double cost = cost1 + cost2 + estimateSortCost(card1) + estimateSortCost(card2)
+                + CostModel.current().mergeTuple * ((double) card1 + card2);
+        if (spills(card1, tupleBytes1))
+            cost += estimateSpillCost(card1, tupleBytes1);
+        if (spills(card2, tupleBytes2))
+            cost += estimateSpillCost(card2, tupleBytes2);
+        return cost;
+    }
+
+    /**
+     * Estimate the cost of a {@link HashEquiJoin}: one scan of each input and
+     * a hash table insert or lookup per tuple. Inserting costs more than
+     * probing, so the smaller input should be on the left. If the left input
+     * does not fit in the memory the join would be granted, both inputs are
+     * also written to and read back from partition files once.
+     */
+    static double estimateHashJoinCost(int card1, int card2,
+            double cost1, double cost2, long tupleBytes) {
+        CostModel model = CostModel.current();
+        double cost = cost1 + cost2 + model.hashBuild * card1 + model.hashProbe * card2;
+        if (spills(card1, tupleBytes)) {
+            cost += estimateSpillCost((double) card1 + card2, tupleBytes);
+        }
+        return cost;
+    }
+
+    /**
+     * Estimate the cost of a {@link HashSemiJoin} of card1 tuples of bytes1
+     * bytes costing cost1 with the subquery of j: running the subquery once, a hash table
+     * insert per tuple of its result and a lookup per tuple of the left
+     * input. If the result of the subquery does not fit in the memory the
+     * join would be granted, both inputs are also written to and read back
+     * from partition files once.
+     */
+    static double estimateSemiJoinCost(LogicalSubplanJoinNode j, int card1, double cost1,
+            long bytes1) {
+        CostModel model = CostModel.current();
+        double cost = cost1 + j.subCost + model.hashBuild * j.subCard + model.hashProbe * card1;
+        if (j.subPlan != null) {
+            long bytes2 = MemoryManager.estimateTupleBytes(j.subPlan.getTupleDesc());
+            if (spills(j.subCard, bytes2))
+                cost += estimateSpillCost(j.subCard, bytes2) + estimateSpillCost(card1, bytes1);
+        }
+        return cost;
+    }
+
+    /**
+     * Estimate the fraction of the tuples of j.t1 that a semi join with a
+     * subquery keeps, or for an anti join, drops. An equality with a field of
+     * the subquery matches the fraction of the distinct values of j.t1's
+     * field that the subquery returns, assuming the values of the side with
+     * fewer are all among those of the other; other comparisons match a
+     * fixed fraction, as in {@link #estimateTableJoinCardinality}. The
+     * comparisons are assumed to be independent.
+     *
+     * @param stats
+     *            the table stats, by table name
+     * @param tableAliasToId
+     *            the tables of the query j is in, by alias
+     * @return the estimated fraction of the tuples of j.t1 the join keeps
+     */
+    public static double estimateSemiJoinSelectivity(LogicalSubplanJoinNode j,
+            Map<String, TableStats> stats, Map<String, Integer> tableAliasToId) {
+        double matched = j.p == null && j.subCard <= 0 ? 0.0 : 1.0;
+        if (j.p != null) {
+            String inner = j.subQuery == null ? null : j.subQuery.firstOutputField();
+            matched *= matchFraction(j.p, distinctValues(j.t1Alias, j.f1PureName, stats, tableAliasToId),
+                    subqueryDistinctValues(j, inner, stats));
+        }
+        for (LogicalJoinNode c : j.correlations) {
+            matched *= matchFraction(c.p, distinctValues(c.t1Alias, c.f1PureName, stats, tableAliasToId),
+                    subqueryDistinctValues(j, c.f2QuantifiedName, stats));
+        }
+        return j.anti ? 1.0 - matched : matched;
+    }
+
+    private static double matchFraction(Predicate.Op op, int outerDistinct, int innerDistinct) {
+        switch (op) {
+        case EQUALS:
+            if (outerDistinct <= 0 || innerDistinct <= 0)
+                return 0.5;     // 没有统计信息
+            return Math.min(1.0, (double) innerDistinct / outerDistinct);
+        case NOT_EQUALS:
+            return 1.0;
+        default:
+            return 0.3;
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values of field of the result
+     *         of the subquery of j, at most its cardinality, or that
+     *         cardinality if field is null or has no statistics
+     */
+    private static int subqueryDistinctValues(LogicalSubplanJoinNode j, String field,
+            Map<String, TableStats> stats) {
+        int distinct = j.subQuery == null || field == null ? 0
+                : j.subQuery.distinctValues(field, stats);
+        return distinct > 0 ? Math.min(distinct, j.subCard) : j.subCard;
+    }
+
+    /**
+     * @return the estimated number of distinct values of the field of the
+     *         table with the given alias, or 0 if there are no statistics
+     */
+    private static int distinctValues(String tableAlias, String field,
+            Map<String, TableStats> stats, Map<String, Integer> tableAliasToId) {
+        Integer tableId = tableAliasToId.get(tableAlias);
+        if (tableId == null)
+            return 0;
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        if (s == null)
+            return 0;
+        try {
+            return s.estimateDistinctValues(Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(field));
+        } catch (NoSuchElementException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the IO cost of writing card tuples to a {@link SpillFile} and
+     *         reading them back
+     */
+    static double estimateSpillCost(double card, long tupleBytes) {
+        return card * tupleBytes / BufferPool.PAGE_SIZE * CostModel.current().spillPage;
+    }
+
+    /**
+     * @return true if an operator that asks for memory for card tuples of
+     *         tupleBytes each would be granted less, so that it spills
+     */
+    static boolean spills(double card, long tupleBytes) {
+        double bytes = card * tupleBytes;
+        return bytes > Database.getMemoryManager().estimateGrant(bytes);
+    }
+
+    /** The fraction of the inner input a range join matches per outer tuple, when no statistics say otherwise */
+    static final double RANGE_JOIN_SELECTIVITY = 0.3;
+
+    /**
+     * Estimate the cost of a {@link RangeJoin}: one scan of each input,
+     * sorting the inner input, and one predicate evaluation per outer tuple
+     * to find the end of its matching prefix. Producing the output tuples
+     * costs the same with any join algorithm and is charged to the next
+     * operator through the join's cardinality. If the inner input does not
+     * fit in the memory the join would be granted, the sort writes it to
+     * runs and reads it back, the join's buffer writes it out once more, and
+     * each outer tuple reads back the part of its prefix that is on disk.
+     */
+    static double estimateRangeJoinCost(int card1, int card2,
+            double cost1, double cost2, long tupleBytes2) {
+        double cost = cost1 + cost2 + estimateSortCost(card2)
+                + CostModel.current().compare * card1;
+        long memoryTuples = Database.getMemoryManager()
+                .estimateGrant((double) card2 * tupleBytes2) / tupleBytes2;
+        if (card2 > memoryTuples) {
+            double prefixOnDisk = Math.max(0, RANGE_JOIN_SELECTIVITY * card2 - memoryTuples);
+            cost += 2 * estimateSpillCost(card2, tupleBytes2)
+                    + card1 * estimateSpillCost(prefixOnDisk, tupleBytes2) / 2;
+        }
+        return cost;
+    }
+
+    /**
+     * @return true if a merge join for j would produce the interesting order
+     */
+    private boolean isInterestingOrderJoin(LogicalJoinNode j) {
+        return interestingOrder != null && j.p == Predicate.Op.EQUALS
+                && !(j instanceof LogicalSubplanJoinNode)
+                && (interestingOrder.equals(j.f1QuantifiedName)
+                        || interestingOrder.equals(j.f2QuantifiedName));
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -146,8 +626,7 @@ public class JoinOptimizer {
             boolean t1pkey, boolean t2pkey, Map<String, TableStats> stats) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
-            // You do not need to implement proper support for these for Project 3.
-            return card1;
+            return Math.max(1, (int) Math.ceil(card1 * ((LogicalSubplanJoinNode) j).selectivity));
         } else {
             return estimateTableJoinCardinality(j.p, j.t1Alias, j.t2Alias,
                     j.f1PureName, j.f2PureName, card1, card2, t1pkey, t2pkey,
@@ -180,7 +659,11 @@ public class JoinOptimizer {
                 }else if(t2pkey){
                     card = card1;
                 }else {
-                    card = biggerSize;
+                    // 多对多连接：用两边的直方图和不同值个数估计，没有统计时取大表
+                    double sel = estimateJoinSelectivity(joinOp, table1Alias, table2Alias,
+                            field1PureName, field2PureName, stats, tableAliasToId, -1);
+                    card = sel < 0 ? biggerSize
+                            : (int) Math.min(Integer.MAX_VALUE, Math.ceil((double) card1 * card2 * sel));
                 }
                 break;
             }
@@ -188,7 +671,9 @@ public class JoinOptimizer {
             case GREATER_THAN_OR_EQ:
             case LESS_THAN:
             case LESS_THAN_OR_EQ:
-                card = (int) (card1 *card2 * 0.3);
+                card = (int) Math.min(Integer.MAX_VALUE, (double) card1 * card2
+                        * estimateJoinSelectivity(joinOp, table1Alias, table2Alias,
+                                field1PureName, field2PureName, stats, tableAliasToId, 0.3));
                 break;
             default: card = card1 * card2;
         }
@@ -196,36 +681,35 @@ public class JoinOptimizer {
     }
 
     /**
-     * Helper method to enumerate all of the subsets of a given size of a
-     * specified vector.
-     * 
-     * @param v
-     *            The vector whose subsets are desired
-     * @param size
-     *            The size of the subsets of interest
-     * @return a set of all subsets of the specified size
-     */
-    @SuppressWarnings("unchecked")
-    public <T> Set<Set<T>> enumerateSubsets(Vector<T> v, int size) {
-        Set<Set<T>> els = new HashSet<Set<T>>();
-        els.add(new HashSet<T>());
-        // Iterator<Set> it;
-        // long start = System.currentTimeMillis();
-
-        for (int i = 0; i < size; i++) {
-            Set<Set<T>> newels = new HashSet<Set<T>>();
-            for (Set<T> s : els) {
-                for (T t : v) {
-                    Set<T> news = (Set<T>) (((HashSet<T>) s).clone());
-                    if (news.add(t))
-                        newels.add(news);
-                }
-            }
-            els = newels;
+     * Estimate the selectivity of <tt>table1.field1 joinOp table2.field2</tt>
+     * from the histograms of the two base tables, see
+     * {@link TableStats#estimateEquiJoinSelectivity} and
+     * {@link TableStats#estimateJoinSelectivity}. Returns fallback when the
+     * stats of either table or field are not available.
+     */
+    private static double estimateJoinSelectivity(Predicate.Op joinOp,
+            String table1Alias, String table2Alias, String field1PureName,
+            String field2PureName, Map<String, TableStats> stats,
+            Map<String, Integer> tableAliasToId, double fallback) {
+        Integer t1id = tableAliasToId == null ? null : tableAliasToId.get(table1Alias);
+        Integer t2id = tableAliasToId == null ? null : tableAliasToId.get(table2Alias);
+        if (t1id == null || t2id == null || stats == null) {
+            return fallback;
+        }
+        TableStats s1 = stats.get(Database.getCatalog().getTableName(t1id));
+        TableStats s2 = stats.get(Database.getCatalog().getTableName(t2id));
+        if (s1 == null || s2 == null) {
+            return fallback;
+        }
+        try {
+            int f1 = Database.getCatalog().getTupleDesc(t1id).fieldNameToIndex(field1PureName);
+            int f2 = Database.getCatalog().getTupleDesc(t2id).fieldNameToIndex(field2PureName);
+            if (joinOp == Predicate.Op.EQUALS)
+                return s1.estimateEquiJoinSelectivity(f1, s2, f2);
+            return s1.estimateJoinSelectivity(f1, joinOp, s2, f2);
+        } catch (NoSuchElementException e) {
+            return fallback;
         }
-
-        return els;
-
     }
 
     /**
@@ -242,8 +726,10 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed: the join tree, which may be
+     *         bushy, in postorder, so the joins of both inputs of a join
+     *         come before it.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -271,40 +757,360 @@ public class JoinOptimizer {
         // 10.      optjoin(s) = bestPlan
         // 11. return optjoin(j)
 
-        //该算法为实现连接优化器算法
+        //该算法为实现连接优化器算法：连接不多时在连接图上按位图做动态规划(DPccp)，
+        //只考虑由连接相连的两组表，不枚举笛卡尔积；连接太多时改用贪心加模拟退火
         int numJoinNodes = joins.size();
-        PlanCache pc = new PlanCache();
-        Set<LogicalJoinNode> wholeSet = null;
-        for (int i = 1; i <= numJoinNodes; i++) {
-            Set<Set<LogicalJoinNode>> setOfSubset = this.enumerateSubsets(this.joins, i);
-            for (Set<LogicalJoinNode> s : setOfSubset) {
-                if (s.size() == numJoinNodes) {
-                    wholeSet = s;//将join节点的全集保存下来最后用
-                }
-                Double bestCostSofar = Double.MAX_VALUE;
-                CostCard bestPlan = new CostCard();
-                for (LogicalJoinNode toRemove : s) {
-                    CostCard plan = computeCostAndCardOfSubplan(stats, filterSelectivities, toRemove, s, bestCostSofar, pc);
-                    if (plan != null) {
-                        bestCostSofar = plan.cost;
+        if (numJoinNodes == 0) {
+            strategy = Strategy.DYNAMIC_PROGRAMMING;
+            return joins;   // 单表查询，没有连接需要排序
+        }
+        long start = System.nanoTime();
+        CostCard best;
+        if (numJoinNodes <= maxDpJoins) {
+            strategy = Strategy.DYNAMIC_PROGRAMMING;
+            best = dynamicProgrammingOrder(stats, filterSelectivities);
+        } else {
+            best = searchJoinOrder(stats, filterSelectivities, start);
+        }
+        Vector<LogicalJoinNode> order = best.plan;
+        orderedJoin = best.ordered ? order.lastElement() : null;
+        estimatedCost = best.cost;
+        estimatedCardinality = best.card;
+        if (explain) {
+            System.out.println("Ordered " + numJoinNodes + " joins by "
+                    + strategy.description
+                    + (strategy == Strategy.GREEDY_ANNEALING ? " (" + searchMoves + " moves)" : "")
+                    + " in " + (System.nanoTime() - start) / 1000000 + " ms, estimated cost "
+                    + best.cost + ".");
+            if (orderedJoin != null)
+                System.out.println("Merge join on " + orderedJoin.f1QuantifiedName
+                        + " provides the ORDER BY order; no final sort needed.");
+        }
+        return order;
+    }
+
+    // ===================== Private Methods =================================
+
+    /**
+     * Find the cheapest join order by dynamic programming over the connected
+     * sets of tables of the join graph, see {@link JoinGraph#enumeratePairs}.
+     *
+     * @return the best plan for all the joins
+     */
+    private CostCard dynamicProgrammingOrder(
+            final HashMap<String, TableStats> stats,
+            final HashMap<String, Double> filterSelectivities)
+            throws ParsingException {
+        final JoinGraph graph = new JoinGraph(joins);
+        final PlanCache pc = new PlanCache();
+        for (int v = 0; v < graph.size(); v++) {
+            long s = 1L << v;
+            pc.addPlan(s, scanCostAndCard(stats, filterSelectivities, graph.alias(s)));
+        }
+        graph.enumeratePairs((s1, s2) -> {
+            CostCard plan = computeCostAndCardOfJoin(stats, filterSelectivities, graph, s1, s2, pc);
+            CostCard best = pc.getPlan(s1 | s2);
+            if (plan != null && (best == null || plan.cost < best.cost))
+                pc.addPlan(s1 | s2, plan);
+        });
+        CostCard whole = pc.getPlan(graph.all());
+        if (whole != null)
+            return whole;
+        // 连接图不连通：各部分分别排好后依次给出，由physicalPlan报告缺少的连接
+        CostCard parts = new CostCard();
+        parts.plan = new Vector<LogicalJoinNode>();
+        for (long part : graph.components()) {
+            parts.cost += pc.getCost(part);
+            parts.plan.addAll(pc.getOrder(part));
+        }
+        return parts;
+    }
+
+    /**
+     * Find a good join order without enumerating the join graph, for queries
+     * with too many joins for {@link #dynamicProgrammingOrder}. Greedy
+     * operator ordering (GOO) repeatedly joins the two plans whose join
+     * produces the fewest tuples. Simulated annealing then improves the
+     * order found until it settles or searchMillis have passed since start.
+     * <p>
+     * Any sequence of the joins is a plan without cross products, see
+     * {@link JoinSequences#cost}, so the annealing moves swap two joins of
+     * the sequence or move one join to another place in it.
+     *
+     * @return the best plan found
+     */
+    private CostCard searchJoinOrder(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, long start)
+            throws ParsingException {
+        JoinSequences sequences = new JoinSequences(stats, filterSelectivities);
+        int[] current = sequences.greedy();
+        CostCard currentPlan = sequences.cost(current);
+        searchMoves = 0;
+        if (searchMillis <= 0 || current.length < 2) {
+            strategy = Strategy.GREEDY;
+            return currentPlan;
+        }
+        strategy = Strategy.GREEDY_ANNEALING;
+
+        // 固定种子：时间用完之前，同一个查询总是得到同一个计划
+        Random random = new Random(current.length);
+        long deadline = start + searchMillis * 1000000;
+        CostCard bestPlan = currentPlan;
+        double temperature = INITIAL_TEMPERATURE * currentPlan.cost;
+        while (temperature > FROZEN_TEMPERATURE * bestPlan.cost
+                && System.nanoTime() < deadline) {
+            for (int m = 0; m < current.length; m++) {
+                int[] next = neighbour(current, random);
+                CostCard plan = sequences.cost(next);
+                searchMoves++;
+                double delta = plan.cost - currentPlan.cost;
+                if (delta <= 0 || random.nextDouble() < Math.exp(-delta / temperature)) {
+                    current = next;
+                    currentPlan = plan;
+                    if (plan.cost < bestPlan.cost)
                         bestPlan = plan;
-                    }
                 }
-                if (bestPlan.plan != null) {
-                    pc.addPlan(s, bestPlan.cost, bestPlan.card, bestPlan.plan);
+            }
+            temperature *= COOLING;
+        }
+        return bestPlan;
+    }
+
+    /**
+     * @return a copy of seq with two random joins swapped, or with one
+     *         random join moved to a random other place
+     */
+    private static int[] neighbour(int[] seq, Random random) {
+        int[] next = seq.clone();
+        int a = random.nextInt(next.length);
+        int b = random.nextInt(next.length - 1);
+        if (b >= a)
+            b++;
+        if (random.nextBoolean()) {
+            next[a] = seq[b];
+            next[b] = seq[a];
+        } else if (a < b) {
+            System.arraycopy(seq, a + 1, next, a, b - a);
+            next[b] = seq[a];
+        } else {
+            System.arraycopy(seq, b, next, b + 1, a - b);
+            next[b] = seq[a];
+        }
+        return next;
+    }
+
+    /**
+     * The joins of this optimizer, with their tables numbered, for costing
+     * sequences of the joins in {@link #searchJoinOrder}. Tables are joined
+     * into groups as the joins of a sequence are applied.
+     */
+    private class JoinSequences {
+        private final HashMap<String, TableStats> stats;
+
+        /** The tables of each join; a subquery is a table of its own */
+        private final int[] table1, table2;
+
+        /** Whether the field of each join on its first or second table is that table's primary key */
+        private final boolean[] pkey1, pkey2;
+
+        /** The plan reading each table */
+        private final CostCard[] scans;
+
+        // 当前的分组：并查集，每组的计划、表数和是否连接了主键
+        private final int[] parent, size;
+        private final CostCard[] plans;
+        private final boolean[] pkey;
+        private int groups;
+
+        JoinSequences(HashMap<String, TableStats> stats,
+                HashMap<String, Double> filterSelectivities) throws ParsingException {
+            this.stats = stats;
+            int n = joins.size();
+            table1 = new int[n];
+            table2 = new int[n];
+            pkey1 = new boolean[n];
+            pkey2 = new boolean[n];
+            HashMap<String, Integer> tableOf = new HashMap<String, Integer>();
+            ArrayList<String> aliases = new ArrayList<String>();
+            for (int i = 0; i < n; i++) {
+                LogicalJoinNode j = joins.get(i);
+                table1[i] = table(j.t1Alias, tableOf, aliases);
+                table2[i] = j instanceof LogicalSubplanJoinNode ? table(null, tableOf, aliases)
+                        : table(j.t2Alias, tableOf, aliases);
+                pkey1[i] = isPkey(j.t1Alias, j.f1PureName);
+                pkey2[i] = !(j instanceof LogicalSubplanJoinNode) && isPkey(j.t2Alias, j.f2PureName);
+            }
+            scans = new CostCard[aliases.size()];
+            for (int v = 0; v < scans.length; v++)
+                scans[v] = scanCostAndCard(stats, filterSelectivities, aliases.get(v));
+            parent = new int[scans.length];
+            size = new int[scans.length];
+            plans = new CostCard[scans.length];
+            pkey = new boolean[scans.length];
+        }
+
+        private int table(String alias, HashMap<String, Integer> tableOf, ArrayList<String> aliases) {
+            Integer v = alias == null ? null : tableOf.get(alias);
+            if (v == null) {
+                v = aliases.size();
+                aliases.add(alias);
+                if (alias != null)
+                    tableOf.put(alias, v);
+            }
+            return v;
+        }
+
+        /** Start again with every table in a group of its own */
+        private void reset() {
+            for (int v = 0; v < parent.length; v++) {
+                parent[v] = v;
+                size[v] = 1;
+                plans[v] = scans[v];
+                pkey[v] = false;
+            }
+            groups = parent.length;
+        }
+
+        private int find(int v) {
+            while (parent[v] != v) {
+                parent[v] = parent[parent[v]];
+                v = parent[v];
+            }
+            return v;
+        }
+
+        /**
+         * @return the cost and cardinality of joining the groups of the two
+         *         tables of join i, see {@link JoinOptimizer#costJoin}, or
+         *         null if they are in the same group
+         */
+        private CostCard tryJoin(int i, boolean mayOrder) {
+            int g1 = find(table1[i]), g2 = find(table2[i]);
+            if (g1 == g2)
+                return null;
+            boolean leftPkey = size[g1] == 1 ? pkey1[i] : pkey[g1];
+            boolean rightPkey = size[g2] == 1 ? pkey2[i] : pkey[g2];
+            return costJoin(joins.get(i), plans[g1], leftPkey, plans[g2], rightPkey,
+                    groups == 2, mayOrder, stats);
+        }
+
+        /** Merge the groups of the tables of join i into one with the plan joined */
+        private void merge(int i, CostCard joined) {
+            int g1 = find(table1[i]), g2 = find(table2[i]);
+            parent[g2] = g1;
+            size[g1] += size[g2];
+            pkey[g1] |= pkey[g2] || pkey1[i] || pkey2[i];
+            plans[g1] = joined;
+            groups--;
+        }
+
+        /**
+         * The plan running the joins in the order of seq, as physicalPlan
+         * would: a join combines the plans holding its two tables, or filters
+         * the plan holding both if an earlier join already combined them.
+         *
+         * @param seq
+         *            the indices of all the joins, in the order to run them
+         * @return the plan; its cost is that of all the groups left if the
+         *         joins do not connect all the tables
+         */
+        CostCard cost(int[] seq) {
+            reset();
+            CostCard cc = new CostCard();
+            cc.plan = new Vector<LogicalJoinNode>(seq.length);
+            for (int k = 0; k < seq.length; k++) {
+                CostCard joined = tryJoin(seq[k], k == seq.length - 1);
+                if (joined == null) {
+                    cc.plan.addElement(joins.get(seq[k]));   // 环上的连接，只是过滤
+                    continue;
+                }
+                cc.plan.addElement(joined.plan.firstElement());
+                merge(seq[k], joined);
+                cc.ordered = joined.ordered;
+            }
+            for (int v = 0; v < parent.length; v++) {
+                if (parent[v] == v) {
+                    cc.cost += plans[v].cost;
+                    cc.card = plans[v].card;
+                }
+            }
+            cc.ordered &= groups == 1;
+            return cc;
+        }
+
+        /**
+         * Greedy operator ordering: join the two groups whose join produces
+         * the fewest tuples, the cheaper one on a tie, until no join is left
+         * between two groups. A join between two tables of a group comes
+         * right after the join that put them together.
+         *
+         * @return the indices of the joins, in the order found
+         */
+        int[] greedy() {
+            reset();
+            int[] seq = new int[joins.size()];
+            boolean[] done = new boolean[seq.length];
+            int k = 0;
+            while (true) {
+                int best = -1;
+                CostCard bestJoin = null;
+                for (int i = 0; i < seq.length; i++) {
+                    if (done[i])
+                        continue;
+                    CostCard joined = tryJoin(i, false);
+                    if (joined == null) {
+                        done[i] = true;
+                        seq[k++] = i;
+                    } else if (bestJoin == null || joined.card < bestJoin.card
+                            || (joined.card == bestJoin.card && joined.cost < bestJoin.cost)) {
+                        best = i;
+                        bestJoin = joined;
+                    }
                 }
+                if (best < 0)
+                    return seq;
+                merge(best, bestJoin);
+                done[best] = true;
+                seq[k++] = best;
             }
         }
-        return pc.getOrder(wholeSet);
     }
 
-    // ===================== Private Methods =================================
+    /**
+     * The plan reading a single table of the join graph, with no joins.
+     *
+     * @param alias
+     *            the alias of the table, or null for a subquery, whose cost
+     *            is accounted for by its join
+     */
+    private CostCard scanCostAndCard(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, String alias)
+            throws ParsingException {
+        CostCard cc = new CostCard();
+        cc.plan = new Vector<LogicalJoinNode>();
+        if (alias == null)
+            return cc;
+        if (this.p.getTableId(alias) == null)
+            throw new ParsingException("Unknown table " + alias);
+        String tableName = Database.getCatalog().getTableName(
+                this.p.getTableId(alias));
+        cc.cost = stats.get(tableName).estimateScanCost();
+        cc.card = stats.get(tableName).estimateTableCardinality(
+                filterSelectivities.get(alias));
+        cc.tupleBytes = scanTupleBytes(alias);
+        return cc;
+    }
 
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
+     * This is a helper method that computes the cost and cardinality of
+     * joining the tables s1 to the tables s2, given that the best plans for
+     * both have already been computed and stored in PlanCache pc. The first
+     * join between the two sets joins their plans, whichever way round is
+     * cheaper; any other join between them follows as a filter on its
+     * output.
+     * <p>
+     * Either side may itself be a join, so the plans are bushy: two filtered
+     * parts of a query can be joined first and only then joined together.
      * 
      * @param stats
      *            table stats for all of the tables, referenced by table names
@@ -313,156 +1119,139 @@ public class JoinOptimizer {
      *            the selectivities of the filters over each of the tables
      *            (where tables are indentified by their alias or name if no
      *            alias is given)
-     * @param joinToRemove
-     *            the join to remove from joinSet
-     * @param joinSet
-     *            the set of joins being considered
-     * @param bestCostSoFar
-     *            the best way to join joinSet so far (minimum of previous
-     *            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *            from returned CostCard)
+     * @param graph
+     *            the join graph the sets of tables are taken from
+     * @param s1
+     *            a connected set of tables
+     * @param s2
+     *            a connected set of tables, disjoint from s1 and joined with it
      * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
+     *            the PlanCache for this join; should have plans for s1 and s2
      * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
+     *         optimal subplan, or null if there is no such plan
      * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     *             when stats or filterSelectivities is missing tables
+     *             involved in join
      */
-    @SuppressWarnings("unchecked")
-    private CostCard computeCostAndCardOfSubplan(
+    private CostCard computeCostAndCardOfJoin(
             HashMap<String, TableStats> stats,
-            HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        Vector<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias == null ? false : isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
-
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
-            }
+            HashMap<String, Double> filterSelectivities, JoinGraph graph,
+            long s1, long s2, PlanCache pc) throws ParsingException {
+        List<Integer> connecting = graph.connecting(s1, s2);
+        int first = connecting.get(0);
+        LogicalJoinNode j = joins.get(first);
+        if (!graph.leftIn(first, s1)) {
+            // 让j.t1所在的一组在左边
+            long tmp = s1;
+            s1 = s2;
+            s2 = tmp;
+        }
+        CostCard left = pc.getPlan(s1), right = pc.getPlan(s2);
+        if (left == null || right == null)
+            return null;
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
+        boolean leftPkey = Long.bitCount(s1) == 1 ? isPkey(j.t1Alias,
+                j.f1PureName) : hasPkey(left.plan);
+        boolean rightPkey = j.t2Alias == null ? false
+                : Long.bitCount(s2) == 1 ? isPkey(j.t2Alias, j.f2PureName)
+                        : hasPkey(right.plan);
+        CostCard cc = costJoin(j, left, leftPkey, right, rightPkey,
+                (s1 | s2) == graph.all(), connecting.size() == 1, stats);
+
+        // 后序：先是左右两棵子树各自的连接，再是把它们连起来的j
+        j = cc.plan.firstElement();
+        cc.plan = new Vector<LogicalJoinNode>(left.plan);
+        cc.plan.addAll(right.plan);
+        cc.plan.addElement(j);
+        // 两组之间的其余连接（连接图中的环）在j之后作为过滤
+        for (int k = 1; k < connecting.size(); k++)
+            cc.plan.addElement(joins.get(connecting.get(k)));
+        return cc;
+    }
 
+    /**
+     * Compute the cost and cardinality of joining the plan left to the plan
+     * right by j, where j.t1 is a table of left and j.t2 one of right, with
+     * whichever of the two as the outer input that is cheaper.
+     *
+     * @param leftPkey
+     *            true if left is the table j.t1 and j.f1 is its primary key,
+     *            or left is a join on a primary key
+     * @param rightPkey
+     *            the same for right
+     * @param whole
+     *            true if the join produces the result of all the joins, which
+     *            then has to be in interestingOrder
+     * @param mayOrder
+     *            true if the join may then be the merge join that provides
+     *            interestingOrder
+     * @return the cost and cardinality of the join; its plan holds only j,
+     *         swapped if the other way round is cheaper, with the cheapest
+     *         algorithm for it set, see {@link LogicalJoinNode#algorithm}
+     */
+    private CostCard costJoin(LogicalJoinNode j, CostCard left,
+            boolean leftPkey, CostCard right, boolean rightPkey,
+            boolean whole, boolean mayOrder, HashMap<String, TableStats> stats) {
+        double t1cost = left.cost, t2cost = right.cost;
+        int t1card = left.card, t2card = right.card;
+        // 输入可能是连接的结果，元组宽度是其中所有表（投影之后）的宽度之和
+        long t1bytes = left.tupleBytes, t2bytes = right.tupleBytes;
+
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, t1bytes, t2bytes);
+        if (!(j instanceof LogicalSubplanJoinNode)) {
+            // j本身是连接列表里共用的节点，选定的算法记在副本上
+            JoinAlgorithm a1 = cheapestAlgorithm(j, t1card, t2card, t1cost, t2cost, t1bytes, t2bytes);
+            LogicalJoinNode j2 = j.swapInnerOuter();
+            JoinAlgorithm a2 = cheapestAlgorithm(j2, t2card, t1card, t2cost, t1cost, t2bytes, t1bytes);
+            double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, t2bytes, t1bytes, a2);
+            if (cost2 < cost1) {
+                j = j2.withAlgorithm(a2);
+                cost1 = cost2;
+                boolean tmp = rightPkey;
+                rightPkey = leftPkey;
+                leftPkey = tmp;
+                int tmpCard = t2card;
+                t2card = t1card;
+                t1card = tmpCard;
+                double tmpCost = t2cost;
+                t2cost = t1cost;
+                t1cost = tmpCost;
+                long tmpBytes = t2bytes;
+                t2bytes = t1bytes;
+                t1bytes = tmpBytes;
             } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
+                j = j.withAlgorithm(a1);
             }
         }
-
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
-
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+        int card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
+                rightPkey, stats);
+        boolean ordered = false;
+        if (interestingOrder != null && whole) {
+            // 完整的连接结果还要按ORDER BY排序：要么最后再排一次，
+            // 要么最后一个连接用归并连接直接产生这个顺序
+            cost1 += estimateSortCost(card);
+            if (mayOrder && isInterestingOrderJoin(j)) {
+                double mergeCost = estimateJoinCost(j, t1card, t2card,
+                        t1cost, t2cost, t1bytes, t2bytes, JoinAlgorithm.SORT_MERGE);
+                if (mergeCost < cost1) {
+                    cost1 = mergeCost;
+                    ordered = true;
+                    j.algorithm = JoinAlgorithm.SORT_MERGE;
+                }
+            }
         }
-        if (cost1 >= bestCostSoFar)
-            return null;
 
         CostCard cc = new CostCard();
 
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
+        cc.card = card;
         cc.cost = cost1;
-        cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
+        cc.ordered = ordered;
+        // 半连接只输出左边的元组
+        cc.tupleBytes = j instanceof LogicalSubplanJoinNode ? t1bytes : t1bytes + t2bytes;
+        cc.plan = new Vector<LogicalJoinNode>(1);
+        cc.plan.addElement(j);
         return cc;
     }
-
-    /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
-     */
-    private boolean doesJoin(Vector<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
-        }
-        return false;
-    }
-
     /**
      * Return true if field is a primary key of the specified table, false
      * otherwise
@@ -502,6 +1291,8 @@ public class JoinOptimizer {
      *            the join plan to visualize
      * @param pc
      *            the PlanCache accumulated whild building the optimal plan
+     * @param graph
+     *            the join graph the sets of tables in pc are taken from
      * @param stats
      *            table statistics for base tables
      * @param selectivities
@@ -510,7 +1301,7 @@ public class JoinOptimizer {
      *            alias is given)
      */
     private void printJoins(Vector<LogicalJoinNode> js, PlanCache pc,
-            HashMap<String, TableStats> stats,
+            JoinGraph graph, HashMap<String, TableStats> stats,
             HashMap<String, Double> selectivities) {
 
         JFrame f = new JFrame("Join Plan for " + p.getQuery());
@@ -529,7 +1320,7 @@ public class JoinOptimizer {
 
         // int k;
         DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<LogicalJoinNode>();
+        Vector<LogicalJoinNode> pathSoFar = new Vector<LogicalJoinNode>();
         boolean neither;
 
         System.out.println(js);
@@ -542,12 +1333,12 @@ public class JoinOptimizer {
             String table2Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t2Alias));
 
-            // Double c = pc.getCost(pathSoFar);
+            // Double c = pc.getCost(graph.vertexSet(pathSoFar));
             neither = true;
 
             root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
-                    + pc.getCost(pathSoFar) + ", card = "
-                    + pc.getCard(pathSoFar) + ")");
+                    + pc.getCost(graph.vertexSet(pathSoFar)) + ", card = "
+                    + pc.getCard(graph.vertexSet(pathSoFar)) + ")");
             DefaultMutableTreeNode n = m.get(j.t1Alias);
             if (n == null) { // never seen this table before
                 n = new DefaultMutableTreeNode(j.t1Alias
@@ -31,6 +31,12 @@ public class JoinPredicate implements Serializable {
      * field2 – The field index into the second tuple in the predicate
      */
     private Predicate.Op op;
+
+    /**
+     * The specialized evaluator of this predicate. The type of the join
+     * fields is only known once the first pair of tuples arrives.
+     */
+    private transient PredicateCompiler.TuplePairFilter compiled;
     /**
      * Constructor -- create a new predicate over two fields of two tuples.
      * 
@@ -60,7 +66,10 @@ public class JoinPredicate implements Serializable {
      */
     public boolean filter(Tuple t1, Tuple t2) {
         // some code goes here
-        return t1.getField(fIdx1).compare(op, t2.getField(fIdx2));
+        if (compiled == null) {
+            compiled = PredicateCompiler.compile(this, t1.getField(fIdx1).getType());
+        }
+        return compiled.eval(t1, t2);
     }
 
     public int getField1()
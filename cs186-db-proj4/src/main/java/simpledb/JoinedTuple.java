@@ -0,0 +1,153 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * JoinedTuple is the output tuple of a join. Instead of copying every field
+ * of the two input tuples it keeps references to them, so producing a join
+ * result costs O(1) in the number of fields.
+ * <p>
+ * Inputs that are themselves JoinedTuples are flattened: a JoinedTuple
+ * always refers to plain tuples (its parts), and a {@link Layout} shared by
+ * all the output tuples of one join operator maps each field index to a part
+ * and an offset in that part. Reading a field is therefore two array lookups
+ * however many joins the tuple went through.
+ * <p>
+ * The tuple is read-only as a view; {@link #setField} or {@link #materialize}
+ * turn it into a flat row first.
+ *
+ * 连接结果的视图：引用左右两边的元组而不是复制字段，需要时再物化
+ */
+public class JoinedTuple extends Tuple {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The plain tuples this tuple is made of, left to right */
+    private final Tuple[] parts;
+
+    private final Layout layout;
+
+    /** The fields of this tuple once it has been materialized */
+    private Field[] flat;
+
+    /**
+     * Maps the fields of a joined tuple to (part, offset). Built once per
+     * join operator from its first output tuple, and again whenever the
+     * widths of the parts change.
+     */
+    static final class Layout implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final int[] part;
+        final int[] offset;
+        /** The number of fields of each part */
+        final int[] widths;
+
+        Layout(Tuple[] p) {
+            widths = new int[p.length];
+            int n = 0;
+            for (int j = 0; j < p.length; j++) {
+                widths[j] = p[j].getTupleDesc().numFields();
+                n += widths[j];
+            }
+            part = new int[n];
+            offset = new int[n];
+            int i = 0;
+            for (int j = 0; j < p.length; j++) {
+                for (int k = 0; k < widths[j]; k++, i++) {
+                    part[i] = j;
+                    offset[i] = k;
+                }
+            }
+        }
+
+        /** @return true if this layout maps the fields of parts p */
+        boolean fits(Tuple[] p) {
+            if (p.length != widths.length)
+                return false;
+            for (int j = 0; j < p.length; j++) {
+                if (p[j].getTupleDesc().numFields() != widths[j])
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Creates joined tuples for one join operator, reusing one
+     * {@link Layout} for all of them.
+     */
+    public static final class Factory implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final TupleDesc td;
+        private Layout layout;
+
+        /**
+         * @param td
+         *            the merged TupleDesc of the join output
+         */
+        public Factory(TupleDesc td) {
+            this.td = td;
+        }
+
+        /**
+         * @return the concatenation of left and right, as a view on them
+         */
+        public Tuple join(Tuple left, Tuple right) {
+            Tuple[] parts = partsOf(left, right);
+            // 同一个算子的输入结构通常不变；溢出到磁盘又读回来的元组是扁平的，
+            // 和内存中的视图混在一起时各部分的宽度会变，这时重建布局
+            if (layout == null || !layout.fits(parts))
+                layout = new Layout(parts);
+            return new JoinedTuple(td, layout, parts);
+        }
+    }
+
+    private JoinedTuple(TupleDesc td, Layout layout, Tuple[] parts) {
+        super(td, null);
+        this.layout = layout;
+        this.parts = parts;
+    }
+
+    private static Tuple[] partsOf(Tuple left, Tuple right) {
+        Tuple[] l = left instanceof JoinedTuple && ((JoinedTuple) left).flat == null
+                ? ((JoinedTuple) left).parts : new Tuple[]{left};
+        Tuple[] r = right instanceof JoinedTuple && ((JoinedTuple) right).flat == null
+                ? ((JoinedTuple) right).parts : new Tuple[]{right};
+        Tuple[] p = new Tuple[l.length + r.length];
+        System.arraycopy(l, 0, p, 0, l.length);
+        System.arraycopy(r, 0, p, l.length, r.length);
+        return p;
+    }
+
+    @Override
+    public Field getField(int i) {
+        if (flat != null)
+            return flat[i];
+        return parts[layout.part[i]].getField(layout.offset[i]);
+    }
+
+    @Override
+    public void setField(int i, Field f) {
+        materializeFields();
+        flat[i] = f;
+    }
+
+    /**
+     * @return a plain tuple with the same fields as this one
+     */
+    public Tuple materialize() {
+        Tuple t = new Tuple(getTupleDesc());
+        for (int i = 0; i < layout.part.length; i++)
+            t.setField(i, getField(i));
+        return t;
+    }
+
+    private void materializeFields() {
+        if (flat == null) {
+            Field[] f = new Field[layout.part.length];
+            for (int i = 0; i < f.length; i++)
+                f[i] = getField(i);
+            flat = f;
+        }
+    }
+}
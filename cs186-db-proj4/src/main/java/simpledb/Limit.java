@@ -0,0 +1,148 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Limit implements LIMIT / OFFSET: it skips the first offset tuples of its
+ * child and returns at most limit of the following ones.
+ * <p>
+ * Tuples are pulled from the child one at a time, so the operators below stop
+ * working as soon as enough tuples have been returned; the child is then
+ * closed right away, so that it gives back its memory grants before the query
+ * itself is closed. With a limit of 0 the child is never opened at all.
+ *
+ * 分页：跳过offset个元组，最多返回limit个，够了就提前关闭子算子
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The limit of a query without LIMIT clause */
+    public static final int NO_LIMIT = -1;
+
+    private DbIterator child;
+    private final int limit;
+    private final int offset;
+    private int returned;
+    private boolean skipped;
+    private boolean childOpen;
+
+    /**
+     * @param limit
+     *            the maximum number of tuples to return, or NO_LIMIT
+     * @param offset
+     *            the number of tuples to skip first
+     * @param child
+     *            the child operator
+     */
+    public Limit(int limit, int offset, DbIterator child) {
+        if (offset < 0 || (limit < 0 && limit != NO_LIMIT))
+            throw new IllegalArgumentException("LIMIT and OFFSET must not be negative");
+        this.limit = limit;
+        this.offset = offset;
+        this.child = child;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the number of tuples that the child must return for this
+     *         operator to be done, or NO_LIMIT
+     */
+    public int getRowsNeeded() {
+        return rowsNeeded(limit, offset);
+    }
+
+    static int rowsNeeded(int limit, int offset) {
+        if (limit == NO_LIMIT)
+            return NO_LIMIT;
+        return (int) Math.min(Integer.MAX_VALUE, (long) limit + offset);
+    }
+
+    /**
+     * @return the number of tuples returned when the child returns
+     *         childCard tuples
+     */
+    public int limitCardinality(int childCard) {
+        int card = Math.max(0, childCard - offset);
+        return limit == NO_LIMIT ? card : Math.min(limit, card);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        // LIMIT 0不会返回任何元组，子算子不打开，也就不读任何页
+        if (limit != 0) {
+            child.open();
+            childOpen = true;
+        }
+        returned = 0;
+        skipped = false;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeChild();
+    }
+
+    private void closeChild() {
+        if (childOpen) {
+            child.close();
+            childOpen = false;
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // 子算子可能已经提前关闭了，需要重新打开
+        if (childOpen)
+            child.rewind();
+        else if (limit != 0)
+            child.open();
+        childOpen = limit != 0;
+        returned = 0;
+        skipped = false;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the next tuple of the child
+     * within the limit.
+     *
+     * @return The next tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!childOpen)
+            return null;
+        if (!skipped) {
+            for (int i = 0; i < offset && child.hasNext(); i++)
+                child.next();
+            skipped = true;
+        }
+        if ((limit == NO_LIMIT || returned < limit) && child.hasNext()) {
+            returned++;
+            return child.next();
+        }
+        closeChild();
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+}
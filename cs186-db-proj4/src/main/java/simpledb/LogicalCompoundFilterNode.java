@@ -0,0 +1,50 @@
+package simpledb;
+
+import java.util.Vector;
+
+/** A LogicalCompoundFilterNode represents a boolean combination of filters
+    over one table in the WHERE clause of a query.
+    <p>
+    It is either an AND / OR / NOT of other filter nodes, or an IN list
+    of the form t.f [NOT] IN (c1, c2, ...), or a condition that does not
+    depend on any table (such as 1 = 1), folded to TRUE or FALSE; such a
+    node has no table.
+*/
+public class LogicalCompoundFilterNode extends LogicalFilterNode {
+
+    public enum Connective { AND, OR, NOT, IN, NOT_IN, TRUE, FALSE }
+
+    public Connective connective;
+
+    /** The operands of an AND / OR / NOT node */
+    public Vector<LogicalFilterNode> children;
+
+    /** The constants of an IN / NOT IN node */
+    public Vector<String> inList;
+
+    public LogicalCompoundFilterNode(String table, Connective connective, Vector<LogicalFilterNode> children) {
+        super(table);
+        this.connective = connective;
+        this.children = children;
+    }
+
+    /** A condition that is always value */
+    public LogicalCompoundFilterNode(boolean value) {
+        this(null, value ? Connective.TRUE : Connective.FALSE, null);
+    }
+
+    /** @return true if lf is a constant condition, see {@link #LogicalCompoundFilterNode(boolean)} */
+    public static boolean isConstant(LogicalFilterNode lf) {
+        return lf instanceof LogicalCompoundFilterNode
+                && (((LogicalCompoundFilterNode) lf).connective == Connective.TRUE
+                        || ((LogicalCompoundFilterNode) lf).connective == Connective.FALSE);
+    }
+
+    public LogicalCompoundFilterNode(String table, String field, boolean negated, Vector<String> constants) {
+        this(table, negated ? Connective.NOT_IN : Connective.IN, null);
+        this.inList = constants;
+        String[] tmps = field.split("[.]");
+        fieldPureName = tmps[tmps.length-1];
+        fieldQuantifiedName = tableAlias+"."+fieldPureName;
+    }
+}
@@ -21,6 +21,11 @@ public class LogicalFilterNode {
     
     public String fieldQuantifiedName;
     
+    /** Used by {@link LogicalCompoundFilterNode} for nodes that are not a single comparison */
+    protected LogicalFilterNode(String table) {
+        tableAlias = table;
+    }
+
     public LogicalFilterNode(String table, String field, Predicate.Op pred, String constant) {
         tableAlias = table;
         p = pred;
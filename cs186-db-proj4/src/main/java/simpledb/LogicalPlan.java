@@ -18,10 +18,15 @@ import java.util.*;
  * best implementations for joins.
  */
 public class LogicalPlan {
+    /** Sampled aggregates read at least this many pages of their table */
+    static final int MIN_SAMPLE_PAGES = 16;
+
     private Vector<LogicalJoinNode> joins;
     private Vector<LogicalScanNode> tables;
     private Vector<LogicalFilterNode> filters;
     private HashMap<String, DbIterator> subplanMap;
+    /** The tuple descriptor of the scan of each table, narrowed by {@link #physicalPlan} */
+    private HashMap<String, TupleDesc> scanDescs;
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
@@ -31,7 +36,17 @@ public class LogicalPlan {
     private String aggField;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private int limit = Limit.NO_LIMIT, offset = 0;
+    private boolean distinct = false;
     private String query;
+    /** The query this plan is a subquery of, or null */
+    private LogicalPlan enclosing;
+    /** The comparisons of fields of this plan with fields of the enclosing
+     *  query, as joins from the enclosing table (t1) to this plan's (t2) */
+    private Vector<LogicalJoinNode> correlations = new Vector<LogicalJoinNode>();
+    /** The estimated cost and cardinality of the result, set by {@link #physicalPlan} */
+    private double estimatedCost;
+    private int estimatedCardinality;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -40,6 +55,7 @@ public class LogicalPlan {
         filters = new Vector<LogicalFilterNode>();
         tables = new Vector<LogicalScanNode>();
         subplanMap = new HashMap<String,DbIterator>();
+        scanDescs = new HashMap<String,TupleDesc>();
         tableMap = new HashMap<String,Integer>();
 
         selectList = new Vector<LogicalSelectListNode>();
@@ -72,6 +88,15 @@ public class LogicalPlan {
         return tableMap.get(alias);
     }
     
+    /** @return the tuple descriptor of the scan of the table with the given
+        alias: narrowed to the fields the query reads once {@link #physicalPlan}
+        has built it, else the table's own
+     */
+    TupleDesc scanTupleDesc(String alias) {
+        TupleDesc td = scanDescs.get(alias);
+        return td != null ? td : Database.getCatalog().getTupleDesc(getTableId(alias));
+    }
+
     public HashMap<String,Integer> getTableAliasToIdMapping()
     {
         return this.tableMap;
@@ -93,12 +118,69 @@ public class LogicalPlan {
      */
     public void addFilter(String field, Predicate.Op p, String
         constantValue) throws ParsingException{ 
+        filters.addElement(newFilterNode(field, p, constantValue));
+    }
+
+    /** Add a filter node built with {@link #newFilterNode}, {@link #newInFilterNode}
+     *  or {@link #newCompoundFilterNode} to the logical plan.
+     */
+    public void addFilter(LogicalFilterNode lf) {
+        filters.addElement(lf);
+    }
+
+    /** Create (but do not add) a filter node of the form field p constantValue.
+     *  The arguments are the same as for {@link #addFilter(String, Predicate.Op, String)}.
+     */
+    public LogicalFilterNode newFilterNode(String field, Predicate.Op p, String
+        constantValue) throws ParsingException{ 
 
         field = disambiguateName(field); 
         String table = field.split("[.]")[0];
         
-        LogicalFilterNode lf = new LogicalFilterNode(table, field.split("[.]")[1], p, constantValue);
-        filters.addElement(lf);
+        return new LogicalFilterNode(table, field.split("[.]")[1], p, constantValue);
+    }
+
+    /** Create (but do not add) a filter node of the form field [NOT] IN (constants)
+     *  @throws ParsingException if field is ambiguous or unknown
+     */
+    public LogicalFilterNode newInFilterNode(String field, boolean negated, Vector<String> constants) throws ParsingException {
+        field = disambiguateName(field);
+        String table = field.split("[.]")[0];
+        return new LogicalCompoundFilterNode(table, field, negated, constants);
+    }
+
+    /** Create (but do not add) an AND / OR / NOT of other filter nodes.
+     *  Constant children are folded away: an AND with a FALSE child is
+     *  FALSE, an OR with a TRUE child is TRUE, the others drop out, and an
+     *  AND or OR left with a single child is that child.
+     *  @throws ParsingException if the children do not all range over the same table
+     */
+    public LogicalFilterNode newCompoundFilterNode(LogicalCompoundFilterNode.Connective c,
+            Vector<LogicalFilterNode> children) throws ParsingException {
+        Vector<LogicalFilterNode> operands = new Vector<LogicalFilterNode>();
+        for (LogicalFilterNode child : children) {
+            if (!LogicalCompoundFilterNode.isConstant(child)) {
+                operands.add(child);
+                continue;
+            }
+            boolean value = ((LogicalCompoundFilterNode) child).connective
+                    == LogicalCompoundFilterNode.Connective.TRUE;
+            if (c == LogicalCompoundFilterNode.Connective.NOT)
+                return new LogicalCompoundFilterNode(!value);
+            if (value == (c == LogicalCompoundFilterNode.Connective.OR))
+                return new LogicalCompoundFilterNode(value);
+        }
+        // 剩下的常量都不影响结果
+        if (operands.isEmpty())
+            return new LogicalCompoundFilterNode(c == LogicalCompoundFilterNode.Connective.AND);
+        if (operands.size() == 1 && c != LogicalCompoundFilterNode.Connective.NOT)
+            return operands.get(0);
+        String table = operands.get(0).tableAlias;
+        for (LogicalFilterNode child : operands) {
+            if (!child.tableAlias.equals(table))
+                throw new ParsingException(c + " expressions over more than one table are currently unsupported.");
+        }
+        return new LogicalCompoundFilterNode(table, c, operands);
     }
 
     /** Add a join between two fields of two different tables.  
@@ -152,6 +234,183 @@ public class LogicalPlan {
         joins.addElement(lj);
     }
 
+    /** Add a semi join or anti join with a subquery: keep the tuples for
+     *  which some (or, for an anti join, no) tuple of the subquery
+     *  satisfies joinField1 pred its first field, and its correlations, see
+     *  {@link #addCorrelation}. Unlike
+     *  {@link #addJoin(String, DbIterator, Predicate.Op)}, the subquery is
+     *  planned by {@link #physicalPlan} along with this plan, so that for an
+     *  equality join the filters on joinField1 are pushed into it.
+     *  <p>
+     *  A correlated subquery is decorrelated: the fields it compares with
+     *  this plan's are added to its result, grouped on if it has an
+     *  aggregate, and compared by the join.
+     *  @param joinField1 The name of the first join field, as for
+     *  {@link #addJoin(String, DbIterator, Predicate.Op)}, or null for
+     *  EXISTS, which only compares the correlated fields
+     *  @param subquery the subquery to join with -- the join field
+     *    of the subquery is the first field in its select list
+     *  @param pred The join predicate, or null for EXISTS
+     *  @param anti true for NOT IN and NOT EXISTS
+     *  @throws ParsingException if the field is ambiguous, or is not in one
+     *      of the tables added via {@link #addScan}, or if the subquery is
+     *      correlated in a way that cannot be turned into a join
+     */
+    public void addJoin(String joinField1, LogicalPlan subquery, Predicate.Op pred,
+            boolean anti) throws ParsingException {
+        Vector<LogicalJoinNode> correlated = subquery.decorrelate(joinField1 == null);
+        if (joinField1 == null && !correlated.isEmpty()) {
+            // EXISTS：第一个相关条件作为连接条件，它的子查询字段就是结果的第一列
+            LogicalJoinNode first = correlated.remove(0);
+            joinField1 = first.f1QuantifiedName;
+            pred = first.p;
+        }
+        String table1;
+        if (joinField1 != null) {
+            joinField1 = disambiguateName(joinField1);
+            table1 = joinField1.split("[.]")[0];
+        } else if (!tables.isEmpty()) {
+            table1 = tables.firstElement().alias;  // 不相关的EXISTS对每个元组都一样，连到哪个表都行
+        } else {
+            throw new ParsingException("EXISTS needs a table in the FROM clause");
+        }
+        for (LogicalJoinNode c : correlated) {
+            if (!c.t1Alias.equals(table1))
+                throw new ParsingException("Subqueries correlated with more than one table ("
+                        + table1 + ", " + c.t1Alias + ") are currently unsupported.");
+        }
+
+        LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode(table1, joinField1, subquery, pred);
+        lj.anti = anti;
+        lj.correlations = correlated;
+        System.out.println("Added " + (anti ? "anti" : "semi") + " join on "
+                + (joinField1 == null ? "EXISTS" : joinField1));
+        joins.addElement(lj);
+    }
+
+    /** Make this plan a subquery of enclosing, whose fields it may then
+     *  compare its own with, see {@link #addCorrelation}.
+     */
+    void setEnclosing(LogicalPlan enclosing) {
+        this.enclosing = enclosing;
+    }
+
+    /** @return true if name is a field of one of the tables of this plan */
+    boolean hasField(String name) {
+        try {
+            return tableMap.containsKey(disambiguateName(name).split("[.]")[0]);
+        } catch (ParsingException e) {
+            return false;
+        }
+    }
+
+    /** @return true if name is not a field of this plan but one of the
+     *  query this plan is a subquery of
+     */
+    boolean isEnclosingField(String name) {
+        return enclosing != null && !hasField(name) && enclosing.hasField(name);
+    }
+
+    /** Add a comparison outerField pred innerField of a field of the
+     *  enclosing query with a field of this plan, which makes this plan a
+     *  correlated subquery.
+     *  @throws ParsingException if either field is ambiguous or unknown
+     */
+    public void addCorrelation(String outerField, String innerField, Predicate.Op pred) throws ParsingException {
+        if (enclosing == null)
+            throw new ParsingException("Field " + outerField + " does not appear in any tables.");
+        outerField = enclosing.disambiguateName(outerField);
+        innerField = disambiguateName(innerField);
+        String outerTable = outerField.split("[.]")[0];
+        String innerTable = innerField.split("[.]")[0];
+        if (!tableMap.containsKey(innerTable))
+            throw new ParsingException("Unknown table " + innerTable);
+        correlations.addElement(new LogicalJoinNode(outerTable, innerTable,
+                outerField.split("[.]")[1], innerField.split("[.]")[1], pred));
+        System.out.println("Added correlation " + outerField + " " + pred + " " + innerField);
+    }
+
+    /** Turn this plan, a subquery, into one without correlations: the
+     *  fields of this plan that they compare are added to the end of the
+     *  select list (or make it up, for EXISTS), and if there is an
+     *  aggregate it is grouped by the correlated field, so that each group
+     *  is the result the subquery has for the tuples of the enclosing query
+     *  with that value.
+     *  @param exists true if the subquery is the operand of EXISTS, whose
+     *     select list does not matter
+     *  @return the correlations removed from this plan, in the order their
+     *     fields are added to the select list
+     *  @throws ParsingException if the subquery cannot be decorrelated so:
+     *     it has a LIMIT, or an aggregate that is not correlated by a single
+     *     equality or that is not empty over no tuples, such as COUNT
+     */
+    private Vector<LogicalJoinNode> decorrelate(boolean exists) throws ParsingException {
+        Vector<LogicalJoinNode> correlated = correlations;
+        correlations = new Vector<LogicalJoinNode>();
+        if (correlated.isEmpty())
+            return correlated;
+        if (limit != Limit.NO_LIMIT || offset > 0)
+            throw new ParsingException("LIMIT and OFFSET are not supported in correlated subqueries.");
+        // 半连接只看有没有匹配，子查询里的排序没有意义
+        hasOrderBy = false;
+        if (hasAgg) {
+            if (exists || groupByField != null || correlated.size() != 1
+                    || correlated.get(0).p != Predicate.Op.EQUALS)
+                throw new ParsingException("A correlated subquery with an aggregate must be a"
+                        + " comparison without GROUP BY, correlated by a single equality.");
+            // COUNT之类在没有元组时也有结果(0)，分组之后这些外层元组就找不到对应的分组了
+            Aggregator.Op op = getAggOp(aggOp);
+            if (op != Aggregator.Op.MIN && op != Aggregator.Op.MAX
+                    && op != Aggregator.Op.SUM && op != Aggregator.Op.AVG)
+                throw new ParsingException(op + " is not supported in correlated subqueries.");
+            groupByField = correlated.get(0).f2QuantifiedName;
+        } else if (exists) {
+            selectList.clear();
+        }
+        for (LogicalJoinNode c : correlated)
+            selectList.addElement(new LogicalSelectListNode(null, c.f2QuantifiedName));
+        return correlated;
+    }
+
+    /** @return the estimated cost of running the plan last returned by
+     *  {@link #physicalPlan}
+     */
+    double getEstimatedCost() {
+        return estimatedCost;
+    }
+
+    /** @return the estimated number of tuples of the plan last returned by
+     *  {@link #physicalPlan}
+     */
+    int getEstimatedCardinality() {
+        return estimatedCardinality;
+    }
+
+    /** Add lf, a comparison of a column with constants, as a filter on the
+     *  first field of the result of this plan, if that does not change which
+     *  of the other tuples the plan returns: the field must be a column of a
+     *  table, and there must be no aggregate and no LIMIT or OFFSET.
+     *  @param type the type of the column lf compares
+     *  @return true if the filter was added
+     */
+    boolean addOutputFilter(LogicalFilterNode lf, Type type) {
+        if (hasAgg || limit != Limit.NO_LIMIT || offset > 0 || selectList.isEmpty())
+            return false;
+        LogicalSelectListNode first = selectList.get(0);
+        if (first.aggOp != null || first.fname.equals("null.*")
+                || PredicateRewriter.typeOf(first.fname, tableMap) != type)
+            return false;
+        String table = first.fname.split("[.]")[0];
+        if (lf instanceof LogicalCompoundFilterNode) {
+            LogicalCompoundFilterNode cf = (LogicalCompoundFilterNode) lf;
+            filters.addElement(new LogicalCompoundFilterNode(table, first.fname,
+                    cf.connective == LogicalCompoundFilterNode.Connective.NOT_IN, cf.inList));
+        } else {
+            filters.addElement(new LogicalFilterNode(table, first.fname, lf.p, lf.c));
+        }
+        return true;
+    }
+
     /** Add a scan to the plan. One scan node needs to be added for each alias of a table
         accessed by the plan.
         @param table the id of the table accessed by the plan (can be resolved to a DbFile using {@link Catalog#getDbFile}
@@ -212,6 +471,33 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Remove duplicate tuples from the result, as in SELECT DISTINCT. */
+    public void addDistinct() {
+        distinct = true;
+    }
+
+    /** Add a LIMIT / OFFSET clause.
+        @param limit the maximum number of result tuples, or Limit.NO_LIMIT
+        @param offset the number of result tuples to skip first
+     * @throws ParsingException if limit or offset is negative
+    */
+    public void addLimit(int limit, int offset) throws ParsingException {
+        if (offset < 0 || (limit < 0 && limit != Limit.NO_LIMIT))
+            throw new ParsingException("LIMIT and OFFSET must not be negative");
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    /** @return the field the query result must be sorted on in ascending
+     *  order after the joins, or null if there is no such ORDER BY (or an
+     *  aggregate sits between the joins and the ORDER BY)
+     */
+    public String getInterestingOrder() {
+        if (!hasOrderBy || !oByAsc || hasAgg)
+            return null;
+        return oByField;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -254,6 +540,208 @@ public class LogicalPlan {
 
     }
 
+    /** Set the estimated cost and cardinality of the result from those of
+     *  the joins jo ordered, or of the only table, and the aggregate and
+     *  LIMIT on top of them.
+     */
+    private void estimate(JoinOptimizer jo, Map<String,TableStats> statsMap,
+            Map<String,Double> filterSelectivities) {
+        if (!joins.isEmpty()) {
+            estimatedCost = jo.getEstimatedCost();
+            estimatedCardinality = jo.getEstimatedCardinality();
+        } else if (!tables.isEmpty()) {
+            LogicalScanNode table = tables.firstElement();
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            estimatedCost = s.estimateScanCost();
+            estimatedCardinality = s.estimateTableCardinality(filterSelectivities.get(table.alias));
+        }
+        if (hasAgg) {
+            int groups = 1;
+            if (groupByField != null) {
+                int distinct = distinctValues(groupByField, statsMap);
+                groups = distinct > 0 ? Math.min(estimatedCardinality, distinct) : estimatedCardinality;
+            }
+            estimatedCardinality = groups;
+        }
+        if (limit != Limit.NO_LIMIT)
+            estimatedCardinality = Math.min(estimatedCardinality, limit);
+    }
+
+    /** @return the estimated number of distinct values of the field with the
+     *  given quantified name in its table, or 0 if there are no statistics
+     *  for it
+     */
+    int distinctValues(String field, Map<String,TableStats> statsMap) {
+        String[] parts = field.split("[.]");
+        Integer tableId = tableMap.get(parts[0]);
+        if (tableId == null || parts.length != 2)
+            return 0;
+        TableStats s = statsMap.get(Database.getCatalog().getTableName(tableId));
+        if (s == null)
+            return 0;
+        try {
+            return s.estimateDistinctValues(Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(parts[1]));
+        } catch (NoSuchElementException e) {
+            return 0;
+        }
+    }
+
+    /** @return the quantified name of the first field of the result if it
+     *  is a field of a table, else null
+     */
+    String firstOutputField() {
+        if (selectList.isEmpty())
+            return null;
+        LogicalSelectListNode first = selectList.firstElement();
+        return first.aggOp != null || first.fname.equals("null.*") ? null : first.fname;
+    }
+
+    /** Collect, for each table alias, the pure names of the fields that some
+     *  operator of the plan reads: select list, filters, joins, grouping,
+     *  aggregation and ordering.
+     *  @param filters the filters of the plan
+     *  @return the fields per alias, or null if the query selects * and so needs every field
+     */
+    private HashMap<String,Set<String>> requiredFields(Vector<LogicalFilterNode> filters) {
+        HashMap<String,Set<String>> required = new HashMap<String,Set<String>>();
+        for (LogicalScanNode table : tables)
+            required.put(table.alias, new HashSet<String>());
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*"))
+                return null;
+            requireField(required, si.fname);
+        }
+        requireField(required, groupByField);
+        requireField(required, aggField);
+        requireField(required, oByField);
+        for (LogicalFilterNode lf : filters)
+            requireFilterFields(required, lf);
+        for (LogicalJoinNode lj : joins) {
+            requireField(required, lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                requireField(required, lj.f2QuantifiedName);
+            else for (LogicalJoinNode c : ((LogicalSubplanJoinNode) lj).correlations)
+                requireField(required, c.f1QuantifiedName);
+        }
+        return required;
+    }
+
+    private static void requireField(HashMap<String,Set<String>> required, String quantifiedName) {
+        if (quantifiedName == null)
+            return;
+        String[] parts = quantifiedName.split("[.]");
+        Set<String> fields = required.get(parts[0]);
+        if (fields != null && parts.length == 2)
+            fields.add(parts[1]);
+    }
+
+    private static void requireFilterFields(HashMap<String,Set<String>> required, LogicalFilterNode lf) {
+        if (lf instanceof LogicalCompoundFilterNode && ((LogicalCompoundFilterNode) lf).children != null) {
+            for (LogicalFilterNode child : ((LogicalCompoundFilterNode) lf).children)
+                requireFilterFields(required, child);
+        } else {
+            requireField(required, lf.fieldQuantifiedName);
+        }
+    }
+
+    /** @return the indexes in td of the fields named in fields, in table order, or null if all fields are needed */
+    private static int[] scanProjection(TupleDesc td, Set<String> fields) {
+        ArrayList<Integer> projection = new ArrayList<Integer>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (fields.contains(td.getFieldName(i)))
+                projection.add(i);
+        }
+        if (projection.size() == td.numFields())
+            return null;
+        if (projection.isEmpty())
+            projection.add(0);  // 没有用到任何列时仍保留一列，元组不能为空
+        int[] result = new int[projection.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = projection.get(i);
+        return result;
+    }
+
+    /** Convert the constant c of a filter on the field named fieldName of td into a Field of the right type */
+    private static Field filterConstant(TupleDesc td, String fieldName, String c) throws ParsingException {
+        Type ftyp;
+        try {
+            ftyp = td.getFieldType(td.fieldNameToIndex(fieldName));
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field in filter expression " + fieldName);
+        }
+        if (ftyp == Type.INT_TYPE) {
+            try {
+                return new IntField(Integer.parseInt(c));
+            } catch (NumberFormatException e) {
+                throw new ParsingException("Invalid integer constant " + c + " for field " + fieldName);
+            }
+        }
+        return new StringField(c, Type.STRING_LEN);
+    }
+
+    /** Build the executable expression for a filter node over tuples described by td */
+    private static PredicateExpression filterExpression(LogicalFilterNode lf, TupleDesc td) throws ParsingException {
+        if (!(lf instanceof LogicalCompoundFilterNode)) {
+            Field f = filterConstant(td, lf.fieldQuantifiedName, lf.c);
+            return PredicateExpression.leaf(new Predicate(td.fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f));
+        }
+        LogicalCompoundFilterNode cf = (LogicalCompoundFilterNode) lf;
+        switch (cf.connective) {
+        case IN:
+        case NOT_IN:
+            HashSet<Field> values = new HashSet<Field>();
+            for (String c : cf.inList)
+                values.add(filterConstant(td, cf.fieldQuantifiedName, c));
+            return PredicateExpression.in(td.fieldNameToIndex(cf.fieldQuantifiedName), values,
+                    cf.connective == LogicalCompoundFilterNode.Connective.NOT_IN);
+        case NOT:
+            return PredicateExpression.not(filterExpression(cf.children.get(0), td));
+        default:
+            Vector<PredicateExpression> children = new Vector<PredicateExpression>();
+            for (LogicalFilterNode child : cf.children)
+                children.add(filterExpression(child, td));
+            return cf.connective == LogicalCompoundFilterNode.Connective.AND
+                    ? PredicateExpression.and(children) : PredicateExpression.or(children);
+        }
+    }
+
+    /**
+     * The percentage of the pages of a table that sampled aggregates read:
+     * SampledAggregator.DEFAULT_FRACTION of them, but at least
+     * MIN_SAMPLE_PAGES pages so that small tables give usable estimates.
+     */
+    private static double samplePercent(int tableid) {
+        int numPages = ((HeapFile) Database.getCatalog().getDbFile(tableid)).numPages();
+        double fraction = Math.max(SampledAggregator.DEFAULT_FRACTION,
+                numPages > 0 ? (double) MIN_SAMPLE_PAGES / numPages : 1.0);
+        return Math.min(1.0, fraction) * 100;
+    }
+
+    /**
+     * Read only a sample of the table with the given alias, as given by a
+     * TABLESAMPLE clause.
+     *
+     * @param alias the alias of a table in the FROM list
+     * @param method whether to sample pages or tuples
+     * @param percent the percentage of the table to sample, in (0, 100]
+     * @param seed the seed of the sample
+     * @throws ParsingException if there is no such table or the percentage is out of range
+     */
+    public void addTableSample(String alias, SampleScan.Method method,
+            double percent, long seed) throws ParsingException {
+        if (!(percent > 0 && percent <= 100))
+            throw new ParsingException("TABLESAMPLE percentage must be in (0, 100]: " + percent);
+        for (LogicalScanNode table : tables) {
+            if (table.alias.equals(alias)) {
+                table.sampleMethod = method;
+                table.samplePercent = percent;
+                table.sampleSeed = seed;
+                return;
+            }
+        }
+        throw new ParsingException("Unknown table " + alias + " in TABLESAMPLE clause");
+    }
+
     /** Convert the aggregate operator name s into an Aggregator.op operation.
      *  @throws ParsingException if s is not a valid operator name 
      */
@@ -264,6 +752,11 @@ public class LogicalPlan {
         if (s.equals("COUNT")) return Aggregator.Op.COUNT;
         if (s.equals("MIN")) return Aggregator.Op.MIN;
         if (s.equals("MAX")) return Aggregator.Op.MAX;
+        if (s.equals("COUNT_DISTINCT")) return Aggregator.Op.COUNT_DISTINCT;
+        if (s.equals("APPROX_COUNT_DISTINCT")) return Aggregator.Op.APPROX_COUNT_DISTINCT;
+        if (s.equals("APPROX_COUNT")) return Aggregator.Op.APPROX_COUNT;
+        if (s.equals("APPROX_SUM")) return Aggregator.Op.APPROX_SUM;
+        if (s.equals("APPROX_AVG")) return Aggregator.Op.APPROX_AVG;
         throw new ParsingException("Unknown predicate " + s);
     }
 
@@ -285,65 +778,105 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        // 先改写WHERE子句：拆开AND、沿等值连接传递谓词、合并范围、发现矛盾
+        PredicateRewriter rewriter = new PredicateRewriter(filters, joins, tableMap);
+        boolean empty = rewriter.contradiction();
+        if (empty && explain)
+            System.out.println("The WHERE clause can never hold; no table will be read.");
+        HashMap<String,Set<String>> required = requiredFields(rewriter.filters());
+        // 抽样聚合只读聚合字段所在表的一部分页
+        String sampledAlias = hasAgg && getAggOp(aggOp).isSampled() ? aggField.split("[.]")[0] : null;
+        SampleScan sample = null;
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
             SeqScan ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDbFile(table.t).getId(), table.alias);
+                if (table.sampleMethod != null) {
+                    ss = new SampleScan(t, table.t, table.alias, table.sampleMethod,
+                            table.samplePercent, table.sampleSeed);
+                } else if (table.alias.equals(sampledAlias)
+                        && Database.getCatalog().getDbFile(table.t) instanceof HeapFile) {
+                    ss = new SampleScan(t, table.t, table.alias,
+                            samplePercent(table.t), System.nanoTime());
+                } else {
+                    ss = new SeqScan(t, Database.getCatalog().getDbFile(table.t).getId(), table.alias);
+                }
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
+            } catch (IllegalArgumentException e) {
+                throw new ParsingException(e);
             }
+            // 表已经按TABLESAMPLE抽样时，抽样聚合直接用这个样本
+            if (table.alias.equals(sampledAlias) && ss instanceof SampleScan)
+                sample = (SampleScan) ss;
+            if (required != null)
+                ss.setProjection(scanProjection(Database.getCatalog().getTupleDesc(table.t), required.get(table.alias)));
+            scanDescs.put(table.alias, ss.getTupleDesc());
             
-            subplanMap.put(table.alias,ss);
+            // 结果一定为空时每个表都换成LIMIT 0，不读任何页
+            subplanMap.put(table.alias, empty ? new Limit(0, 0, ss) : ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
-            filterSelectivities.put(table.alias, 1.0);
+            // 抽样扫描只返回表的一部分，连接顺序按样本大小估计
+            filterSelectivities.put(table.alias, ss instanceof SampleScan
+                    ? ((SampleScan) ss).getSamplingFraction() : 1.0);
 
         }
 
-        Iterator<LogicalFilterNode> filterIt = filters.iterator();        
+        // 同一个表上的所有谓词合并成一个Filter，而不是每个谓词一层迭代器
+        LinkedHashMap<String,Vector<PredicateExpression>> tableFilters = new LinkedHashMap<String,Vector<PredicateExpression>>();
+        Iterator<LogicalFilterNode> filterIt = rewriter.filters().iterator();
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
             DbIterator subplan = subplanMap.get(lf.tableAlias);
             if (subplan == null) {
                 throw new ParsingException("Unknown table in WHERE clause " + lf.tableAlias);
             }
+            if (!tableFilters.containsKey(lf.tableAlias))
+                tableFilters.put(lf.tableAlias, new Vector<PredicateExpression>());
+            tableFilters.get(lf.tableAlias).add(filterExpression(lf, subplan.getTupleDesc()));
+        }
 
-            Field f;
-            Type ftyp;
-            TupleDesc td = subplanMap.get(lf.tableAlias).getTupleDesc();
-            
-            try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
-                ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
-            }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
-
-            Predicate p = null;
-            try {
-                p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p,f);
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
-            }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
-
-            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
-            
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
-            filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+        for (Map.Entry<String,Vector<PredicateExpression>> e : tableFilters.entrySet()) {
+            String alias = e.getKey();
+            DbIterator subplan = subplanMap.get(alias);
+            PredicateExpression expr = PredicateExpression.and(e.getValue());
+            subplanMap.put(alias, new Filter(expr, subplan));
 
-            //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
+            final TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(alias)));
+            final TupleDesc td = subplan.getTupleDesc();
+            final TupleDesc baseTd = Database.getCatalog().getTupleDesc(this.getTableId(alias));
+            double sel = expr.estimateSelectivity((field, op, constant) -> s.estimateSelectivity(
+                    baseTd.fieldNameToIndex(td.getFieldName(field).split("[.]")[1]), op, constant));
+            filterSelectivities.put(alias, filterSelectivities.get(alias) * sel);
         }
         
+        // 子查询到这里才生成物理计划：等值连接时，外层连接字段上的条件先下推进去
+        for (LogicalJoinNode lj : joins) {
+            if (!(lj instanceof LogicalSubplanJoinNode) || ((LogicalSubplanJoinNode) lj).subQuery == null)
+                continue;
+            LogicalSubplanJoinNode sj = (LogicalSubplanJoinNode) lj;
+            if (sj.p == Predicate.Op.EQUALS) {
+                Type type = PredicateRewriter.typeOf(sj.f1QuantifiedName, tableMap);
+                for (LogicalFilterNode lf : rewriter.filtersOn(sj.f1QuantifiedName))
+                    sj.subQuery.addOutputFilter(lf, type);
+            }
+            sj.subPlan = sj.subQuery.physicalPlan(t, baseTableStats, explain);
+            if (empty)
+                sj.subPlan = new Limit(0, 0, sj.subPlan);
+            sj.subCost = sj.subQuery.getEstimatedCost();
+            sj.subCard = sj.subQuery.getEstimatedCardinality();
+            sj.selectivity = JoinOptimizer.estimateSemiJoinSelectivity(sj, baseTableStats, tableMap);
+        }
+
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+        estimate(jo, statsMap, filterSelectivities);
 
+        // 连接按连接树的后序给出：每个连接的两个输入是当前包含它两个表的子计划，
+        // 可以是单个表也可以是已经连接好的子树，所以左深和浓密(bushy)的树都能这样建出来
         Iterator<LogicalJoinNode> joinIt = joins.iterator();
         while (joinIt.hasNext()) {
             LogicalJoinNode lj = joinIt.next();
@@ -364,6 +897,15 @@ public class LogicalPlan {
 
             plan1 = subplanMap.get(t1name);
 
+            if (!isSubqueryJoin && t1name.equals(t2name)) {
+                // 两个表已经被别的连接连在一起（连接图中有环），这个连接只是过滤
+                TupleDesc td = plan1.getTupleDesc();
+                subplanMap.put(t1name, new Filter(PredicateExpression.compare(
+                        td.fieldNameToIndex(lj.f1QuantifiedName), lj.p,
+                        td.fieldNameToIndex(lj.f2QuantifiedName)), plan1));
+                continue;
+            }
+
             if (isSubqueryJoin) {
                 plan2 = ((LogicalSubplanJoinNode)lj).subPlan;
                 if (plan2 == null) 
@@ -378,7 +920,7 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
             
             DbIterator j;
-            j = jo.instantiateJoin(lj,plan1,plan2);
+            j = JoinOptimizer.instantiateJoin(lj,plan1,plan2,jo.providesInterestingOrder(lj));
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -420,6 +962,11 @@ public class LogicalPlan {
                     throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
                 }
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
+                if (getAggOp(si.aggOp).isApproximate()) {
+                    // 误差列紧跟在估计值后面
+                    outFields.add(groupByField!=null?2:1);
+                    outTypes.add(Type.INT_TYPE);
+                }
 
             } else if (hasAgg) {
                     if (groupByField == null) {
@@ -462,6 +1009,8 @@ public class LogicalPlan {
                                         td.fieldNameToIndex(aggField),
                                         groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
                                 getAggOp(aggOp));
+                if (sample != null)
+                    aggNode.setSamplingFraction(sample.getSamplingFraction());
             } catch (NoSuchElementException e) {
                 throw new ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -471,7 +1020,38 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int oByIndex = node.getTupleDesc().fieldNameToIndex(oByField);
+            // 最后的归并连接已经按ORDER BY字段升序输出时不用再排序
+            if (!(oByAsc && SortMergeJoin.isSortedOn(node, oByIndex))) {
+                OrderBy oBy = new OrderBy(oByIndex, oByAsc, node);
+                // 有LIMIT时只需要排在前面的limit+offset个元组；去重之后的个数事先不知道
+                if (!distinct)
+                    oBy.setLimit(Limit.rowsNeeded(limit, offset));
+                node = oBy;
+            }
+        }
+
+        if (distinct) {
+            // 去重作用在投影之后的元组上，LIMIT在去重之后
+            node = new Project(outFields, outTypes, node);
+            int sortedField = -1;
+            if (hasOrderBy) {
+                try {
+                    sortedField = node.getTupleDesc().fieldNameToIndex(oByField);
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("ORDER BY field " + oByField
+                            + " must appear in the SELECT DISTINCT list");
+                }
+            }
+            node = new Distinct(node, sortedField);
+            if (limit != Limit.NO_LIMIT || offset > 0) {
+                node = new Limit(limit, offset, node);
+            }
+            return node;
+        }
+
+        if (limit != Limit.NO_LIMIT || offset > 0) {
+            node = new Limit(limit, offset, node);
         }
 
         return new Project(outFields, outTypes, node);
@@ -11,6 +11,15 @@ public class LogicalScanNode {
      *   to retrieve a DbFile */
     public int t;
 
+    /** The TABLESAMPLE method of the table, or null to read all of it */
+    public SampleScan.Method sampleMethod;
+
+    /** The percentage of the table to sample */
+    public double samplePercent;
+
+    /** The seed of the sample */
+    public long sampleSeed;
+
     public LogicalScanNode(int table, String tableAlias) {
         this.alias = tableAlias;
         this.t = table;
@@ -1,28 +1,72 @@
 package simpledb;
 
+import java.util.Objects;
+import java.util.Vector;
+
 /** A LogicalSubplanJoinNode represens the state needed of a join of a
  * table to a subplan in a LogicalQueryPlan -- inherits state from
- * {@link LogicalJoinNode}; t2 and f2 should always be null
+ * {@link LogicalJoinNode}; t2 and f2 should always be null.
+ * <p>
+ * The join is a semi join, or an anti join for NOT IN and NOT EXISTS: it
+ * keeps the tuples of t1 for which some (no) tuple of the subplan matches,
+ * see {@link HashSemiJoin}. A tuple matches if f1 p its first field holds
+ * and so do the correlations. f1 and p are null for an uncorrelated
+ * EXISTS, where any tuple of the subplan matches.
  */
 public class LogicalSubplanJoinNode extends LogicalJoinNode {
     
     /** The subplan (used on the inner) of the join */
     DbIterator subPlan;
+
+    /** The subquery subPlan is planned from by {@link LogicalPlan#physicalPlan},
+     * or null if the join was given subPlan already */
+    LogicalPlan subQuery;
+
+    /** True for an anti join */
+    boolean anti;
+
+    /** The comparisons of fields of the query with the fields of the
+     * subplan after the first, one for each: f1 is the field of the query,
+     * and f2 the field of the subquery the subplan field was taken from */
+    Vector<LogicalJoinNode> correlations = new Vector<LogicalJoinNode>();
+
+    /** The estimated cost and cardinality of the subplan, set when
+     * {@link LogicalPlan#physicalPlan} plans the subquery */
+    double subCost;
+    int subCard;
+
+    /** The estimated fraction of the tuples of t1 the join keeps, see
+     * {@link JoinOptimizer#estimateSemiJoinSelectivity} */
+    double selectivity = 1.0;
     
+    /** A join with a subquery that is planned along with the query, so that
+     * filters on joinField1 can be pushed into it */
+    public LogicalSubplanJoinNode(String table1, String joinField1, LogicalPlan subquery, Predicate.Op pred) {
+        this(table1, joinField1, (DbIterator) null, pred);
+        subQuery = subquery;
+    }
+
     public LogicalSubplanJoinNode(String table1, String joinField1, DbIterator sp, Predicate.Op pred) {
         t1Alias = table1;
+        subPlan = sp;
+        p = pred;
+        if (joinField1 == null)
+            return;
         String[] tmps = joinField1.split("[.]");
         if (tmps.length>1)
             f1PureName = tmps[tmps.length-1];
         else
             f1PureName=joinField1;
         f1QuantifiedName=t1Alias+"."+f1PureName;
-        subPlan = sp;
-        p = pred;
     }
     
+    /** @return the subquery if there is one, else the subplan */
+    private Object subquery() {
+        return subQuery != null ? subQuery : subPlan;
+    }
+
     @Override public int hashCode() {
-        return t1Alias.hashCode() + f1PureName.hashCode() + subPlan.hashCode();
+        return t1Alias.hashCode() + (f1PureName == null ? 0 : f1PureName.hashCode()) + subquery().hashCode();
     }
     
     @Override public boolean equals(Object o) {
@@ -30,11 +74,17 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         if (!(o instanceof LogicalSubplanJoinNode))
             return false;
         
-        return (j2.t1Alias.equals(t1Alias)  && j2.f1PureName.equals(f1PureName) && ((LogicalSubplanJoinNode)o).subPlan.equals(subPlan));
+        return (j2.t1Alias.equals(t1Alias)  && Objects.equals(j2.f1PureName, f1PureName) && ((LogicalSubplanJoinNode)o).subquery().equals(subquery()));
     }
     
     public LogicalSubplanJoinNode swapInnerOuter() {
         LogicalSubplanJoinNode j2 = new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p);
+        j2.subQuery = subQuery;
+        j2.anti = anti;
+        j2.correlations = correlations;
+        j2.subCost = subCost;
+        j2.subCard = subCard;
+        j2.selectivity = selectivity;
         return j2;
     }
 
@@ -0,0 +1,217 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+/**
+ * MemoryManager hands out the memory that query operators may use for their
+ * in-memory buffers (sort runs, hash tables, join blocks, aggregation
+ * groups).
+ * <p>
+ * An operator asks for a {@link MemoryGrant} of the size it would like,
+ * usually computed from the optimizer's cardinality estimate, and a minimum
+ * it cannot work without. The total of all grants is kept within the
+ * manager's budget: whenever a grant is requested or released the budget is
+ * divided again between all active grants by max-min fairness, so a grant
+ * that asks for little gets all of it and the large ones share the rest.
+ * A grant can therefore shrink or grow while its operator runs; operators
+ * check {@link MemoryGrant#bytes()} as they buffer and spill to disk (see
+ * {@link SpillFile}) when they go over it.
+ * <p>
+ * Every operator that buffers tuples holds a grant while it is open:
+ * {@link OrderBy}, {@link HashEquiJoin}, {@link HashSemiJoin},
+ * {@link RangeJoin}, {@link Join}, {@link Aggregate} and {@link Distinct}.
+ *
+ * 查询内存管理：按需分配内存配额，并在并发的查询之间重新平衡
+ */
+public class MemoryManager {
+
+    /** Default share of the JVM heap that query operators may use */
+    public static final double DEFAULT_HEAP_FRACTION = 0.25;
+
+    /** The smallest grant an operator is ever given */
+    public static final long MIN_GRANT = 64 * 1024;
+
+    /** The grant asked for by an operator that has no cardinality estimate */
+    public static final long DEFAULT_GRANT = 64 * MIN_GRANT;
+
+    private long totalBytes;
+    private final ArrayList<MemoryGrant> grants = new ArrayList<MemoryGrant>();
+
+    /**
+     * A memory budget held by one operator. Its size may change while it is
+     * held; release it when the operator is closed.
+     */
+    public static class MemoryGrant {
+        private final MemoryManager manager;
+        private final long desired;
+        private final long minimum;
+        private volatile long granted;
+
+        private MemoryGrant(MemoryManager manager, long desired, long minimum) {
+            this.manager = manager;
+            this.desired = desired;
+            this.minimum = minimum;
+        }
+
+        /**
+         * @return the number of bytes the operator may currently use
+         */
+        public long bytes() {
+            return granted;
+        }
+
+        /**
+         * @return how many tuples of the given size fit in this grant, at
+         *         least 1
+         */
+        public int tuples(long bytesPerTuple) {
+            return (int) Math.max(1, Math.min(Integer.MAX_VALUE, granted / Math.max(1, bytesPerTuple)));
+        }
+
+        /**
+         * Give the memory back to the manager. Calling it more than once has
+         * no effect.
+         */
+        public void release() {
+            manager.release(this);
+        }
+    }
+
+    /**
+     * Create a memory manager with the default budget, a quarter of the
+     * maximum JVM heap.
+     */
+    public MemoryManager() {
+        this((long) (Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_FRACTION));
+    }
+
+    /**
+     * @param totalBytes
+     *            the memory all operators together may use
+     */
+    public MemoryManager(long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Change the budget and resize the active grants accordingly.
+     */
+    public synchronized void setTotalBytes(long totalBytes) {
+        this.totalBytes = totalBytes;
+        rebalance();
+    }
+
+    /**
+     * Request a grant.
+     *
+     * @param desiredBytes
+     *            the memory the operator would need to run without spilling
+     * @param minimumBytes
+     *            the memory the operator needs in any case
+     * @return the grant; its size is at least min(minimumBytes, desiredBytes)
+     *         and MIN_GRANT, and at most desiredBytes when that is larger
+     */
+    public synchronized MemoryGrant request(long desiredBytes, long minimumBytes) {
+        long min = Math.max(MIN_GRANT, minimumBytes);
+        MemoryGrant g = new MemoryGrant(this, Math.max(min, desiredBytes), min);
+        grants.add(g);
+        rebalance();
+        return g;
+    }
+
+    /**
+     * Request a grant sized for the given number of tuples of td.
+     *
+     * @param estimatedTuples
+     *            the estimated number of tuples the operator buffers, or 0 if
+     *            unknown
+     */
+    public MemoryGrant request(int estimatedTuples, TupleDesc td) {
+        long perTuple = estimateTupleBytes(td);
+        // 没有基数估计时按一个中等大小的缓冲区申请
+        long desired = estimatedTuples > 0 ? estimatedTuples * perTuple : DEFAULT_GRANT;
+        return request(desired, MIN_GRANT);
+    }
+
+    /**
+     * Estimate the grant an operator would get, as the query optimizer sees
+     * it: what a request for desiredBytes returns when no other grant is
+     * held.
+     *
+     * @param desiredBytes
+     *            the memory the operator would need to run without spilling
+     * @return desiredBytes, but no more than the budget and at least
+     *         MIN_GRANT
+     */
+    public synchronized long estimateGrant(double desiredBytes) {
+        return (long) Math.max(MIN_GRANT, Math.min(desiredBytes, totalBytes));
+    }
+
+    private synchronized void release(MemoryGrant g) {
+        if (grants.remove(g)) {
+            g.granted = 0;
+            rebalance();
+        }
+    }
+
+    /**
+     * @return the number of active grants
+     */
+    public synchronized int activeGrants() {
+        return grants.size();
+    }
+
+    /**
+     * Divide the budget between the active grants by max-min fairness:
+     * every grant gets its minimum, then the rest is split evenly, no grant
+     * getting more than it asked for.
+     */
+    private void rebalance() {
+        int n = grants.size();
+        if (n == 0)
+            return;
+        long left = totalBytes;
+        for (MemoryGrant g : grants)
+            left -= g.minimum;
+        // 最小配额之外的部分按水位线平均分配
+        long[] extra = new long[n];
+        boolean[] done = new boolean[n];
+        int open = n;
+        while (left > 0 && open > 0) {
+            long share = Math.max(1, left / open);
+            boolean progress = false;
+            for (int i = 0; i < n && left > 0; i++) {
+                if (done[i])
+                    continue;
+                MemoryGrant g = grants.get(i);
+                long want = g.desired - g.minimum - extra[i];
+                long give = Math.min(Math.min(want, share), left);
+                extra[i] += give;
+                left -= give;
+                progress |= give > 0;
+                if (extra[i] >= g.desired - g.minimum) {
+                    done[i] = true;
+                    open--;
+                }
+            }
+            if (!progress)
+                break;
+        }
+        for (int i = 0; i < n; i++) {
+            MemoryGrant g = grants.get(i);
+            g.granted = g.minimum + extra[i];
+        }
+    }
+
+    /**
+     * @return the approximate heap footprint of one tuple of td held in
+     *         memory: the field data plus object headers and references
+     */
+    public static long estimateTupleBytes(TupleDesc td) {
+        return td.getSize() + 32 + 24L * td.numFields();
+    }
+}
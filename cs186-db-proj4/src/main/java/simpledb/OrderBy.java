@@ -4,10 +4,24 @@ import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * Tuples are sorted in memory as long as they fit in the operator's
+ * {@link MemoryManager.MemoryGrant}. Beyond that the sort is an external
+ * merge sort: every time the buffer is full it is sorted and written out as
+ * a run to a {@link SpillFile}, and the runs are merged, at most
+ * MAX_MERGE_RUNS at a time, when the tuples are read.
+ * <p>
+ * Under a LIMIT only the first tuples of the ordering are needed (see
+ * {@link #setLimit}); they are then selected with a bounded heap and nothing
+ * is written to disk.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The largest number of runs merged in one pass */
+    static final int MAX_MERGE_RUNS = 64;
+
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
@@ -15,6 +29,11 @@ public class OrderBy extends Operator {
     private String orderByFieldName;
     private Iterator<Tuple> it;
     private boolean asc;
+    private int limit = Limit.NO_LIMIT;
+    private transient MemoryManager.MemoryGrant grant;
+    /** The sorted runs written to disk; empty if the sort fit in memory */
+    private transient ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+    private transient MergeIterator merge;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -49,6 +68,26 @@ public class OrderBy extends Operator {
 	return this.orderByFieldName;
     }
     
+    /**
+     * Tell the operator that only the first n tuples of the ordering will be
+     * read, as under a {@link Limit}. When they fit in the operator's memory
+     * only they are kept, in a bounded heap, instead of sorting the whole
+     * input; otherwise the whole input is sorted as usual.
+     *
+     * @param n
+     *            the number of tuples needed, or Limit.NO_LIMIT
+     */
+    public void setLimit(int n) {
+        this.limit = n;
+    }
+
+    /**
+     * @return the number of tuples that will be read, or Limit.NO_LIMIT
+     */
+    public int getLimit() {
+        return limit;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
@@ -56,20 +95,121 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
+        releaseMemory();
+        int card = getEstimatedCardinality();
+        if (limit != Limit.NO_LIMIT && (card == 0 || limit < card))
+            card = Math.max(1, limit);
+        grant = Database.getMemoryManager().request(card, td);
+        long tupleBytes = MemoryManager.estimateTupleBytes(td);
+        TupleComparator comparator = new TupleComparator(orderByField, asc);
+        if (limit != Limit.NO_LIMIT && limit <= grant.tuples(tupleBytes)) {
+            topN(comparator);
+            it = childTups.iterator();
+            super.open();
+            return;
+        }
+        // load the tuples in a collection while they fit in memory, and sort it;
+        // every time it is full, write it to disk as a sorted run
+        while (child.hasNext()) {
             childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
+            if (childTups.size() >= grant.tuples(tupleBytes))
+                spillRun(comparator);
+        }
+        Collections.sort(childTups, comparator);
+        if (!runs.isEmpty()) {
+            if (!childTups.isEmpty())
+                spillRun(comparator);
+            // 归并路数过多时先分批归并成更长的顺串
+            while (runs.size() > MAX_MERGE_RUNS) {
+                ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+                for (int i = 0; i < runs.size(); i += MAX_MERGE_RUNS) {
+                    List<SpillFile> group = runs.subList(i, Math.min(runs.size(), i + MAX_MERGE_RUNS));
+                    SpillFile out = new SpillFile(td);
+                    MergeIterator m = new MergeIterator(group, comparator);
+                    while (m.hasNext())
+                        out.add(m.next());
+                    m.close();
+                    for (SpillFile f : group)
+                        f.delete();
+                    merged.add(out);
+                }
+                runs = merged;
+            }
+            merge = new MergeIterator(runs, comparator);
+        }
         it = childTups.iterator();
         super.open();
     }
 
+    /**
+     * Keep only the first limit tuples of the child in a bounded heap whose
+     * root is the largest of them, and sort them into childTups. Ties keep
+     * their input order, as in the full sort.
+     */
+    private void topN(final TupleComparator comparator) throws DbException,
+            TransactionAbortedException {
+        final Tuple[] top = new Tuple[limit];
+        final long[] seq = new long[limit];
+        // 堆顶是目前保留的元组中排在最后的一个
+        PriorityQueue<Integer> heap = new PriorityQueue<Integer>(Math.max(1, limit), (a, b) -> {
+            int c = comparator.compare(top[b], top[a]);
+            return c != 0 ? c : Long.compare(seq[b], seq[a]);
+        });
+        long n = 0;
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            n++;
+            int slot;
+            if (heap.size() < limit) {
+                slot = heap.size();
+            } else if (limit > 0 && comparator.compare(t, top[heap.peek()]) < 0) {
+                slot = heap.poll();
+            } else {
+                continue;
+            }
+            top[slot] = t;
+            seq[slot] = n;
+            heap.add(slot);
+        }
+        Tuple[] sorted = new Tuple[heap.size()];
+        for (int i = sorted.length - 1; i >= 0; i--)
+            sorted[i] = top[heap.poll()];
+        childTups.addAll(Arrays.asList(sorted));
+    }
+
+    private void spillRun(TupleComparator comparator) throws DbException {
+        Collections.sort(childTups, comparator);
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : childTups)
+            run.add(t);
+        runs.add(run);
+        childTups.clear();
+    }
+
+    private void releaseMemory() {
+        childTups.clear();
+        if (merge != null) {
+            merge.close();
+            merge = null;
+        }
+        for (SpillFile f : runs)
+            f.delete();
+        runs.clear();
+        if (grant != null) {
+            grant.release();
+            grant = null;
+        }
+    }
+
     public void close() {
         super.close();
         it = null;
+        releaseMemory();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        if (merge != null)
+            merge.rewind();
         it = childTups.iterator();
     }
 
@@ -82,6 +222,9 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
+        if (merge != null) {
+            return merge.hasNext() ? merge.next() : null;
+        }
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -100,6 +243,74 @@ public class OrderBy extends Operator {
 
 }
 
+/**
+ * Merges sorted runs into one sorted stream. Ties are returned in run order,
+ * so merging runs written in input order keeps the sort stable.
+ */
+class MergeIterator {
+    private final List<SpillFile> runs;
+    private final Comparator<Tuple> comparator;
+    private final DbIterator[] readers;
+    /** Heads of the runs, as indexes into heads, ordered by tuple then run */
+    private final PriorityQueue<Integer> queue;
+    private final Tuple[] heads;
+
+    MergeIterator(List<SpillFile> runs, Comparator<Tuple> comparator) throws DbException {
+        this.runs = runs;
+        this.comparator = comparator;
+        this.readers = new DbIterator[runs.size()];
+        this.heads = new Tuple[runs.size()];
+        this.queue = new PriorityQueue<Integer>(Math.max(1, runs.size()), (a, b) -> {
+            int c = MergeIterator.this.comparator.compare(heads[a], heads[b]);
+            return c != 0 ? c : Integer.compare(a, b);
+        });
+        rewind();
+    }
+
+    void rewind() throws DbException {
+        queue.clear();
+        for (int i = 0; i < readers.length; i++) {
+            if (readers[i] == null)
+                readers[i] = runs.get(i).iterator();
+            try {
+                readers[i].open();
+            } catch (TransactionAbortedException e) {
+                throw new DbException(e.getMessage());  // 溢出文件不涉及事务
+            }
+            advance(i);
+        }
+    }
+
+    private void advance(int i) throws DbException {
+        try {
+            if (readers[i].hasNext()) {
+                heads[i] = readers[i].next();
+                queue.add(i);
+            }
+        } catch (TransactionAbortedException e) {
+            throw new DbException(e.getMessage());
+        }
+    }
+
+    boolean hasNext() {
+        return !queue.isEmpty();
+    }
+
+    Tuple next() throws DbException {
+        int i = queue.poll();
+        Tuple t = heads[i];
+        advance(i);
+        return t;
+    }
+
+    void close() {
+        for (DbIterator r : readers) {
+            if (r != null)
+                r.close();
+        }
+    }
+}
+
 class TupleComparator implements Comparator<Tuple> {
     int field;
     boolean asc;
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -12,6 +14,59 @@ import jline.SimpleCompletor;
 public class Parser {
     static boolean explain = false;
 
+    /**
+     * LIMIT n [OFFSET m], or OFFSET m alone, at the end of a statement. Zql
+     * does not know these clauses, so they are cut off the statement before
+     * it is parsed and added to the logical plan afterwards.
+     */
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+(?:limit\\s+(\\d+)(?:\\s+offset\\s+(\\d+))?|offset\\s+(\\d+))\\s*(;?)\\s*$",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Zql only knows the standard aggregates; the approximate ones have to be
+     * registered as functions of one argument before they can be parsed.
+     */
+    static {
+        for (Aggregator.Op op : Aggregator.Op.values()) {
+            if (op.isApproximate())
+                ZUtils.addCustomFunction(op.toString(), 1);
+        }
+    }
+
+    /**
+     * table [[AS] alias] TABLESAMPLE SYSTEM|BERNOULLI (percent) [REPEATABLE
+     * (seed)] in a FROM list. Zql does not know this clause either, so it is
+     * cut off like LIMIT and the sample is added to the logical plan
+     * afterwards.
+     */
+    private static final Pattern TABLESAMPLE_CLAUSE = Pattern.compile(
+            "(\\bfrom\\s+|,\\s*)(\\w+)(\\s+(?:as\\s+)?(?!tablesample\\b)(\\w+))?"
+            + "\\s+tablesample\\s+(system|bernoulli)\\s*\\(\\s*(\\d+(?:\\.\\d*)?)\\s*\\)"
+            + "(?:\\s+repeatable\\s*\\(\\s*(-?\\d+)\\s*\\))?",
+            Pattern.CASE_INSENSITIVE);
+
+    /** A TABLESAMPLE clause cut off the statement being processed */
+    private static class TableSample {
+        final String alias;
+        final SampleScan.Method method;
+        final double percent;
+        final long seed;
+
+        TableSample(String alias, SampleScan.Method method, double percent, long seed) {
+            this.alias = alias;
+            this.method = method;
+            this.percent = percent;
+            this.seed = seed;
+        }
+    }
+
+    private final ArrayList<TableSample> tableSamples = new ArrayList<TableSample>();
+
+    /** The LIMIT / OFFSET cut off the statement being processed */
+    private int limit = Limit.NO_LIMIT;
+    private int offset = 0;
+
     public static Predicate.Op getOp(String s) throws ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -47,9 +102,11 @@ public class Parser {
                 processExpression(tid, newWx, lp);
 
             }
-        } else if (wx.getOperator().equals("OR")) {
-            throw new ParsingException(
-                    "OR expressions currently unsupported.");
+        } else if (isSubqueryPredicate(wx)) {
+            subqueryPredicate(tid, wx, lp);
+        } else if (isFilterConnective(wx.getOperator())) {
+            // OR、NOT、IN等只支持单表上的条件，整个表达式作为一个过滤节点
+            lp.addFilter(filterNode(wx, lp));
         } else {
             // this is a binary expression comparing two constants
             @SuppressWarnings("unchecked")
@@ -94,50 +151,237 @@ public class Parser {
                 }
 
                 if (!op2const) { // right op is a nested query
-                    try {
-                        LogicalPlan sublp = parseQueryLogicalPlan(tid,
-                                (ZQuery) ops.elementAt(1));
-                        DbIterator pp = sublp.physicalPlan(tid,
-                                TableStats.getStatsMap(), explain);
-                        lp.addJoin(tab1field, pp, op);
-                    } catch (IOException e) {
-                        throw new ParsingException("Invalid subquery "
-                                + ops.elementAt(1));
-                    } catch (ParseException e) {
-                        throw new ParsingException("Invalid subquery "
-                                + ops.elementAt(1));
-                    }
+                    // 和子查询的比较是半连接：有一个子查询元组满足就保留
+                    addSubqueryJoin(tid, tab1field, op, (ZQuery) ops.elementAt(1), false, lp);
                 } else {
                     tab2field = ((ZConstant) ops.elementAt(1)).getValue();
-                    lp.addJoin(tab1field, tab2field, op);
+                    // 子查询里和外层查询字段的比较是相关条件，不是子查询自己的连接
+                    if (lp.isEnclosingField(tab1field))
+                        lp.addCorrelation(tab1field, tab2field, op);
+                    else if (lp.isEnclosingField(tab2field))
+                        lp.addCorrelation(tab2field, tab1field, reverse(op));
+                    else
+                        lp.addJoin(tab1field, tab2field, op);
                 }
 
             } else { // select node
-                String column;
-                String compValue;
-                ZConstant op1 = (ZConstant) ops.elementAt(0);
-                ZConstant op2 = (ZConstant) ops.elementAt(1);
-                if (op1.getType() == ZConstant.COLUMNNAME) {
-                    column = op1.getValue();
-                    compValue = new String(op2.getValue());
-                } else {
-                    column = op2.getValue();
-                    compValue = new String(op1.getValue());
-                }
+                lp.addFilter(filterNode(wx, lp));
 
-                lp.addFilter(column, op, compValue);
+            }
+        }
+
+    }
 
+    /**
+     * @return true if wx is field [NOT] IN (subquery), [NOT] EXISTS
+     *         (subquery)
+     */
+    private static boolean isSubqueryPredicate(ZExpression wx) {
+        String op = wx.getOperator();
+        if (op.equals("NOT") && wx.nbOperands() == 1
+                && wx.getOperand(0) instanceof ZExpression)
+            return ((ZExpression) wx.getOperand(0)).getOperator().equals("EXISTS");
+        if (op.equals("EXISTS"))
+            return true;
+        return (op.equals("IN") || op.equals("NOT IN")) && wx.nbOperands() == 2
+                && wx.getOperand(1) instanceof ZQuery;
+    }
+
+    /**
+     * Add the semi join or anti join for a predicate accepted by
+     * {@link #isSubqueryPredicate}.
+     */
+    private void subqueryPredicate(TransactionId tid, ZExpression wx, LogicalPlan lp)
+            throws ParsingException {
+        boolean anti = false;
+        if (wx.getOperator().equals("NOT")) {
+            anti = true;
+            wx = (ZExpression) wx.getOperand(0);
+        }
+        if (wx.getOperator().equals("EXISTS")) {
+            if (!(wx.getOperand(0) instanceof ZQuery))
+                throw new ParsingException("Expected a subquery in " + wx);
+            addSubqueryJoin(tid, null, null, (ZQuery) wx.getOperand(0), anti, lp);
+            return;
+        }
+        addSubqueryJoin(tid, columnOperand(wx, 0), Predicate.Op.EQUALS,
+                (ZQuery) wx.getOperand(1), wx.getOperator().equals("NOT IN"), lp);
+    }
+
+    /**
+     * Parse the subquery q, which may refer to the fields of lp, and add
+     * its semi join or anti join with lp, see
+     * {@link LogicalPlan#addJoin(String, LogicalPlan, Predicate.Op, boolean)}.
+     */
+    private void addSubqueryJoin(TransactionId tid, String field, Predicate.Op op,
+            ZQuery q, boolean anti, LogicalPlan lp) throws ParsingException {
+        try {
+            // 子查询和外层查询一起生成物理计划，外层的条件可以下推进去
+            LogicalPlan sublp = parseQueryLogicalPlan(tid, q, lp);
+            lp.addJoin(field, sublp, op, anti);
+        } catch (IOException e) {
+            throw new ParsingException("Invalid subquery " + q);
+        } catch (ParseException e) {
+            throw new ParsingException("Invalid subquery " + q);
+        }
+    }
+
+    private static boolean isFilterConnective(String op) {
+        return op.equals("OR") || op.equals("NOT") || op.equals("IN")
+                || op.equals("NOT IN") || op.equals("BETWEEN")
+                || op.equals("NOT BETWEEN");
+    }
+
+    /**
+     * Build the filter node for a boolean expression over a single table: a
+     * comparison of a field with a constant, or an AND / OR / NOT / [NOT] IN /
+     * [NOT] BETWEEN built from such comparisons.
+     */
+    LogicalFilterNode filterNode(ZExpression wx, LogicalPlan lp)
+            throws ParsingException {
+        String opName = wx.getOperator();
+        if (opName.equals("AND") || opName.equals("OR")
+                || opName.equals("NOT")) {
+            Vector<LogicalFilterNode> children = new Vector<LogicalFilterNode>();
+            for (int i = 0; i < wx.nbOperands(); i++) {
+                if (!(wx.getOperand(i) instanceof ZExpression)) {
+                    throw new ParsingException(
+                            "Nested queries are currently unsupported.");
+                }
+                children.add(filterNode((ZExpression) wx.getOperand(i), lp));
             }
+            LogicalCompoundFilterNode.Connective c = opName.equals("AND") ? LogicalCompoundFilterNode.Connective.AND
+                    : opName.equals("OR") ? LogicalCompoundFilterNode.Connective.OR
+                            : LogicalCompoundFilterNode.Connective.NOT;
+            return lp.newCompoundFilterNode(c, children);
+        }
+
+        // 其余形式的第一个操作数必须是字段（比较运算可以是 常量 op 字段）
+        @SuppressWarnings("unchecked")
+        Vector<ZExp> ops = wx.getOperands();
+        for (ZExp e : ops) {
+            if (!(e instanceof ZConstant)) {
+                throw new ParsingException("Unsupported expression " + wx
+                        + "; only fields and constants may be compared.");
+            }
+        }
+
+        if (opName.equals("IN") || opName.equals("NOT IN")) {
+            String column = columnOperand(wx, 0);
+            Vector<String> constants = new Vector<String>();
+            for (int i = 1; i < ops.size(); i++)
+                constants.add(constantOperand(wx, i));
+            return lp.newInFilterNode(column, opName.equals("NOT IN"),
+                    constants);
+        }
+
+        if (opName.equals("BETWEEN") || opName.equals("NOT BETWEEN")) {
+            String column = columnOperand(wx, 0);
+            Vector<LogicalFilterNode> range = new Vector<LogicalFilterNode>();
+            range.add(lp.newFilterNode(column,
+                    Predicate.Op.GREATER_THAN_OR_EQ, constantOperand(wx, 1)));
+            range.add(lp.newFilterNode(column, Predicate.Op.LESS_THAN_OR_EQ,
+                    constantOperand(wx, 2)));
+            LogicalFilterNode between = lp.newCompoundFilterNode(
+                    LogicalCompoundFilterNode.Connective.AND, range);
+            if (opName.equals("BETWEEN"))
+                return between;
+            Vector<LogicalFilterNode> not = new Vector<LogicalFilterNode>();
+            not.add(between);
+            return lp.newCompoundFilterNode(
+                    LogicalCompoundFilterNode.Connective.NOT, not);
+        }
+
+        if (ops.size() != 2) {
+            throw new ParsingException(
+                    "Only simple binary expresssions of the form A op B are currently supported.");
+        }
+        Predicate.Op op = getOp(opName);
+        ZConstant left = (ZConstant) ops.elementAt(0), right = (ZConstant) ops.elementAt(1);
+        if (left.getType() != ZConstant.COLUMNNAME
+                && right.getType() != ZConstant.COLUMNNAME) {
+            // 两边都是常量：现在就算出真假，不用每个元组再算一遍
+            return new LogicalCompoundFilterNode(compareConstants(wx, left, op, right));
+        }
+        if (left.getType() == ZConstant.COLUMNNAME) {
+            return lp.newFilterNode(columnOperand(wx, 0), op,
+                    constantOperand(wx, 1));
+        }
+        // 常量在左边时交换操作数，比较方向也要反过来
+        return lp.newFilterNode(columnOperand(wx, 1), reverse(op),
+                constantOperand(wx, 0));
+    }
+
+    private static String columnOperand(ZExpression wx, int i)
+            throws ParsingException {
+        ZConstant c = (ZConstant) wx.getOperand(i);
+        if (c.getType() != ZConstant.COLUMNNAME)
+            throw new ParsingException("Expected a field name in " + wx
+                    + " but found " + c);
+        return c.getValue();
+    }
+
+    private static String constantOperand(ZExpression wx, int i)
+            throws ParsingException {
+        ZConstant c = (ZConstant) wx.getOperand(i);
+        if (c.getType() == ZConstant.COLUMNNAME)
+            throw new ParsingException("Expected a constant in " + wx
+                    + " but found field " + c);
+        return c.getValue();
+    }
+
+    /**
+     * @return the value of c1 op c2, comparing the constants as integers if
+     *         both are numbers and as strings otherwise
+     * @throws ParsingException if one of them is NULL
+     */
+    static boolean compareConstants(ZExpression wx, ZConstant c1, Predicate.Op op, ZConstant c2)
+            throws ParsingException {
+        if (c1.getType() == ZConstant.NULL || c2.getType() == ZConstant.NULL)
+            throw new ParsingException("NULL is not supported in " + wx);
+        Field f1, f2;
+        try {
+            f1 = new IntField(Integer.parseInt(c1.getValue()));
+            f2 = new IntField(Integer.parseInt(c2.getValue()));
+        } catch (NumberFormatException e) {
+            f1 = new StringField(c1.getValue(), Type.STRING_LEN);
+            f2 = new StringField(c2.getValue(), Type.STRING_LEN);
         }
+        return f1.compare(op, f2);
+    }
 
+    /** @return op' such that (a op b) == (b op' a) */
+    static Predicate.Op reverse(Predicate.Op op) {
+        switch (op) {
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        default:
+            return op;
+        }
     }
 
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, ParseException, ParsingException {
+        return parseQueryLogicalPlan(tid, q, null);
+    }
+
+    /**
+     * Parse q as a subquery of enclosing, whose fields its WHERE clause may
+     * compare its own with, or as a query if enclosing is null.
+     */
+    LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q, LogicalPlan enclosing)
+            throws IOException, ParseException, ParsingException {
         @SuppressWarnings("unchecked")
         Vector<ZFromItem> from = q.getFrom();
         LogicalPlan lp = new LogicalPlan();
         lp.setQuery(q.toString());
+        lp.setEnclosing(enclosing);
         // walk through tables in the FROM clause
         for (int i = 0; i < from.size(); i++) {
             ZFromItem fromIt = from.elementAt(i);
@@ -225,6 +469,15 @@ public class Parser {
                 aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
                 aggFun = si.getAggregate();
+                // Zql把COUNT(DISTINCT x)的参数解析成"distinct x"
+                if (aggField.toLowerCase().startsWith("distinct ")) {
+                    if (!aggFun.equalsIgnoreCase("count")) {
+                        throw new ParsingException(
+                                "DISTINCT is only supported in COUNT.");
+                    }
+                    aggField = aggField.substring("distinct ".length()).trim();
+                    aggFun = Aggregator.Op.COUNT_DISTINCT.toString();
+                }
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
@@ -248,6 +501,10 @@ public class Parser {
         if (aggFun != null) {
             lp.addAggregate(aggFun, aggField, groupByField);
         }
+
+        if (q.isDistinct()) {
+            lp.addDistinct();
+        }
         // sort the data
 
         if (q.getOrderBy() != null) {
@@ -270,6 +527,100 @@ public class Parser {
         return lp;
     }
 
+    /**
+     * Remove a trailing LIMIT / OFFSET clause from the statement s and
+     * remember it for {@link #addStrippedClauses}.
+     *
+     * @return s without the clause
+     */
+    String stripLimit(String s) throws ParsingException {
+        limit = Limit.NO_LIMIT;
+        offset = 0;
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.find())
+            return s;
+        try {
+            if (m.group(1) != null)
+                limit = Integer.parseInt(m.group(1));
+            String off = m.group(2) != null ? m.group(2) : m.group(3);
+            if (off != null)
+                offset = Integer.parseInt(off);
+        } catch (NumberFormatException e) {
+            throw new ParsingException("LIMIT or OFFSET out of range: " + m.group().trim());
+        }
+        return s.substring(0, m.start()) + m.group(4);
+    }
+
+    /**
+     * Remove the TABLESAMPLE clauses from the statement s and remember them
+     * for {@link #addStrippedClauses}.
+     *
+     * @return s without the clauses
+     */
+    String stripTableSample(String s) throws ParsingException {
+        tableSamples.clear();
+        Matcher m = TABLESAMPLE_CLAUSE.matcher(s);
+        StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            String alias = m.group(4) != null ? m.group(4) : m.group(2);
+            SampleScan.Method method = SampleScan.Method.valueOf(m.group(5).toUpperCase());
+            long seed;
+            try {
+                seed = m.group(7) != null ? Long.parseLong(m.group(7)) : System.nanoTime();
+            } catch (NumberFormatException e) {
+                throw new ParsingException("REPEATABLE seed out of range: " + m.group(7));
+            }
+            tableSamples.add(new TableSample(alias, method, Double.parseDouble(m.group(6)), seed));
+            String table = m.group(1) + m.group(2) + (m.group(3) != null ? m.group(3) : "");
+            m.appendReplacement(sb, Matcher.quoteReplacement(table));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Remove the clauses that Zql cannot parse, LIMIT / OFFSET and
+     * TABLESAMPLE, from the statement s.
+     */
+    String stripClauses(String s) throws ParsingException {
+        return stripTableSample(stripLimit(s));
+    }
+
+    /**
+     * Throw if a LIMIT / OFFSET or TABLESAMPLE clause was cut off a
+     * statement that has no query to apply it to, such as a DELETE or an
+     * INSERT ... VALUES. Zql rejects such statements, and ignoring the
+     * clause would change what the statement does: a DELETE would remove
+     * every matching row instead of some of them.
+     *
+     * @param statement
+     *            the kind of statement, for the error message
+     */
+    private void rejectStrippedClauses(String statement) throws ParsingException {
+        boolean hasLimit = limit != Limit.NO_LIMIT || offset != 0;
+        boolean hasSample = !tableSamples.isEmpty();
+        limit = Limit.NO_LIMIT;
+        offset = 0;
+        tableSamples.clear();
+        if (hasLimit)
+            throw new ParsingException("LIMIT and OFFSET are not supported in " + statement + " statements");
+        if (hasSample)
+            throw new ParsingException("TABLESAMPLE is not supported in " + statement + " statements");
+    }
+
+    /**
+     * Add the LIMIT / OFFSET and TABLESAMPLE clauses of the statement being
+     * processed, if any, to the plan of its query.
+     */
+    private void addStrippedClauses(LogicalPlan lp) throws ParsingException {
+        lp.addLimit(limit, offset);
+        limit = Limit.NO_LIMIT;
+        offset = 0;
+        for (TableSample ts : tableSamples)
+            lp.addTableSample(ts.alias, ts.method, ts.percent, ts.seed);
+        tableSamples.clear();
+    }
+
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
@@ -280,6 +631,7 @@ public class Parser {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        addStrippedClauses(lp);
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -344,6 +696,7 @@ public class Parser {
         DbIterator newTups;
 
         if (s.getValues() != null) {
+            rejectStrippedClauses("INSERT ... VALUES");
             @SuppressWarnings("unchecked")
             Vector<ZExp> values = (Vector<ZExp>) s.getValues();
             if (td.numFields() != values.size()) {
@@ -388,6 +741,7 @@ public class Parser {
         } else {
             ZQuery zq = (ZQuery) s.getQuery();
             LogicalPlan lp = parseQueryLogicalPlan(tId, zq);
+            addStrippedClauses(lp);
             newTups = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         }
         Query insertQ = new Query(tId);
@@ -398,6 +752,8 @@ public class Parser {
     public Query handleDeleteStatement(ZDelete s, TransactionId tid)
             throws TransactionAbortedException, DbException, IOException,
             ParsingException, ParseException {
+        // DELETE没有LIMIT和TABLESAMPLE，不能忽略它们而删除所有满足条件的行
+        rejectStrippedClauses("DELETE");
         int id;
         try {
             id = Database.getCatalog().getTableId(s.getTable()); // will fall
@@ -431,6 +787,7 @@ public class Parser {
     public void handleTransactStatement(ZTransactStmt s)
             throws TransactionAbortedException, DbException, IOException,
             ParsingException, ParseException {
+        rejectStrippedClauses("transaction");
         if (s.getStmtType().equals("COMMIT")) {
             if (curtrans == null)
                 throw new ParsingException(
@@ -466,12 +823,13 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripClauses(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                addStrippedClauses(lp);
                 return lp;
             }
         } catch (ParseException e) {
@@ -504,7 +862,13 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            // 先读出整个语句，去掉Zql不支持的LIMIT和TABLESAMPLE子句
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n; (n = is.read(buf)) > 0;)
+                bytes.write(buf, 0, n);
+            String statement = stripClauses(bytes.toString("UTF-8"));
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(statement.getBytes("UTF-8")));
             ZStatement s = p.readStatement();
 
             Query query = null;
@@ -582,7 +946,9 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "limit", "offset", "distinct",
+            "tablesample", "system(", "bernoulli(", "repeatable(",
+            "approx_count_distinct(", "approx_count(", "approx_sum(", "approx_avg(" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -607,7 +973,8 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        CostModel.loadOrCalibrate(CostModel.fileFor(argv[0]));
+        TableStats.loadOrComputeStatistics(TableStats.statsFileFor(argv[0]));
 
         String queryFile = null;
 
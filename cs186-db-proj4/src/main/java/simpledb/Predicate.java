@@ -61,6 +61,9 @@ public class Predicate implements Serializable {
     private Op op;
     private Field operand;
 
+    /** The specialized evaluator of this predicate, built on first use */
+    private transient PredicateCompiler.TupleFilter compiled;
+
     /**
      * Constructor.
      * 
@@ -117,7 +120,10 @@ public class Predicate implements Serializable {
      */
     public boolean filter(Tuple t) {
         // some code goes here
-        return t.getField(field).compare(op, operand);
+        if (compiled == null) {
+            compiled = PredicateCompiler.compile(this);
+        }
+        return compiled.eval(t);
     }
 
     /**
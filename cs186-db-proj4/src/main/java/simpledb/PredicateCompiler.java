@@ -0,0 +1,215 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * PredicateCompiler turns a {@link Predicate} or {@link JoinPredicate} into a
+ * small evaluator object that is specialized for the field type and operator
+ * of the predicate.
+ * <p>
+ * The interpreted path ({@link Field#compare}) casts the operand and switches
+ * on the operator for every row. The compiled evaluators do that work once:
+ * the operator is folded into a three-entry truth table (less / equal /
+ * greater) and integer values are compared as primitives, so the per-row cost
+ * is a field read plus one or two int comparisons. Each evaluator class is
+ * final and a given call site only ever sees one of them, which lets the JIT
+ * inline it like generated code.
+ *
+ * 谓词编译：在查询开始时根据字段类型和操作符选好比较方式，执行时不再每行switch
+ */
+public class PredicateCompiler {
+
+    /** Evaluates a single-table predicate against one tuple. */
+    public interface TupleFilter extends Serializable {
+        boolean eval(Tuple t);
+    }
+
+    /** Evaluates a join predicate against a pair of tuples. */
+    public interface TuplePairFilter extends Serializable {
+        boolean eval(Tuple left, Tuple right);
+    }
+
+    /**
+     * Compile a predicate of the form <tt>t.field op constant</tt>.
+     *
+     * @param p
+     *            the predicate to compile
+     * @return an evaluator equivalent to {@link Predicate#filter}
+     */
+    public static TupleFilter compile(Predicate p) {
+        Field operand = p.getOperand();
+        int field = p.getField();
+        Predicate.Op op = p.getOp();
+        if (operand.getType() == Type.INT_TYPE) {
+            return new IntConstFilter(field, op, ((IntField) operand).getValue());
+        }
+        String value = ((StringField) operand).getValue();
+        if (op == Predicate.Op.LIKE) {
+            return new StringLikeFilter(field, value);
+        }
+        return new StringConstFilter(field, op, value);
+    }
+
+    /**
+     * Compile a join predicate of the form <tt>t1.field1 op t2.field2</tt>.
+     *
+     * @param p
+     *            the join predicate to compile
+     * @param type
+     *            the type of the two join fields
+     * @return an evaluator equivalent to {@link JoinPredicate#filter}
+     */
+    public static TuplePairFilter compile(JoinPredicate p, Type type) {
+        int f1 = p.getField1();
+        int f2 = p.getField2();
+        Predicate.Op op = p.getOperator();
+        if (type == Type.INT_TYPE) {
+            return new IntJoinFilter(f1, f2, op);
+        }
+        if (op == Predicate.Op.LIKE) {
+            return new StringLikeJoinFilter(f1, f2);
+        }
+        return new StringJoinFilter(f1, f2, op);
+    }
+
+    /**
+     * The result of <tt>a op b</tt> only depends on whether a is less than,
+     * equal to or greater than b. Returns that truth table as
+     * {ifLess, ifEqual, ifGreater}.
+     */
+    static boolean[] truthTable(Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+            case LIKE:      // LIKE对int来说与EQUALS相同，字符串的LIKE单独处理
+                return new boolean[]{false, true, false};
+            case NOT_EQUALS:
+                return new boolean[]{true, false, true};
+            case GREATER_THAN:
+                return new boolean[]{false, false, true};
+            case GREATER_THAN_OR_EQ:
+                return new boolean[]{false, true, true};
+            case LESS_THAN:
+                return new boolean[]{true, false, false};
+            case LESS_THAN_OR_EQ:
+                return new boolean[]{true, true, false};
+            default:
+                throw new IllegalArgumentException("unknown operator " + op);
+        }
+    }
+
+    private static final class IntConstFilter implements TupleFilter {
+        private static final long serialVersionUID = 1L;
+        private final int field;
+        private final int constant;
+        private final boolean ifLess, ifEqual, ifGreater;
+
+        IntConstFilter(int field, Predicate.Op op, int constant) {
+            boolean[] table = truthTable(op);
+            this.field = field;
+            this.constant = constant;
+            this.ifLess = table[0];
+            this.ifEqual = table[1];
+            this.ifGreater = table[2];
+        }
+
+        public boolean eval(Tuple t) {
+            int v = ((IntField) t.getField(field)).getValue();
+            return v < constant ? ifLess : (v == constant ? ifEqual : ifGreater);
+        }
+    }
+
+    private static final class StringConstFilter implements TupleFilter {
+        private static final long serialVersionUID = 1L;
+        private final int field;
+        private final String constant;
+        private final boolean ifLess, ifEqual, ifGreater;
+
+        StringConstFilter(int field, Predicate.Op op, String constant) {
+            boolean[] table = truthTable(op);
+            this.field = field;
+            this.constant = constant;
+            this.ifLess = table[0];
+            this.ifEqual = table[1];
+            this.ifGreater = table[2];
+        }
+
+        public boolean eval(Tuple t) {
+            int c = ((StringField) t.getField(field)).getValue().compareTo(constant);
+            return c < 0 ? ifLess : (c == 0 ? ifEqual : ifGreater);
+        }
+    }
+
+    private static final class StringLikeFilter implements TupleFilter {
+        private static final long serialVersionUID = 1L;
+        private final int field;
+        private final String pattern;
+
+        StringLikeFilter(int field, String pattern) {
+            this.field = field;
+            this.pattern = pattern;
+        }
+
+        public boolean eval(Tuple t) {
+            return ((StringField) t.getField(field)).getValue().indexOf(pattern) >= 0;
+        }
+    }
+
+    private static final class IntJoinFilter implements TuplePairFilter {
+        private static final long serialVersionUID = 1L;
+        private final int f1, f2;
+        private final boolean ifLess, ifEqual, ifGreater;
+
+        IntJoinFilter(int f1, int f2, Predicate.Op op) {
+            boolean[] table = truthTable(op);
+            this.f1 = f1;
+            this.f2 = f2;
+            this.ifLess = table[0];
+            this.ifEqual = table[1];
+            this.ifGreater = table[2];
+        }
+
+        public boolean eval(Tuple left, Tuple right) {
+            int a = ((IntField) left.getField(f1)).getValue();
+            int b = ((IntField) right.getField(f2)).getValue();
+            return a < b ? ifLess : (a == b ? ifEqual : ifGreater);
+        }
+    }
+
+    private static final class StringJoinFilter implements TuplePairFilter {
+        private static final long serialVersionUID = 1L;
+        private final int f1, f2;
+        private final boolean ifLess, ifEqual, ifGreater;
+
+        StringJoinFilter(int f1, int f2, Predicate.Op op) {
+            boolean[] table = truthTable(op);
+            this.f1 = f1;
+            this.f2 = f2;
+            this.ifLess = table[0];
+            this.ifEqual = table[1];
+            this.ifGreater = table[2];
+        }
+
+        public boolean eval(Tuple left, Tuple right) {
+            String a = ((StringField) left.getField(f1)).getValue();
+            String b = ((StringField) right.getField(f2)).getValue();
+            int c = a.compareTo(b);
+            return c < 0 ? ifLess : (c == 0 ? ifEqual : ifGreater);
+        }
+    }
+
+    private static final class StringLikeJoinFilter implements TuplePairFilter {
+        private static final long serialVersionUID = 1L;
+        private final int f1, f2;
+
+        StringLikeJoinFilter(int f1, int f2) {
+            this.f1 = f1;
+            this.f2 = f2;
+        }
+
+        public boolean eval(Tuple left, Tuple right) {
+            String a = ((StringField) left.getField(f1)).getValue();
+            String b = ((StringField) right.getField(f2)).getValue();
+            return a.indexOf(b) >= 0;
+        }
+    }
+}
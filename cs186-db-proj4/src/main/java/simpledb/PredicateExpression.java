@@ -0,0 +1,327 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * PredicateExpression is a boolean expression tree (AND / OR / NOT / IN over
+ * simple <tt>field op constant</tt> predicates) evaluated by a single
+ * {@link Filter} operator.
+ * <p>
+ * AND and OR short-circuit. Each of them also keeps counters of how often
+ * its children are true, and every {@link #REORDER_INTERVAL} evaluations it
+ * re-sorts the children so the ones most likely to decide the result per
+ * unit of CPU cost run first. IN-lists are evaluated as a probe into a hash
+ * set of the constants.
+ *
+ * 复合谓词表达式：在一个Filter中计算，短路求值，并根据实际选择率动态调整子表达式顺序
+ */
+public abstract class PredicateExpression implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of evaluations of an AND/OR between two re-orderings of its children */
+    static final int REORDER_INTERVAL = 1024;
+
+    /** Estimates the selectivity of <tt>field op constant</tt>, where field is an index into the filtered tuples */
+    public interface SelectivityEstimator {
+        double estimate(int field, Predicate.Op op, Field constant);
+    }
+
+    /**
+     * @return true if t satisfies this expression
+     */
+    public abstract boolean eval(Tuple t);
+
+    /**
+     * @return the relative CPU cost of one evaluation of this expression;
+     *         a comparison of two ints costs 1
+     */
+    public abstract double cost();
+
+    /**
+     * @return the estimated fraction of tuples that satisfy this expression
+     */
+    public abstract double estimateSelectivity(SelectivityEstimator estimator);
+
+    /**
+     * Add the index of every field this expression reads to fields
+     */
+    public abstract void collectFields(Set<Integer> fields);
+
+    /**
+     * @return a readable form of this expression, using field names from td
+     */
+    public abstract String toString(TupleDesc td);
+
+    public static PredicateExpression leaf(Predicate p) {
+        return new Leaf(p);
+    }
+
+    public static PredicateExpression and(List<PredicateExpression> children) {
+        return children.size() == 1 ? children.get(0) : new Junction(children, true);
+    }
+
+    public static PredicateExpression or(List<PredicateExpression> children) {
+        return children.size() == 1 ? children.get(0) : new Junction(children, false);
+    }
+
+    public static PredicateExpression not(PredicateExpression child) {
+        return new Not(child);
+    }
+
+    public static PredicateExpression in(int field, Set<Field> values, boolean negated) {
+        return new In(field, values, negated);
+    }
+
+    public static PredicateExpression compare(int field1, Predicate.Op op, int field2) {
+        return new FieldCompare(field1, op, field2);
+    }
+
+    /** A single <tt>field op constant</tt> comparison */
+    static final class Leaf extends PredicateExpression {
+        private static final long serialVersionUID = 1L;
+        final Predicate predicate;
+        private transient PredicateCompiler.TupleFilter compiled;
+
+        Leaf(Predicate predicate) {
+            this.predicate = predicate;
+        }
+
+        public boolean eval(Tuple t) {
+            if (compiled == null) {
+                compiled = PredicateCompiler.compile(predicate);
+            }
+            return compiled.eval(t);
+        }
+
+        public double cost() {
+            if (predicate.getOperand().getType() == Type.INT_TYPE)
+                return 1;
+            // 字符串比较比int慢，LIKE需要子串查找，更慢
+            return predicate.getOp() == Predicate.Op.LIKE ? 8 : 3;
+        }
+
+        public double estimateSelectivity(SelectivityEstimator estimator) {
+            return estimator.estimate(predicate.getField(), predicate.getOp(), predicate.getOperand());
+        }
+
+        public void collectFields(Set<Integer> fields) {
+            fields.add(predicate.getField());
+        }
+
+        public String toString(TupleDesc td) {
+            return td.getFieldName(predicate.getField()) + predicate.getOp() + predicate.getOperand();
+        }
+    }
+
+    /**
+     * AND (conjunction == true) or OR (conjunction == false) of several
+     * children. The children array is re-ordered in place while running.
+     */
+    static final class Junction extends PredicateExpression {
+        private static final long serialVersionUID = 1L;
+        private final boolean conjunction;
+        private final PredicateExpression[] children;
+        /** evaluations / true results of each child since the last reorder, indexed like children */
+        private final long[] evals, passes;
+        private int sinceReorder = 0;
+
+        Junction(List<PredicateExpression> children, boolean conjunction) {
+            this.conjunction = conjunction;
+            this.children = children.toArray(new PredicateExpression[0]);
+            this.evals = new long[this.children.length];
+            this.passes = new long[this.children.length];
+            // 初始顺序：先按代价排序，便宜的先算
+            Arrays.sort(this.children, (a, b) -> Double.compare(a.cost(), b.cost()));
+        }
+
+        public boolean eval(Tuple t) {
+            if (++sinceReorder >= REORDER_INTERVAL) {
+                reorder();
+            }
+            for (int i = 0; i < children.length; i++) {
+                boolean r = children[i].eval(t);
+                evals[i]++;
+                if (r) passes[i]++;
+                // AND遇到false、OR遇到true即可短路返回
+                if (r != conjunction) {
+                    return r;
+                }
+            }
+            return conjunction;
+        }
+
+        /**
+         * Sort children by the probability that they decide the result
+         * (false for AND, true for OR) divided by their cost, highest first.
+         */
+        private void reorder() {
+            sinceReorder = 0;
+            int n = children.length;
+            Integer[] order = new Integer[n];
+            final double[] rank = new double[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+                // 没被计算过的子表达式按0.5的选择率处理
+                double sel = evals[i] == 0 ? 0.5 : (double) passes[i] / evals[i];
+                double decide = conjunction ? 1 - sel : sel;
+                rank[i] = decide / children[i].cost();
+            }
+            Arrays.sort(order, (a, b) -> Double.compare(rank[b], rank[a]));
+            PredicateExpression[] oldChildren = children.clone();
+            long[] oldEvals = evals.clone();
+            long[] oldPasses = passes.clone();
+            for (int i = 0; i < n; i++) {
+                children[i] = oldChildren[order[i]];
+                // 计数减半，使统计能跟上数据分布的变化
+                evals[i] = oldEvals[order[i]] / 2;
+                passes[i] = oldPasses[order[i]] / 2;
+            }
+        }
+
+        public double cost() {
+            double c = 0;
+            for (PredicateExpression e : children)
+                c += e.cost();
+            return c;
+        }
+
+        public double estimateSelectivity(SelectivityEstimator estimator) {
+            // 假设各子表达式相互独立
+            double s = 1.0;
+            for (PredicateExpression e : children) {
+                double sel = e.estimateSelectivity(estimator);
+                s *= conjunction ? sel : 1 - sel;
+            }
+            return conjunction ? s : 1 - s;
+        }
+
+        public void collectFields(Set<Integer> fields) {
+            for (PredicateExpression e : children)
+                e.collectFields(fields);
+        }
+
+        public String toString(TupleDesc td) {
+            StringBuilder sb = new StringBuilder("(");
+            for (int i = 0; i < children.length; i++) {
+                if (i > 0)
+                    sb.append(conjunction ? " AND " : " OR ");
+                sb.append(children[i].toString(td));
+            }
+            return sb.append(')').toString();
+        }
+    }
+
+    static final class Not extends PredicateExpression {
+        private static final long serialVersionUID = 1L;
+        private final PredicateExpression child;
+
+        Not(PredicateExpression child) {
+            this.child = child;
+        }
+
+        public boolean eval(Tuple t) {
+            return !child.eval(t);
+        }
+
+        public double cost() {
+            return child.cost();
+        }
+
+        public double estimateSelectivity(SelectivityEstimator estimator) {
+            return 1 - child.estimateSelectivity(estimator);
+        }
+
+        public void collectFields(Set<Integer> fields) {
+            child.collectFields(fields);
+        }
+
+        public String toString(TupleDesc td) {
+            return "NOT " + child.toString(td);
+        }
+    }
+
+    /**
+     * <tt>field1 op field2</tt> on the same tuple, such as a join predicate
+     * between two tables already joined by another predicate
+     */
+    static final class FieldCompare extends PredicateExpression {
+        private static final long serialVersionUID = 1L;
+        private final int field1, field2;
+        private final Predicate.Op op;
+
+        FieldCompare(int field1, Predicate.Op op, int field2) {
+            this.field1 = field1;
+            this.op = op;
+            this.field2 = field2;
+        }
+
+        public boolean eval(Tuple t) {
+            return t.getField(field1).compare(op, t.getField(field2));
+        }
+
+        public double cost() {
+            return 1;
+        }
+
+        public double estimateSelectivity(SelectivityEstimator estimator) {
+            // 没有两列之间的联合统计，用和连接一样的默认值
+            return op == Predicate.Op.EQUALS ? 0.1 : 1.0 / 3;
+        }
+
+        public void collectFields(Set<Integer> fields) {
+            fields.add(field1);
+            fields.add(field2);
+        }
+
+        public String toString(TupleDesc td) {
+            return td.getFieldName(field1) + op + td.getFieldName(field2);
+        }
+    }
+
+    /** <tt>field [NOT] IN (c1, c2, ...)</tt>, evaluated with one hash probe */
+    static final class In extends PredicateExpression {
+        private static final long serialVersionUID = 1L;
+        private final int field;
+        private final HashSet<Field> values;
+        private final boolean negated;
+
+        In(int field, Set<Field> values, boolean negated) {
+            this.field = field;
+            this.values = new HashSet<Field>(values);
+            this.negated = negated;
+        }
+
+        public boolean eval(Tuple t) {
+            return values.contains(t.getField(field)) != negated;
+        }
+
+        public double cost() {
+            return 2;
+        }
+
+        public double estimateSelectivity(SelectivityEstimator estimator) {
+            double s = 0;
+            for (Field f : values)
+                s += estimator.estimate(field, Predicate.Op.EQUALS, f);
+            s = Math.min(1.0, s);
+            return negated ? 1 - s : s;
+        }
+
+        public void collectFields(Set<Integer> fields) {
+            fields.add(field);
+        }
+
+        public String toString(TupleDesc td) {
+            List<String> vals = new ArrayList<String>();
+            for (Field f : values)
+                vals.add(f.toString());
+            return td.getFieldName(field) + (negated ? " NOT IN " : " IN ") + vals;
+        }
+    }
+}
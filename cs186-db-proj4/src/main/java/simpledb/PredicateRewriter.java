@@ -0,0 +1,401 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.Vector;
+
+/**
+ * Rewrites the filters of a {@link LogicalPlan} before it is planned, so
+ * that the join optimizer sees the inputs as small as the WHERE clause
+ * makes them:
+ * <ul>
+ * <li>ANDs are split into their operands and constant conditions are
+ * dropped (constant folding itself happens as the filters are built, see
+ * {@link LogicalPlan#newCompoundFilterNode});</li>
+ * <li>a comparison of a column with a constant also holds for every column
+ * that an equality join makes equal to it, and is copied to them:
+ * a.x = b.x AND a.x &gt; 5 gives b.x &gt; 5;</li>
+ * <li>the comparisons of an integer column are merged into its tightest
+ * bounds, IN lists are intersected, and repeated comparisons dropped;</li>
+ * <li>if no tuple can satisfy the comparisons of some column, or the WHERE
+ * clause holds a constant FALSE, the whole WHERE clause is false, see
+ * {@link #contradiction}.</li>
+ * </ul>
+ * Filters over more than one comparison of a table (OR, NOT) are kept as
+ * they are.
+ *
+ * 谓词改写：拆开AND、去掉常量条件、沿等值连接传递谓词、合并范围、发现矛盾
+ */
+class PredicateRewriter {
+
+    private final Map<String, Integer> tableMap;
+
+    private final Vector<LogicalFilterNode> filters = new Vector<LogicalFilterNode>();
+
+    /** The columns equal to each column by an equality join, itself included */
+    private final HashMap<String, List<String>> equalColumns = new HashMap<String, List<String>>();
+
+    private boolean contradiction;
+
+    /**
+     * @param filters
+     *            the filters of the WHERE clause, all of which must hold
+     * @param joins
+     *            the joins of the WHERE clause
+     * @param tableMap
+     *            the table id of each alias of the plan
+     */
+    PredicateRewriter(Vector<LogicalFilterNode> filters, Vector<LogicalJoinNode> joins,
+            Map<String, Integer> tableMap) {
+        this.tableMap = tableMap;
+        ArrayList<LogicalFilterNode> conjuncts = new ArrayList<LogicalFilterNode>();
+        for (LogicalFilterNode lf : filters)
+            split(lf, conjuncts);
+        if (contradiction)
+            return;
+        findEqualColumns(joins);
+
+        // 每个列上的比较归到一起，沿等值连接复制到相等的列上
+        LinkedHashMap<String, ArrayList<LogicalFilterNode>> byColumn =
+                new LinkedHashMap<String, ArrayList<LogicalFilterNode>>();
+        ArrayList<LogicalFilterNode> others = new ArrayList<LogicalFilterNode>();
+        for (LogicalFilterNode lf : conjuncts) {
+            if (!isColumnFilter(lf)) {
+                others.add(lf);
+                continue;
+            }
+            for (String column : columnsEqualTo(lf.fieldQuantifiedName)) {
+                LogicalFilterNode f = column.equals(lf.fieldQuantifiedName) ? lf : copyTo(lf, column);
+                if (f == null)
+                    continue;
+                if (!byColumn.containsKey(column))
+                    byColumn.put(column, new ArrayList<LogicalFilterNode>());
+                byColumn.get(column).add(f);
+            }
+        }
+
+        for (ArrayList<LogicalFilterNode> comparisons : byColumn.values()) {
+            List<LogicalFilterNode> merged = merge(comparisons);
+            if (merged == null) {
+                contradiction = true;
+                this.filters.clear();
+                return;
+            }
+            this.filters.addAll(merged);
+        }
+        this.filters.addAll(others);
+    }
+
+    /**
+     * @return the rewritten filters; empty if {@link #contradiction}
+     */
+    Vector<LogicalFilterNode> filters() {
+        return filters;
+    }
+
+    /**
+     * @return true if no tuple can satisfy the WHERE clause, so the query
+     *         returns nothing without reading any table
+     */
+    boolean contradiction() {
+        return contradiction;
+    }
+
+    /**
+     * @return the comparisons of the rewritten filters on the column with
+     *         the given quantified name
+     */
+    List<LogicalFilterNode> filtersOn(String column) {
+        ArrayList<LogicalFilterNode> on = new ArrayList<LogicalFilterNode>();
+        for (LogicalFilterNode lf : filters) {
+            if (isColumnFilter(lf) && lf.fieldQuantifiedName.equals(column))
+                on.add(lf);
+        }
+        return on;
+    }
+
+    /** Add the operands of the ANDs in lf to conjuncts, leaving out TRUE */
+    private void split(LogicalFilterNode lf, List<LogicalFilterNode> conjuncts) {
+        if (lf instanceof LogicalCompoundFilterNode) {
+            LogicalCompoundFilterNode cf = (LogicalCompoundFilterNode) lf;
+            switch (cf.connective) {
+            case TRUE:
+                return;
+            case FALSE:
+                contradiction = true;
+                return;
+            case AND:
+                for (LogicalFilterNode child : cf.children)
+                    split(child, conjuncts);
+                return;
+            default:
+                break;
+            }
+        }
+        conjuncts.add(lf);
+    }
+
+    /** @return true if lf compares a single column with constants */
+    static boolean isColumnFilter(LogicalFilterNode lf) {
+        if (!(lf instanceof LogicalCompoundFilterNode))
+            return lf.p != null;
+        LogicalCompoundFilterNode.Connective c = ((LogicalCompoundFilterNode) lf).connective;
+        return c == LogicalCompoundFilterNode.Connective.IN
+                || c == LogicalCompoundFilterNode.Connective.NOT_IN;
+    }
+
+    // ===================== Equal columns =================================
+
+    private final HashMap<String, String> parent = new HashMap<String, String>();
+
+    private String find(String column) {
+        String p = parent.get(column);
+        if (p == null)
+            return column;
+        String root = find(p);
+        parent.put(column, root);
+        return root;
+    }
+
+    private void findEqualColumns(Vector<LogicalJoinNode> joins) {
+        for (LogicalJoinNode j : joins) {
+            if (j instanceof LogicalSubplanJoinNode || j.p != Predicate.Op.EQUALS)
+                continue;
+            String r1 = find(j.f1QuantifiedName), r2 = find(j.f2QuantifiedName);
+            if (!r1.equals(r2))
+                parent.put(r2, r1);
+        }
+        for (String column : parent.keySet().toArray(new String[0])) {
+            String root = find(column);
+            if (!equalColumns.containsKey(root)) {
+                equalColumns.put(root, new ArrayList<String>());
+                equalColumns.get(root).add(root);
+            }
+            equalColumns.get(root).add(column);
+        }
+    }
+
+    /** @return the columns equal to column, column itself first */
+    private List<String> columnsEqualTo(String column) {
+        List<String> equal = equalColumns.get(find(column));
+        ArrayList<String> columns = new ArrayList<String>();
+        columns.add(column);
+        if (equal != null) {
+            for (String c : equal) {
+                if (!c.equals(column))
+                    columns.add(c);
+            }
+        }
+        return columns;
+    }
+
+    private Type typeOf(String column) {
+        return typeOf(column, tableMap);
+    }
+
+    /**
+     * @return the type of the column with the given quantified name, given
+     *         the table id of each alias, or null if it is unknown
+     */
+    static Type typeOf(String column, Map<String, Integer> tableMap) {
+        String[] parts = column.split("[.]");
+        Integer tableid = tableMap.get(parts[0]);
+        if (tableid == null || parts.length != 2)
+            return null;
+        try {
+            TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+            return td.getFieldType(td.fieldNameToIndex(parts[1]));
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the comparison lf on column instead of its own column, or null
+     *         if the columns are of different types
+     */
+    private LogicalFilterNode copyTo(LogicalFilterNode lf, String column) {
+        Type type = typeOf(column);
+        if (type == null || type != typeOf(lf.fieldQuantifiedName))
+            return null;
+        String table = column.split("[.]")[0];
+        if (lf instanceof LogicalCompoundFilterNode) {
+            LogicalCompoundFilterNode cf = (LogicalCompoundFilterNode) lf;
+            return new LogicalCompoundFilterNode(table, column,
+                    cf.connective == LogicalCompoundFilterNode.Connective.NOT_IN, cf.inList);
+        }
+        return new LogicalFilterNode(table, column, lf.p, lf.c);
+    }
+
+    // ===================== Merging comparisons =========================
+
+    /**
+     * Merge the comparisons of one column.
+     *
+     * @return the comparisons to keep, or null if no value satisfies them all
+     */
+    private List<LogicalFilterNode> merge(List<LogicalFilterNode> comparisons) {
+        String column = comparisons.get(0).fieldQuantifiedName;
+        if (typeOf(column) == Type.INT_TYPE) {
+            try {
+                return mergeInts(comparisons);
+            } catch (NumberFormatException e) {
+                // 常量不是整数，留给生成物理计划时报错
+                return comparisons;
+            }
+        }
+        return mergeEquals(comparisons);
+    }
+
+    private static int[] intConstants(LogicalFilterNode lf) {
+        if (lf instanceof LogicalCompoundFilterNode) {
+            Vector<String> list = ((LogicalCompoundFilterNode) lf).inList;
+            int[] values = new int[list.size()];
+            for (int i = 0; i < values.length; i++)
+                values[i] = Integer.parseInt(list.get(i).trim());
+            return values;
+        }
+        return new int[] { Integer.parseInt(lf.c.trim()) };
+    }
+
+    /**
+     * Merge the comparisons of an integer column: keep the tightest lower
+     * and upper bound, reduce equalities and IN lists to the values all of
+     * them allow, and drop the values excluded by != or NOT IN that the
+     * bounds already exclude.
+     */
+    private static List<LogicalFilterNode> mergeInts(List<LogicalFilterNode> comparisons) {
+        LogicalFilterNode first = comparisons.get(0);
+        long lo = Integer.MIN_VALUE, hi = Integer.MAX_VALUE;
+        LogicalFilterNode loNode = null, hiNode = null;
+        TreeSet<Long> allowed = null;
+        TreeSet<Long> excluded = new TreeSet<Long>();
+        ArrayList<LogicalFilterNode> others = new ArrayList<LogicalFilterNode>();
+
+        for (LogicalFilterNode lf : comparisons) {
+            if (lf instanceof LogicalCompoundFilterNode || lf.p == Predicate.Op.EQUALS) {
+                TreeSet<Long> values = new TreeSet<Long>();
+                for (int v : intConstants(lf))
+                    values.add((long) v);
+                boolean negated = lf instanceof LogicalCompoundFilterNode
+                        && ((LogicalCompoundFilterNode) lf).connective
+                                == LogicalCompoundFilterNode.Connective.NOT_IN;
+                if (negated) {
+                    excluded.addAll(values);
+                } else if (allowed == null) {
+                    allowed = values;
+                } else {
+                    allowed.retainAll(values);
+                }
+                continue;
+            }
+            long c = intConstants(lf)[0];
+            switch (lf.p) {
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                long l = lf.p == Predicate.Op.GREATER_THAN ? c + 1 : c;
+                if (loNode == null || l > lo) {
+                    lo = Math.max(lo, l);
+                    loNode = lf;
+                }
+                break;
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+                long h = lf.p == Predicate.Op.LESS_THAN ? c - 1 : c;
+                if (hiNode == null || h < hi) {
+                    hi = Math.min(hi, h);
+                    hiNode = lf;
+                }
+                break;
+            case NOT_EQUALS:
+                excluded.add(c);
+                break;
+            default:
+                others.add(lf);
+            }
+        }
+        if (lo > hi)
+            return null;
+
+        ArrayList<LogicalFilterNode> merged = new ArrayList<LogicalFilterNode>();
+        if (allowed != null || lo == hi) {
+            // 只剩有限个可能的值，用 = 或 IN 表示，范围和不等条件都已经算进去了
+            if (allowed == null) {
+                allowed = new TreeSet<Long>();
+                allowed.add(lo);
+            }
+            Vector<String> values = new Vector<String>();
+            for (long v : allowed) {
+                if (v >= lo && v <= hi && !excluded.contains(v))
+                    values.add(Long.toString(v));
+            }
+            if (values.isEmpty())
+                return null;
+            merged.add(values.size() == 1
+                    ? new LogicalFilterNode(first.tableAlias, first.fieldQuantifiedName,
+                            Predicate.Op.EQUALS, values.get(0))
+                    : new LogicalCompoundFilterNode(first.tableAlias, first.fieldQuantifiedName,
+                            false, values));
+        } else {
+            if (loNode != null)
+                merged.add(loNode);
+            if (hiNode != null)
+                merged.add(hiNode);
+            Vector<String> values = new Vector<String>();
+            for (long v : excluded.subSet(lo, true, hi, true))
+                values.add(Long.toString(v));
+            if (values.size() == 1)
+                merged.add(new LogicalFilterNode(first.tableAlias, first.fieldQuantifiedName,
+                        Predicate.Op.NOT_EQUALS, values.get(0)));
+            else if (values.size() > 1)
+                merged.add(new LogicalCompoundFilterNode(first.tableAlias,
+                        first.fieldQuantifiedName, true, values));
+        }
+        merged.addAll(mergeEquals(others));
+        return merged;
+    }
+
+    /**
+     * Merge the comparisons of a column by their constants only: drop
+     * repeated comparisons, and find equalities with two different
+     * constants, or with a constant that a != or IN list rules out.
+     */
+    private static List<LogicalFilterNode> mergeEquals(List<LogicalFilterNode> comparisons) {
+        LinkedHashMap<String, LogicalFilterNode> unique = new LinkedHashMap<String, LogicalFilterNode>();
+        String equal = null;
+        for (LogicalFilterNode lf : comparisons) {
+            String key;
+            if (lf instanceof LogicalCompoundFilterNode) {
+                LogicalCompoundFilterNode cf = (LogicalCompoundFilterNode) lf;
+                key = cf.connective + " " + cf.inList;
+            } else {
+                key = lf.p + " " + lf.c;
+                if (lf.p == Predicate.Op.EQUALS) {
+                    if (equal != null && !equal.equals(lf.c))
+                        return null;
+                    equal = lf.c;
+                }
+            }
+            if (!unique.containsKey(key))
+                unique.put(key, lf);
+        }
+        if (equal != null) {
+            for (LogicalFilterNode lf : unique.values()) {
+                if (lf instanceof LogicalCompoundFilterNode) {
+                    LogicalCompoundFilterNode cf = (LogicalCompoundFilterNode) lf;
+                    boolean in = cf.inList.contains(equal);
+                    if (in == (cf.connective == LogicalCompoundFilterNode.Connective.NOT_IN))
+                        return null;
+                } else if (lf.p == Predicate.Op.NOT_EQUALS && lf.c.equals(equal)) {
+                    return null;
+                }
+            }
+        }
+        return new ArrayList<LogicalFilterNode>(unique.values());
+    }
+}
@@ -0,0 +1,159 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * RangeJoin implements a join on an inequality predicate
+ * (<tt>t1.f1 op t2.f2</tt> with op one of <, <=, >, >=) by sorting the inner
+ * (right) input once on its join field so that, for every outer tuple, the
+ * matching inner tuples come first.
+ * <p>
+ * The inner input is sorted ascending for > and >= and descending for < and
+ * <=; the tuples matching a given outer value are then a prefix of it, which
+ * is read until the first tuple that does not match. The join therefore
+ * costs O(n log n + m + output) instead of the O(n * m) comparisons of a
+ * nested loops join.
+ * <p>
+ * The sort is an {@link OrderBy}, which spills sorted runs to disk when the
+ * inner input is larger than its memory grant. The sorted tuples are kept in
+ * a {@link TupleBuffer} within the join's own
+ * {@link MemoryManager.MemoryGrant}; those that do not fit are written to a
+ * {@link SpillFile} and read back only by outer tuples whose prefix reaches
+ * them.
+ *
+ * 不等值连接：内表排序一次，使得每个外表元组匹配的内表元组都在最前面
+ */
+public class RangeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private DbIterator child1, child2;
+    private final TupleDesc td;
+    private final JoinedTuple.Factory joinedTuples;
+
+    private transient MemoryManager.MemoryGrant grant;
+    /** The inner tuples, sorted so that the matches of any outer tuple come first */
+    private transient TupleBuffer inner;
+    private transient DbIterator innerIt;
+    private transient Tuple left;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The join predicate; its operator must be one of <, <=, >, >=
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public RangeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (!isRangeOp(p.getOperator()))
+            throw new IllegalArgumentException("RangeJoin does not support operator " + p.getOperator());
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        this.joinedTuples = new JoinedTuple.Factory(td);
+    }
+
+    /**
+     * @return true if op is one of the inequality operators RangeJoin handles
+     */
+    public static boolean isRangeOp(Predicate.Op op) {
+        return op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ
+                || op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        releaseMemory();
+        int card2 = child2 instanceof Operator ? ((Operator) child2).getEstimatedCardinality() : 0;
+        // 大于时升序、小于时降序，匹配的内表元组总是排在最前面
+        Predicate.Op op = pred.getOperator();
+        OrderBy sorted = new OrderBy(pred.getField2(),
+                op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ, child2);
+        sorted.setEstimatedCardinality(card2);
+        sorted.open();
+        grant = Database.getMemoryManager().request(card2, child2.getTupleDesc());
+        inner = TupleBuffer.materialize(sorted, grant.bytes());
+        // 排好的元组都在缓冲区里了，排序占用的内存和顺串文件可以释放
+        sorted.close();
+        innerIt = inner.iterator();
+        left = null;
+        super.open();
+    }
+
+    private void releaseMemory() {
+        if (innerIt != null) {
+            innerIt.close();
+            innerIt = null;
+        }
+        if (inner != null) {
+            inner.clear();
+            inner = null;
+        }
+        left = null;
+        if (grant != null) {
+            grant.release();
+            grant = null;
+        }
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        child2.close();
+        releaseMemory();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // 内表已经排好序保存在缓冲区中，只需要重新扫描外表
+        child1.rewind();
+        left = null;
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (left != null && innerIt.hasNext()) {
+                Tuple right = innerIt.next();
+                if (pred.filter(left, right))
+                    return joinedTuples.join(left, right);
+            }
+            // 前缀到头了，换下一个外表元组从头读
+            if (inner.size() == 0 || !child1.hasNext())
+                return null;
+            left = child1.next();
+            innerIt.rewind();
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
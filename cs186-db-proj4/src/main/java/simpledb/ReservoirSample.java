@@ -0,0 +1,96 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A uniform random sample of at most capacity of the values offered to it,
+ * kept in one pass (reservoir sampling). Two samples of disjoint sets of
+ * values can be merged into a sample of their union, so a table can be
+ * sampled in parts.
+ *
+ * 蓄水池抽样
+ */
+public class ReservoirSample {
+
+    private final int capacity;
+
+    private final Random random;
+
+    private ArrayList<Field> values;
+
+    /** The number of values offered, to this sample or to merged ones */
+    private long seen;
+
+    /**
+     * @param capacity
+     *            the most values to keep
+     * @param random
+     *            the source of the random choices
+     */
+    public ReservoirSample(int capacity, Random random) {
+        this.capacity = capacity;
+        this.random = random;
+        this.values = new ArrayList<Field>(Math.min(capacity, 1024));
+    }
+
+    /**
+     * Offer a value: the first capacity values are kept, after that the
+     * n-th value replaces a random kept one with probability capacity / n.
+     */
+    public void offer(Field v) {
+        seen++;
+        if (values.size() < capacity) {
+            values.add(v);
+            return;
+        }
+        long j = (long) (random.nextDouble() * seen);
+        if (j < capacity)
+            values.set((int) j, v);
+    }
+
+    /**
+     * Replace this sample by a sample of the values offered to this one and
+     * to other together, of at most this sample's capacity. Each kept value
+     * is drawn from one of the two samples with a probability proportional
+     * to the number of values that sample still stands for.
+     */
+    public void merge(ReservoirSample other) {
+        ArrayList<Field> a = values;
+        ArrayList<Field> b = new ArrayList<Field>(other.values);
+        long restA = seen, restB = other.seen;
+        int m = Math.min(capacity, a.size() + b.size());
+        ArrayList<Field> merged = new ArrayList<Field>(m);
+        for (int k = 0; k < m; k++) {
+            boolean fromA = b.isEmpty()
+                    || (!a.isEmpty() && random.nextDouble() * (restA + restB) < restA);
+            ArrayList<Field> from = fromA ? a : b;
+            // 随机取一个，用最后一个填空位
+            int i = random.nextInt(from.size());
+            merged.add(from.get(i));
+            from.set(i, from.get(from.size() - 1));
+            from.remove(from.size() - 1);
+            if (fromA)
+                restA--;
+            else
+                restB--;
+        }
+        values = merged;
+        seen += other.seen;
+    }
+
+    /**
+     * @return the values of the sample, in no particular order
+     */
+    public List<Field> getValues() {
+        return values;
+    }
+
+    /**
+     * @return the number of values the sample was drawn from
+     */
+    public long getSeen() {
+        return seen;
+    }
+}
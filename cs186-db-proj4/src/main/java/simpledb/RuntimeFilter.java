@@ -0,0 +1,123 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Collection;
+
+/**
+ * RuntimeFilter is a summary of the join keys of the build side of a hash
+ * join: a Bloom filter over the keys and, for int keys, their min and max.
+ * <p>
+ * The join pushes it down into the probe side ({@link #pushDown}) where a
+ * {@link SeqScan} drops the tuples whose key cannot match before they are
+ * copied, filtered or probed into the hash table. The filter has no false
+ * negatives, so dropping tuples it rejects never changes the join result.
+ * Until {@link #build} is called it lets every tuple through.
+ *
+ * 运行时过滤器：hash连接建表后把连接键的Bloom过滤器和最值下推到探测端的扫描
+ */
+public class RuntimeFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Bits per build key; with 3 hash functions this gives about 3% false positives */
+    static final int BITS_PER_KEY = 8;
+    static final int NUM_HASHES = 3;
+
+    private long[] bits;
+    private int mask;
+    private boolean hasRange;
+    private int min, max;
+
+    /**
+     * Fill the filter with the given build side keys, replacing its
+     * previous contents.
+     */
+    public void build(Collection<?> keys) {
+        int nbits = 64;
+        while (nbits < keys.size() * BITS_PER_KEY)
+            nbits <<= 1;
+        long[] b = new long[nbits >>> 6];
+        int m = nbits - 1;
+        boolean ints = true;
+        int lo = Integer.MAX_VALUE, hi = Integer.MIN_VALUE;
+        for (Object key : keys) {
+            int h = mix(key.hashCode());
+            int step = (h >>> 16) | 1;
+            for (int i = 0; i < NUM_HASHES; i++, h += step)
+                b[(h & m) >>> 6] |= 1L << (h & 63);
+            if (key instanceof IntField) {
+                int v = ((IntField) key).getValue();
+                lo = Math.min(lo, v);
+                hi = Math.max(hi, v);
+            } else {
+                ints = false;
+            }
+        }
+        hasRange = ints && !keys.isEmpty();
+        min = lo;
+        max = hi;
+        mask = m;
+        bits = b;
+    }
+
+    /**
+     * Make the filter let every tuple through again.
+     */
+    public void clear() {
+        bits = null;
+        hasRange = false;
+    }
+
+    /**
+     * @return false if no build side key equals key; true if one may
+     */
+    public boolean mightContain(Field key) {
+        if (bits == null)
+            return true;
+        if (hasRange) {
+            int v = ((IntField) key).getValue();
+            if (v < min || v > max)
+                return false;
+        }
+        int h = mix(key.hashCode());
+        int step = (h >>> 16) | 1;
+        for (int i = 0; i < NUM_HASHES; i++, h += step) {
+            if ((bits[(h & mask) >>> 6] & (1L << (h & 63))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** IntField hashes to its value, so spread the bits before using them */
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 15);
+    }
+
+    /**
+     * Attach filter to the scan that produces field of plan, if that scan can
+     * be reached through operators that keep every tuple whole: filters,
+     * sorts, the left side of semi joins and the two sides of joins (whose
+     * output fields are the fields of the left input followed by those of
+     * the right one).
+     *
+     * @return true if the filter was attached to a scan
+     */
+    public static boolean pushDown(DbIterator plan, int field, RuntimeFilter filter) {
+        if (plan instanceof SeqScan) {
+            ((SeqScan) plan).addRuntimeFilter(field, filter);
+            return true;
+        }
+        if (plan instanceof Filter || plan instanceof OrderBy || plan instanceof HashSemiJoin) {
+            return pushDown(((Operator) plan).getChildren()[0], field, filter);
+        }
+        if (plan instanceof Join || plan instanceof HashEquiJoin
+                || plan instanceof SortMergeJoin || plan instanceof RangeJoin) {
+            DbIterator[] children = ((Operator) plan).getChildren();
+            int width1 = children[0].getTupleDesc().numFields();
+            return field < width1 ? pushDown(children[0], field, filter)
+                    : pushDown(children[1], field - width1, filter);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,204 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * SampleScan reads a random sample of a table instead of the whole table. It
+ * otherwise behaves like a {@link SeqScan}: projection and runtime filters
+ * apply to the sampled tuples.
+ * <p>
+ * With {@link Method#SYSTEM} whole pages are sampled: they are chosen when
+ * the scan is created, without replacement, and read in page order through
+ * the BufferPool, so the cost of the scan is proportional to the sample
+ * size. With {@link Method#BERNOULLI} every page is read and each tuple is
+ * kept independently, which costs a full scan but gives a sample free of
+ * the clustering of values by page.
+ * <p>
+ * Either way every tuple of the table is in the sample with the same
+ * probability, {@link #getSamplingFraction()}, which estimators such as
+ * {@link SampledAggregator} scale their results by. The same seed gives the
+ * same sample, also after a rewind.
+ *
+ * 抽样扫描：SYSTEM只读表中随机选出的一部分页，BERNOULLI按行抽样
+ */
+public class SampleScan extends SeqScan {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The sampling methods of TABLESAMPLE */
+    public enum Method {
+        /** Sample whole pages */
+        SYSTEM,
+        /** Sample each tuple independently */
+        BERNOULLI
+    }
+
+    private final Method method;
+    private final double percent;
+    private final long seed;
+    private int[] pages;
+    private double fraction;
+
+    /**
+     * Sample the pages of a table, as {@link Method#SYSTEM}.
+     */
+    public SampleScan(TransactionId tid, int tableid, String tableAlias,
+            double percent, long seed) {
+        this(tid, tableid, tableAlias, Method.SYSTEM, percent, seed);
+    }
+
+    /**
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; must be a {@link HeapFile}
+     * @param tableAlias
+     *            the alias of this table
+     * @param method
+     *            whether to sample pages or tuples
+     * @param percent
+     *            the percentage of the pages or tuples to read, in (0, 100]
+     * @param seed
+     *            the seed of the random choice of pages or tuples
+     */
+    public SampleScan(TransactionId tid, int tableid, String tableAlias,
+            Method method, double percent, long seed) {
+        super(tid, tableid, tableAlias);
+        if (!(percent > 0 && percent <= 100))
+            throw new IllegalArgumentException("sample percentage must be in (0, 100]");
+        this.method = method;
+        this.percent = percent;
+        this.seed = seed;
+        samplePages(tableid);
+    }
+
+    private void samplePages(int tableid) {
+        DbFile file = Database.getCatalog().getDbFile(tableid);
+        if (!(file instanceof HeapFile))
+            throw new IllegalArgumentException("can only sample the pages of a HeapFile");
+        HeapFile hf = (HeapFile) file;
+        int numPages = hf.numPages();
+        if (method == Method.BERNOULLI) {
+            pages = null;
+            fraction = percent / 100;
+            setFileIterator(new BernoulliIterator(hf.iterator(getTransactionId()), fraction, seed));
+            return;
+        }
+        int k = (int) Math.min(numPages, Math.ceil(numPages * percent / 100));
+        pages = choosePages(numPages, k, new Random(seed));
+        fraction = numPages == 0 ? 1.0 : (double) k / numPages;
+        setFileIterator(hf.iterator(getTransactionId(), pages));
+    }
+
+    /**
+     * Choose k of the pages 0 .. numPages - 1 at random, without replacement.
+     *
+     * @return the numbers of the chosen pages, in ascending order
+     */
+    static int[] choosePages(int numPages, int k, Random random) {
+        // 部分Fisher-Yates洗牌：前k个位置就是不放回抽出的k页
+        int[] all = new int[numPages];
+        for (int i = 0; i < numPages; i++)
+            all[i] = i;
+        for (int i = 0; i < k; i++) {
+            int j = i + random.nextInt(numPages - i);
+            int tmp = all[i];
+            all[i] = all[j];
+            all[j] = tmp;
+        }
+        int[] pages = Arrays.copyOf(all, k);
+        Arrays.sort(pages);  // 按页号顺序读
+        return pages;
+    }
+
+    /**
+     * @return the probability with which each tuple of the table is in the
+     *         sample: the fraction of the pages read
+     */
+    public double getSamplingFraction() {
+        return fraction;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the percentage of the pages or tuples asked for
+     */
+    public double getPercent() {
+        return percent;
+    }
+
+    /**
+     * @return the numbers of the pages read, or null if every page is read
+     */
+    public int[] getPages() {
+        return pages;
+    }
+
+    @Override
+    public void reset(int tableid, String tableAlias) {
+        super.reset(tableid, tableAlias);
+        samplePages(tableid);
+    }
+
+    /**
+     * Keeps each tuple of a file iterator with probability fraction; a
+     * rewind starts the same random sequence again.
+     */
+    private static class BernoulliIterator implements DbFileIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final DbFileIterator it;
+        private final double fraction;
+        private final long seed;
+        private Random random;
+        private Tuple next;
+
+        BernoulliIterator(DbFileIterator it, double fraction, long seed) {
+            this.it = it;
+            this.fraction = fraction;
+            this.seed = seed;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            it.open();
+            random = new Random(seed);
+            next = null;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            while (next == null && random != null && it.hasNext()) {
+                Tuple t = it.next();
+                if (random.nextDouble() < fraction)
+                    next = t;
+            }
+            return next != null;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException,
+                NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = next;
+            next = null;
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            it.rewind();
+            random = new Random(seed);
+            next = null;
+        }
+
+        public void close() {
+            it.close();
+            random = null;
+            next = null;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Computes APPROX_COUNT, APPROX_SUM and APPROX_AVG over an integer field of a
+ * sample of the input, in which every tuple was kept with probability
+ * fraction (see {@link SampleScan}).
+ * <p>
+ * COUNT and SUM are scaled up by 1 / fraction (Horvitz-Thompson estimators);
+ * AVG is the mean of the sample. Each result tuple holds the estimate
+ * followed by the half width of its 95% confidence interval, computed from
+ * the sample variance as if the tuples had been sampled independently. When
+ * the sample was taken by pages and the values are clustered by page the
+ * real error can be larger. A fraction of 1 gives the exact result with an
+ * error of 0.
+ */
+public class SampledAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The fraction of a table that approximate aggregates read by default */
+    public static final double DEFAULT_FRACTION = 0.01;
+
+    /** The z-value of a two-sided 95% confidence interval */
+    static final double Z_95 = 1.96;
+
+    /** 分类域索引 */
+    private final int gbfield;
+    /** 聚合域索引 */
+    private final int afield;
+    private final Op op;
+    private final double fraction;
+    private final TupleDesc td;
+
+    /** 样本中每个分组的个数、和、平方和 */
+    static class SampleItem {
+        long count;
+        double sum;
+        double sumSq;
+    }
+
+    private final HashMap<Field, SampleItem> groupMap = new HashMap<>();
+
+    /**
+     * @param gbfield
+     *            the 0-based index of the group-by field in the tuple, or
+     *            NO_GROUPING if there is no grouping
+     * @param gbfieldtype
+     *            the type of the group by field, or null if there is no
+     *            grouping
+     * @param afield
+     *            the 0-based index of the aggregate field in the tuple
+     * @param what
+     *            APPROX_COUNT, APPROX_SUM or APPROX_AVG
+     * @param fraction
+     *            the probability with which each tuple was sampled, in (0, 1]
+     */
+    public SampledAggregator(int gbfield, Type gbfieldtype, int afield, Op what, double fraction) {
+        if (what != Op.APPROX_COUNT && what != Op.APPROX_SUM && what != Op.APPROX_AVG)
+            throw new IllegalArgumentException("not a sampled aggregate: " + what);
+        if (!(fraction > 0 && fraction <= 1))
+            throw new IllegalArgumentException("sampling fraction must be in (0, 1]");
+        this.gbfield = gbfield;
+        this.afield = afield;
+        this.op = what;
+        this.fraction = fraction;
+        if (gbfield == NO_GROUPING) {
+            groupMap.put(null, new SampleItem());
+            td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE });
+        } else {
+            td = new TupleDesc(new Type[] { gbfieldtype, Type.INT_TYPE, Type.INT_TYPE });
+        }
+    }
+
+    public void mergeTupleIntoGroup(Tuple tup) {
+        Field gField = gbfield == NO_GROUPING ? null : tup.getField(gbfield);
+        SampleItem item = groupMap.get(gField);
+        if (item == null) {
+            item = new SampleItem();
+            groupMap.put(gField, item);
+        }
+        item.count++;
+        if (op != Op.APPROX_COUNT) {
+            double v = ((IntField) tup.getField(afield)).getValue();
+            item.sum += v;
+            item.sumSq += v * v;
+        }
+    }
+
+    public int numGroups() {
+        return groupMap.size();
+    }
+
+    public boolean hasGroup(Tuple tup) {
+        return groupMap.containsKey(gbfield == NO_GROUPING ? null : tup.getField(gbfield));
+    }
+
+    /**
+     * @return the estimate and its variance for one group
+     */
+    private double[] estimate(SampleItem item) {
+        double f = fraction;
+        switch (op) {
+        case APPROX_COUNT:
+            return new double[] { item.count / f, item.count * (1 - f) / (f * f) };
+        case APPROX_SUM:
+            return new double[] { item.sum / f, item.sumSq * (1 - f) / (f * f) };
+        default:
+            if (item.count == 0)
+                return new double[] { 0, 0 };
+            double mean = item.sum / item.count;
+            double var = item.count > 1
+                    ? Math.max(0, (item.sumSq - item.sum * mean) / (item.count - 1)) : 0;
+            return new double[] { mean, var * (1 - f) / item.count };
+        }
+    }
+
+    /**
+     * @return a DbIterator whose tuples are (groupVal, estimate, error), or
+     *         (estimate, error) if there is no grouping
+     */
+    public DbIterator iterator() {
+        ArrayList<Tuple> tuples = new ArrayList<>();
+        for (Map.Entry<Field, SampleItem> e : groupMap.entrySet()) {
+            double[] est = estimate(e.getValue());
+            Tuple tuple = new Tuple(td);
+            int aggIndex = gbfield == NO_GROUPING ? 0 : 1;
+            if (gbfield != NO_GROUPING)
+                tuple.setField(0, e.getKey());
+            tuple.setField(aggIndex, new IntField((int) Math.round(est[0])));
+            tuple.setField(aggIndex + 1, new IntField((int) Math.ceil(Z_95 * Math.sqrt(est[1]))));
+            tuples.add(tuple);
+        }
+        return new TupleIterator(td, tuples);
+    }
+}
@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.util.ArrayList;
 import java.util.NoSuchElementException;
 
 /**
@@ -23,6 +24,16 @@ public class SeqScan implements DbIterator {
 
     private TupleDesc td;
 
+    /** Indexes (in the table's TupleDesc) of the fields this scan outputs, or null for all of them */
+    private int[] projection;
+
+    /** Filters pushed down by hash joins above this scan, and the table field each one checks */
+    private ArrayList<RuntimeFilter> runtimeFilters = new ArrayList<RuntimeFilter>();
+    private ArrayList<Integer> runtimeFilterFields = new ArrayList<Integer>();
+
+    /** The next tuple that passed the runtime filters, read ahead by hasNext */
+    private transient Tuple pending;
+
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -81,9 +92,65 @@ public class SeqScan implements DbIterator {
         // some code goes here
         this.tableId = tableid;
         this.tableAlias = tableAlias;
+        this.td = null;
+        this.projection = null;
+        this.runtimeFilters.clear();
+        this.runtimeFilterFields.clear();
         this.tupleIterator = Database.getCatalog().getDbFile(tableid).iterator(transactionId);
     }
 
+    /**
+     * Only output the given fields of the table, in the given order. The
+     * planner uses this to drop columns that no operator above the scan
+     * reads, so that narrower tuples flow through the rest of the plan.
+     * Output tuples keep the RecordId of the row they come from.
+     * 
+     * @param fields
+     *            indexes of the fields in the table's TupleDesc, or null to
+     *            output all fields
+     */
+    public void setProjection(int[] fields) {
+        this.projection = fields;
+        this.td = null;
+    }
+
+    /**
+     * @return the indexes of the table fields this scan outputs, or null if
+     *         it outputs all of them
+     */
+    public int[] getProjection() {
+        return projection;
+    }
+
+    /**
+     * Drop the tuples rejected by filter before they leave this scan.
+     *
+     * @param field
+     *            the index, in this scan's output TupleDesc, of the field the
+     *            filter checks
+     */
+    public void addRuntimeFilter(int field, RuntimeFilter filter) {
+        for (RuntimeFilter f : runtimeFilters) {
+            if (f == filter)
+                return;     // 重新open连接时不重复添加
+        }
+        runtimeFilters.add(filter);
+        // 记录表中的字段下标，过滤在投影之前进行
+        runtimeFilterFields.add(projection == null ? field : projection[field]);
+    }
+
+    /**
+     * Read the tuples from it instead of from the whole table; used by
+     * scans that only read part of the table, such as {@link SampleScan}.
+     */
+    protected void setFileIterator(DbFileIterator it) {
+        this.tupleIterator = it;
+    }
+
+    protected TransactionId getTransactionId() {
+        return transactionId;
+    }
+
     public SeqScan(TransactionId tid, int tableid) {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
@@ -91,6 +158,7 @@ public class SeqScan implements DbIterator {
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         tupleIterator.open();
+        pending = null;
     }
 
     /**
@@ -108,50 +176,78 @@ public class SeqScan implements DbIterator {
             return td;
         }
         TupleDesc desc = Database.getCatalog().getTupleDesc(tableId);
-        int fieldNum = desc.numFields();
+        int fieldNum = projection == null ? desc.numFields() : projection.length;
         Type[] types = new Type[fieldNum];
         String[] names = new String[fieldNum];
         for (int i = 0; i < fieldNum; i++) {
-            types[i] = desc.getFieldType(i);
+            int field = projection == null ? i : projection[i];
+            types[i] = desc.getFieldType(field);
             //按照构造器中所说，为了防止意外的null值使此类停止工作，故要加入一些判断
             String prefix = getAlias() == null ? "null." : getAlias() + ".";
-            String fieldName = desc.getFieldName(i);
+            String fieldName = desc.getFieldName(field);
             fieldName = fieldName == null ? "null" : fieldName;
             names[i] = prefix + fieldName;
         }
-        return new TupleDesc(types, names);
+        // 缓存起来，避免每个元组都重新构造一次TupleDesc
+        td = new TupleDesc(types, names);
+        return td;
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        return tupleIterator.hasNext();
+        while (pending == null && tupleIterator.hasNext()) {
+            Tuple t = tupleIterator.next();
+            if (passesRuntimeFilters(t))
+                pending = t;
+        }
+        return pending != null;
+    }
+
+    private boolean passesRuntimeFilters(Tuple t) {
+        for (int i = 0; i < runtimeFilters.size(); i++) {
+            if (!runtimeFilters.get(i).mightContain(t.getField(runtimeFilterFields.get(i))))
+                return false;
+        }
+        return true;
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
-        Tuple next = tupleIterator.next();
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple next = pending;
+        pending = null;
         return transTd(next);
     }
 
     private Tuple transTd(Tuple old){
         TupleDesc desc = getTupleDesc();
         Tuple tuple = new Tuple(desc);
-        for (int i = 0; i < old.getTupleDesc().numFields(); i++) {
-            tuple.setField(i, old.getField(i));
+        if (projection == null) {
+            for (int i = 0; i < old.getTupleDesc().numFields(); i++) {
+                tuple.setField(i, old.getField(i));
+            }
+        } else {
+            // 只复制上层算子需要的列
+            for (int i = 0; i < projection.length; i++) {
+                tuple.setField(i, old.getField(projection[i]));
+            }
         }
-
+        tuple.setRecordId(old.getRecordId());
         return tuple;
     }
 
     public void close() {
         // some code goes here
         tupleIterator.close();
+        pending = null;
     }
 
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
         tupleIterator.rewind();
+        pending = null;
     }
 }
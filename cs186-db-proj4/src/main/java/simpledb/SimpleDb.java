@@ -92,6 +92,18 @@ public class SimpleDb {
             }
 
         }
+        else if (args[0].equals("calibrate")) {
+            // 重新测量代价模型，保存在catalog文件旁边，parser启动时读取
+            if (args.length != 2) {
+                System.err.println("Usage: calibrate catalogFile");
+                return;
+            }
+            CostModel model = CostModel.calibrate();
+            File costs = CostModel.fileFor(args[1]);
+            model.save(costs);
+            System.out.println(model);
+            System.out.println("Saved to " + costs + ".");
+        }
         else {
             System.err.println("Unknown command: " + args[0]);
             System.exit(1);
@@ -0,0 +1,192 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+/**
+ * SortMergeJoin implements an equi-join by sorting both inputs on their join
+ * field and merging them in a single pass.
+ * <p>
+ * An input that is already ordered ascending on its join field (an
+ * {@link OrderBy} on that field, another SortMergeJoin on it, or a
+ * {@link Filter} over either) is read as it is; any other input is sorted
+ * once by an {@link OrderBy} placed under it. The output is ordered ascending
+ * on the join field, which lets the planner drop an ORDER BY on that field.
+ * <p>
+ * For each distinct key the matching group of right tuples is buffered, so
+ * duplicate keys on both sides produce their full cross product without
+ * rewinding the right input.
+ *
+ * 归并连接：两边按连接字段排好序后一趟归并，已经有序的输入不再重复排序
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private DbIterator child1, child2;
+    private DbIterator sorted1, sorted2;
+    private final TupleDesc td;
+    private final JoinedTuple.Factory joinedTuples;
+
+    /** The current left tuple and the right tuples whose key equals its key */
+    private transient Tuple left;
+    private transient ArrayList<Tuple> rightGroup = new ArrayList<Tuple>();
+    private transient Field groupKey;
+    private transient int groupPos;
+    /** The first right tuple that has not been put into a group yet */
+    private transient Tuple rightPeek;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The join predicate; its operator must be EQUALS
+     * @param child1
+     *            Iterator for the left relation to join
+     * @param child2
+     *            Iterator for the right relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("SortMergeJoin only supports equality predicates");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        this.joinedTuples = new JoinedTuple.Factory(td);
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return true if the tuples of plan come out in ascending order of field
+     */
+    public static boolean isSortedOn(DbIterator plan, int field) {
+        if (plan instanceof OrderBy) {
+            OrderBy o = (OrderBy) plan;
+            return o.isASC() && o.getOrderByField() == field;
+        }
+        if (plan instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) plan;
+            int width1 = j.child1.getTupleDesc().numFields();
+            return field == j.pred.getField1() || field == width1 + j.pred.getField2();
+        }
+        if (plan instanceof Filter) {
+            // Filter不改变元组顺序
+            return isSortedOn(((Filter) plan).getChildren()[0], field);
+        }
+        return false;
+    }
+
+    private static DbIterator sortedInput(DbIterator child, int field) {
+        return isSortedOn(child, field) ? child : new OrderBy(field, true, child);
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        sorted1 = sortedInput(child1, pred.getField1());
+        sorted2 = sortedInput(child2, pred.getField2());
+        sorted1.open();
+        sorted2.open();
+        reset();
+        super.open();
+    }
+
+    private void reset() throws DbException, TransactionAbortedException {
+        left = null;
+        rightGroup.clear();
+        groupKey = null;
+        groupPos = 0;
+        rightPeek = sorted2.hasNext() ? sorted2.next() : null;
+    }
+
+    public void close() {
+        super.close();
+        if (sorted1 != null) {
+            sorted1.close();
+            sorted2.close();
+        }
+        sorted1 = sorted2 = null;
+        left = rightPeek = null;
+        rightGroup.clear();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        sorted1.rewind();
+        sorted2.rewind();
+        reset();
+    }
+
+    /**
+     * @return a negative number, zero or a positive number as a is less than,
+     *         equal to or greater than b
+     */
+    static int compareFields(Field a, Field b) {
+        if (a.getType() == Type.INT_TYPE)
+            return Integer.compare(((IntField) a).getValue(), ((IntField) b).getValue());
+        return ((StringField) a).getValue().compareTo(((StringField) b).getValue());
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (left != null && groupPos < rightGroup.size()) {
+                return joinedTuples.join(left, rightGroup.get(groupPos++));
+            }
+            if (!sorted1.hasNext()) {
+                return null;
+            }
+            left = sorted1.next();
+            Field key = left.getField(pred.getField1());
+            groupPos = 0;
+            // 左边的重复键直接复用已缓存的右边分组
+            if (groupKey != null && compareFields(key, groupKey) == 0) {
+                continue;
+            }
+            rightGroup.clear();
+            groupKey = null;
+            int c = -1;
+            while (rightPeek != null
+                    && (c = compareFields(rightPeek.getField(pred.getField2()), key)) < 0) {
+                rightPeek = sorted2.hasNext() ? sorted2.next() : null;
+            }
+            if (rightPeek == null) {
+                return null;    // 右边已经读完，后面的左元组不会再有匹配
+            }
+            if (c > 0) {
+                continue;
+            }
+            groupKey = key;
+            while (rightPeek != null
+                    && compareFields(rightPeek.getField(pred.getField2()), key) == 0) {
+                rightGroup.add(rightPeek);
+                rightPeek = sorted2.hasNext() ? sorted2.next() : null;
+            }
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -0,0 +1,186 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary file of tuples that an operator writes when its
+ * in-memory buffer goes over its {@link MemoryManager.MemoryGrant}: the runs
+ * of an external sort, the partitions of a hash join or of a hash
+ * aggregation.
+ * <p>
+ * Tuples are appended with {@link #add} and read back, as many times as
+ * needed, through {@link #iterator}. Each tuple is stored as a fixed-size
+ * record of its serialized fields, like a row of a {@link HeapPage}; the
+ * RecordIds of the tuples are not kept. The file is deleted by
+ * {@link #delete} or when the JVM exits.
+ *
+ * 溢出文件：算子内存不够时把元组写到临时文件，之后可以多次读回
+ */
+public class SpillFile {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int size = 0;
+
+    /**
+     * Create an empty spill file for tuples of td.
+     */
+    public SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            this.file = File.createTempFile("simpledb-spill", ".tmp");
+            this.file.deleteOnExit();
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new DbException("could not create spill file: " + e.getMessage());
+        }
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of tuples in the file
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Append t to the file. Must not be called after {@link #iterator}.
+     */
+    public void add(Tuple t) throws DbException {
+        if (out == null)
+            throw new IllegalStateException("spill file is already being read");
+        try {
+            for (int i = 0; i < td.numFields(); i++)
+                t.getField(i).serialize(out);
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+        size++;
+    }
+
+    /**
+     * Finish writing and return an iterator over the tuples of the file, in
+     * the order they were added. The iterator must be opened before use and
+     * can be rewound.
+     */
+    public DbIterator iterator() throws DbException {
+        finish();
+        return new Reader();
+    }
+
+    private void finish() throws DbException {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw new DbException("could not write spill file: " + e.getMessage());
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Delete the file. The SpillFile cannot be used afterwards.
+     */
+    public void delete() {
+        try {
+            finish();
+        } catch (DbException e) {
+            // 文件反正要删除，写入失败可以忽略
+        }
+        file.delete();
+    }
+
+    /**
+     * @return the partition, among numPartitions, that a tuple with the
+     *         given key goes to. level is the number of times the tuples
+     *         have been partitioned already, so that a partition that is
+     *         split again is split on different hash bits.
+     */
+    public static int partition(Field key, int level, int numPartitions) {
+        return partition(key.hashCode(), level, numPartitions);
+    }
+
+    /**
+     * @return the partition of a tuple whose key has the given hash code
+     * @see #partition(Field, int, int)
+     */
+    public static int partition(int hashCode, int level, int numPartitions) {
+        int h = hashCode * 0x9E3779B9 + level * 0x85EBCA6B;
+        h ^= h >>> 15;
+        h *= 0x2C1B3C6D;
+        h ^= h >>> 13;
+        return (h & Integer.MAX_VALUE) % numPartitions;
+    }
+
+    private class Reader implements DbIterator {
+        private static final long serialVersionUID = 1L;
+        private transient DataInputStream in;
+        private int read;
+
+        public void open() throws DbException {
+            close();
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file), BUFFER_SIZE));
+            } catch (IOException e) {
+                throw new DbException("could not read spill file: " + e.getMessage());
+            }
+            read = 0;
+        }
+
+        public boolean hasNext() {
+            return in != null && read < size;
+        }
+
+        public Tuple next() throws DbException, NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(in));
+            } catch (ParseException e) {
+                throw new DbException("could not read spill file: " + e.getMessage());
+            }
+            read++;
+            return t;
+        }
+
+        public void rewind() throws DbException {
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // 只读文件，关闭失败不影响结果
+                }
+                in = null;
+            }
+        }
+    }
+}
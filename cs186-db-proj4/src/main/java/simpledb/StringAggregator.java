@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -35,18 +36,23 @@ public class StringAggregator implements Aggregator {
 
     private HashMap<Field, Integer> groupMap = new HashMap<>();
 
+    /**
+     * 每个分组出现过的值，只用于COUNT_DISTINCT
+     */
+    private HashMap<Field, HashSet<String>> distinctMap = new HashMap<>();
+
     /**
      * Aggregate constructor
      * @param gbfield the 0-based index of the group-by field in the tuple, or NO_GROUPING if there is no grouping
      * @param gbfieldtype the type of the group by field (e.g., Type.INT_TYPE), or null if there is no grouping
      * @param afield the 0-based index of the aggregate field in the tuple
-     * @param what aggregation operator to use -- only supports COUNT
-     * @throws IllegalArgumentException if what != COUNT
+     * @param what aggregation operator to use -- only supports COUNT and COUNT_DISTINCT
+     * @throws IllegalArgumentException if what is another operator
      */
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
         // some code goes here
-        if (what != Op.COUNT) throw  new IllegalArgumentException();
+        if (what != Op.COUNT && what != Op.COUNT_DISTINCT) throw  new IllegalArgumentException();
         this.gbfield = gbfield;
         this.gbfieldtype = gbfieldtype;
         this.afield = afield;
@@ -69,6 +75,16 @@ public class StringAggregator implements Aggregator {
         if (gbfield != -1){
             gField = tup.getField(gbfield);
         }
+        if (op == Op.COUNT_DISTINCT) {
+            HashSet<String> values = distinctMap.get(gField);
+            if (values == null) {
+                values = new HashSet<>();
+                distinctMap.put(gField, values);
+            }
+            // 只有没出现过的值才计数
+            if (!values.add(((StringField) tup.getField(afield)).getValue()))
+                return;
+        }
         if(groupMap.containsKey(gField)){
             groupMap.put(gField, groupMap.get(gField)+1);
         }else{
@@ -76,6 +92,14 @@ public class StringAggregator implements Aggregator {
         }
     }
 
+    public int numGroups() {
+        return groupMap.size();
+    }
+
+    public boolean hasGroup(Tuple tup) {
+        return groupMap.containsKey(gbfield == -1 ? null : tup.getField(gbfield));
+    }
+
     /**
      * Create a DbIterator over group aggregate results.
      *
@@ -94,7 +118,7 @@ public class StringAggregator implements Aggregator {
             Field key = next.getKey();
             Integer value = next.getValue();
             Tuple tuple = new Tuple(td);
-            tuple.setField(1, new IntField(value));
+            tuple.setField(gbfield == -1 ? 0 : 1, new IntField(value));
             if(gbfield != -1){
                 tuple.setField(0, key);
             }
@@ -1,9 +1,36 @@
 package simpledb;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
@@ -16,6 +43,7 @@ public class TableStats {
 
     private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
 
+    /** The cost of reading a page in {@link CostModel#DEFAULT} */
     static final int IOCOSTPERPAGE = 1000;
 
     public static TableStats getTableStats(String tablename) {
@@ -48,16 +76,229 @@ public class TableStats {
         return statsMap;
     }
 
+    /**
+     * Receives the progress of {@link #computeStatistics(int, int,
+     * ProgressListener)}; may be called from several threads at once.
+     */
+    public interface ProgressListener {
+        /**
+         * @param pagesDone the number of pages read so far
+         * @param pagesTotal the number of pages to read over all tables
+         */
+        void progress(int pagesDone, int pagesTotal);
+    }
+
+    /** Statistics are computed by this many threads by default */
+    static final int STATS_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /** At most this many pages are read at the same time by default */
+    static final int IO_CONCURRENCY = 4;
+
+    /** Tables are split into tasks of this many pages */
+    static final int PAGES_PER_TASK = 128;
+
     public static void computeStatistics() {
+        System.out.println("Computing table stats.");
+        computeStatistics(STATS_THREADS, IO_CONCURRENCY, new ProgressListener() {
+            private int lastReported = 0;
+
+            public synchronized void progress(int pagesDone, int pagesTotal) {
+                // 每完成10%报告一次
+                int percent = (int) (100L * pagesDone / pagesTotal);
+                if (percent / 10 > lastReported / 10) {
+                    lastReported = percent;
+                    System.out.println("\t" + percent + "% (" + pagesDone + "/" + pagesTotal + " pages)");
+                }
+            }
+        });
+        System.out.println("Done.");
+    }
+
+    /**
+     * Compute the statistics of every table in the catalog on a pool of
+     * threads. Tables are split into ranges of PAGES_PER_TASK pages, each
+     * summarized on its own; the partial statistics of a table are then
+     * merged in page order.
+     *
+     * @param threads
+     *            the number of threads to compute with
+     * @param ioConcurrency
+     *            the most pages read from disk at the same time
+     * @param listener
+     *            told about the progress after every range, or null
+     */
+    public static void computeStatistics(int threads, int ioConcurrency,
+            ProgressListener listener) {
+        ArrayList<Integer> tableIds = new ArrayList<Integer>();
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        while (tableIt.hasNext())
+            tableIds.add(tableIt.next());
+        computeStatistics(tableIds, threads, ioConcurrency, listener);
+    }
 
-        System.out.println("Computing table stats.");
+    private static void computeStatistics(List<Integer> tableIds, int threads,
+            int ioConcurrency, final ProgressListener listener) {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final Semaphore io = new Semaphore(ioConcurrency);
+        final AtomicInteger pagesDone = new AtomicInteger();
+        ArrayList<int[]> tablePages = new ArrayList<int[]>();
+        int total = 0;
+        for (int tableid : tableIds) {
+            int[] pages = pagesToRead(tableid, SAMPLE_PAGES);
+            tablePages.add(pages);
+            total += pages.length;
+        }
+        final int pagesTotal = total;
+
+        ArrayList<ArrayList<Future<TableStats>>> partials = new ArrayList<ArrayList<Future<TableStats>>>();
+        for (int t = 0; t < tableIds.size(); t++) {
+            final int tableid = tableIds.get(t);
+            final int[] pages = tablePages.get(t);
+            ArrayList<Future<TableStats>> futures = new ArrayList<Future<TableStats>>();
+            for (int from = 0; from < pages.length; from += PAGES_PER_TASK) {
+                final int start = from;
+                final int end = Math.min(pages.length, from + PAGES_PER_TASK);
+                futures.add(pool.submit(new Callable<TableStats>() {
+                    public TableStats call() {
+                        // 每部分的样本按页数分摊，合并后一共SAMPLE_VALUES个
+                        TableStats partial = new TableStats(tableid, CostModel.current().ioCostPerPage(),
+                                (HeapFile) Database.getCatalog().getDbFile(tableid),
+                                (int) ((long) SAMPLE_VALUES * (end - start) / pages.length) + 1);
+                        partial.scan(pages, start, end, io);
+                        int done = pagesDone.addAndGet(end - start);
+                        if (listener != null)
+                            listener.progress(done, pagesTotal);
+                        return partial;
+                    }
+                }));
+            }
+            partials.add(futures);
+        }
+
+        try {
+            for (int t = 0; t < tableIds.size(); t++) {
+                int tableid = tableIds.get(t);
+                TableStats s = new TableStats(tableid, CostModel.current().ioCostPerPage(),
+                        (HeapFile) Database.getCatalog().getDbFile(tableid), SAMPLE_VALUES);
+                for (Future<TableStats> f : partials.get(t))
+                    s.merge(f.get());
+                s.finish();
+                setTableStats(Database.getCatalog().getTableName(tableid), s);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** The first four bytes of a statistics file, "STAT" */
+    private static final int STATS_MAGIC = 0x53544154;
+
+    private static final int STATS_VERSION = 3;
+
+    /**
+     * @return the file the statistics of the tables of a catalog are kept in,
+     *         next to the catalog file
+     */
+    public static File statsFileFor(String catalogFile) {
+        return new File(catalogFile + ".stats");
+    }
+
+    /**
+     * Load the statistics saved in statsFile for the tables of the catalog,
+     * compute those of the tables it has none or only outdated ones for, and
+     * save the file again if any were computed.
+     */
+    public static void loadOrComputeStatistics(File statsFile) {
+        int loaded = 0;
+        try {
+            loaded = loadStatistics(statsFile);
+        } catch (IOException e) {
+            System.out.println("Could not read " + statsFile + ": " + e.getMessage());
+        }
+        ArrayList<Integer> missing = new ArrayList<Integer>();
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
         while (tableIt.hasNext()) {
             int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            if (!statsMap.containsKey(Database.getCatalog().getTableName(tableid)))
+                missing.add(tableid);
         }
+        System.out.println("Loaded stats of " + loaded + " tables from " + statsFile + ".");
+        if (missing.isEmpty())
+            return;
+        System.out.println("Computing table stats of " + missing.size() + " tables.");
+        computeStatistics(missing, STATS_THREADS, IO_CONCURRENCY, null);
         System.out.println("Done.");
+        try {
+            saveStatistics(statsFile);
+        } catch (IOException e) {
+            System.out.println("Could not write " + statsFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write the statistics of the tables of the catalog to statsFile.
+     * <p>
+     * For each table the file holds its name, the length and modification
+     * time of its data file when the statistics were computed, the types of
+     * its fields and its tuple count, followed by the deflated bounds,
+     * histograms and sketches of its fields.
+     */
+    public static void saveStatistics(File statsFile) throws IOException {
+        // 先写临时文件再改名，写到一半失败也不会留下损坏的统计文件
+        File tmp = new File(statsFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)))) {
+            ArrayList<String> names = new ArrayList<String>();
+            Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+            while (tableIt.hasNext()) {
+                String name = Database.getCatalog().getTableName(tableIt.next());
+                if (statsMap.containsKey(name))
+                    names.add(name);
+            }
+            out.writeInt(STATS_MAGIC);
+            out.writeInt(STATS_VERSION);
+            out.writeInt(names.size());
+            for (String name : names)
+                statsMap.get(name).write(name, out);
+        }
+        if (!tmp.renameTo(statsFile)) {
+            statsFile.delete();
+            if (!tmp.renameTo(statsFile))
+                throw new IOException("cannot rename " + tmp + " to " + statsFile);
+        }
+    }
+
+    /**
+     * Read the statistics in statsFile of the tables of the catalog whose
+     * data file has not changed since they were saved. Their histograms and
+     * sketches are only decoded when first used.
+     *
+     * @return the number of tables whose statistics were loaded
+     */
+    public static int loadStatistics(File statsFile) throws IOException {
+        if (!statsFile.exists())
+            return 0;
+        int loaded = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(statsFile)))) {
+            if (in.readInt() != STATS_MAGIC || in.readInt() != STATS_VERSION)
+                throw new IOException("not a statistics file of this version");
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                TableStats s = read(name, in);
+                if (s != null) {
+                    setTableStats(name, s);
+                    loaded++;
+                }
+            }
+        }
+        return loaded;
     }
 
     /**
@@ -67,15 +308,97 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    /**
+     * Tables with more pages than this are summarized from a random sample of
+     * this many pages instead of from all of their pages.
+     */
+    static final int SAMPLE_PAGES = 1024;
+
+    /** The precision of the distinct value sketch of each column */
+    static final int SKETCH_PRECISION = 12;
+
+    /**
+     * The histogram of each column is built from a random sample of this
+     * many of the tuples read.
+     */
+    static final int SAMPLE_VALUES = 300 * NUM_HIST_BINS;
+
+    /** The most common values kept of each column */
+    static final int MAX_COMMON_VALUES = NUM_HIST_BINS;
+
     private int ioCostPerPage;
 
     private HeapFile table;
 
-    private HashMap<String, int[]> attrs;
+    private final int tableid;
+
+    /**
+     * The smallest and largest value of each int field. Once the statistics
+     * are shared the map is replaced by a changed copy, like the histograms.
+     */
+    private volatile HashMap<String, int[]> attrs;
+
+    /** The values of each column sampled while the statistics are built */
+    private ReservoirSample[] samples;
+
+    /**
+     * The histogram of each column. Updates publish a new array of new
+     * histograms instead of changing these, so a planner on another thread
+     * never sees a histogram half changed.
+     */
+    private volatile EquiDepthHistogram[] histograms;
+
+    private final Random random;
+
+    /** A sketch of the distinct values of each column */
+    private HyperLogLog[] sketches;
 
-    private HashMap<String, Object> attrs2hist;
+    /**
+     * The estimated number of distinct values of each column when the
+     * statistics were built, scaled up to the whole table when it was
+     * sampled
+     */
+    private double[] distinct;
+
+    private volatile int ntpls;
+
+    /** The tuples and pages read; more pages than that make up the table when it was sampled */
+    private volatile int tuplesRead, pagesRead;
+
+    /** The length and modification time of the table's file the statistics describe */
+    private long fileLength, fileModified;
+
+    /** The table's modification count when the statistics were computed or loaded */
+    private long modCount;
+
+    /** The fields' statistics as read from a statistics file, until they are first used */
+    private volatile byte[] encoded;
+
+    /**
+     * Statistics are stale once more than this share of the tuples has been
+     * inserted or deleted since they were computed, and at least
+     * STALE_MIN_CHANGES tuples.
+     */
+    static final double STALE_FRACTION = 0.1;
+
+    static final int STALE_MIN_CHANGES = 50;
+
+    private static volatile double staleFraction = STALE_FRACTION;
+
+    private static volatile boolean autoAnalyze = true;
+
+    /** Rebuilds the statistics of tables that have gone stale, one at a time */
+    private static final ExecutorService analyzer = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "auto-analyze");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
 
-    private int ntpls;
+    /** The tables waiting for or in a rebuild */
+    private static final Set<Integer> analyzing = ConcurrentHashMap.newKeySet();
 
     private TupleDesc td;
     /**
@@ -89,86 +412,466 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
-        // some code goes here
-        this.ioCostPerPage = ioCostPerPage;
-        this.table = (HeapFile) Database.getCatalog().getDbFile(tableid);
-        this.td = this.table.getTupleDesc();
-        this.attrs = new HashMap<>();
-        attrs2hist = new HashMap<>();
-        Transaction t = new Transaction();
-        DbFileIterator iterator = table.iterator(t.getId());
-        process(iterator);
+        this(tableid, ioCostPerPage, SAMPLE_PAGES);
     }
 
-    private void process(DbFileIterator iter){
+    /**
+     * Create a new TableStats object from at most samplePages pages of the
+     * table, chosen at random; the number of tuples is scaled up to the whole
+     * table.
+     *
+     * @param tableid
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO.
+     * @param samplePages
+     *            the number of pages to read, or 0 to read every page
+     */
+    public TableStats(int tableid, int ioCostPerPage, int samplePages) {
+        this(tableid, ioCostPerPage, (HeapFile) Database.getCatalog().getDbFile(tableid),
+                SAMPLE_VALUES);
+        int[] pages = pagesToRead(tableid, samplePages);
+        scan(pages, 0, pages.length, null);
+        finish();
+    }
 
-        // init map
+    /**
+     * Create empty statistics, to be filled by {@link #scan} and
+     * {@link #merge}.
+     *
+     * @param sampleValues
+     *            the size of the sample of the values of each column
+     */
+    private TableStats(int tableid, int ioCostPerPage, HeapFile table, int sampleValues) {
+        this.ioCostPerPage = ioCostPerPage;
+        this.table = table;
+        this.tableid = tableid;
+        this.td = this.table.getTupleDesc();
+        this.fileLength = table.getFile().length();
+        this.fileModified = table.getFile().lastModified();
+        this.modCount = table.getModificationCount();
+        this.attrs = new HashMap<>();
+        this.random = new Random(tableid);
+        samples = new ReservoirSample[td.numFields()];
+        histograms = new EquiDepthHistogram[td.numFields()];
+        sketches = new HyperLogLog[td.numFields()];
+        distinct = new double[td.numFields()];
         for (int i = 0; i < td.numFields(); i++) {
             Type type = td.getFieldType(i);
             String name = td.getFieldName(i);
             if (type == Type.INT_TYPE){
                 attrs.put(name, new int[]{Integer.MAX_VALUE, Integer.MIN_VALUE});
-                attrs2hist.put(name, null);
-            }else{
-                attrs2hist.put(name, new StringHistogram(NUM_HIST_BINS));
             }
+            samples[i] = new ReservoirSample(sampleValues, random);
+            sketches[i] = new HyperLogLog(SKETCH_PRECISION);
         }
+    }
 
-        try {
-            iter.open();
-            while (iter.hasNext()){
-                ntpls++;
-                Tuple next = iter.next();
+    /**
+     * @return the pages of the table to build its statistics from: all of
+     *         them, or samplePages of them chosen at random when there are
+     *         more, in ascending order
+     */
+    private static int[] pagesToRead(int tableid, int samplePages) {
+        int numPages = ((HeapFile) Database.getCatalog().getDbFile(tableid)).numPages();
+        if (samplePages > 0 && numPages > samplePages) {
+            // 大表只读随机抽出的一部分页，种子固定，每次统计结果一样
+            return SampleScan.choosePages(numPages, samplePages, new Random(tableid));
+        }
+        int[] pages = new int[numPages];
+        for (int i = 0; i < numPages; i++)
+            pages[i] = i;
+        return pages;
+    }
+
+    /**
+     * Add the tuples of pages[from] .. pages[to - 1] to the statistics, in one
+     * pass over the pages, read straight from the table's file: the values
+     * of each column are sampled as they go instead of needing the min and
+     * max first, and reading around the BufferPool takes no locks and evicts
+     * no pages.
+     * Changes not yet flushed to the file are not seen, which statistics can
+     * live with.
+     *
+     * @param io
+     *            a permit of it is held while a page is read, or null
+     */
+    private void scan(int[] pages, int from, int to, Semaphore io) {
+        byte[] data = new byte[BufferPool.PAGE_SIZE];
+        try (RandomAccessFile raf = new RandomAccessFile(table.getFile(), "r")) {
+            for (int p = from; p < to; p++) {
+                if (io != null)
+                    io.acquireUninterruptibly();
+                try {
+                    raf.seek((long) pages[p] * BufferPool.PAGE_SIZE);
+                    raf.readFully(data);
+                } finally {
+                    if (io != null)
+                        io.release();
+                }
+                Iterator<Tuple> it = new HeapPage(new HeapPageId(tableid, pages[p]), data).iterator();
+                while (it.hasNext()) {
+                    addTuple(it.next());
+                    tuplesRead++;
+                }
+                pagesRead++;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void addTuple(Tuple next) {
+        for (int i = 0; i < td.numFields(); i++)
+            addField(i, td.getFieldName(i), next.getField(i));
+    }
+
+    private void addField(int i, String name, Field field) {
+        addBound(name, field);
+        samples[i].offer(field);
+        sketches[i].offer(field);
+    }
+
+    private void addBound(String name, Field field) {
+        if (field.getType() == Type.INT_TYPE){
+            int value = ((IntField) field).getValue();
+            int[] bound = attrs.get(name);
+            bound[0] = Math.min(bound[0], value);
+            bound[1] = Math.max(bound[1], value);
+        }
+    }
+
+    /**
+     * {@link #addBound} on statistics that may be shared: a bound the value
+     * lies outside of is replaced by a wider one, in a copy of the bounds.
+     */
+    private void widenBound(String name, Field field) {
+        if (field.getType() == Type.INT_TYPE) {
+            int value = ((IntField) field).getValue();
+            int[] bound = attrs.get(name);
+            if (value < bound[0] || value > bound[1]) {
+                HashMap<String, int[]> a = new HashMap<>(attrs);
+                a.put(name, new int[] { Math.min(bound[0], value), Math.max(bound[1], value) });
+                attrs = a;
+            }
+        }
+    }
+
+    /**
+     * Add the statistics of other, built over other pages of the same table,
+     * to these.
+     */
+    private void merge(TableStats other) {
+        for (int i = 0; i < td.numFields(); i++) {
+            String name = td.getFieldName(i);
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                int[] bound = attrs.get(name), otherBound = other.attrs.get(name);
+                bound[0] = Math.min(bound[0], otherBound[0]);
+                bound[1] = Math.max(bound[1], otherBound[1]);
+            }
+            samples[i].merge(other.samples[i]);
+            sketches[i].merge(other.sketches[i]);
+        }
+        tuplesRead += other.tuplesRead;
+        pagesRead += other.pagesRead;
+    }
+
+    /**
+     * Write these statistics, as the statistics of the table called name, to
+     * out.
+     */
+    private void write(String name, DataOutputStream out) throws IOException {
+        out.writeUTF(name);
+        out.writeLong(fileLength);
+        out.writeLong(fileModified);
+        out.writeInt(td.numFields());
+        for (int i = 0; i < td.numFields(); i++)
+            out.writeByte(td.getFieldType(i) == Type.INT_TYPE ? 0 : 1);
+        out.writeInt(ntpls);
+        out.writeInt(tuplesRead);
+        out.writeInt(pagesRead);
+        byte[] body = encoded;
+        if (body == null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream fields = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+                EquiDepthHistogram[] h = histograms;
                 for (int i = 0; i < td.numFields(); i++) {
-                    Field field = next.getField(i);
-                    String name = td.getFieldName(i);
-                    if (field.getType() == Type.INT_TYPE){
-                        int value = ((IntField) field).getValue();
-                        int[] bound = attrs.get(name);
-                        bound[0] = Math.min(bound[0], value);
-                        bound[1] = Math.max(bound[1], value);
-                    }else{
-                        String value = ((StringField)field).getValue();
-                        StringHistogram histogram = (StringHistogram) attrs2hist.get(name);
-                        histogram.addValue(value);
+                    String field = td.getFieldName(i);
+                    if (td.getFieldType(i) == Type.INT_TYPE) {
+                        fields.writeInt(attrs.get(field)[0]);
+                        fields.writeInt(attrs.get(field)[1]);
                     }
+                    h[i].write(fields);
+                    sketches[i].write(fields);
+                    fields.writeDouble(distinct[i]);
                 }
             }
-            // 创建IntHistogram
-            Iterator<Map.Entry<String, int[]>> attrIter = attrs.entrySet().iterator();
-            while (attrIter.hasNext()){
-                Map.Entry<String, int[]> next = attrIter.next();
-                int min = next.getValue()[0];
-                int max = next.getValue()[1];
-                IntHistogram histogram = new IntHistogram(NUM_HIST_BINS, min, max);
-                attrs2hist.put(next.getKey(), histogram);
-            }
+            body = bytes.toByteArray();
+        }
+        out.writeInt(body.length);
+        out.write(body);
+    }
+
+    /**
+     * Read the statistics of the table called name written by
+     * {@link #write}, after the name.
+     *
+     * @return the statistics, or null if there is no such table or its file
+     *         has changed since the statistics were written
+     */
+    private static TableStats read(String name, DataInputStream in) throws IOException {
+        long fileLength = in.readLong();
+        long fileModified = in.readLong();
+        byte[] types = new byte[in.readInt()];
+        in.readFully(types);
+        int ntpls = in.readInt(), tuplesRead = in.readInt(), pagesRead = in.readInt();
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
 
-            // 把数据加入到histogram
-            iter.rewind();
-            while (iter.hasNext()){
-                Tuple next = iter.next();
+        int tableid;
+        try {
+            tableid = Database.getCatalog().getTableId(name);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        DbFile file = Database.getCatalog().getDbFile(tableid);
+        if (!(file instanceof HeapFile))
+            return null;
+        HeapFile hf = (HeapFile) file;
+        TupleDesc td = hf.getTupleDesc();
+        if (hf.getFile().length() != fileLength || hf.getFile().lastModified() != fileModified
+                || td.numFields() != types.length)
+            return null;
+        for (int i = 0; i < types.length; i++) {
+            if ((td.getFieldType(i) == Type.INT_TYPE ? 0 : 1) != types[i])
+                return null;
+        }
+        TableStats s = new TableStats(tableid, CostModel.current().ioCostPerPage(), hf, 0);
+        s.ntpls = ntpls;
+        s.tuplesRead = tuplesRead;
+        s.pagesRead = pagesRead;
+        s.encoded = body;
+        return s;
+    }
+
+    /**
+     * Decode the fields' statistics read from a statistics file, if they
+     * have not been yet.
+     */
+    private void ensureDecoded() {
+        if (encoded == null)
+            return;
+        synchronized (this) {
+            byte[] body = encoded;
+            if (body == null)
+                return;
+            try (DataInputStream in = new DataInputStream(new InflaterInputStream(
+                    new ByteArrayInputStream(body)))) {
+                HashMap<String, int[]> a = new HashMap<>(attrs);
+                EquiDepthHistogram[] h = new EquiDepthHistogram[td.numFields()];
                 for (int i = 0; i < td.numFields(); i++) {
-                    Field field = next.getField(i);
-                    String name = td.getFieldName(i);
-                    if (field.getType() == Type.INT_TYPE){
-                       IntHistogram histogram = (IntHistogram) attrs2hist.get(name);
-                       histogram.addValue(((IntField)field).getValue());
+                    String field = td.getFieldName(i);
+                    if (td.getFieldType(i) == Type.INT_TYPE) {
+                        a.put(field, new int[] { in.readInt(), in.readInt() });
                     }
+                    h[i] = EquiDepthHistogram.read(in);
+                    sketches[i] = HyperLogLog.read(in);
+                    distinct[i] = in.readDouble();
                 }
+                attrs = a;
+                histograms = h;
+            } catch (IOException e) {
+                throw new RuntimeException("corrupt statistics of table " + table.getFile(), e);
             }
-        } catch (DbException | TransactionAbortedException e) {
-            e.printStackTrace();
+            encoded = null;
         }
+    }
+
+    /**
+     * @return true if committed transactions have changed so much of the
+     *         table since these statistics were computed that they should
+     *         be computed again
+     */
+    public boolean isStale() {
+        long changed = table.getModificationCount() - modCount;
+        return changed > Math.max(STALE_MIN_CHANGES, staleFraction * ntpls);
+    }
 
+    /**
+     * Set the share of a table's tuples that has to change before its
+     * statistics are stale.
+     */
+    public static void setStaleFraction(double fraction) {
+        staleFraction = fraction;
+    }
 
+    /**
+     * Turn rebuilding stale statistics in the background on or off.
+     */
+    public static void setAutoAnalyze(boolean on) {
+        autoAnalyze = on;
+    }
+
+    /**
+     * The tuples one transaction has inserted and deleted, by table, in the
+     * order it changed them. They are counted in the tables' modification
+     * counts and statistics only when the transaction commits, so one that
+     * aborts leaves both as they were.
+     */
+    static final class Changes {
+        private final HashMap<Integer, ArrayList<Tuple>> tuples = new HashMap<>();
+        /** For each table, whether each of its changed tuples was inserted */
+        private final HashMap<Integer, BitSet> inserted = new HashMap<>();
+
+        synchronized void add(int tableid, Tuple t, boolean insert) {
+            ArrayList<Tuple> changed = tuples.get(tableid);
+            if (changed == null) {
+                changed = new ArrayList<>();
+                tuples.put(tableid, changed);
+                inserted.put(tableid, new BitSet());
+            }
+            if (insert)
+                inserted.get(tableid).set(changed.size());
+            changed.add(t);
+        }
+
+        /**
+         * Count the changes of the committed transaction.
+         */
+        synchronized void apply() {
+            for (Map.Entry<Integer, ArrayList<Tuple>> e : tuples.entrySet())
+                committed(e.getKey(), e.getValue(), inserted.get(e.getKey()));
+        }
+    }
+
+    /**
+     * Count tuples a committed transaction inserted into and deleted from a
+     * table in its modification count and its statistics, if it has any.
+     */
+    private static void committed(int tableid, List<Tuple> tuples, BitSet inserted) {
+        DbFile file;
+        try {
+            file = Database.getCatalog().getDbFile(tableid);
+        } catch (NoSuchElementException e) {
+            return;     // 表已经被删除
+        }
+        if (file instanceof HeapFile)
+            ((HeapFile) file).addModifications(tuples.size());
+        TableStats s = statsMap.get(Database.getCatalog().getTableName(tableid));
+        if (s != null && s.tableid == tableid)
+            s.update(tuples, inserted);
+    }
+
+    /**
+     * Count the tuples a transaction inserted or deleted in the tuple count,
+     * bounds and histograms, and start rebuilding the statistics once they
+     * are stale. Sketches cannot forget values and bounds only widen, so
+     * deletes leave them as they are.
+     * <p>
+     * Planners read the statistics without locking them, so the histograms
+     * and bounds are changed on copies that then replace them. Updates are
+     * serialized by the lock on these statistics.
+     *
+     * @param inserted
+     *            whether each of the tuples was inserted or deleted
+     */
+    private synchronized void update(List<Tuple> tuples, BitSet inserted) {
+        ensureDecoded();
+        int delta = 2 * inserted.cardinality() - tuples.size();
+        ntpls = Math.max(0, ntpls + delta);
+        tuplesRead = Math.max(0, tuplesRead + delta);
+        EquiDepthHistogram[] h = new EquiDepthHistogram[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++)
+            h[i] = histograms[i].copy();
+        for (int k = 0; k < tuples.size(); k++) {
+            Tuple t = tuples.get(k);
+            if (t.getTupleDesc().numFields() != td.numFields())
+                continue;
+            for (int i = 0; i < td.numFields(); i++) {
+                Field field = t.getField(i);
+                if (inserted.get(k)) {
+                    widenBound(td.getFieldName(i), field);
+                    h[i].addValue(field);
+                    // 草图的寄存器只增不减，并发读到新旧值都可以
+                    sketches[i].offer(field);
+                } else {
+                    h[i].removeValue(field);
+                }
+            }
+        }
+        histograms = h;
+        if (autoAnalyze && isStale())
+            scheduleAnalyze(tableid);
+    }
+
+    /**
+     * Rebuild the statistics of a table in the background, unless that is
+     * already pending.
+     */
+    private static void scheduleAnalyze(final int tableid) {
+        if (!analyzing.add(tableid))
+            return;
+        analyzer.submit(new Runnable() {
+            public void run() {
+                try {
+                    analyze(tableid);
+                } finally {
+                    analyzing.remove(tableid);
+                }
+            }
+        });
+    }
+
+    /**
+     * Compute the statistics of a table again and replace its old ones.
+     * Like every TableStats this reads the table's file, so tuples of
+     * transactions that are still running are only counted once they have
+     * been written.
+     */
+    public static void analyze(int tableid) {
+        TableStats s = new TableStats(tableid, CostModel.current().ioCostPerPage());
+        setTableStats(Database.getCatalog().getTableName(tableid), s);
+    }
+
+    /**
+     * Scale the number of tuples read up to the whole table, and build the
+     * histogram of each column from its sample.
+     */
+    private void finish() {
+        int numPages = table.numPages();
+        ntpls = pagesRead >= numPages ? tuplesRead
+                : (int) Math.round((double) tuplesRead * numPages / pagesRead);
+        for (int i = 0; i < td.numFields(); i++) {
+            long read = Math.min(sketches[i].estimate(), tuplesRead);
+            distinct[i] = pagesRead >= numPages ? read
+                    : Math.max(read, scaleDistinct(samples[i].getValues(), ntpls));
+            histograms[i] = EquiDepthHistogram.build(td.getFieldType(i), samples[i].getValues(),
+                    ntpls, distinct[i], NUM_HIST_BINS, MAX_COMMON_VALUES);
+        }
+        samples = null;
+    }
+
+    /**
+     * Estimate the number of distinct values among total tuples from a
+     * uniform sample of them, with the Duj1 estimator of Haas and Stokes:
+     * values seen once in the sample stand for the values not seen at all.
+     */
+    private static double scaleDistinct(List<Field> sample, long total) {
+        int n = sample.size();
+        if (n == 0 || total <= n)
+            return n;
+        HashMap<Field, Integer> counts = new HashMap<Field, Integer>();
+        for (Field f : sample) {
+            Integer c = counts.get(f);
+            counts.put(f, c == null ? 1 : c + 1);
+        }
+        int once = 0;
+        for (int c : counts.values()) {
+            if (c == 1)
+                once++;
+        }
+        double d = counts.size();
+        return n * d / (n - once + (double) once * n / total);
     }
 
     /**
@@ -181,11 +884,13 @@ public class TableStats {
      * expensive to read as a full page. (Most real hard drives can't
      * efficiently address regions smaller than a page at a time.)
      *
+     * Producing each tuple also costs {@link CostModel#scanTuple}.
+     *
      * @return The estimated cost of scanning the table.
      */
     public double estimateScanCost() {
         // some code goes here
-        return table.numPages() * ioCostPerPage;
+        return table.numPages() * ioCostPerPage + CostModel.current().scanTuple * ntpls;
     }
 
     /**
@@ -214,7 +919,19 @@ public class TableStats {
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
-        return 1.0;
+        ensureDecoded();
+        double eq = histograms[field].avgSelectivity();
+        switch (op) {
+        case EQUALS:
+            return eq;
+        case NOT_EQUALS:
+            return 1.0 - eq;
+        case LIKE:
+            return 0.1;
+        default:
+            // 不知道常量时，范围谓词猜三分之一
+            return 1.0 / 3;
+        }
     }
 
     /**
@@ -232,18 +949,82 @@ public class TableStats {
      */
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         // some code goes here
-        double res;
-        String name = td.getFieldName(field);
-        if (constant.getType() == Type.INT_TYPE){
-            int value = ((IntField) constant).getValue();
-            IntHistogram histogram = (IntHistogram)attrs2hist.get(name);
-            res = histogram.estimateSelectivity(op, value);
-        }else {
-            String value = ((StringField)constant).getValue();
-            StringHistogram histogram = (StringHistogram) attrs2hist.get(name);
-            res =  histogram.estimateSelectivity(op, value);
+        ensureDecoded();
+        return histograms[field].estimateSelectivity(op, constant);
+    }
+
+    /**
+     * Estimate the selectivity of the join predicate
+     * <tt>this.field op other.otherField</tt>, as a fraction of the cross
+     * product of the two tables.
+     * <p>
+     * The domain of otherField is cut into NUM_HIST_BINS slices; the fraction
+     * of other's tuples in each slice (read from other's histogram) is
+     * weighted by the selectivity of <tt>field op v</tt> on this table, with
+     * v the middle of the slice. Only int fields have the min/max this
+     * needs; for anything else the textbook guess of 0.3 is returned.
+     *
+     * 不等值连接的选择率：用另一张表的直方图对本表的选择率积分
+     */
+    public double estimateJoinSelectivity(int field, Predicate.Op op,
+            TableStats other, int otherField) {
+        ensureDecoded();
+        other.ensureDecoded();
+        int[] bound = other.attrs.get(other.td.getFieldName(otherField));
+        if (td.getFieldType(field) != Type.INT_TYPE || bound == null
+                || ntpls == 0 || other.ntpls == 0) {
+            return 0.3;
         }
-        return res;
+        long min = bound[0], max = bound[1];
+        double sel = 0.0;
+        double below = 0.0;     // other中小于当前分段下界的比例
+        for (int k = 0; k < NUM_HIST_BINS; k++) {
+            long hi = min + (max - min + 1) * (k + 1) / NUM_HIST_BINS;
+            if (hi <= min + (max - min + 1) * k / NUM_HIST_BINS) {
+                continue;       // 取值范围小于分段数时有空段
+            }
+            long lo = min + (max - min + 1) * k / NUM_HIST_BINS;
+            double upTo = hi > max ? 1.0 : other.estimateSelectivity(otherField,
+                    Predicate.Op.LESS_THAN, new IntField((int) hi));
+            double mass = upTo - below;
+            below = upTo;
+            if (mass <= 0) {
+                continue;
+            }
+            int mid = (int) ((lo + hi - 1) / 2);
+            sel += mass * estimateSelectivity(field, op, new IntField(mid));
+        }
+        return Math.max(0.0, Math.min(1.0, sel));
+    }
+
+    /**
+     * Estimate the number of distinct values of a field, from a sketch of
+     * the values read. When the statistics come from a sample of the pages
+     * the number of distinct values in the sample is scaled up to the whole
+     * table.
+     *
+     * @param field
+     *            the index of the field
+     */
+    public int estimateDistinctValues(int field) {
+        ensureDecoded();
+        long read = Math.min(sketches[field].estimate(), tuplesRead);
+        return (int) Math.min(Math.max(distinct[field], read), Math.max(ntpls, read));
+    }
+
+    /**
+     * Estimate the selectivity of the equi-join
+     * <tt>this.field = other.otherField</tt>, as a fraction of the cross
+     * product of the two tables, from the histograms and common values of
+     * the two fields, see {@link EquiDepthHistogram#joinSelectivity}.
+     */
+    public double estimateEquiJoinSelectivity(int field, TableStats other, int otherField) {
+        ensureDecoded();
+        other.ensureDecoded();
+        if (td.getFieldType(field) != other.td.getFieldType(otherField))
+            return 1.0 / Math.max(1, Math.max(estimateDistinctValues(field),
+                    other.estimateDistinctValues(otherField)));
+        return EquiDepthHistogram.joinSelectivity(histograms[field], other.histograms[otherField]);
     }
 
     /**
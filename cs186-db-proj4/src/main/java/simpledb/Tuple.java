@@ -30,6 +30,15 @@ public class Tuple implements Serializable {
         fields = new Field[td.numFields()];
     }
 
+    /**
+     * Create a tuple whose field storage is managed by a subclass (see
+     * {@link JoinedTuple}), which must then override getField and setField.
+     */
+    Tuple(TupleDesc td, Field[] fields) {
+        this.td = td;
+        this.fields = fields;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -93,8 +102,8 @@ public class Tuple implements Serializable {
     public String toString() {
         // some code goes here
         StringBuffer rowString = new StringBuffer();
-        for (int i = 0; i < fields.length; i++) {
-            rowString.append(fields[i].toString()).append('\t');
+        for (int i = 0; i < td.numFields(); i++) {
+            rowString.append(getField(i).toString()).append('\t');
         }
         //最后一个Field换行符
         rowString.setCharAt(rowString.length()-1, '\n');
@@ -121,7 +130,7 @@ public class Tuple implements Serializable {
 
         @Override
         public Field next() {
-            return fields[i++];
+            return getField(i++);
         }
 
     }
@@ -0,0 +1,143 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+/**
+ * TupleBuffer holds a materialized input that an operator reads several
+ * times, such as the inner relation of a nested loops {@link Join}.
+ * <p>
+ * Tuples are kept in memory up to the number of bytes given to the buffer;
+ * the tuples after that are written to a {@link SpillFile}, whose fixed-size
+ * records are read back sequentially on each pass. Reading the buffer again
+ * therefore never re-executes the operators that produced the tuples.
+ *
+ * 物化缓冲区：输入只计算一次，之后多次读取；内存放不下的部分写到溢出文件
+ */
+public class TupleBuffer {
+
+    private final TupleDesc td;
+    private final int memoryTuples;
+    private final ArrayList<Tuple> memory = new ArrayList<Tuple>();
+    private SpillFile spill;
+
+    /**
+     * @param td
+     *            the TupleDesc of the buffered tuples
+     * @param memoryBytes
+     *            how much of the buffer may be kept in memory
+     */
+    public TupleBuffer(TupleDesc td, long memoryBytes) {
+        this.td = td;
+        this.memoryTuples = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                memoryBytes / MemoryManager.estimateTupleBytes(td)));
+    }
+
+    /**
+     * Read all the tuples of it into a new buffer.
+     */
+    public static TupleBuffer materialize(DbIterator it, long memoryBytes)
+            throws DbException, TransactionAbortedException {
+        TupleBuffer buffer = new TupleBuffer(it.getTupleDesc(), memoryBytes);
+        while (it.hasNext())
+            buffer.add(it.next());
+        return buffer;
+    }
+
+    public void add(Tuple t) throws DbException {
+        if (spill == null && memory.size() < memoryTuples) {
+            memory.add(t);
+            return;
+        }
+        if (spill == null)
+            spill = new SpillFile(td);
+        spill.add(t);
+    }
+
+    /**
+     * @return the number of tuples in the buffer
+     */
+    public int size() {
+        return memory.size() + (spill == null ? 0 : spill.size());
+    }
+
+    /**
+     * @return true if part of the buffer had to be written to disk
+     */
+    public boolean spilled() {
+        return spill != null;
+    }
+
+    /**
+     * @return an iterator over the tuples of the buffer, in the order they
+     *         were added; no more tuples may be added afterwards. The spill
+     *         file is only opened by passes that read past the tuples held
+     *         in memory, so rewinding after reading a prefix is cheap.
+     */
+    public DbIterator iterator() throws DbException {
+        final DbIterator onDisk = spill == null ? null : spill.iterator();
+        return new DbIterator() {
+            private static final long serialVersionUID = 1L;
+            private int pos = -1;
+            private boolean diskOpen;
+
+            public void open() throws DbException, TransactionAbortedException {
+                pos = 0;
+                if (diskOpen) {
+                    onDisk.close();
+                    diskOpen = false;
+                }
+            }
+
+            public boolean hasNext() throws DbException, TransactionAbortedException {
+                if (pos < 0)
+                    return false;
+                if (pos < memory.size())
+                    return true;
+                if (onDisk == null)
+                    return false;
+                // 读到内存中的部分之后才打开溢出文件
+                if (!diskOpen) {
+                    onDisk.open();
+                    diskOpen = true;
+                }
+                return onDisk.hasNext();
+            }
+
+            public Tuple next() throws DbException, TransactionAbortedException {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                if (pos < memory.size())
+                    return memory.get(pos++);
+                return onDisk.next();
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                open();
+            }
+
+            public TupleDesc getTupleDesc() {
+                return td;
+            }
+
+            public void close() {
+                pos = -1;
+                if (diskOpen) {
+                    onDisk.close();
+                    diskOpen = false;
+                }
+            }
+        };
+    }
+
+    /**
+     * Drop the tuples and delete the spill file, if any.
+     */
+    public void clear() {
+        memory.clear();
+        if (spill != null) {
+            spill.delete();
+            spill = null;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+public class ApproxAggregateTest extends SimpleDbTestBase {
+
+  /**
+   * The estimate is within a few standard errors of the real number of
+   * distinct values, and merging the sketches of two halves gives the
+   * sketch of the whole.
+   */
+  @Test public void hyperLogLog() {
+    HyperLogLog all = new HyperLogLog();
+    HyperLogLog low = new HyperLogLog();
+    HyperLogLog high = new HyperLogLog();
+    for (int i = 0; i < 100000; i++) {
+      // 每个值出现两次
+      Field f = new IntField(i % 50000 * 7);
+      all.offer(f);
+      (i % 50000 < 25000 ? low : high).offer(f);
+    }
+    assertEquals(50000, all.estimate(), 50000 * 4 * all.relativeError());
+    low.merge(high);
+    assertEquals(all.estimate(), low.estimate());
+
+    HyperLogLog small = new HyperLogLog();
+    for (String s : new String[] { "a", "b", "a", "c", "" })
+      small.offer(new StringField(s, 8));
+    assertEquals(4, small.estimate());
+  }
+
+  /**
+   * APPROX_COUNT_DISTINCT counts the values of each group and adds an error
+   * column.
+   */
+  @Test public void approxCountDistinct() throws Exception {
+    int[] data = new int[2 * 3000];
+    for (int i = 0; i < 3000; i++) {
+      data[2 * i] = i % 3;
+      data[2 * i + 1] = i % 300;
+    }
+    Aggregate op = new Aggregate(TestUtil.createTupleList(2, data), 1, 0,
+        Aggregator.Op.APPROX_COUNT_DISTINCT);
+    assertEquals(3, op.getTupleDesc().numFields());
+    assertEquals(Aggregate.ERROR_FIELD, op.getTupleDesc().getFieldName(2));
+    op.open();
+    int groups = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      // 300和3的最小公倍数是300，每组100个不同值
+      assertEquals(100, ((IntField) t.getField(1)).getValue());
+      assertTrue(((IntField) t.getField(2)).getValue() > 0);
+      groups++;
+    }
+    assertEquals(3, groups);
+    op.close();
+  }
+
+  /**
+   * Without sampling the estimates are exact and their error is 0.
+   */
+  @Test public void unsampledIsExact() throws Exception {
+    DbIterator rows = TestUtil.createTupleList(2,
+        new int[] { 1, 2, 1, 4, 2, 10, 2, 20, 2, 30 });
+    Aggregate op = new Aggregate(rows, 1, 0, Aggregator.Op.APPROX_SUM);
+    op.open();
+    int groups = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      int group = ((IntField) t.getField(0)).getValue();
+      assertEquals(group == 1 ? 6 : 60, ((IntField) t.getField(1)).getValue());
+      assertEquals(0, ((IntField) t.getField(2)).getValue());
+      groups++;
+    }
+    assertEquals(2, groups);
+    op.close();
+
+    SampledAggregator agg = new SampledAggregator(Aggregator.NO_GROUPING, null, 1,
+        Aggregator.Op.APPROX_AVG, 1.0);
+    rows.open();
+    while (rows.hasNext())
+      agg.mergeTupleIntoGroup(rows.next());
+    DbIterator it = agg.iterator();
+    it.open();
+    Tuple t = it.next();
+    assertEquals(13, ((IntField) t.getField(0)).getValue());
+    assertEquals(0, ((IntField) t.getField(1)).getValue());
+  }
+
+  /**
+   * SampleScan reads the chosen share of the pages, in page order, and the
+   * sampled SUM lands within a few times its error of the real sum.
+   */
+  @Test public void sampledSum() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    // 20个满页：一页992个单列元组，部分填满的最后一页会让按页抽样的误差大于按行估计的误差
+    HeapFile f = SystemTestUtil.createRandomHeapFile(1, 992 * 20, 1000, null, tuples);
+    Database.getCatalog().addTable(f, "sampled");
+    long sum = 0;
+    for (ArrayList<Integer> t : tuples)
+      sum += t.get(0);
+
+    TransactionId tid = new TransactionId();
+    SampleScan scan = new SampleScan(tid, f.getId(), "s", 25, 42);
+    int numPages = f.numPages();
+    int[] pages = scan.getPages();
+    assertEquals((int) Math.ceil(numPages * 0.25), pages.length);
+    for (int i = 1; i < pages.length; i++)
+      assertTrue(pages[i - 1] < pages[i]);
+    assertEquals((double) pages.length / numPages, scan.getSamplingFraction(), 1e-9);
+
+    Aggregate op = new Aggregate(scan, 0, Aggregator.NO_GROUPING,
+        Aggregator.Op.APPROX_SUM);
+    op.setSamplingFraction(scan.getSamplingFraction());
+    op.open();
+    Tuple t = op.next();
+    int estimate = ((IntField) t.getField(0)).getValue();
+    int error = ((IntField) t.getField(1)).getValue();
+    assertTrue(error > 0);
+    assertEquals(sum, estimate, 3 * error);
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ApproxAggregateTest.class);
+  }
+}
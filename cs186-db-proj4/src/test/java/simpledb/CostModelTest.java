@@ -0,0 +1,95 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Assert;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class CostModelTest extends SimpleDbTestBase {
+
+	private static File tempFile() throws IOException {
+		File f = File.createTempFile("costs", ".properties");
+		f.deleteOnExit();
+		return f;
+	}
+
+	/**
+	 * A saved cost model reads back the same.
+	 */
+	@Test public void saveLoad() throws IOException {
+		CostModel model = new CostModel(123.5, 456, 0.25, 3, 1.5, 2, 0.75);
+		File f = tempFile();
+		model.save(f);
+		CostModel read = CostModel.load(f);
+		Assert.assertEquals(model.pageRead, read.pageRead, 0);
+		Assert.assertEquals(model.spillPage, read.spillPage, 0);
+		Assert.assertEquals(model.scanTuple, read.scanTuple, 0);
+		Assert.assertEquals(model.hashBuild, read.hashBuild, 0);
+		Assert.assertEquals(model.hashProbe, read.hashProbe, 0);
+		Assert.assertEquals(model.sortCompare, read.sortCompare, 0);
+		Assert.assertEquals(model.mergeTuple, read.mergeTuple, 0);
+		Assert.assertEquals(124, read.ioCostPerPage());
+	}
+
+	/**
+	 * Coefficients missing from the file keep their defaults; one that is
+	 * not a number makes the file unreadable.
+	 */
+	@Test public void loadPartial() throws IOException {
+		File f = tempFile();
+		FileWriter w = new FileWriter(f);
+		w.write("hashBuild = 7\n");
+		w.close();
+		CostModel read = CostModel.load(f);
+		Assert.assertEquals(7, read.hashBuild, 0);
+		Assert.assertEquals(CostModel.DEFAULT.pageRead, read.pageRead, 0);
+		Assert.assertEquals(CostModel.DEFAULT.mergeTuple, read.mergeTuple, 0);
+
+		w = new FileWriter(f);
+		w.write("pageRead = fast\n");
+		w.close();
+		try {
+			CostModel.load(f);
+			Assert.fail("expected IOException");
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Calibrating measures every coefficient as a positive multiple of one
+	 * predicate evaluation, and a model is only calibrated when none is
+	 * saved yet.
+	 */
+	@Test public void calibrate() throws Exception {
+		CostModel model = CostModel.calibrate();
+		Assert.assertEquals(1, model.compare, 0);
+		Assert.assertTrue(model.pageRead > 0);
+		Assert.assertTrue(model.spillPage > 0);
+		Assert.assertTrue(model.scanTuple >= 0);
+		Assert.assertTrue(model.hashBuild > 0);
+		Assert.assertTrue(model.hashProbe > 0);
+		Assert.assertTrue(model.sortCompare > 0);
+		Assert.assertTrue(model.mergeTuple > 0);
+
+		File f = tempFile();
+		CostModel saved = new CostModel(10, 20, 0, 2, 1, 1, 1);
+		saved.save(f);
+		try {
+			CostModel.loadOrCalibrate(f);
+			Assert.assertEquals(10, CostModel.current().pageRead, 0);
+		} finally {
+			CostModel.setCurrent(CostModel.DEFAULT);
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(CostModelTest.class);
+	}
+}
@@ -0,0 +1,118 @@
+package simpledb;
+
+import java.util.HashSet;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class DistinctTest extends SimpleDbTestBase {
+
+  /** n tuples ((i * 7919) % keys, i % 3), see TestUtil#createKeyedTupleList */
+  private static DbIterator rows(int n, int keys) {
+    return TestUtil.createKeyedTupleList(n, keys, 3);
+  }
+
+  private static HashSet<String> drain(DbIterator it, int expected) throws Exception {
+    HashSet<String> seen = new HashSet<String>();
+    int count = 0;
+    while (it.hasNext()) {
+      assertTrue(seen.add(it.next().toString()));
+      count++;
+    }
+    assertEquals(expected, count);
+    return seen;
+  }
+
+  /**
+   * Every different tuple comes out once, also when the set of tuples seen
+   * does not fit in memory and the rest is deduplicated partition by
+   * partition.
+   */
+  @Test public void hashDistinct() throws Exception {
+    for (long budget : new long[] { Database.getMemoryManager().getTotalBytes(), 0 }) {
+      Database.getMemoryManager().setTotalBytes(budget);
+      // (i % 3000, i % 3) has lcm(3000, 3) = 3000 different values
+      Distinct op = new Distinct(rows(9000, 3000));
+      op.open();
+      HashSet<String> first = drain(op, 3000);
+      op.rewind();
+      assertEquals(first, drain(op, 3000));
+      op.close();
+    }
+  }
+
+  /**
+   * On a sorted input only the current run is remembered and the order is
+   * kept.
+   */
+  @Test public void sortedDistinct() throws Exception {
+    Distinct op = new Distinct(new OrderBy(0, false, rows(600, 20)), 0);
+    op.open();
+    int last = Integer.MAX_VALUE;
+    int count = 0;
+    HashSet<String> seen = new HashSet<String>();
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      int key = ((IntField) t.getField(0)).getValue();
+      assertTrue(key <= last);
+      assertTrue(seen.add(t.toString()));
+      last = key;
+      count++;
+    }
+    // 20和3互质，每个键都和0、1、2各出现一次
+    assertEquals(60, count);
+    op.close();
+  }
+
+  /**
+   * COUNT(DISTINCT) counts each value once per group, for int and string
+   * fields.
+   */
+  @Test public void countDistinct() throws Exception {
+    Aggregate op = new Aggregate(rows(600, 20), 0, 1, Aggregator.Op.COUNT_DISTINCT);
+    op.open();
+    int groups = 0;
+    while (op.hasNext()) {
+      assertEquals(20, ((IntField) op.next().getField(1)).getValue());
+      groups++;
+    }
+    assertEquals(3, groups);
+    op.close();
+
+    DbIterator strings = TestUtil.createTupleList(2,
+        new Object[] { 1, "a", 1, "b", 1, "a", 2, "a", 0, "" });
+    op = new Aggregate(strings, 1, Aggregator.NO_GROUPING, Aggregator.Op.COUNT_DISTINCT);
+    op.open();
+    assertEquals(3, ((IntField) op.next().getField(0)).getValue());
+    assertFalse(op.hasNext());
+    op.close();
+  }
+
+  /**
+   * IntHashSet, including the value 0 that marks its empty slots.
+   */
+  @Test public void intHashSet() {
+    IntHashSet set = new IntHashSet();
+    for (int i = -500; i < 500; i++)
+      assertTrue(set.add(i * 31));
+    for (int i = -500; i < 500; i++) {
+      assertFalse(set.add(i * 31));
+      assertTrue(set.contains(i * 31));
+    }
+    assertFalse(set.contains(1));
+    assertEquals(1000, set.size());
+    set.clear();
+    assertFalse(set.contains(0));
+    assertEquals(0, set.size());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(DistinctTest.class);
+  }
+}
@@ -0,0 +1,189 @@
+package simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import simpledb.Predicate.Op;
+
+public class EquiDepthHistogramTest {
+
+	private static ArrayList<Field> skewed() {
+		// 一半是7，另一半均匀分布在0..9999
+		ArrayList<Field> values = new ArrayList<Field>();
+		for (int i = 0; i < 10000; i++)
+			values.add(new IntField(i % 2 == 0 ? 7 : i));
+		return values;
+	}
+
+	/**
+	 * A value that makes up half of a column is a common value with an exact
+	 * count, and the other values are still estimated well.
+	 */
+	@Test public void skewedTest() {
+		EquiDepthHistogram h = EquiDepthHistogram.build(Type.INT_TYPE, skewed(), 10000, 5001,
+				100, 100);
+		Assert.assertEquals(1, h.numCommonValues());
+		Assert.assertEquals(100, h.numBuckets());
+		Assert.assertEquals(0.5, h.estimateSelectivity(Op.EQUALS, new IntField(7)), 0.001);
+		Assert.assertEquals(0.0001, h.estimateSelectivity(Op.EQUALS, new IntField(4001)), 0.0001);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.EQUALS, new IntField(20000)), 0.0);
+		Assert.assertEquals(0.75, h.estimateSelectivity(Op.LESS_THAN, new IntField(5000)), 0.01);
+		Assert.assertEquals(0.5, h.estimateSelectivity(Op.GREATER_THAN, new IntField(7)), 0.01);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.LESS_THAN_OR_EQ, new IntField(9999)), 0.001);
+		// 随机取一个值做等值比较，几乎总是碰到7
+		Assert.assertEquals(0.25, h.avgSelectivity(), 0.01);
+
+		// 等宽直方图把7和同一个桶里的值平均
+		IntHistogram wide = new IntHistogram(100, 0, 9999);
+		for (Field f : skewed())
+			wide.addValue(((IntField) f).getValue());
+		Assert.assertTrue(wide.estimateSelectivity(Op.EQUALS, 7) < 0.1);
+	}
+
+	/**
+	 * Strings that share a long prefix are told apart by the characters
+	 * after it.
+	 */
+	@Test public void prefixTest() {
+		ArrayList<Field> values = new ArrayList<Field>();
+		for (int i = 0; i < 1000; i++)
+			values.add(new StringField(String.format("author_%04d", i), Type.STRING_LEN));
+		EquiDepthHistogram h = EquiDepthHistogram.build(Type.STRING_TYPE, values, 1000, 1000,
+				100, 100);
+		Assert.assertEquals(0, h.numCommonValues());
+		StringField mid = new StringField("author_0500", Type.STRING_LEN);
+		Assert.assertEquals(0.5, h.estimateSelectivity(Op.LESS_THAN, mid), 0.01);
+		Assert.assertEquals(0.001, h.estimateSelectivity(Op.EQUALS, mid), 0.001);
+		Assert.assertEquals(0.1, h.estimateSelectivity(Op.LIKE,
+				new StringField("author_01", Type.STRING_LEN)), 0.02);
+
+		StringHistogram old = new StringHistogram(100);
+		for (Field f : values)
+			old.addValue(((StringField) f).getValue());
+		// 只看前4个字符时分不出这些值
+		Assert.assertEquals(old.estimateSelectivity(Op.LESS_THAN, "author_0100"),
+				old.estimateSelectivity(Op.LESS_THAN, "author_0900"), 0.0);
+		Assert.assertEquals(0.1, h.estimateSelectivity(Op.LESS_THAN,
+				new StringField("author_0100", Type.STRING_LEN)), 0.01);
+	}
+
+	/**
+	 * Inserted and deleted values move the counts, and a histogram reads
+	 * back as it was written.
+	 */
+	@Test public void updateAndPersistTest() throws Exception {
+		EquiDepthHistogram h = EquiDepthHistogram.build(Type.INT_TYPE, skewed(), 10000, 5001,
+				100, 100);
+		for (int i = 0; i < 10000; i++)
+			h.addValue(new IntField(7));
+		Assert.assertEquals(0.75, h.estimateSelectivity(Op.EQUALS, new IntField(7)), 0.001);
+		h.addValue(new IntField(-5));
+		Assert.assertTrue(h.estimateSelectivity(Op.LESS_THAN, new IntField(0)) > 0);
+		h.removeValue(new IntField(-5));
+		h.removeValue(new IntField(123456));
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.LESS_THAN, new IntField(0)), 0.001);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		h.write(new DataOutputStream(bytes));
+		EquiDepthHistogram read = EquiDepthHistogram.read(new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())));
+		Assert.assertEquals(h.toString(), read.toString());
+		for (int v = -10; v < 11000; v += 500) {
+			Assert.assertEquals(h.estimateSelectivity(Op.LESS_THAN, new IntField(v)),
+					read.estimateSelectivity(Op.LESS_THAN, new IntField(v)), 0.0);
+		}
+	}
+
+	/**
+	 * Values added to and removed from a copy leave the histogram it was
+	 * copied from as it was, also when the copy was empty and gets its
+	 * first bucket.
+	 */
+	@Test public void copyTest() {
+		EquiDepthHistogram empty = EquiDepthHistogram.build(Type.INT_TYPE, new ArrayList<Field>(),
+				0, 0, 100, 100);
+		EquiDepthHistogram filled = empty.copy();
+		filled.addValue(new IntField(3));
+		Assert.assertEquals(0, empty.numBuckets());
+		Assert.assertEquals(1, filled.numBuckets());
+		Assert.assertEquals(0.0, empty.estimateSelectivity(Op.EQUALS, new IntField(3)), 0.0);
+		Assert.assertEquals(1.0, filled.estimateSelectivity(Op.EQUALS, new IntField(3)), 0.0);
+
+		EquiDepthHistogram h = EquiDepthHistogram.build(Type.INT_TYPE, skewed(), 10000, 5001,
+				100, 100);
+		String before = h.toString();
+		EquiDepthHistogram c = h.copy();
+		c.addValue(new IntField(7));
+		c.addValue(new IntField(-5));
+		c.removeValue(new IntField(9999));
+		Assert.assertEquals(before, h.toString());
+		Assert.assertFalse(before.equals(c.toString()));
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.LESS_THAN, new IntField(0)), 0.0);
+	}
+
+	private static EquiDepthHistogram modulo(int rows, int mod) {
+		ArrayList<Field> values = new ArrayList<Field>();
+		for (int i = 0; i < rows; i++)
+			values.add(new IntField(i % mod));
+		return EquiDepthHistogram.build(Type.INT_TYPE, values, rows, mod, 100, 100);
+	}
+
+	/**
+	 * The selectivity of many-to-many joins, through the common values of one
+	 * side and through the histograms and distinct counts of both.
+	 */
+	@Test public void joinSelectivityTest() {
+		// 0..99各100个 与 0..199各20个：100*100*20行
+		EquiDepthHistogram a = modulo(10000, 100), b = modulo(4000, 200);
+		Assert.assertEquals(100, a.numCommonValues());
+		Assert.assertEquals(0, b.numCommonValues());
+		Assert.assertEquals(200000.0 / (10000 * 4000), EquiDepthHistogram.joinSelectivity(a, b), 0.0005);
+		Assert.assertEquals(EquiDepthHistogram.joinSelectivity(a, b),
+				EquiDepthHistogram.joinSelectivity(b, a), 1e-9);
+
+		// 两边都没有高频值，b只有一半的范围和a重叠
+		EquiDepthHistogram c = modulo(10000, 1000), d = modulo(4000, 2000);
+		Assert.assertEquals(20000.0 / (10000 * 4000), EquiDepthHistogram.joinSelectivity(c, d), 0.0001);
+
+		EquiDepthHistogram far = EquiDepthHistogram.build(Type.INT_TYPE,
+				new ArrayList<Field>(Collections.nCopies(10, (Field) new IntField(5000))), 10, 1, 100, 100);
+		Assert.assertEquals(0.0, EquiDepthHistogram.joinSelectivity(c, far), 0.0);
+	}
+
+	/**
+	 * Merging the samples of two halves gives a sample of the whole, with
+	 * about as many values from each half as it has.
+	 */
+	@Test public void sampleTest() {
+		Random random = new Random(1);
+		ReservoirSample a = new ReservoirSample(1000, random);
+		ReservoirSample b = new ReservoirSample(1000, random);
+		for (int i = 0; i < 30000; i++)
+			(i < 10000 ? a : b).offer(new IntField(i));
+		a.merge(b);
+		Assert.assertEquals(30000, a.getSeen());
+		Assert.assertEquals(1000, a.getValues().size());
+		int low = 0;
+		for (Field f : a.getValues()) {
+			if (((IntField) f).getValue() < 10000)
+				low++;
+		}
+		Assert.assertEquals(333, low, 60);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(EquiDepthHistogramTest.class);
+	}
+}
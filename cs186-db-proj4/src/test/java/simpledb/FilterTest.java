@@ -0,0 +1,79 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class FilterTest extends SimpleDbTestBase {
+
+  private static PredicateExpression cmp(int field, Predicate.Op op, int c) {
+    return PredicateExpression.leaf(new Predicate(field, op, new IntField(c)));
+  }
+
+  /**
+   * Unit test for a compound expression: (f0 < 3 OR f0 IN (7, 9)) AND NOT f1 = 0.
+   * Enough tuples are filtered that the AND/OR reorder their children a few
+   * times, which must not change the result.
+   */
+  @Test public void compoundExpression() throws Exception {
+    int n = 5 * PredicateExpression.REORDER_INTERVAL;
+    int[] data = new int[n * 2];
+    for (int i = 0; i < n; i++) {
+      data[2 * i] = i % 10;
+      data[2 * i + 1] = i % 4;
+    }
+
+    Set<Field> in = new HashSet<Field>();
+    in.add(new IntField(7));
+    in.add(new IntField(9));
+    List<PredicateExpression> or = new ArrayList<PredicateExpression>();
+    or.add(cmp(0, Predicate.Op.LESS_THAN, 3));
+    or.add(PredicateExpression.in(0, in, false));
+    List<PredicateExpression> and = new ArrayList<PredicateExpression>();
+    and.add(PredicateExpression.or(or));
+    and.add(PredicateExpression.not(cmp(1, Predicate.Op.EQUALS, 0)));
+
+    Filter op = new Filter(PredicateExpression.and(and),
+        TestUtil.createTupleList(2, data));
+    assertNull(op.getPredicate());
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      int a = ((IntField) t.getField(0)).getValue();
+      int b = ((IntField) t.getField(1)).getValue();
+      assertTrue((a < 3 || a == 7 || a == 9) && b != 0);
+      count++;
+    }
+    int expected = 0;
+    for (int i = 0; i < n; i++) {
+      int a = i % 10, b = i % 4;
+      if ((a < 3 || a == 7 || a == 9) && b != 0)
+        expected++;
+    }
+    assertEquals(expected, count);
+
+    op.rewind();
+    int again = 0;
+    while (op.hasNext()) {
+      op.next();
+      again++;
+    }
+    assertEquals(expected, again);
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(FilterTest.class);
+  }
+}
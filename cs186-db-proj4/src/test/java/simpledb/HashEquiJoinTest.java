@@ -0,0 +1,82 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+  /**
+   * The build side keys never give a false negative, and keys outside their
+   * min/max are always rejected.
+   */
+  @Test public void runtimeFilter() {
+    RuntimeFilter filter = new RuntimeFilter();
+    assertTrue(filter.mightContain(new IntField(42)));
+    filter.build(Arrays.asList(new IntField(5), new IntField(7), new IntField(100)));
+    assertTrue(filter.mightContain(new IntField(5)));
+    assertTrue(filter.mightContain(new IntField(7)));
+    assertTrue(filter.mightContain(new IntField(100)));
+    assertFalse(filter.mightContain(new IntField(4)));
+    assertFalse(filter.mightContain(new IntField(101)));
+    filter.clear();
+    assertTrue(filter.mightContain(new IntField(4)));
+  }
+
+  /**
+   * The join pushes its build side keys into the probe side scan, which then
+   * only returns tuples whose key may match, and the join result is
+   * unchanged.
+   */
+  @Test public void pushDownIntoScan() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 500, 100, null, tuples);
+    Database.getCatalog().addTable(f, "probe");
+    int expected = 0;
+    for (ArrayList<Integer> t : tuples) {
+      if (t.get(0) == 5 || t.get(0) == 7)
+        expected++;
+    }
+
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, f.getId(), "p");
+    HashEquiJoin op = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        TestUtil.createTupleList(1, new int[] { 5, 7 }), scan);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertEquals(t.getField(0), t.getField(1));
+      count++;
+    }
+    assertEquals(expected, count);
+    op.rewind();
+    count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(expected, count);
+    op.close();
+
+    scan.open();
+    while (scan.hasNext()) {
+      int key = ((IntField) scan.next().getField(0)).getValue();
+      assertTrue(key >= 5 && key <= 7);
+    }
+    scan.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashEquiJoinTest.class);
+  }
+}
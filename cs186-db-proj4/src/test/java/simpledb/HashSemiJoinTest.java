@@ -0,0 +1,162 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class HashSemiJoinTest extends SimpleDbTestBase {
+
+  private static final int[] LEFT = { 3, 1,
+                                      1, 2,
+                                      5, 3,
+                                      3, 4,
+                                      7, 5 };
+  private static final int[] RIGHT = { 3, 10,
+                                       4, 20,
+                                       1, 1,
+                                       3, 2,
+                                       6, 50,
+                                       7, 9 };
+
+  private static ArrayList<Tuple> all(DbIterator it) throws Exception {
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    it.open();
+    while (it.hasNext())
+      tuples.add(it.next());
+    it.close();
+    return tuples;
+  }
+
+  /**
+   * @return the left tuples that some right tuple matches on all preds, or
+   *         with anti, that none does, found by comparing every pair
+   */
+  private static ArrayList<Tuple> expected(JoinPredicate[] preds, DbIterator left,
+      DbIterator right, boolean anti) throws Exception {
+    ArrayList<Tuple> rs = all(right);
+    ArrayList<Tuple> result = new ArrayList<Tuple>();
+    for (Tuple t1 : all(left)) {
+      boolean found = false;
+      for (Tuple t2 : rs) {
+        boolean match = true;
+        for (JoinPredicate p : preds)
+          match = match && p.filter(t1, t2);
+        found = found || match;
+      }
+      if (found != anti)
+        result.add(t1);
+    }
+    return result;
+  }
+
+  private static void check(JoinPredicate[] preds, int[] left, int[] right) throws Exception {
+    for (boolean anti : new boolean[] { false, true }) {
+      ArrayList<Tuple> want = expected(preds, TestUtil.createTupleList(2, left),
+          TestUtil.createTupleList(2, right), anti);
+      HashSemiJoin op = new HashSemiJoin(preds, TestUtil.createTupleList(2, left),
+          TestUtil.createTupleList(2, right), anti);
+      op.open();
+      for (int pass = 0; pass < 2; pass++) {
+        int count = 0;
+        while (op.hasNext()) {
+          Tuple t = op.next();
+          assertEquals(2, t.getTupleDesc().numFields());
+          assertTrue(t.toString(), contains(want, t));
+          count++;
+        }
+        assertEquals(want.size(), count);
+        op.rewind();
+      }
+      op.close();
+    }
+  }
+
+  private static boolean contains(ArrayList<Tuple> tuples, Tuple t) {
+    for (Tuple u : tuples) {
+      if (TestUtil.compareTuples(u, t))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * An equality semi join returns each matching left tuple once, however
+   * many right tuples share its key; the anti join returns the others.
+   */
+  @Test public void equality() throws Exception {
+    check(new JoinPredicate[] { new JoinPredicate(0, Predicate.Op.EQUALS, 0) }, LEFT, RIGHT);
+  }
+
+  /**
+   * With a comparison besides the key only the right tuple that satisfies
+   * it most easily is kept per key, and the result stays the same.
+   */
+  @Test public void equalityAndComparison() throws Exception {
+    Predicate.Op[] ops = { Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+        Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ, Predicate.Op.NOT_EQUALS };
+    for (Predicate.Op op : ops) {
+      check(new JoinPredicate[] { new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+          new JoinPredicate(1, op, 1) }, LEFT, RIGHT);
+    }
+  }
+
+  /**
+   * Without an equality the right input is kept whole; without any
+   * predicate every left tuple matches unless the right input is empty.
+   */
+  @Test public void noKey() throws Exception {
+    check(new JoinPredicate[] { new JoinPredicate(1, Predicate.Op.GREATER_THAN, 1) }, LEFT, RIGHT);
+    check(new JoinPredicate[0], LEFT, RIGHT);
+    check(new JoinPredicate[0], LEFT, new int[0]);
+    check(new JoinPredicate[] { new JoinPredicate(0, Predicate.Op.EQUALS, 0) }, LEFT, new int[0]);
+  }
+
+  /**
+   * A right input that does not fit in the grant is partitioned to disk
+   * along with the left input, and the result is the same.
+   */
+  @Test public void spilled() throws Exception {
+    // 预算为0时只能拿到最小配额，右边必须溢出
+    Database.getMemoryManager().setTotalBytes(0);
+    int n = 20000;
+    int[] left = new int[2 * n];
+    int[] right = new int[2 * n];
+    for (int i = 0; i < n; i++) {
+      left[2 * i] = i;
+      left[2 * i + 1] = i;
+      right[2 * i] = 2 * i;
+      right[2 * i + 1] = i % 3;
+    }
+    JoinPredicate[] preds = { new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        new JoinPredicate(1, Predicate.Op.GREATER_THAN, 1) };
+    for (boolean anti : new boolean[] { false, true }) {
+      HashSemiJoin op = new HashSemiJoin(preds, TestUtil.createTupleList(2, left),
+          TestUtil.createTupleList(2, right), anti);
+      op.open();
+      for (int pass = 0; pass < 2; pass++) {
+        int count = 0;
+        while (op.hasNext()) {
+          Tuple t = op.next();
+          int v = ((IntField) t.getField(0)).getValue();
+          // 偶数的键在右边出现，右边的值是(v/2)%3，除了0都小于v
+          assertEquals(anti, v % 2 != 0 || v == 0);
+          count++;
+        }
+        assertEquals(anti ? n / 2 + 1 : n / 2 - 1, count);
+        op.rewind();
+      }
+      op.close();
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashSemiJoinTest.class);
+  }
+}
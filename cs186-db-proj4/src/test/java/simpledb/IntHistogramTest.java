@@ -60,6 +60,35 @@ public class IntHistogramTest {
 		Assert.assertTrue(h.estimateSelectivity(Op.EQUALS, -33) > 0.001);
 	}
 	
+	/**
+	 * A histogram without a given range widens to cover the values added,
+	 * wherever they fall, and estimates like one built with the range.
+	 */
+	@Test public void adaptiveRangeTest() {
+		IntHistogram h = new IntHistogram(10);
+		IntHistogram fixed = new IntHistogram(10, -300, 699);
+		// 先加中间的值，再向两边扩展
+		for (int c = 0; c < 1000; c++) {
+			int v = c % 2 == 0 ? 200 + c / 2 : 199 - c / 2;
+			h.addValue(v);
+			fixed.addValue(v);
+		}
+		for (int v = -300; v < 700; v += 50) {
+			Assert.assertEquals(fixed.estimateSelectivity(Op.LESS_THAN, v),
+					h.estimateSelectivity(Op.LESS_THAN, v), 0.1);
+			Assert.assertEquals(0.001, h.estimateSelectivity(Op.EQUALS, v), 0.001);
+		}
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.EQUALS, -301), 0.0);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.LESS_THAN, 700), 0.0);
+		Assert.assertEquals(0.5, h.estimateSelectivity(Op.GREATER_THAN, 199), 0.1);
+
+		// 只有一个值和只有一个桶时也能用
+		IntHistogram one = new IntHistogram(1);
+		one.addValue(5);
+		one.addValue(-5);
+		Assert.assertEquals(0.5, one.estimateSelectivity(Op.LESS_THAN, 0), 0.1);
+	}
+
 	/**
 	 * Make sure that equality binning does something reasonable.
 	 */
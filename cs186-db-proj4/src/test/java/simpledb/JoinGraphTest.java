@@ -0,0 +1,141 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Vector;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JoinGraphTest {
+
+	private static LogicalJoinNode join(int a, int b) {
+		return new LogicalJoinNode("t" + a, "t" + b, "t" + a + ".x", "t" + b + ".x",
+				Predicate.Op.EQUALS);
+	}
+
+	private static Vector<LogicalJoinNode> chain(int n) {
+		Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+		for (int i = 1; i < n; i++)
+			joins.add(join(i - 1, i));
+		return joins;
+	}
+
+	private static Vector<LogicalJoinNode> star(int n) {
+		Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+		for (int i = 1; i < n; i++)
+			joins.add(join(0, i));
+		return joins;
+	}
+
+	private static Vector<LogicalJoinNode> cycle(int n) {
+		Vector<LogicalJoinNode> joins = chain(n);
+		joins.add(join(n - 1, 0));
+		return joins;
+	}
+
+	private static Vector<LogicalJoinNode> clique(int n) {
+		Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+		for (int i = 0; i < n; i++)
+			for (int j = i + 1; j < n; j++)
+				joins.add(join(i, j));
+		return joins;
+	}
+
+	/** @return true if the vertices of s are connected in g */
+	private static boolean connected(JoinGraph g, long s) {
+		long reached = s & -s, grow;
+		while ((grow = g.neighborhood(reached) & s) != 0)
+			reached |= grow;
+		return reached == s;
+	}
+
+	/**
+	 * Enumerate the pairs of g and check that each is a csg-cmp-pair, that
+	 * none comes twice, and that each comes after the pairs making up both
+	 * of its sides.
+	 *
+	 * @return the number of pairs
+	 */
+	private static int checkPairs(final JoinGraph g) throws ParsingException {
+		// 第一遍数出每个集合最终由多少对组成
+		final HashMap<Long, Integer> total = new HashMap<Long, Integer>();
+		g.enumeratePairs((s1, s2) -> {
+			Integer k = total.get(s1 | s2);
+			total.put(s1 | s2, k == null ? 1 : k + 1);
+		});
+		// 第二遍检查用到s1、s2时它们已经完整
+		final HashMap<Long, Integer> done = new HashMap<Long, Integer>();
+		final HashSet<String> pairs = new HashSet<String>();
+		final int[] count = new int[1];
+		g.enumeratePairs((s1, s2) -> {
+			Assert.assertEquals(0, s1 & s2);
+			Assert.assertTrue(connected(g, s1));
+			Assert.assertTrue(connected(g, s2));
+			Assert.assertTrue((g.neighborhood(s1) & s2) != 0);
+			Assert.assertTrue(Long.numberOfTrailingZeros(s1) < Long.numberOfTrailingZeros(s2));
+			Assert.assertTrue(pairs.add(s1 + ":" + s2));
+			Assert.assertEquals(total.get(s1), done.get(s1));
+			Assert.assertEquals(total.get(s2), done.get(s2));
+			Integer k = done.get(s1 | s2);
+			done.put(s1 | s2, k == null ? 1 : k + 1);
+			count[0]++;
+		});
+		return count[0];
+	}
+
+	/**
+	 * The number of csg-cmp-pairs enumerated for the usual graph shapes is
+	 * the known one.
+	 */
+	@Test public void pairCounts() throws ParsingException {
+		for (int n = 2; n <= 10; n++) {
+			Assert.assertEquals((n * n * n - n) / 6, checkPairs(new JoinGraph(chain(n))));
+			Assert.assertEquals((n - 1) << (n - 2), checkPairs(new JoinGraph(star(n))));
+			int clique = (int) ((Math.pow(3, n) - Math.pow(2, n + 1) + 1) / 2);
+			Assert.assertEquals(clique, checkPairs(new JoinGraph(clique(n))));
+			if (n >= 3)
+				Assert.assertEquals((n * n * n - 2 * n * n + n) / 2,
+						checkPairs(new JoinGraph(cycle(n))));
+		}
+	}
+
+	/**
+	 * Vertices, joins between sets and connected parts.
+	 */
+	@Test public void structure() throws ParsingException {
+		Vector<LogicalJoinNode> joins = chain(3);
+		joins.add(join(5, 6));
+		JoinGraph g = new JoinGraph(joins);
+		Assert.assertEquals(5, g.size());
+		Assert.assertEquals(31, g.all());
+		long t0 = g.vertexSet("t0"), t1 = g.vertexSet("t1"), t2 = g.vertexSet("t2");
+		Assert.assertEquals("t2", g.alias(t2));
+		Assert.assertEquals(0, g.vertexSet("t9"));
+		Assert.assertEquals(t0 | t2, g.neighborhood(t1));
+		Assert.assertEquals(1, g.connecting(t0 | t1, t2).size());
+		Assert.assertEquals(0, g.connecting(t0, t2).size());
+		Assert.assertFalse(g.leftIn(1, t2));
+		Assert.assertEquals(t0 | t1 | t2, g.vertexSet(chain(3)));
+
+		ArrayList<Long> parts = new ArrayList<Long>(g.components());
+		Assert.assertEquals(2, parts.size());
+		Assert.assertTrue(parts.contains(t0 | t1 | t2));
+	}
+
+	/**
+	 * More tables than a bitmask holds are refused.
+	 */
+	@Test(expected = ParsingException.class) public void tooManyTables() throws ParsingException {
+		new JoinGraph(chain(JoinGraph.MAX_VERTICES + 1));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(JoinGraphTest.class);
+	}
+}
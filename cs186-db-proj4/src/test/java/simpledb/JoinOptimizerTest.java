@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Vector;
 
 public class JoinOptimizerTest extends SimpleDbTestBase {
@@ -203,6 +204,31 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
 	         Assert.assertTrue(cardinality == 800 || cardinality == 2000);
 	}
 	
+	/**
+	 * Without primary keys, the cardinality of an equi-join comes from the
+	 * histograms of the two fields, not from the size of the bigger table.
+	 */
+	@Test public void statsJoinCardinality() {
+		long actual = 0;
+		int[] counts = new int[21];
+		for (ArrayList<Integer> t : tuples1)
+			counts[t.get(3)]++;
+		for (ArrayList<Integer> t : tuples2)
+			actual += counts[t.get(4)];
+
+		HashMap<String, Integer> aliases = new HashMap<String, Integer>();
+		aliases.put("t1", tableId1);
+		aliases.put("t2", tableId2);
+		int cardinality = JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.EQUALS,
+				"t1", "t2", "c3", "c4", 1000, 10000, false, false, TableStats.getStatsMap(), aliases);
+		Assert.assertEquals(actual, cardinality, actual * 0.1);
+
+		// 没有统计时退回到大表的大小
+		cardinality = JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.EQUALS,
+				"t1", "t2", "c3", "c4", 1000, 10000, false, false, new HashMap<String, TableStats>(), aliases);
+		Assert.assertEquals(10000, cardinality);
+	}
+
 	/**
 	 * Determine whether the orderJoins implementation is doing a reasonable job of ordering joins,
 	 * and not taking an unreasonable amount of time to do so 
@@ -467,4 +493,299 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
 		// Make sure that "a" is the outermost table in the join
 		Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a") || result.get(result.size() - 1).t1Alias.equals("a"));
 	}
+
+	/**
+	 * A join between two tables already joined through a third one (a cycle
+	 * in the join graph) comes after the join that brings them together.
+	 */
+	@Test public void cyclicOrderJoinsTest() throws ParsingException {
+		HashMap<String, TableStats> stats = new HashMap<String,TableStats>();
+		stats.put(tableName1, stats1);
+		stats.put(tableName2, stats2);
+		HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+		filterSelectivities.put("a", 1.0);
+		filterSelectivities.put("b", 1.0);
+		filterSelectivities.put("c", 1.0);
+
+		Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+		nodes.add(new LogicalJoinNode("a", "b", "c1", "c1", Predicate.Op.EQUALS));
+		nodes.add(new LogicalJoinNode("b", "c", "c2", "c2", Predicate.Op.EQUALS));
+		nodes.add(new LogicalJoinNode("c", "a", "c3", "c3", Predicate.Op.EQUALS));
+
+		Parser p = new Parser();
+		JoinOptimizer j = new JoinOptimizer(
+				p.generateLogicalPlan(new TransactionId(), "SELECT COUNT(a.c0) FROM " + tableName1 + " a, "
+						+ tableName2 + " b, " + tableName1 + " c WHERE a.c1 = b.c1 AND b.c2 = c.c2 AND c.c3 = a.c3;"),
+				nodes);
+		Vector<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+
+		Assert.assertEquals(3, result.size());
+		// 第二个连接把第三个表加进来，最后一个连接的两个表都已经在计划里
+		HashSet<String> joined = new HashSet<String>();
+		joined.add(result.get(0).t1Alias);
+		joined.add(result.get(0).t2Alias);
+		LogicalJoinNode second = result.get(1);
+		Assert.assertTrue(joined.contains(second.t1Alias) != joined.contains(second.t2Alias));
+		joined.add(second.t1Alias);
+		joined.add(second.t2Alias);
+		Assert.assertTrue(joined.contains(result.get(2).t1Alias) && joined.contains(result.get(2).t2Alias));
+	}
+
+	/**
+	 * @return true if some join in order, read as a postorder of the join
+	 *         tree, joins two inputs that are both joins themselves
+	 */
+	private static boolean isBushy(Vector<LogicalJoinNode> order) {
+		// 每个表所在的子计划里有几个表
+		HashMap<String, HashSet<String>> group = new HashMap<String, HashSet<String>>();
+		for (LogicalJoinNode lj : order) {
+			HashSet<String> g1 = group.get(lj.t1Alias), g2 = group.get(lj.t2Alias);
+			if (g1 == null) {
+				g1 = new HashSet<String>(Collections.singleton(lj.t1Alias));
+				group.put(lj.t1Alias, g1);
+			}
+			if (g2 == null) {
+				g2 = new HashSet<String>(Collections.singleton(lj.t2Alias));
+				group.put(lj.t2Alias, g2);
+			}
+			if (g1 == g2)
+				continue;
+			if (g1.size() > 1 && g2.size() > 1)
+				return true;
+			g1.addAll(g2);
+			for (String alias : g2)
+				group.put(alias, g1);
+		}
+		return false;
+	}
+
+	/**
+	 * Two small tables each joined with a big one, where the two big tables
+	 * join many-to-many: joining each small table with its big table first
+	 * and then joining the two results is far cheaper than any left-deep
+	 * plan, which has to join a big table to a big intermediate result.
+	 */
+	@Test public void bushyOrderJoinsTest() throws IOException, DbException, TransactionAbortedException, ParsingException {
+		final int IO_COST = 103;
+		HashMap<String, TableStats> stats = new HashMap<String,TableStats>();
+		HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+		String[] names = { "a", "b", "c", "d" };
+		int[] rows = { 10, 2000, 2000, 10 };
+		for (int i = 0; i < names.length; i++) {
+			HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows[i], 20, null,
+					new ArrayList<ArrayList<Integer>>(), "c");
+			Database.getCatalog().addTable(f, names[i]);
+			stats.put(names[i], new TableStats(f.getId(), IO_COST));
+			filterSelectivities.put(names[i], 1.0);
+		}
+
+		Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+		nodes.add(new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS));
+		nodes.add(new LogicalJoinNode("b", "c", "c1", "c1", Predicate.Op.EQUALS));
+		nodes.add(new LogicalJoinNode("c", "d", "c0", "c0", Predicate.Op.EQUALS));
+
+		Parser p = new Parser();
+		JoinOptimizer j = new JoinOptimizer(
+				p.generateLogicalPlan(new TransactionId(), "SELECT COUNT(a.c0) FROM a, b, c, d WHERE a.c0 = b.c0 AND b.c1 = c.c1 AND c.c0 = d.c0;"),
+				nodes);
+		Vector<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+
+		Assert.assertEquals(3, result.size());
+		Assert.assertTrue(isBushy(result));
+		// 把两半连起来的连接在最后
+		LogicalJoinNode last = result.get(2);
+		Assert.assertTrue(last.t1Alias.equals("b") && last.t2Alias.equals("c")
+				|| last.t1Alias.equals("c") && last.t2Alias.equals("b"));
+	}
+
+	/**
+	 * Create a chain of n small tables t0 .. t(n-1), each joined to the next.
+	 * @return the joins, in random order
+	 */
+	private static Vector<LogicalJoinNode> chainOfTables(int n, HashMap<String, TableStats> stats,
+			HashMap<String, Double> filterSelectivities, StringBuilder query) throws IOException, DbException, TransactionAbortedException {
+		Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+		StringBuilder from = new StringBuilder(), where = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			String name = "t" + i;
+			HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20 + 10 * (i % 7), 20, null,
+					new ArrayList<ArrayList<Integer>>(), "c");
+			Database.getCatalog().addTable(f, name);
+			stats.put(name, new TableStats(f.getId(), 103));
+			filterSelectivities.put(name, 1.0);
+			from.append(i == 0 ? "" : ", ").append(name);
+			if (i > 0) {
+				nodes.add(new LogicalJoinNode("t" + (i - 1), name, "c" + (i % 2), "c" + (i % 2), Predicate.Op.EQUALS));
+				where.append(i == 1 ? "" : " AND ").append("t" + (i - 1) + ".c" + (i % 2) + " = " + name + ".c" + (i % 2));
+			}
+		}
+		query.append("SELECT COUNT(t0.c0) FROM ").append(from).append(" WHERE ").append(where).append(";");
+		Collections.shuffle(nodes, new java.util.Random(n));
+		return nodes;
+	}
+
+	/**
+	 * @return true if running the joins of order one after another, as
+	 *         physicalPlan does, joins all the tables into one plan
+	 */
+	private static boolean joinsAll(Vector<LogicalJoinNode> order) {
+		HashMap<String, HashSet<String>> group = new HashMap<String, HashSet<String>>();
+		int groups = 0;
+		for (LogicalJoinNode lj : order) {
+			for (String alias : new String[] { lj.t1Alias, lj.t2Alias }) {
+				if (!group.containsKey(alias)) {
+					group.put(alias, new HashSet<String>(Collections.singleton(alias)));
+					groups++;
+				}
+			}
+			HashSet<String> g1 = group.get(lj.t1Alias), g2 = group.get(lj.t2Alias);
+			if (g1 == g2)
+				continue;
+			g1.addAll(g2);
+			for (String alias : g2)
+				group.put(alias, g1);
+			groups--;
+		}
+		return groups == 1;
+	}
+
+	/**
+	 * Above the join count set by setMaxDpJoins the order is found greedily
+	 * and then improved by simulated annealing, quickly even for dozens of
+	 * joins.
+	 */
+	@Test(timeout=20000) public void greedyOrderJoinsTest() throws IOException, DbException, TransactionAbortedException, ParsingException {
+		HashMap<String, TableStats> stats = new HashMap<String,TableStats>();
+		HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+		StringBuilder query = new StringBuilder();
+		Vector<LogicalJoinNode> nodes = chainOfTables(40, stats, filterSelectivities, query);
+
+		Parser p = new Parser();
+		JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(new TransactionId(), query.toString()), nodes);
+		Vector<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+		Assert.assertEquals(JoinOptimizer.Strategy.GREEDY_ANNEALING, j.getStrategy());
+		Assert.assertEquals(nodes.size(), result.size());
+		Assert.assertTrue(joinsAll(result));
+
+		JoinOptimizer.setSearchMillis(0);
+		try {
+			result = j.orderJoins(stats, filterSelectivities, false);
+			Assert.assertEquals(JoinOptimizer.Strategy.GREEDY, j.getStrategy());
+			Assert.assertEquals(nodes.size(), result.size());
+			Assert.assertTrue(joinsAll(result));
+		} finally {
+			JoinOptimizer.setSearchMillis(JoinOptimizer.SEARCH_MILLIS);
+		}
+	}
+
+	/**
+	 * The greedy search also finds the plans bushyOrderJoinsTest and
+	 * nonequalityOrderJoinsTest expect.
+	 */
+	@Test public void greedyBushyOrderJoinsTest() throws IOException, DbException, TransactionAbortedException, ParsingException {
+		JoinOptimizer.setMaxDpJoins(1);
+		try {
+			bushyOrderJoinsTest();
+			nonequalityOrderJoinsTest();
+		} finally {
+			JoinOptimizer.setMaxDpJoins(JoinOptimizer.MAX_DP_JOINS);
+		}
+	}
+
+	/**
+	 * A join runs as the algorithm the cost model finds cheapest: when hash
+	 * table inserts and lookups cost a lot, an equality join becomes a
+	 * sort-merge join.
+	 */
+	@Test public void costModelAlgorithmTest() throws ParsingException {
+		TransactionId tid = new TransactionId();
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+		stats.put(tableName1, stats1);
+		stats.put(tableName2, stats2);
+		filterSelectivities.put(tableName1, 1.0);
+		filterSelectivities.put(tableName2, 1.0);
+		Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+		nodes.add(new LogicalJoinNode(tableName1, tableName2, "c1", "c2", Predicate.Op.EQUALS));
+		JoinOptimizer j = new JoinOptimizer(new Parser().generateLogicalPlan(tid,
+				"SELECT * FROM " + tableName1 + ", " + tableName2 + " WHERE "
+				+ tableName1 + ".c1 = " + tableName2 + ".c2;"), nodes);
+
+		LogicalJoinNode join = j.orderJoins(stats, filterSelectivities, false).get(0);
+		Assert.assertEquals(JoinOptimizer.JoinAlgorithm.HASH, join.algorithm);
+		Assert.assertNull(nodes.get(0).algorithm);
+
+		CostModel d = CostModel.DEFAULT;
+		CostModel.setCurrent(new CostModel(d.pageRead, d.spillPage, d.scanTuple,
+				100, 100, d.sortCompare, d.mergeTuple));
+		try {
+			join = j.orderJoins(stats, filterSelectivities, false).get(0);
+			Assert.assertEquals(JoinOptimizer.JoinAlgorithm.SORT_MERGE, join.algorithm);
+			DbIterator plan1 = new SeqScan(tid, Database.getCatalog().getTableId(join.t1Alias), join.t1Alias);
+			DbIterator plan2 = new SeqScan(tid, Database.getCatalog().getTableId(join.t2Alias), join.t2Alias);
+			Assert.assertTrue(JoinOptimizer.instantiateJoin(join, plan1, plan2) instanceof SortMergeJoin);
+		} finally {
+			CostModel.setCurrent(CostModel.DEFAULT);
+		}
+	}
+
+	/**
+	 * The cost functions charge spill IO when an input is larger than the
+	 * grant the join would get from the memory budget, not than a fixed
+	 * grant size.
+	 */
+	@Test public void spillCostFollowsBudget() {
+		// 100000个64字节的元组共6.4MB，比没有基数估计时申请的内存大
+		int card = 100000;
+		long bytes = 64;
+		CostModel m = CostModel.current();
+		double hashBase = card * (m.hashBuild + m.hashProbe);
+		double nljBase = m.compare * (double) card * card;
+
+		Database.getMemoryManager().setTotalBytes(64L * 1024 * 1024);
+		Assert.assertEquals(hashBase, JoinOptimizer.estimateHashJoinCost(card, card, 0, 0, bytes), 1e-6);
+		Assert.assertEquals(nljBase, JoinOptimizer.estimateNestedLoopJoinCost(card, card, 0, 0, bytes, bytes), 1e-6);
+		Assert.assertEquals(2 * JoinOptimizer.estimateSortCost(card) + m.mergeTuple * 2 * card,
+				JoinOptimizer.estimateSortMergeJoinCost(card, card, 0, 0, bytes, bytes), 1e-6);
+
+		Database.getMemoryManager().setTotalBytes(1024 * 1024);
+		Assert.assertTrue(JoinOptimizer.estimateHashJoinCost(card, card, 0, 0, bytes) > hashBase);
+		Assert.assertTrue(JoinOptimizer.estimateNestedLoopJoinCost(card, card, 0, 0, bytes, bytes) > nljBase);
+	}
+
+	/**
+	 * Join costs are priced on the width of the tuples the join reads: a
+	 * scan narrowed to the fields the query uses, and for an input that is
+	 * itself a join, the widths of its tables together.
+	 */
+	@Test public void joinInputWidthTest() throws ParsingException {
+		TransactionId tid = new TransactionId();
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put(tableName1, stats1);
+		stats.put(tableName2, stats2);
+		LogicalPlan lp = new Parser().generateLogicalPlan(tid, "SELECT " + tableName1 + ".c1 FROM "
+				+ tableName1 + ", " + tableName2 + " WHERE " + tableName1 + ".c1 = " + tableName2 + ".c2;");
+		LogicalJoinNode j = new LogicalJoinNode(tableName1, tableName2, "c1", "c2", Predicate.Op.EQUALS);
+		Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+		nodes.add(j);
+		// 预算为0时每个连接都要溢出，代价随元组宽度变化
+		Database.getMemoryManager().setTotalBytes(0);
+		long full = MemoryManager.estimateTupleBytes(Database.getCatalog().getTupleDesc(tableId1));
+		double fullCost = new JoinOptimizer(lp, nodes).estimateJoinCost(j, 1000, 1000, 0, 0,
+				JoinOptimizer.JoinAlgorithm.HASH);
+		Assert.assertEquals(JoinOptimizer.estimateHashJoinCost(1000, 1000, 0, 0, full), fullCost, 1e-6);
+
+		lp.physicalPlan(tid, stats, false);
+		JoinOptimizer jo = new JoinOptimizer(lp, nodes);
+		long narrow = MemoryManager.estimateTupleBytes(lp.scanTupleDesc(tableName1));
+		Assert.assertEquals(1, lp.scanTupleDesc(tableName1).numFields());
+		double narrowCost = jo.estimateJoinCost(j, 1000, 1000, 0, 0, JoinOptimizer.JoinAlgorithm.HASH);
+		Assert.assertEquals(JoinOptimizer.estimateHashJoinCost(1000, 1000, 0, 0, narrow), narrowCost, 1e-6);
+		Assert.assertTrue(narrowCost < fullCost);
+
+		// 第二个连接的左输入是两个表连接的结果
+		long joined = narrow + MemoryManager.estimateTupleBytes(lp.scanTupleDesc(tableName2));
+		Assert.assertEquals(JoinOptimizer.estimateHashJoinCost(1000, 1000, 0, 0, joined),
+				jo.estimateJoinCost(j, 1000, 1000, 0, 0, joined, narrow, JoinOptimizer.JoinAlgorithm.HASH), 1e-6);
+	}
 }
@@ -102,6 +102,25 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for a join over the output of another join: the joined
+   * tuples are views on their inputs and must read the same fields as a
+   * flat concatenation.
+   */
+  @Test public void nestedJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    Join inner = new Join(pred, scan1, scan2);
+    DbIterator scan3 = TestUtil.createTupleList(1, new int[] { 1, 5 });
+    Join outer = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0), inner, scan3);
+    outer.open();
+    DbIterator expected = TestUtil.createTupleList(width1 + width2 + 1,
+        new int[] { 1, 2, 1, 2, 3, 1,
+                    5, 6, 5, 6, 7, 5 });
+    expected.open();
+    TestUtil.matchAllTuples(expected, outer);
+    outer.close();
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,84 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class JoinedTupleTest extends SimpleDbTestBase {
+
+  /** @return a plain tuple of ints from, from + 1, ... of the given width */
+  private static Tuple row(int width, int from) {
+    Tuple t = new Tuple(Utility.getTupleDesc(width));
+    for (int i = 0; i < width; i++)
+      t.setField(i, new IntField(from + i));
+    return t;
+  }
+
+  private static void assertFields(Tuple t, int... values) {
+    assertEquals(values.length, t.getTupleDesc().numFields());
+    for (int i = 0; i < values.length; i++)
+      assertEquals(new IntField(values[i]), t.getField(i));
+  }
+
+  /**
+   * A join of views reads the fields of all their parts in order.
+   */
+  @Test public void nestedViews() {
+    JoinedTuple.Factory inner = new JoinedTuple.Factory(Utility.getTupleDesc(3));
+    Tuple view = inner.join(row(1, 10), row(2, 20));
+    assertTrue(view instanceof JoinedTuple);
+    assertFields(view, 10, 20, 21);
+
+    JoinedTuple.Factory outer = new JoinedTuple.Factory(Utility.getTupleDesc(5));
+    assertFields(outer.join(view, row(2, 30)), 10, 20, 21, 30, 31);
+    assertFields(outer.join(row(2, 30), view), 30, 31, 10, 20, 21);
+  }
+
+  /**
+   * One join operator can see flat tuples and views on the same input, as
+   * tuples read back from a SpillFile are flat while those kept in memory
+   * are views. The field map follows the widths of the parts, even when
+   * their number stays the same.
+   */
+  @Test public void mixedFlatAndViews() {
+    JoinedTuple.Factory a = new JoinedTuple.Factory(Utility.getTupleDesc(3));
+    JoinedTuple.Factory b = new JoinedTuple.Factory(Utility.getTupleDesc(3));
+    Tuple view12 = a.join(row(1, 10), row(2, 20));
+    Tuple view21 = b.join(row(2, 40), row(1, 50));
+    Tuple flat3 = ((JoinedTuple) a.join(row(1, 10), row(2, 20))).materialize();
+    assertFalse(flat3 instanceof JoinedTuple);
+
+    JoinedTuple.Factory join = new JoinedTuple.Factory(Utility.getTupleDesc(6));
+    // 两次都是3个部分，但宽度分别是1+2+3和3+2+1
+    assertFields(join.join(view12, flat3), 10, 20, 21, 10, 20, 21);
+    assertFields(join.join(flat3, view21), 10, 20, 21, 40, 41, 50);
+    assertFields(join.join(view12, row(3, 60)), 10, 20, 21, 60, 61, 62);
+    assertFields(join.join(row(3, 60), row(3, 70)), 60, 61, 62, 70, 71, 72);
+  }
+
+  /**
+   * Setting a field of a view materializes it without changing its parts,
+   * and a materialized view joins as one flat part.
+   */
+  @Test public void setField() {
+    JoinedTuple.Factory f = new JoinedTuple.Factory(Utility.getTupleDesc(3));
+    Tuple left = row(1, 10);
+    Tuple right = row(2, 20);
+    Tuple view = f.join(left, right);
+    view.setField(1, new IntField(99));
+    assertFields(view, 10, 99, 21);
+    assertFields(right, 20, 21);
+
+    JoinedTuple.Factory outer = new JoinedTuple.Factory(Utility.getTupleDesc(4));
+    assertFields(outer.join(view, row(1, 30)), 10, 99, 21, 30);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(JoinedTupleTest.class);
+  }
+}
@@ -0,0 +1,141 @@
+package simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+
+import Zql.ZDelete;
+import Zql.ZStatement;
+import Zql.ZqlParser;
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+public class LimitTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 1000;
+
+  /** ROWS tuples (i % 10, i) */
+  private static ArrayList<Tuple> rows() {
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    for (int i = 0; i < ROWS; i++) {
+      Tuple t = new Tuple(Utility.getTupleDesc(2));
+      t.setField(0, new IntField(i % 10));
+      t.setField(1, new IntField(i));
+      tuples.add(t);
+    }
+    return tuples;
+  }
+
+  /**
+   * Limit skips offset tuples, returns limit tuples and then stops reading
+   * its child and closes it; rewind starts over.
+   */
+  @Test public void limitOffset() throws Exception {
+    final int[] read = new int[1];
+    final boolean[] closed = new boolean[1];
+    DbIterator child = new TupleIterator(Utility.getTupleDesc(2), rows()) {
+      private static final long serialVersionUID = 1L;
+      @Override public Tuple next() {
+        read[0]++;
+        return super.next();
+      }
+      @Override public void close() {
+        closed[0] = true;
+        super.close();
+      }
+    };
+    Limit op = new Limit(5, 20, child);
+    op.open();
+    for (int pass = 0; pass < 2; pass++) {
+      read[0] = 0;
+      closed[0] = false;
+      for (int i = 20; i < 25; i++)
+        assertEquals(i, ((IntField) op.next().getField(1)).getValue());
+      assertFalse(op.hasNext());
+      assertEquals(25, read[0]);
+      assertTrue(closed[0]);
+      op.rewind();
+    }
+    op.close();
+  }
+
+  /**
+   * An OrderBy under a limit keeps only the first tuples of the ordering and
+   * returns them in the same order, ties included, as the full sort.
+   */
+  @Test public void topN() throws Exception {
+    for (boolean asc : new boolean[] { true, false }) {
+      OrderBy full = new OrderBy(0, asc, new TupleIterator(Utility.getTupleDesc(2), rows()));
+      OrderBy top = new OrderBy(0, asc, new TupleIterator(Utility.getTupleDesc(2), rows()));
+      top.setLimit(35);
+      full.open();
+      top.open();
+      for (int i = 0; i < 35; i++) {
+        Tuple t = top.next();
+        Tuple f = full.next();
+        assertEquals(f.getField(0), t.getField(0));
+        assertEquals(f.getField(1), t.getField(1));
+      }
+      assertFalse(top.hasNext());
+      full.close();
+      top.close();
+    }
+  }
+
+  /**
+   * The parser cuts LIMIT / OFFSET off the statement, since Zql cannot parse
+   * them.
+   */
+  @Test public void parseLimit() throws Exception {
+    Parser p = new Parser();
+    assertEquals("select * from t;", p.stripLimit("select * from t limit 10 offset 5;"));
+    assertEquals("select * from t", p.stripLimit("select * from t\nLIMIT 10"));
+    assertEquals("select * from t;", p.stripLimit("select * from t offset 5 ;"));
+    assertEquals("select * from t;", p.stripLimit("select * from t;"));
+  }
+
+  private static int count(int tableId) throws Exception {
+    SeqScan scan = new SeqScan(new TransactionId(), tableId, "t");
+    scan.open();
+    int n = 0;
+    while (scan.hasNext()) {
+      scan.next();
+      n++;
+    }
+    scan.close();
+    return n;
+  }
+
+  /**
+   * A DELETE or INSERT ... VALUES with LIMIT or OFFSET is rejected instead
+   * of running without the clause.
+   */
+  @Test public void limitOnUpdateRejected() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, 10, null,
+        new ArrayList<ArrayList<Integer>>(), "c");
+    Database.getCatalog().addTable(f, "t");
+    Parser p = new Parser();
+    p.processNextStatement("delete from t where t.c0 > 1 limit 1;");
+    p.processNextStatement("delete from t where t.c0 > 1 offset 5;");
+    p.processNextStatement("insert into t values (1, 2) limit 1;");
+    assertEquals(100, count(f.getId()));
+
+    String stmt = p.stripClauses("delete from t where t.c0 > 1 limit 1;");
+    ZStatement s = new ZqlParser(new ByteArrayInputStream(stmt.getBytes())).readStatement();
+    try {
+      p.handleDeleteStatement((ZDelete) s, new TransactionId());
+      fail("expected ParsingException");
+    } catch (ParsingException e) {
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LimitTest.class);
+  }
+}
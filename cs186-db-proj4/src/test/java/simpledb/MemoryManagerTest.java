@@ -0,0 +1,199 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class MemoryManagerTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 5000;
+
+  @Before public void setUpMemory() {
+    // 预算为0时每个算子只能拿到最小配额，几千个元组就必须溢出到磁盘
+    Database.getMemoryManager().setTotalBytes(0);
+  }
+
+  /** n tuples ((i * 7919) % keys, i), see TestUtil#createKeyedTupleList */
+  private static DbIterator rows(int n, int keys) {
+    return TestUtil.createKeyedTupleList(n, keys, n);
+  }
+
+  /**
+   * A small grant gets all it asks for; the large ones share the rest of
+   * the budget evenly and grow back when other grants are released.
+   */
+  @Test public void maxMinFairness() {
+    MemoryManager mm = new MemoryManager(10 * MemoryManager.MIN_GRANT);
+    MemoryManager.MemoryGrant small = mm.request(2 * MemoryManager.MIN_GRANT, 0);
+    MemoryManager.MemoryGrant big1 = mm.request(100 * MemoryManager.MIN_GRANT, 0);
+    MemoryManager.MemoryGrant big2 = mm.request(100 * MemoryManager.MIN_GRANT, 0);
+    assertEquals(2 * MemoryManager.MIN_GRANT, small.bytes());
+    assertEquals(4 * MemoryManager.MIN_GRANT, big1.bytes());
+    assertEquals(4 * MemoryManager.MIN_GRANT, big2.bytes());
+    small.release();
+    big2.release();
+    assertEquals(10 * MemoryManager.MIN_GRANT, big1.bytes());
+    assertEquals(1, mm.activeGrants());
+  }
+
+  /**
+   * The grant the optimizer expects is what a request made alone gets.
+   */
+  @Test public void estimateGrant() {
+    MemoryManager mm = new MemoryManager(10 * MemoryManager.MIN_GRANT);
+    for (long desired : new long[] { 1, 3 * MemoryManager.MIN_GRANT, 100 * MemoryManager.MIN_GRANT }) {
+      MemoryManager.MemoryGrant g = mm.request(desired, 0);
+      assertEquals(g.bytes(), mm.estimateGrant(desired));
+      g.release();
+    }
+    assertEquals(MemoryManager.MIN_GRANT, new MemoryManager(0).estimateGrant(1e12));
+  }
+
+  /**
+   * An OrderBy over more tuples than its grant holds sorts them in runs on
+   * disk and merges them.
+   */
+  @Test public void externalSort() throws Exception {
+    OrderBy op = new OrderBy(0, true, rows(ROWS, 1000));
+    op.open();
+    for (int pass = 0; pass < 2; pass++) {
+      int last = Integer.MIN_VALUE;
+      int count = 0;
+      while (op.hasNext()) {
+        int key = ((IntField) op.next().getField(0)).getValue();
+        assertTrue(key >= last);
+        last = key;
+        count++;
+      }
+      assertEquals(ROWS, count);
+      op.rewind();
+    }
+    op.close();
+  }
+
+  /**
+   * A HashEquiJoin whose left input does not fit in its grant partitions
+   * both inputs to disk and returns the same result.
+   */
+  @Test public void graceHashJoin() throws Exception {
+    HashEquiJoin op = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        rows(ROWS, ROWS), rows(500, 1000));
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertEquals(t.getField(0), t.getField(2));
+      count++;
+    }
+    // 右边的500个键都不相同且都小于ROWS，左边每个键只出现一次
+    assertEquals(500, count);
+    op.rewind();
+    count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(500, count);
+    op.close();
+  }
+
+  /**
+   * A nested loops Join whose inputs take many blocks reads its inner input
+   * only once, keeping the part that does not fit in memory on disk.
+   */
+  @Test public void blockNestedLoopsJoin() throws Exception {
+    ArrayList<Tuple> innerTuples = new ArrayList<Tuple>();
+    DbIterator it = rows(ROWS / 5, ROWS / 5);
+    while (it.hasNext())
+      innerTuples.add(it.next());
+    DbIterator inner = new TupleIterator(Utility.getTupleDesc(2), innerTuples) {
+      private static final long serialVersionUID = 1L;
+      @Override public void rewind() {
+        fail("inner input rewound");
+      }
+    };
+    inner.open();
+    Join op = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0), rows(ROWS, ROWS / 5), inner);
+    op.open();
+    for (int pass = 0; pass < 2; pass++) {
+      int count = 0;
+      while (op.hasNext()) {
+        Tuple t = op.next();
+        assertEquals(t.getField(0), t.getField(2));
+        count++;
+      }
+      // 左边每个键出现5次，右边每个键出现一次
+      assertEquals(ROWS, count);
+      op.rewind();
+    }
+    op.close();
+  }
+
+  /**
+   * A RangeJoin whose inner input does not fit in its grant sorts it in
+   * runs and keeps the sorted tuples partly on disk. Once open it holds only
+   * its own grant, the sort's being released, and none after close.
+   */
+  @Test public void spillingRangeJoin() throws Exception {
+    RangeJoin op = new RangeJoin(new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0),
+        rows(10, 10), rows(ROWS, ROWS));
+    op.open();
+    assertEquals(1, Database.getMemoryManager().activeGrants());
+    for (int pass = 0; pass < 2; pass++) {
+      int count = 0;
+      while (op.hasNext()) {
+        Tuple t = op.next();
+        assertTrue(t.getField(0).compare(Predicate.Op.GREATER_THAN, t.getField(2)));
+        count++;
+      }
+      // 左边的键是0..9，右边的键0..ROWS-1各出现一次
+      assertEquals(45, count);
+      op.rewind();
+    }
+    op.close();
+    assertEquals(0, Database.getMemoryManager().activeGrants());
+  }
+
+  /**
+   * An Aggregate with more groups than its grant holds aggregates the extra
+   * groups partition by partition; every group comes out once.
+   */
+  @Test public void spillingAggregate() throws Exception {
+    int groups = 3000;
+    Aggregate op = new Aggregate(rows(3 * groups, groups), 1, 0, Aggregator.Op.COUNT);
+    op.open();
+    HashSet<Field> seen = new HashSet<Field>();
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertTrue(seen.add(t.getField(0)));
+      assertEquals(3, ((IntField) t.getField(1)).getValue());
+    }
+    assertEquals(groups, seen.size());
+    op.close();
+  }
+
+  /**
+   * An aggregate without GROUP BY returns one single-field tuple.
+   */
+  @Test public void ungroupedAggregate() throws Exception {
+    Aggregate op = new Aggregate(rows(10, 10), 1, Aggregator.NO_GROUPING, Aggregator.Op.SUM);
+    op.open();
+    assertTrue(op.hasNext());
+    assertEquals(45, ((IntField) op.next().getField(0)).getValue());
+    assertFalse(op.hasNext());
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(MemoryManagerTest.class);
+  }
+}
@@ -0,0 +1,207 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Vector;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PredicateRewriterTest extends SimpleDbTestBase {
+
+	private HashMap<String, Integer> tableMap;
+	private HashMap<String, TableStats> stats;
+
+	/**
+	 * Two tables r and s of 100 random rows of columns c0, c1.
+	 */
+	@Before public void createTables() throws Exception {
+		tableMap = new HashMap<String, Integer>();
+		stats = new HashMap<String, TableStats>();
+		for (String name : new String[] { "r", "s" }) {
+			ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+			HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, 100, null, tuples, "c");
+			Database.getCatalog().addTable(f, name);
+			tableMap.put(name, f.getId());
+		}
+		stats.put("r", new TableStats(tableMap.get("r"), 1));
+		stats.put("s", new TableStats(tableMap.get("s"), 1));
+	}
+
+	private static LogicalFilterNode filter(String column, Predicate.Op op, int c) {
+		return new LogicalFilterNode(column.split("[.]")[0], column, op, Integer.toString(c));
+	}
+
+	private static LogicalFilterNode in(String column, boolean negated, int... cs) {
+		Vector<String> constants = new Vector<String>();
+		for (int c : cs)
+			constants.add(Integer.toString(c));
+		return new LogicalCompoundFilterNode(column.split("[.]")[0], column, negated, constants);
+	}
+
+	private PredicateRewriter rewrite(Vector<LogicalJoinNode> joins, LogicalFilterNode... filters) {
+		Vector<LogicalFilterNode> fs = new Vector<LogicalFilterNode>();
+		for (LogicalFilterNode lf : filters)
+			fs.add(lf);
+		return new PredicateRewriter(fs, joins, tableMap);
+	}
+
+	private static Vector<LogicalJoinNode> rJoinS() {
+		Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+		joins.add(new LogicalJoinNode("r", "s", "c0", "c0", Predicate.Op.EQUALS));
+		return joins;
+	}
+
+	/**
+	 * A comparison on one side of an equality join holds on the other side
+	 * as well.
+	 */
+	@Test public void transitive() {
+		PredicateRewriter rw = rewrite(rJoinS(), filter("r.c0", Predicate.Op.LESS_THAN, 10));
+		Assert.assertFalse(rw.contradiction());
+		List<LogicalFilterNode> on = rw.filtersOn("s.c0");
+		Assert.assertEquals(1, on.size());
+		Assert.assertEquals(Predicate.Op.LESS_THAN, on.get(0).p);
+		Assert.assertEquals("10", on.get(0).c);
+		Assert.assertEquals("s", on.get(0).tableAlias);
+		Assert.assertEquals(1, rw.filtersOn("r.c0").size());
+
+		// 不是等值连接就不能传递
+		Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+		joins.add(new LogicalJoinNode("r", "s", "c0", "c0", Predicate.Op.LESS_THAN));
+		rw = rewrite(joins, filter("r.c0", Predicate.Op.LESS_THAN, 10));
+		Assert.assertTrue(rw.filtersOn("s.c0").isEmpty());
+	}
+
+	/**
+	 * Comparisons of a column merge into the tightest bounds.
+	 */
+	@Test public void mergeRange() {
+		PredicateRewriter rw = rewrite(new Vector<LogicalJoinNode>(),
+				filter("r.c0", Predicate.Op.GREATER_THAN, 3),
+				filter("r.c0", Predicate.Op.GREATER_THAN_OR_EQ, 7),
+				filter("r.c0", Predicate.Op.LESS_THAN, 20),
+				filter("r.c0", Predicate.Op.LESS_THAN_OR_EQ, 50),
+				filter("r.c1", Predicate.Op.EQUALS, 5),
+				filter("r.c1", Predicate.Op.EQUALS, 5));
+		Assert.assertFalse(rw.contradiction());
+		List<LogicalFilterNode> on = rw.filtersOn("r.c0");
+		Assert.assertEquals(2, on.size());
+		Assert.assertEquals(Predicate.Op.GREATER_THAN_OR_EQ, on.get(0).p);
+		Assert.assertEquals("7", on.get(0).c);
+		Assert.assertEquals(Predicate.Op.LESS_THAN, on.get(1).p);
+		Assert.assertEquals("20", on.get(1).c);
+		Assert.assertEquals(1, rw.filtersOn("r.c1").size());
+
+		// 上下界重合就是等值
+		rw = rewrite(new Vector<LogicalJoinNode>(),
+				filter("r.c0", Predicate.Op.GREATER_THAN_OR_EQ, 7),
+				filter("r.c0", Predicate.Op.LESS_THAN, 8));
+		on = rw.filtersOn("r.c0");
+		Assert.assertEquals(1, on.size());
+		Assert.assertEquals(Predicate.Op.EQUALS, on.get(0).p);
+		Assert.assertEquals("7", on.get(0).c);
+	}
+
+	/**
+	 * IN lists are intersected with each other and with the bounds.
+	 */
+	@Test public void mergeIn() {
+		PredicateRewriter rw = rewrite(new Vector<LogicalJoinNode>(),
+				in("r.c0", false, 1, 2, 3, 4),
+				in("r.c0", false, 2, 3, 4, 5),
+				in("r.c0", true, 3),
+				filter("r.c0", Predicate.Op.LESS_THAN, 4));
+		Assert.assertFalse(rw.contradiction());
+		List<LogicalFilterNode> on = rw.filtersOn("r.c0");
+		Assert.assertEquals(1, on.size());
+		Assert.assertEquals(Predicate.Op.EQUALS, on.get(0).p);
+		Assert.assertEquals("2", on.get(0).c);
+	}
+
+	/**
+	 * Comparisons that no value satisfies, also after being carried across
+	 * a join, and a constant FALSE are a contradiction.
+	 */
+	@Test public void contradiction() {
+		Vector<LogicalJoinNode> none = new Vector<LogicalJoinNode>();
+		Assert.assertTrue(rewrite(none, filter("r.c0", Predicate.Op.GREATER_THAN, 5),
+				filter("r.c0", Predicate.Op.LESS_THAN, 3)).contradiction());
+		Assert.assertTrue(rewrite(none, filter("r.c0", Predicate.Op.EQUALS, 5),
+				filter("r.c0", Predicate.Op.NOT_EQUALS, 5)).contradiction());
+		Assert.assertTrue(rewrite(none, in("r.c0", false, 1, 2),
+				filter("r.c0", Predicate.Op.EQUALS, 3)).contradiction());
+		Assert.assertTrue(rewrite(rJoinS(), filter("r.c0", Predicate.Op.EQUALS, 1),
+				filter("s.c0", Predicate.Op.EQUALS, 2)).contradiction());
+		Assert.assertTrue(rewrite(none, new LogicalCompoundFilterNode(false)).contradiction());
+		Assert.assertTrue(rewrite(none, new LogicalCompoundFilterNode(false)).filters().isEmpty());
+		Assert.assertFalse(rewrite(none, new LogicalCompoundFilterNode(true),
+				filter("r.c0", Predicate.Op.EQUALS, 5)).contradiction());
+	}
+
+	/**
+	 * Constant operands of AND, OR and NOT fold away.
+	 */
+	@Test public void constantFolding() throws Exception {
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(tableMap.get("r"), "r");
+		LogicalFilterNode cmp = lp.newFilterNode("r.c0", Predicate.Op.EQUALS, "1");
+		Vector<LogicalFilterNode> ops = new Vector<LogicalFilterNode>();
+		ops.add(new LogicalCompoundFilterNode(true));
+		ops.add(cmp);
+		Assert.assertSame(cmp, lp.newCompoundFilterNode(LogicalCompoundFilterNode.Connective.AND, ops));
+		LogicalFilterNode or = lp.newCompoundFilterNode(LogicalCompoundFilterNode.Connective.OR, ops);
+		Assert.assertEquals(LogicalCompoundFilterNode.Connective.TRUE,
+				((LogicalCompoundFilterNode) or).connective);
+		ops.clear();
+		ops.add(or);
+		LogicalFilterNode not = lp.newCompoundFilterNode(LogicalCompoundFilterNode.Connective.NOT, ops);
+		Assert.assertEquals(LogicalCompoundFilterNode.Connective.FALSE,
+				((LogicalCompoundFilterNode) not).connective);
+	}
+
+	/**
+	 * A plan whose WHERE clause can never hold returns nothing without
+	 * reading a page.
+	 */
+	@Test public void emptyPlan() throws Exception {
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(tableMap.get("r"), "r");
+		lp.addScan(tableMap.get("s"), "s");
+		lp.addJoin("r.c0", "s.c0", Predicate.Op.EQUALS);
+		lp.addFilter("r.c0", Predicate.Op.GREATER_THAN, "5");
+		lp.addFilter("s.c0", Predicate.Op.LESS_THAN, "3");
+		lp.addProjectField("r.c1", null);
+		final int[] reads = new int[1];
+		for (String name : new String[] { "r", "s" }) {
+			DbFile f = Database.getCatalog().getDbFile(tableMap.get(name));
+			HeapFile counting = new HeapFile(((HeapFile) f).getFile(), f.getTupleDesc()) {
+				@Override public Page readPage(PageId pid) {
+					reads[0]++;
+					return super.readPage(pid);
+				}
+			};
+			Database.getCatalog().addTable(counting, name);
+		}
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		TransactionId tid = new TransactionId();
+		DbIterator plan = lp.physicalPlan(tid, stats, false);
+		plan.open();
+		Assert.assertFalse(plan.hasNext());
+		plan.close();
+		Assert.assertEquals(0, reads[0]);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(PredicateRewriterTest.class);
+	}
+}
@@ -0,0 +1,112 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class RangeJoinTest extends SimpleDbTestBase {
+
+  private static final int[] LEFT = { 3, 1,
+                                      1, 2,
+                                      5, 3,
+                                      3, 4 };
+  private static final int[] RIGHT = { 3, 10,
+                                       4, 20,
+                                       1, 30,
+                                       3, 40,
+                                       6, 50 };
+
+  /**
+   * For every inequality operator RangeJoin returns the same tuples as a
+   * nested loops Join, with duplicate keys on both sides.
+   */
+  @Test public void matchesNestedLoops() throws Exception {
+    Predicate.Op[] ops = { Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+        Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ };
+    for (Predicate.Op op : ops) {
+      JoinPredicate pred = new JoinPredicate(0, op, 0);
+      Join expected = new Join(pred, TestUtil.createTupleList(2, LEFT),
+          TestUtil.createTupleList(2, RIGHT));
+      RangeJoin actual = new RangeJoin(pred, TestUtil.createTupleList(2, LEFT),
+          TestUtil.createTupleList(2, RIGHT));
+      expected.open();
+      actual.open();
+      TestUtil.matchAllTuples(expected, actual);
+
+      actual.rewind();
+      int count = 0;
+      while (actual.hasNext()) {
+        actual.next();
+        count++;
+      }
+      expected.rewind();
+      int expectedCount = 0;
+      while (expected.hasNext()) {
+        expected.next();
+        expectedCount++;
+      }
+      assertEquals(op.toString(), expectedCount, count);
+      actual.close();
+      expected.close();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsEquality() {
+    new RangeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        TestUtil.createTupleList(2, LEFT), TestUtil.createTupleList(2, RIGHT));
+  }
+
+  /**
+   * An inner input larger than the join's memory grant is sorted in runs
+   * and partly kept on disk, and every operator still returns each match
+   * exactly once.
+   */
+  @Test public void spilledInner() throws Exception {
+    // 预算为0时只能拿到最小配额，排序和缓冲区都要写磁盘
+    Database.getMemoryManager().setTotalBytes(0);
+    int n = 3000;
+    int[] left = new int[2 * 4];
+    int[] right = new int[2 * n];
+    for (int i = 0; i < 4; i++) {
+      left[2 * i] = i * n / 4;
+      left[2 * i + 1] = i;
+    }
+    for (int i = 0; i < n; i++) {
+      right[2 * i] = (i * 7919) % n;
+      right[2 * i + 1] = i;
+    }
+    // 外表的值是0, n/4, n/2, 3n/4，内表的值是0..n-1各一次
+    Predicate.Op[] ops = { Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+        Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ };
+    int[] expected = { 4 * n - 6 * n / 4 - 4, 4 * n - 6 * n / 4,
+        6 * n / 4, 6 * n / 4 + 4 };
+    for (int k = 0; k < ops.length; k++) {
+      JoinPredicate pred = new JoinPredicate(0, ops[k], 0);
+      RangeJoin op = new RangeJoin(pred, TestUtil.createTupleList(2, left),
+          TestUtil.createTupleList(2, right));
+      op.open();
+      for (int pass = 0; pass < 2; pass++) {
+        int count = 0;
+        while (op.hasNext()) {
+          Tuple t = op.next();
+          assertTrue(t.getField(0).compare(ops[k], t.getField(2)));
+          count++;
+        }
+        assertEquals(ops[k].toString(), expected[k], count);
+        op.rewind();
+      }
+      op.close();
+      assertEquals(0, Database.getMemoryManager().activeGrants());
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(RangeJoinTest.class);
+  }
+}
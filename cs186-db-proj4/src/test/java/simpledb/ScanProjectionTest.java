@@ -0,0 +1,210 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ScanProjectionTest extends SimpleDbTestBase {
+
+	private HashMap<String, Integer> tableMap;
+	private HashMap<String, TableStats> stats;
+	private HashMap<String, ArrayList<ArrayList<Integer>>> rows;
+
+	/**
+	 * Two tables r and s of 200 random rows of columns c0 .. c3 with values
+	 * below 20, so that joins on them match.
+	 */
+	@Before public void createTables() throws Exception {
+		tableMap = new HashMap<String, Integer>();
+		stats = new HashMap<String, TableStats>();
+		rows = new HashMap<String, ArrayList<ArrayList<Integer>>>();
+		for (String name : new String[] { "r", "s" }) {
+			ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+			HeapFile f = SystemTestUtil.createRandomHeapFile(4, 200, 20, null, tuples, "c");
+			Database.getCatalog().addTable(f, name);
+			tableMap.put(name, f.getId());
+			rows.put(name, tuples);
+			stats.put(name, new TableStats(f.getId(), 1));
+		}
+	}
+
+	/**
+	 * A narrowed scan outputs only the projected fields, in the given order,
+	 * with the names and types of the table, and keeps the RecordId of the
+	 * row each tuple comes from.
+	 */
+	@Test public void narrowedScan() throws Exception {
+		TransactionId tid = new TransactionId();
+		SeqScan full = new SeqScan(tid, tableMap.get("r"), "r");
+		SeqScan narrow = new SeqScan(tid, tableMap.get("r"), "r");
+		narrow.setProjection(new int[] { 3, 1 });
+		TupleDesc td = narrow.getTupleDesc();
+		Assert.assertEquals(2, td.numFields());
+		Assert.assertEquals("r.c3", td.getFieldName(0));
+		Assert.assertEquals("r.c1", td.getFieldName(1));
+		Assert.assertEquals(Type.INT_TYPE, td.getFieldType(0));
+		Assert.assertEquals(Type.INT_TYPE, td.getFieldType(1));
+
+		full.open();
+		narrow.open();
+		int count = 0;
+		while (full.hasNext()) {
+			Assert.assertTrue(narrow.hasNext());
+			Tuple f = full.next();
+			Tuple n = narrow.next();
+			Assert.assertSame(td, n.getTupleDesc());
+			Assert.assertEquals(f.getRecordId(), n.getRecordId());
+			Assert.assertNotNull(n.getRecordId());
+			Assert.assertEquals(f.getField(3), n.getField(0));
+			Assert.assertEquals(f.getField(1), n.getField(1));
+			count++;
+		}
+		Assert.assertFalse(narrow.hasNext());
+		Assert.assertEquals(200, count);
+		full.close();
+		narrow.close();
+	}
+
+	/**
+	 * A runtime filter on a field of a narrowed scan checks the table field
+	 * that the projection maps it to.
+	 */
+	@Test public void runtimeFilterThroughProjection() throws Exception {
+		TransactionId tid = new TransactionId();
+		SeqScan narrow = new SeqScan(tid, tableMap.get("r"), "r");
+		narrow.setProjection(new int[] { 2, 0 });
+		HashSet<Field> keys = new HashSet<Field>();
+		keys.add(new IntField(7));
+		RuntimeFilter filter = new RuntimeFilter();
+		filter.build(keys);
+		// 输出的第1列是表的c0
+		Assert.assertTrue(RuntimeFilter.pushDown(narrow, 1, filter));
+
+		int expected = 0;
+		for (ArrayList<Integer> row : rows.get("r")) {
+			if (filter.mightContain(new IntField(row.get(0))))
+				expected++;
+		}
+		narrow.open();
+		int count = 0;
+		while (narrow.hasNext()) {
+			Tuple t = narrow.next();
+			Assert.assertTrue(filter.mightContain(t.getField(1)));
+			count++;
+		}
+		narrow.close();
+		Assert.assertEquals(expected, count);
+		Assert.assertTrue(count > 0);
+	}
+
+	/** Collect the output field names of every scan of plan, by alias */
+	private static void scanFields(DbIterator plan, Map<String, HashSet<String>> fields) {
+		if (plan instanceof SeqScan) {
+			SeqScan ss = (SeqScan) plan;
+			HashSet<String> names = new HashSet<String>();
+			for (int i = 0; i < ss.getTupleDesc().numFields(); i++)
+				names.add(ss.getTupleDesc().getFieldName(i));
+			fields.put(ss.getAlias(), names);
+		} else if (plan instanceof Operator) {
+			for (DbIterator child : ((Operator) plan).getChildren())
+				scanFields(child, fields);
+		}
+	}
+
+	private static HashSet<String> set(String... names) {
+		HashSet<String> s = new HashSet<String>();
+		for (String n : names)
+			s.add(n);
+		return s;
+	}
+
+	private ArrayList<Tuple> run(LogicalPlan lp, Map<String, HashSet<String>> fields) throws Exception {
+		TransactionId tid = new TransactionId();
+		DbIterator plan = lp.physicalPlan(tid, stats, false);
+		scanFields(plan, fields);
+		ArrayList<Tuple> result = new ArrayList<Tuple>();
+		plan.open();
+		while (plan.hasNext())
+			result.add(plan.next());
+		plan.close();
+		return result;
+	}
+
+	/**
+	 * The scans of a plan keep the columns its filter, join, GROUP BY and
+	 * aggregate read and drop the others, and the result is unchanged.
+	 */
+	@Test public void groupByPlan() throws Exception {
+		// select r.c1, sum(s.c3) from r, s where r.c0 = s.c0 and r.c2 < 10 group by r.c1
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(tableMap.get("r"), "r");
+		lp.addScan(tableMap.get("s"), "s");
+		lp.addJoin("r.c0", "s.c0", Predicate.Op.EQUALS);
+		lp.addFilter("r.c2", Predicate.Op.LESS_THAN, "10");
+		lp.addProjectField("r.c1", null);
+		lp.addProjectField("s.c3", "sum");
+		lp.addAggregate("sum", "s.c3", "r.c1");
+		HashMap<String, HashSet<String>> fields = new HashMap<String, HashSet<String>>();
+		ArrayList<Tuple> result = run(lp, fields);
+		Assert.assertEquals(set("r.c0", "r.c1", "r.c2"), fields.get("r"));
+		Assert.assertEquals(set("s.c0", "s.c3"), fields.get("s"));
+
+		HashMap<Integer, Integer> sums = new HashMap<Integer, Integer>();
+		for (ArrayList<Integer> r : rows.get("r")) {
+			for (ArrayList<Integer> s : rows.get("s")) {
+				if (r.get(2) < 10 && r.get(0).equals(s.get(0))) {
+					Integer sum = sums.get(r.get(1));
+					sums.put(r.get(1), (sum == null ? 0 : sum) + s.get(3));
+				}
+			}
+		}
+		Assert.assertEquals(sums.size(), result.size());
+		for (Tuple t : result) {
+			int group = ((IntField) t.getField(0)).getValue();
+			Assert.assertEquals(sums.get(group).intValue(), ((IntField) t.getField(1)).getValue());
+		}
+	}
+
+	/**
+	 * A column only read by ORDER BY survives the pushdown.
+	 */
+	@Test public void orderByPlan() throws Exception {
+		// select r.c1 from r, s where r.c0 = s.c0 and s.c1 > 10 order by r.c3
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(tableMap.get("r"), "r");
+		lp.addScan(tableMap.get("s"), "s");
+		lp.addJoin("r.c0", "s.c0", Predicate.Op.EQUALS);
+		lp.addFilter("s.c1", Predicate.Op.GREATER_THAN, "10");
+		lp.addProjectField("r.c1", null);
+		lp.addOrderBy("r.c3", true);
+		HashMap<String, HashSet<String>> fields = new HashMap<String, HashSet<String>>();
+		ArrayList<Tuple> result = run(lp, fields);
+		Assert.assertEquals(set("r.c0", "r.c1", "r.c3"), fields.get("r"));
+		Assert.assertEquals(set("s.c0", "s.c1"), fields.get("s"));
+		Assert.assertEquals(1, result.get(0).getTupleDesc().numFields());
+
+		int expected = 0;
+		for (ArrayList<Integer> r : rows.get("r")) {
+			for (ArrayList<Integer> s : rows.get("s")) {
+				if (s.get(1) > 10 && r.get(0).equals(s.get(0)))
+					expected++;
+			}
+		}
+		Assert.assertEquals(expected, result.size());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(ScanProjectionTest.class);
+	}
+}
@@ -0,0 +1,68 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  /**
+   * Unit test for SortMergeJoin with unsorted inputs and duplicate keys on
+   * both sides: the output is the full cross product of each key group,
+   * sorted on the join key.
+   */
+  @Test public void duplicateKeys() throws Exception {
+    DbIterator scan1 = TestUtil.createTupleList(2,
+        new int[] { 3, 1,
+                    1, 2,
+                    3, 3,
+                    2, 4 });
+    DbIterator scan2 = TestUtil.createTupleList(2,
+        new int[] { 3, 10,
+                    4, 20,
+                    3, 30,
+                    1, 40 });
+    DbIterator expected = TestUtil.createTupleList(4,
+        new int[] { 1, 2, 1, 40,
+                    3, 1, 3, 10,
+                    3, 1, 3, 30,
+                    3, 3, 3, 10,
+                    3, 3, 3, 30 });
+    SortMergeJoin op = new SortMergeJoin(
+        new JoinPredicate(0, Predicate.Op.EQUALS, 0), scan1, scan2);
+    op.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+
+    op.rewind();
+    int last = Integer.MIN_VALUE;
+    int count = 0;
+    while (op.hasNext()) {
+      int key = ((IntField) op.next().getField(0)).getValue();
+      assertTrue(key >= last);
+      last = key;
+      count++;
+    }
+    assertEquals(5, count);
+    op.close();
+  }
+
+  /**
+   * An input that is already ordered on the join key is used as it is.
+   */
+  @Test public void sortedInput() throws Exception {
+    DbIterator sorted = new OrderBy(0, true, TestUtil.createTupleList(1,
+        new int[] { 2, 1 }));
+    assertTrue(SortMergeJoin.isSortedOn(sorted, 0));
+    assertFalse(SortMergeJoin.isSortedOn(new OrderBy(0, false, sorted), 0));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
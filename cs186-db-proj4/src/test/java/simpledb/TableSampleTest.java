@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import Zql.ZDelete;
+import Zql.ZStatement;
+import Zql.ZqlParser;
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+public class TableSampleTest extends SimpleDbTestBase {
+
+  private HeapFile f;
+  private TransactionId tid;
+
+  @Before public void setUp() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    f = SystemTestUtil.createRandomHeapFile(2, 5000, null, tuples);
+    Database.getCatalog().addTable(f, "sampled");
+    tid = new TransactionId();
+  }
+
+  private static ArrayList<RecordId> drain(DbIterator it) throws Exception {
+    ArrayList<RecordId> ids = new ArrayList<RecordId>();
+    while (it.hasNext())
+      ids.add(it.next().getRecordId());
+    return ids;
+  }
+
+  /**
+   * SYSTEM returns every tuple of the chosen pages and nothing else.
+   */
+  @Test public void systemSample() throws Exception {
+    SampleScan scan = new SampleScan(tid, f.getId(), "s",
+        SampleScan.Method.SYSTEM, 40, 7);
+    HashSet<Integer> pages = new HashSet<Integer>();
+    for (int p : scan.getPages())
+      pages.add(p);
+    scan.open();
+    ArrayList<RecordId> ids = drain(scan);
+    for (RecordId id : ids)
+      assertTrue(pages.contains(id.getPageId().pageNumber()));
+
+    int expected = 0;
+    SeqScan all = new SeqScan(tid, f.getId(), "s");
+    all.open();
+    for (RecordId id : drain(all)) {
+      if (pages.contains(id.getPageId().pageNumber()))
+        expected++;
+    }
+    assertEquals(expected, ids.size());
+    scan.close();
+    all.close();
+  }
+
+  /**
+   * BERNOULLI keeps about the asked share of the tuples, and the same seed
+   * gives the same sample, also after a rewind.
+   */
+  @Test public void bernoulliSample() throws Exception {
+    SampleScan scan = new SampleScan(tid, f.getId(), "s",
+        SampleScan.Method.BERNOULLI, 10, 7);
+    assertNull(scan.getPages());
+    assertEquals(0.1, scan.getSamplingFraction(), 1e-9);
+    scan.open();
+    ArrayList<RecordId> first = drain(scan);
+    // 5000行的10%，标准差约21
+    assertEquals(500, first.size(), 100);
+    scan.rewind();
+    assertEquals(first, drain(scan));
+    scan.close();
+
+    SampleScan same = new SampleScan(tid, f.getId(), "s",
+        SampleScan.Method.BERNOULLI, 10, 7);
+    same.open();
+    assertEquals(first, drain(same));
+    same.close();
+  }
+
+  /**
+   * TABLESAMPLE clauses are cut off the statement and remembered per alias.
+   */
+  @Test public void parseTableSample() throws Exception {
+    Parser p = new Parser();
+    assertEquals("select * from t, u x where t.a = x.a;", p.stripTableSample(
+        "select * from t TABLESAMPLE SYSTEM (10), u x tablesample bernoulli(2.5) repeatable(3) where t.a = x.a;"));
+    assertEquals("select * from t;", p.stripTableSample("select * from t;"));
+    assertEquals("select * from t a;", p.stripClauses(
+        "select * from t a tablesample system(50) limit 10;"));
+  }
+
+  /**
+   * TABLESAMPLE on a DELETE is rejected instead of the DELETE running on
+   * the whole table.
+   */
+  @Test public void tableSampleOnDeleteRejected() throws Exception {
+    Parser p = new Parser();
+    p.processNextStatement("delete from sampled tablesample system(10);");
+    SeqScan all = new SeqScan(tid, f.getId(), "sampled");
+    all.open();
+    assertEquals(5000, drain(all).size());
+    all.close();
+
+    String stmt = p.stripClauses("delete from sampled tablesample bernoulli(50);");
+    ZStatement s = new ZqlParser(new ByteArrayInputStream(stmt.getBytes())).readStatement();
+    try {
+      p.handleDeleteStatement((ZDelete) s, tid);
+      fail("expected ParsingException");
+    } catch (ParsingException e) {
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TableSampleTest.class);
+  }
+}
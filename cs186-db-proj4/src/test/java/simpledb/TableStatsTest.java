@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 
@@ -100,6 +101,183 @@ public class TableStatsTest extends SimpleDbTestBase {
 		Assert.assertEquals(0, s.estimateTableCardinality(0.0));
 	}
 	
+	/**
+	 * Statistics of a table larger than the sample are built from some of its
+	 * pages; the number of tuples is scaled up and the selectivities stay
+	 * close to those of the whole table.
+	 */
+	@Test public void sampledStatsTest() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(1, 992*40, 32, null, tuples);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+		int id = Database.getCatalog().getTableId(name);
+
+		TableStats all = new TableStats(id, IO_COST, 0);
+		TableStats sampled = new TableStats(id, IO_COST, 8);
+		// 每页都是满的，按页数放大后元组数是准确的
+		Assert.assertEquals(992*40, all.totalTuples());
+		Assert.assertEquals(992*40, sampled.totalTuples());
+		Assert.assertEquals(all.estimateScanCost(), sampled.estimateScanCost(), 0.0);
+		for (int v = 0; v <= 32; v += 8) {
+			IntField f = new IntField(v);
+			Assert.assertEquals(all.estimateSelectivity(0, Predicate.Op.LESS_THAN, f),
+					sampled.estimateSelectivity(0, Predicate.Op.LESS_THAN, f), 0.05);
+			Assert.assertEquals(all.estimateSelectivity(0, Predicate.Op.EQUALS, f),
+					sampled.estimateSelectivity(0, Predicate.Op.EQUALS, f), 0.01);
+		}
+	}
+
+	/**
+	 * The number of distinct values in a sample of the pages is scaled up to
+	 * about the number in the whole table.
+	 */
+	@Test public void sampledDistinctTest() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(1, 992*40, 100000, null, tuples);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+		int id = Database.getCatalog().getTableId(name);
+
+		TableStats all = new TableStats(id, IO_COST, 0);
+		TableStats sampled = new TableStats(id, IO_COST, 8);
+		int distinct = all.estimateDistinctValues(0);
+		Assert.assertEquals(distinct, sampled.estimateDistinctValues(0), distinct * 0.25);
+	}
+
+	/**
+	 * Statistics computed by several threads from page ranges merged
+	 * together match those of a single pass, and the progress reaches every
+	 * page.
+	 */
+	@Test public void parallelStatsTest() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 992*4*3, 1000, null, tuples);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+		int id = Database.getCatalog().getTableId(name);
+
+		final int[] last = new int[2];
+		TableStats.computeStatistics(4, 2, new TableStats.ProgressListener() {
+			public synchronized void progress(int pagesDone, int pagesTotal) {
+				Assert.assertTrue(pagesDone <= pagesTotal);
+				last[0] = Math.max(last[0], pagesDone);
+				last[1] = pagesTotal;
+			}
+		});
+		Assert.assertEquals(last[1], last[0]);
+
+		TableStats serial = new TableStats(id, TableStats.IOCOSTPERPAGE);
+		TableStats parallel = TableStats.getTableStats(name);
+		Assert.assertEquals(serial.totalTuples(), parallel.totalTuples());
+		Assert.assertEquals(1020, TableStats.getTableStats(this.tableName).totalTuples());
+		for (int col = 0; col < 2; col++) {
+			Assert.assertEquals(serial.estimateDistinctValues(col), parallel.estimateDistinctValues(col));
+			for (int v = 0; v <= 1000; v += 100) {
+				IntField f = new IntField(v);
+				Assert.assertEquals(serial.estimateSelectivity(col, Predicate.Op.LESS_THAN, f),
+						parallel.estimateSelectivity(col, Predicate.Op.LESS_THAN, f), 0.02);
+			}
+		}
+	}
+
+	/**
+	 * Saved statistics load back equal, are skipped once the table's file has
+	 * changed, and become stale after enough modifications.
+	 */
+	@Test public void persistedStatsTest() throws Exception {
+		File statsFile = File.createTempFile("stats", ".stats");
+		statsFile.deleteOnExit();
+		TableStats.getStatsMap().clear();
+		TableStats.setTableStats(tableName, new TableStats(tableId, TableStats.IOCOSTPERPAGE));
+		TableStats computed = TableStats.getTableStats(tableName);
+		TableStats.saveStatistics(statsFile);
+
+		TableStats.getStatsMap().clear();
+		Assert.assertEquals(1, TableStats.loadStatistics(statsFile));
+		TableStats loaded = TableStats.getTableStats(tableName);
+		Assert.assertNotSame(computed, loaded);
+		Assert.assertEquals(computed.totalTuples(), loaded.totalTuples());
+		for (int col = 0; col < 10; col++) {
+			Assert.assertEquals(computed.estimateDistinctValues(col), loaded.estimateDistinctValues(col));
+			for (int v = -1; v <= 33; v += 3) {
+				IntField field = new IntField(v);
+				Assert.assertEquals(computed.estimateSelectivity(col, Predicate.Op.LESS_THAN, field),
+						loaded.estimateSelectivity(col, Predicate.Op.LESS_THAN, field), 0.0);
+			}
+		}
+		// 保存之后又写回一次，原来的统计不再可用
+		TableStats.saveStatistics(statsFile);
+		TableStats.getStatsMap().clear();
+		Assert.assertTrue(f.getFile().setLastModified(f.getFile().lastModified() + 2000));
+		Assert.assertEquals(0, TableStats.loadStatistics(statsFile));
+
+		Assert.assertFalse(computed.isStale());
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 120; i++)
+			Database.getBufferPool().insertTuple(tid, tableId, Utility.getHeapTuple(i, 10));
+		// 修改在事务提交时才计数
+		Assert.assertFalse(computed.isStale());
+		Database.getBufferPool().transactionComplete(tid);
+		Assert.assertTrue(computed.isStale());
+	}
+
+	/**
+	 * Inserts and deletes through the BufferPool update the statistics when
+	 * their transaction commits, and enough of them rebuild the statistics
+	 * in the background. Those of an aborted transaction are not counted.
+	 */
+	@Test public void incrementalStatsTest() throws Exception {
+		TableStats.setAutoAnalyze(false);
+		try {
+			TableStats.setTableStats(tableName, new TableStats(tableId, TableStats.IOCOSTPERPAGE));
+			TableStats stats = TableStats.getTableStats(tableName);
+			IntField max = new IntField(32);
+			Assert.assertEquals(0.0, stats.estimateSelectivity(0, Predicate.Op.GREATER_THAN, max), 0.0);
+
+			TransactionId tid = new TransactionId();
+			ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+			for (int i = 0; i < 200; i++) {
+				Tuple t = Utility.getHeapTuple(40, 10);
+				Database.getBufferPool().insertTuple(tid, tableId, t);
+				inserted.add(t);
+			}
+			Assert.assertEquals(1020, stats.totalTuples());
+			Assert.assertEquals(0, f.getModificationCount());
+			Database.getBufferPool().transactionComplete(tid);
+			Assert.assertEquals(1220, stats.totalTuples());
+			Assert.assertEquals(200, f.getModificationCount());
+			Assert.assertEquals(200.0 / 1220, stats.estimateSelectivity(0, Predicate.Op.GREATER_THAN, max), 0.02);
+			Assert.assertSame(stats, TableStats.getTableStats(tableName));
+
+			tid = new TransactionId();
+			for (Tuple t : inserted)
+				Database.getBufferPool().deleteTuple(tid, t);
+			Database.getBufferPool().transactionComplete(tid);
+			Assert.assertEquals(1020, stats.totalTuples());
+			Assert.assertEquals(0.0, stats.estimateSelectivity(0, Predicate.Op.GREATER_THAN, max), 0.01);
+
+			// 400次修改已超过阈值，下一次提交触发后台重建
+			TableStats.setAutoAnalyze(true);
+			tid = new TransactionId();
+			Database.getBufferPool().insertTuple(tid, tableId, Utility.getHeapTuple(40, 10));
+			Database.getBufferPool().transactionComplete(tid);
+			for (int i = 0; i < 100 && TableStats.getTableStats(tableName) == stats; i++)
+				Thread.sleep(50);
+			Assert.assertNotSame(stats, TableStats.getTableStats(tableName));
+
+			// 回滚的事务不改变统计信息和修改计数
+			TableStats current = TableStats.getTableStats(tableName);
+			tid = new TransactionId();
+			for (int i = 0; i < 100; i++)
+				Database.getBufferPool().insertTuple(tid, tableId, Utility.getHeapTuple(40, 10));
+			Database.getBufferPool().transactionComplete(tid, false);
+			Assert.assertEquals(401, f.getModificationCount());
+			Assert.assertEquals(1021, stats.totalTuples());
+			Assert.assertSame(current, TableStats.getTableStats(tableName));
+			Assert.assertFalse(current.isStale());
+		} finally {
+			TableStats.setAutoAnalyze(true);
+		}
+	}
+
 	/**
 	 * Verify that selectivity estimates do something reasonable.
 	 * Don't bother splitting this into N different functions for
@@ -43,6 +43,21 @@ public class TestUtil {
         return result;
     }
 
+    /**
+     * @return an open DbIterator over n two-field tuples; the ith is
+     *   ((i * 7919) % keys, i % values). As 7919 is prime, the keys
+     *   0 .. keys - 1 come in a scrambled order, each as often as the
+     *   others when keys divides n. Pass values = n for (key, i).
+     */
+    public static TupleIterator createKeyedTupleList(int n, int keys, int values) {
+        int[] data = new int[2 * n];
+        for (int i = 0; i < n; i++) {
+            data[2 * i] = (i * 7919) % keys;
+            data[2 * i + 1] = i % values;
+        }
+        return createTupleList(2, data);
+    }
+
     /**
      * @return a DbIterator over a list of tuples constructed over the data
      *   provided in the constructor. This iterator is already open.